@@ -1,26 +1,45 @@
 package org.opentravelmate;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.http.protocol.HttpRequestHandler;
+import org.opentravelmate.commons.BgThreadExecutor;
 import org.opentravelmate.commons.ExceptionListener;
 import org.opentravelmate.commons.I18nException;
+import org.opentravelmate.commons.OutboundHttpClient;
 import org.opentravelmate.commons.UIThreadExecutor;
 import org.opentravelmate.geolocation.Geolocation;
 import org.opentravelmate.geolocation.NativeGeolocation;
+import org.opentravelmate.httpserver.AssetCache;
+import org.opentravelmate.httpserver.BundleRequestHandler;
+import org.opentravelmate.httpserver.ContentHashManifest;
+import org.opentravelmate.httpserver.DiskLruTileStore;
+import org.opentravelmate.httpserver.DownloadScheduler;
 import org.opentravelmate.httpserver.ExtensionRequestHandler;
 import org.opentravelmate.httpserver.HttpServer;
 import org.opentravelmate.httpserver.NativeRequestHandler;
+import org.opentravelmate.httpserver.ImageMemoryCache;
 import org.opentravelmate.httpserver.ImageRequestHandler;
+import org.opentravelmate.httpserver.LocalHttpDispatcher;
+import org.opentravelmate.httpserver.MappedTileStore;
+import org.opentravelmate.httpserver.PortReservation;
+import org.opentravelmate.httpserver.ResponseCacheControl;
+import org.opentravelmate.httpserver.TileCachePolicy;
+import org.opentravelmate.httpserver.TilePack;
+import org.opentravelmate.httpserver.TileStore;
+import org.opentravelmate.httpserver.WorkerPoolOptions;
 import org.opentravelmate.widget.HtmlLayout;
 import org.opentravelmate.widget.HtmlLayoutParams;
 import org.opentravelmate.widget.map.NativeMap;
 import org.opentravelmate.widget.webview.NativeWebView;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -38,9 +57,38 @@ import android.util.Log;
 public class MainActivity extends FragmentActivity {
 	
 	private static final String LOG_TAG = MainActivity.class.getSimpleName();
+	private static final HttpServer.Engine HTTP_SERVER_ENGINE = HttpServer.Engine.NIO;
+	private static final boolean ENABLE_IN_PROCESS_DISPATCH = true;
+	private static final int HTTP_SERVER_FIRST_FALLBACK_PORT = 47380;
+	private static final int HTTP_SERVER_NB_FALLBACK_PORTS = 16;
+	private static final int MAX_CONCURRENT_IMAGE_REQUESTS = 16;
+	private static final int MAX_CONCURRENT_IMAGE_DOWNLOADS = 6;
+	private static final long ASSET_CACHE_MAX_SIZE = 4 * 1024 * 1024;
+	private static final int ASSET_CACHE_MAX_ENTRY_SIZE = 512 * 1024;
+	private static final int IMAGE_MEMORY_CACHE_MEMORY_CLASS_DIVISOR = 8;
+	private static final long IMAGE_MAX_AGE = 7 * 24 * 3600;
+	private static final long IMAGE_CACHE_MIN_SIZE = 32 * 1024 * 1024;
+	private static final long IMAGE_CACHE_MAX_SIZE = 256 * 1024 * 1024;
+	private static final double IMAGE_CACHE_FREE_SPACE_RATIO = 0.1;
+	private static final boolean USE_MAPPED_TILE_STORE = true;
+	private static final String MAPPED_TILE_STORE_DIRECTORY = "ImageTileStore";
+	private static final String DISK_LRU_TILE_STORE_DIRECTORY = "ImageRequestHandlerCache";
+	private static final int DISK_LRU_TILE_STORE_VERSION = 2;
+	private static final long VENDOR_LIBRARY_MAX_AGE = 24 * 3600;
+	private static final String TILE_PACKS_DIRECTORY = "tilepacks";
+	private static final String TILE_PACK_EXTENSION = ".pack";
+	private static final String MAIN_PAGE_URL = "extensions/org/opentravelmate/view/main/main.html";
+	private static final String[] WARM_UP_ASSET_PATHS = new String[] {
+		MAIN_PAGE_URL,
+		"extensions/vendors/require.min.js",
+		"extensions/org/opentravelmate/controller/widget/webview/startupScript.js",
+		"extensions/org/opentravelmate"
+	};
 	private HttpServer httpServer;
 	private NativeMap nativeMap = null;
 	private ImageRequestHandler imageRequestHandler = null;
+	private ResponseCacheControl responseCacheControl = null;
+	private ImageMemoryCache imageMemoryCache = null;
 
 	@SuppressLint("NewApi")
 	@Override
@@ -58,48 +106,151 @@ public class MainActivity extends FragmentActivity {
 		// Start the HTTP server
 		ExceptionListener exceptionListener = new DefaultExceptionListener();
 		Map<String, HttpRequestHandler> requestHandlerByPattern = new LinkedHashMap<String, HttpRequestHandler>();
-		final NativeRequestHandler nativeRequestHandler = new NativeRequestHandler();
+		AssetCache assetCache = new AssetCache(ASSET_CACHE_MAX_SIZE, ASSET_CACHE_MAX_ENTRY_SIZE);
+		ContentHashManifest contentHashManifest = new ContentHashManifest();
+		final NativeRequestHandler nativeRequestHandler = new NativeRequestHandler(assetCache, contentHashManifest);
 		nativeRequestHandler.registerInjectedJavaObject(NativeWebView.SCRIPT_URL, NativeWebView.GLOBAL_OBJECT_NAME);
 		nativeRequestHandler.registerInjectedJavaObject(NativeMap.SCRIPT_URL, NativeMap.GLOBAL_OBJECT_NAME);
 		nativeRequestHandler.registerInjectedJavaObject(NativeGeolocation.SCRIPT_URL, NativeGeolocation.GLOBAL_OBJECT_NAME);
 		requestHandlerByPattern.put("/native/*", nativeRequestHandler);
-		ExtensionRequestHandler extensionRequestHandler = new ExtensionRequestHandler(getAssets());
+		final ExtensionRequestHandler extensionRequestHandler = new ExtensionRequestHandler(getAssets(), assetCache, contentHashManifest);
 		requestHandlerByPattern.put("/extensions/*", extensionRequestHandler);
-		this.imageRequestHandler = new ImageRequestHandler(this);
+		requestHandlerByPattern.put(BundleRequestHandler.URL_PREFIX + "*",
+				new BundleRequestHandler(requestHandlerByPattern, assetCache, contentHashManifest));
+		ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+		this.imageMemoryCache = new ImageMemoryCache(activityManager.getMemoryClass() * 1024L * 1024L / IMAGE_MEMORY_CACHE_MEMORY_CLASS_DIVISOR);
+		DownloadScheduler downloadScheduler = new DownloadScheduler(MAX_CONCURRENT_IMAGE_DOWNLOADS);
+		this.imageRequestHandler = new ImageRequestHandler(
+				openImageTileStore(), OutboundHttpClient.DEFAULT, downloadScheduler, imageMemoryCache, contentHashManifest);
 		requestHandlerByPattern.put("/image/*", imageRequestHandler);
-		httpServer = new HttpServer(requestHandlerByPattern, exceptionListener);
+		Map<String, Integer> concurrencyLimitByPattern = new HashMap<String, Integer>();
+		concurrencyLimitByPattern.put("/image/*", MAX_CONCURRENT_IMAGE_REQUESTS);
+		WorkerPoolOptions workerPoolOptions = new WorkerPoolOptions(
+				WorkerPoolOptions.DEFAULT.corePoolSize,
+				WorkerPoolOptions.DEFAULT.maximumPoolSize,
+				WorkerPoolOptions.DEFAULT.keepAliveTime,
+				WorkerPoolOptions.DEFAULT.queueCapacity,
+				concurrencyLimitByPattern);
+		httpServer = new HttpServer(requestHandlerByPattern, exceptionListener, HTTP_SERVER_ENGINE, workerPoolOptions);
+		Map<String, Long> maxAgeByUriPrefix = new LinkedHashMap<String, Long>();
+		maxAgeByUriPrefix.put("/image/", IMAGE_MAX_AGE);
+		maxAgeByUriPrefix.put("/extensions/vendors/", VENDOR_LIBRARY_MAX_AGE);
+		this.responseCacheControl = new ResponseCacheControl(
+				contentHashManifest, new Date(new File(getPackageCodePath()).lastModified()), maxAgeByUriPrefix);
+		httpServer.addResponseInterceptor(responseCacheControl);
 		try {
-			httpServer.start();
+			httpServer.start(new PortReservation(getPreferences(MODE_PRIVATE), HTTP_SERVER_FIRST_FALLBACK_PORT, HTTP_SERVER_NB_FALLBACK_PORTS));
 		} catch (IOException e) {
 			exceptionListener.onException(true, new I18nException(
 					R.string.httpserver_error_unable_to_create_httpserver, e));
 			return;
 		}
 		
+		// Load the main extension resources in memory while the web views are created
+		BgThreadExecutor.execute(new Runnable() {
+			@Override public void run() {
+				extensionRequestHandler.warmUp(WARM_UP_ASSET_PATHS);
+			}
+		});
+		
+		// Serve the downloaded offline regions
+		final File tilePacksDirectory = new File(getFilesDir(), TILE_PACKS_DIRECTORY);
+		BgThreadExecutor.execute(new Runnable() {
+			@Override public void run() {
+				openTilePacks(tilePacksDirectory);
+			}
+		});
+		
 		// Initialize native objects to inject in the web views
-		String baseUrl = "http://localhost:" + httpServer.getPort() + "/";
+		String baseUrl = "http://127.0.0.1:" + httpServer.getPort() + "/";
+		LocalHttpDispatcher localHttpDispatcher = ENABLE_IN_PROCESS_DISPATCH ? httpServer.getLocalHttpDispatcher() : null;
 		HtmlLayout htmlLayout = new HtmlLayout(this);
 		this.setContentView(htmlLayout);
-		nativeMap = new NativeMap(exceptionListener, htmlLayout, this.getSupportFragmentManager(), baseUrl);
+		nativeMap = new NativeMap(exceptionListener, htmlLayout, this.getSupportFragmentManager(), baseUrl, localHttpDispatcher, downloadScheduler);
 		Geolocation geolocation = new Geolocation((LocationManager) this.getSystemService(Context.LOCATION_SERVICE));
 		NativeGeolocation nativeGeolocation = new NativeGeolocation(exceptionListener, htmlLayout, geolocation);
-		NativeWebView nativeWebView = new NativeWebView(exceptionListener, htmlLayout, baseUrl, nativeMap, nativeGeolocation);
+		NativeWebView nativeWebView = new NativeWebView(exceptionListener, htmlLayout, baseUrl, localHttpDispatcher, nativeMap, nativeGeolocation);
 		
 		// Initialize the root web view
 		HtmlLayoutParams layoutParams = new HtmlLayoutParams(HtmlLayout.MAIN_WEBVIEW_ID, 0, 0, 1, 1, true, new HashMap<String, String>(){
 			private static final long serialVersionUID = -2001726600946643058L;
 		{
-			put("url", "extensions/org/opentravelmate/view/main/main.html");
+			put("url", MAIN_PAGE_URL);
 			put("entrypoint", "extensions/org/opentravelmate/entrypoint");
 		}}, 1, 1);
 		nativeWebView.buildView(layoutParams);
 	}
 	
+	/**
+	 * Open the disk cache of the image request handler and delete the files of the unused cache implementation.
+	 * The cache size depends on the free space of the device.
+	 *
+	 * @return tile store
+	 */
+	private TileStore openImageTileStore() {
+		File cacheDir = getCacheDir();
+		final File unusedDirectory = new File(cacheDir,
+				USE_MAPPED_TILE_STORE ? DISK_LRU_TILE_STORE_DIRECTORY : MAPPED_TILE_STORE_DIRECTORY);
+		if (unusedDirectory.exists()) {
+			BgThreadExecutor.execute(new Runnable() {
+				@Override public void run() {
+					File[] files = unusedDirectory.listFiles();
+					if (files != null) {
+						for (File file : files) {
+							file.delete();
+						}
+					}
+					unusedDirectory.delete();
+				}
+			});
+		}
+
+		File directory = new File(cacheDir, USE_MAPPED_TILE_STORE ? MAPPED_TILE_STORE_DIRECTORY : DISK_LRU_TILE_STORE_DIRECTORY);
+		long maxSize = TileCachePolicy.computeBudget(
+				directory, IMAGE_CACHE_FREE_SPACE_RATIO, IMAGE_CACHE_MIN_SIZE, IMAGE_CACHE_MAX_SIZE);
+		Log.i(LOG_TAG, "Image cache size: " + maxSize + " bytes");
+		try {
+			if (USE_MAPPED_TILE_STORE) {
+				return MappedTileStore.open(directory, maxSize, TileCachePolicy.DEFAULT);
+			}
+			return DiskLruTileStore.open(directory, DISK_LRU_TILE_STORE_VERSION, maxSize);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to initialize the image cache.", e);
+		}
+	}
+
+	/**
+	 * Open the tile packs of the given directory and serve their tiles with the image request handler.
+	 * 
+	 * @param tilePacksDirectory
+	 */
+	private void openTilePacks(File tilePacksDirectory) {
+		File[] files = tilePacksDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(TILE_PACK_EXTENSION)) {
+				try {
+					TilePack tilePack = TilePack.open(file);
+					imageRequestHandler.addTilePack(tilePack);
+					Log.i(LOG_TAG, "Tile pack opened: " + tilePack);
+				} catch (IOException e) {
+					Log.w(LOG_TAG, "Unable to open the tile pack " + file, e);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Quit the application when this activity is destroyed.
 	 */
 	@Override
 	protected void onDestroy() {
+		Log.i(LOG_TAG, httpServer.getWorkerPool().toString());
+		Log.i(LOG_TAG, responseCacheControl.toString());
+		Log.i(LOG_TAG, imageRequestHandler.toString());
+		Log.i(LOG_TAG, nativeMap.toString());
 		httpServer.stop();
 		this.imageRequestHandler.close();
 		android.os.Process.killProcess(android.os.Process.myPid());
@@ -107,6 +258,25 @@ public class MainActivity extends FragmentActivity {
 		super.onDestroy();
 	}
 	
+	/**
+	 * Release the cached images when the system needs memory.
+	 */
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (imageMemoryCache != null) {
+			imageMemoryCache.onTrimMemory(level);
+		}
+	}
+	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		if (imageMemoryCache != null) {
+			imageMemoryCache.clear();
+		}
+	}
+	
 	/**
 	 * When the user pushes the back button, show a confirm message before closing the application.
 	 */
@@ -6,13 +6,6 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.entity.BufferedHttpEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
@@ -63,21 +56,14 @@ public class IOUtils {
 	}
 	
 	/**
-	 * Load a bitmap from an URL.
-	 * Thanks to http://stackoverflow.com/questions/844972/is-it-possible-to-put-an-image-from-a-url-in-a-imagebutton-in-android
+	 * Load a bitmap from an URL with {@link OutboundHttpClient#DEFAULT}.
 	 * 
 	 * @param bitmapUrl
 	 * @return loaded bitmap
 	 * @throws IOException
 	 */
 	public static Bitmap toBitmap(String bitmapUrl) throws IOException {
-		HttpGet httpRequest = new HttpGet(bitmapUrl);
-		HttpClient httpclient = new DefaultHttpClient();
-		HttpResponse response = (HttpResponse) httpclient.execute(httpRequest);
-		
-		HttpEntity entity = response.getEntity();
-		BufferedHttpEntity bufHttpEntity = new BufferedHttpEntity(entity);
-		byte[] bitmapContent = toByteArray(bufHttpEntity.getContent());
+		byte[] bitmapContent = toByteArray(OutboundHttpClient.DEFAULT.open(bitmapUrl).getInputStream());
 		return BitmapFactory.decodeByteArray(bitmapContent, 0, bitmapContent.length);
 	}
 }
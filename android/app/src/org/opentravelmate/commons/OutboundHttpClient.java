@@ -0,0 +1,560 @@
+package org.opentravelmate.commons;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Client shared by the components that download data from Internet.
+ *
+ * The connections are kept alive and reused by the {@link HttpURLConnection} pool: a connection goes back to
+ * the pool only when its response has been read until the end and its stream closed (calling
+ * {@link HttpURLConnection#disconnect()} closes the socket, so it is only done for interrupted responses).
+ * The number of requests sent at the same time to a host is limited, the other requests wait for a free slot.
+ * Responses are requested in gzip and decompressed transparently.
+ * After several consecutive failures (network errors or 5xx responses), the requests to a host are rejected
+ * immediately during a cool-down period, then the host is probed in background with the last failed URL:
+ * the requests are accepted again when the probe succeeds, else the cool-down period is doubled.
+ *
+ * @author Marc Plouhinec
+ */
+public class OutboundHttpClient {
+
+	/**
+	 * Client shared by the application.
+	 */
+	public static final OutboundHttpClient DEFAULT = new OutboundHttpClient(6, 15000, 30000);
+
+	/**
+	 * Time during which an idle connection is expected to stay in the pool.
+	 */
+	private static final long KEEP_ALIVE_DURATION = 5000;
+
+	private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+	private static final long CIRCUIT_MIN_OPEN_DURATION = 30 * 1000L;
+	private static final long CIRCUIT_MAX_OPEN_DURATION = 5 * 60 * 1000L;
+
+	private final int maxConnectionsPerHost;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final ConcurrentMap<String, HostState> hostStateByName = new ConcurrentHashMap<String, HostState>();
+	private final AtomicLong nbRequests = new AtomicLong();
+	private final AtomicLong nbFailedRequests = new AtomicLong();
+	private final AtomicLong nbReusableConnections = new AtomicLong();
+	private final AtomicLong nbWaitingRequests = new AtomicLong();
+	private final AtomicLong nbResponses = new AtomicLong();
+	private final AtomicLong responseDuration = new AtomicLong();
+	private final AtomicLong nbGzipResponses = new AtomicLong();
+	private final AtomicLong nbRejectedRequests = new AtomicLong();
+	private final AtomicLong nbOpenedCircuits = new AtomicLong();
+
+	/**
+	 * Create an OutboundHttpClient.
+	 * Note: the keep-alive pool of {@link HttpURLConnection} is configured by system properties,
+	 * so they are shared by all the clients.
+	 *
+	 * @param maxConnectionsPerHost
+	 *   Maximum number of requests sent at the same time to the same host.
+	 * @param connectTimeout
+	 *   Connection timeout in milliseconds.
+	 * @param readTimeout
+	 *   Read timeout in milliseconds.
+	 */
+	public OutboundHttpClient(int maxConnectionsPerHost, int connectTimeout, int readTimeout) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(maxConnectionsPerHost));
+	}
+
+	/**
+	 * Open a request to the given URL, wait if too many requests are already sent to its host.
+	 * The request must be closed with {@link Request#close()} or by closing its input stream.
+	 *
+	 * @param url
+	 * @return request, not yet connected so that its headers can be set
+	 * @throws IOException
+	 * @throws HostUnavailableException
+	 *   If the host has failed too many times recently.
+	 */
+	public Request open(String url) throws IOException {
+		URL parsedUrl = new URL(url);
+		HostState hostState = getHostState(parsedUrl.getHost());
+		if (!hostState.isAvailable()) {
+			String probeUrl = hostState.startProbeIfDue();
+			if (probeUrl != null) {
+				probeInBackground(probeUrl, hostState);
+			}
+			nbRejectedRequests.incrementAndGet();
+			throw new HostUnavailableException(parsedUrl.getHost());
+		}
+		return send(parsedUrl, hostState);
+	}
+
+	@Override
+	public String toString() {
+		return "OutboundHttpClient [hosts=" + hostStateByName.size() + ", requests=" + nbRequests.get() +
+				", failed=" + nbFailedRequests.get() + ", waited=" + nbWaitingRequests.get() +
+				", rejected=" + nbRejectedRequests.get() + ", openedCircuits=" + nbOpenedCircuits.get() +
+				", gzip=" + nbGzipResponses.get() +
+				", reusedConnectionRatio=" + (nbRequests.get() == 0 ? 0 : nbReusableConnections.get() * 100 / nbRequests.get()) + "%" +
+				", averageResponseTime=" + (nbResponses.get() == 0 ? 0 : responseDuration.get() / nbResponses.get()) + "ms]";
+	}
+
+	/**
+	 * Open a request without checking if its host is available.
+	 *
+	 * @param parsedUrl
+	 * @param hostState
+	 * @return request
+	 * @throws IOException
+	 */
+	private Request send(URL parsedUrl, HostState hostState) throws IOException {
+		if (!hostState.semaphore.tryAcquire()) {
+			nbWaitingRequests.incrementAndGet();
+			try {
+				hostState.semaphore.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a connection to " + parsedUrl.getHost());
+			}
+		}
+
+		try {
+			URLConnection connection = parsedUrl.openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			nbRequests.incrementAndGet();
+			if (hostState.takeIdleConnection()) {
+				nbReusableConnections.incrementAndGet();
+			}
+			return new Request(parsedUrl.toString(), connection, hostState);
+		} catch (IOException e) {
+			hostState.semaphore.release();
+			throw e;
+		} catch (RuntimeException e) {
+			hostState.semaphore.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Send a request to a host that is not available, in order to know if it works again.
+	 *
+	 * @param probeUrl
+	 * @param hostState
+	 */
+	private void probeInBackground(final String probeUrl, final HostState hostState) {
+		BgThreadExecutor.execute(new Runnable() {
+			@Override public void run() {
+				Request request;
+				try {
+					request = send(new URL(probeUrl), hostState);
+				} catch (IOException e) {
+					hostState.onFailure(probeUrl);
+					return;
+				}
+				try {
+					// Note: the request updates the host state
+					request.getResponseCode();
+				} catch (IOException e) {
+					// Do nothing
+				} finally {
+					request.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param host
+	 * @return state of the given host
+	 */
+	private HostState getHostState(String host) {
+		HostState hostState = hostStateByName.get(host);
+		if (hostState == null) {
+			hostState = new HostState(maxConnectionsPerHost);
+			HostState previousHostState = hostStateByName.putIfAbsent(host, hostState);
+			if (previousHostState != null) {
+				hostState = previousHostState;
+			}
+		}
+		return hostState;
+	}
+
+	/**
+	 * Requests in progress and idle connections of a host.
+	 */
+	private static class HostState {
+
+		final Semaphore semaphore;
+
+		// Guarded by this
+		private int nbIdleConnections = 0;
+		private long lastReleaseTime = 0;
+		private int nbConsecutiveFailures = 0;
+		private long unavailableUntil = 0;
+		private long unavailableDuration = CIRCUIT_MIN_OPEN_DURATION;
+		private boolean isProbing = false;
+		private String lastFailedUrl = null;
+
+		/**
+		 * Create a HostState.
+		 *
+		 * @param maxConnections
+		 */
+		public HostState(int maxConnections) {
+			this.semaphore = new Semaphore(maxConnections);
+		}
+
+		/**
+		 * Remember that a connection has been put back into the keep-alive pool.
+		 *
+		 * @param maxIdleConnections
+		 */
+		public synchronized void putIdleConnection(int maxIdleConnections) {
+			nbIdleConnections = Math.min(nbIdleConnections + 1, maxIdleConnections);
+			lastReleaseTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * Note: the pool of {@link HttpURLConnection} is not observable, so a connection is considered reused
+		 * if a connection to the same host has been put back into the pool recently.
+		 *
+		 * @return true if a connection has probably been taken from the keep-alive pool
+		 */
+		public synchronized boolean takeIdleConnection() {
+			if (System.currentTimeMillis() - lastReleaseTime > KEEP_ALIVE_DURATION) {
+				nbIdleConnections = 0;
+			}
+			if (nbIdleConnections == 0) {
+				return false;
+			}
+			nbIdleConnections--;
+			return true;
+		}
+
+		/**
+		 * @return true if the requests to this host are accepted
+		 */
+		public synchronized boolean isAvailable() {
+			return unavailableUntil == 0;
+		}
+
+		/**
+		 * Start a probe if the cool-down period is over and if no probe is running.
+		 *
+		 * @return URL to probe or null if the probe must not be started
+		 */
+		public synchronized String startProbeIfDue() {
+			if (isProbing || unavailableUntil == 0 || System.currentTimeMillis() < unavailableUntil) {
+				return null;
+			}
+			isProbing = true;
+			return lastFailedUrl;
+		}
+
+		/**
+		 * The host has sent a response: accept the requests again.
+		 */
+		public synchronized void onSuccess() {
+			nbConsecutiveFailures = 0;
+			unavailableUntil = 0;
+			unavailableDuration = CIRCUIT_MIN_OPEN_DURATION;
+			isProbing = false;
+		}
+
+		/**
+		 * The host has not responded or has returned a server error.
+		 *
+		 * @param url
+		 *   Failed URL.
+		 * @return true if the requests to this host are now rejected
+		 */
+		public synchronized boolean onFailure(String url) {
+			nbConsecutiveFailures++;
+			lastFailedUrl = url;
+			if (isProbing) {
+				isProbing = false;
+				unavailableDuration = Math.min(unavailableDuration * 2, CIRCUIT_MAX_OPEN_DURATION);
+				unavailableUntil = System.currentTimeMillis() + unavailableDuration;
+				return false;
+			}
+			if (unavailableUntil == 0 && nbConsecutiveFailures >= CIRCUIT_FAILURE_THRESHOLD) {
+				unavailableUntil = System.currentTimeMillis() + unavailableDuration;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Request sent through the client.
+	 */
+	public class Request {
+
+		private final String url;
+		private final URLConnection connection;
+		private final HostState hostState;
+		private final long startTime = System.currentTimeMillis();
+		private final AtomicBoolean isClosed = new AtomicBoolean(false);
+		private boolean isResponseReceived = false;
+		private boolean isGzip = false;
+		private boolean hasNoBody = false;
+		private ResponseInputStream inputStream = null;
+
+		/**
+		 * Create a Request.
+		 *
+		 * @param url
+		 * @param connection
+		 * @param hostState
+		 */
+		private Request(String url, URLConnection connection, HostState hostState) {
+			this.url = url;
+			this.connection = connection;
+			this.hostState = hostState;
+		}
+
+		/**
+		 * @return underlying connection, used to set request headers before the request is sent and
+		 *   to read the response headers
+		 */
+		public URLConnection getConnection() {
+			return connection;
+		}
+
+		/**
+		 * Send the request if necessary and wait for the response status.
+		 *
+		 * @return HTTP status code (200 for the URLs that don't use HTTP)
+		 * @throws IOException
+		 */
+		public int getResponseCode() throws IOException {
+			try {
+				int statusCode = connection instanceof HttpURLConnection ?
+						((HttpURLConnection) connection).getResponseCode() : HttpURLConnection.HTTP_OK;
+				onResponseReceived(statusCode);
+				return statusCode;
+			} catch (IOException e) {
+				onFailure(true);
+				throw e;
+			}
+		}
+
+		/**
+		 * Send the request if necessary and open the response body.
+		 * Closing the returned stream closes the request.
+		 *
+		 * @return response body, decompressed if necessary
+		 * @throws IOException
+		 *   If the request fails.
+		 * @throws StatusCodeException
+		 *   If the response is an error.
+		 */
+		public synchronized InputStream getInputStream() throws IOException {
+			if (inputStream == null) {
+				int statusCode = getResponseCode();
+				if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+					onFailure(false);
+					throw new StatusCodeException(url, statusCode);
+				}
+				try {
+					InputStream rawInputStream = connection.getInputStream();
+					if (isGzip) {
+						rawInputStream = new GZIPInputStream(rawInputStream);
+					}
+					inputStream = new ResponseInputStream(rawInputStream);
+				} catch (IOException e) {
+					onFailure(true);
+					throw e;
+				}
+			}
+			return inputStream;
+		}
+
+		/**
+		 * @return length of the response body or -1 if unknown (compressed responses)
+		 */
+		public long getContentLength() {
+			return isGzip ? -1 : connection.getContentLength();
+		}
+
+		/**
+		 * @return response content type or null
+		 */
+		public String getContentType() {
+			return connection.getContentType();
+		}
+
+		/**
+		 * Release the request. The connection is kept alive if its response has been read until the end.
+		 */
+		public void close() {
+			if (!isClosed.compareAndSet(false, true)) {
+				return;
+			}
+			boolean isComplete;
+			synchronized (this) {
+				isComplete = hasNoBody || (inputStream != null && inputStream.isEndOfStream);
+				if (inputStream != null) {
+					IOUtils.closeQuietly(inputStream.getRawInputStream());
+				}
+			}
+			if (isComplete) {
+				hostState.putIdleConnection(maxConnectionsPerHost);
+			} else if (connection instanceof HttpURLConnection) {
+				((HttpURLConnection) connection).disconnect();
+			}
+			hostState.semaphore.release();
+		}
+
+		/**
+		 * Measure the response time and update the host state when the response headers are received.
+		 *
+		 * @param statusCode
+		 */
+		private synchronized void onResponseReceived(int statusCode) {
+			if (!isResponseReceived) {
+				isResponseReceived = true;
+				nbResponses.incrementAndGet();
+				responseDuration.addAndGet(System.currentTimeMillis() - startTime);
+				hasNoBody = statusCode == HttpURLConnection.HTTP_NOT_MODIFIED || statusCode == HttpURLConnection.HTTP_NO_CONTENT;
+				isGzip = "gzip".equalsIgnoreCase(connection.getContentEncoding());
+				if (isGzip) {
+					nbGzipResponses.incrementAndGet();
+				}
+				if (statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+					onHostFailure();
+				} else {
+					hostState.onSuccess();
+				}
+			}
+		}
+
+		/**
+		 * Count a failed request and release it.
+		 *
+		 * @param isHostFailure
+		 *   True if the host has not responded.
+		 */
+		private void onFailure(boolean isHostFailure) {
+			if (!isClosed.get()) {
+				nbFailedRequests.incrementAndGet();
+				if (isHostFailure) {
+					onHostFailure();
+				}
+			}
+			close();
+		}
+
+		/**
+		 * Count a failure of the host.
+		 */
+		private void onHostFailure() {
+			if (hostState.onFailure(url)) {
+				nbOpenedCircuits.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Response body that closes the request when it is closed.
+		 */
+		private class ResponseInputStream extends FilterInputStream {
+
+			volatile boolean isEndOfStream = false;
+
+			/**
+			 * Create a ResponseInputStream.
+			 *
+			 * @param rawInputStream
+			 */
+			public ResponseInputStream(InputStream rawInputStream) {
+				super(rawInputStream);
+			}
+
+			@Override
+			public int read() throws IOException {
+				int value = super.read();
+				if (value == -1) {
+					isEndOfStream = true;
+				}
+				return value;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int len = super.read(buffer, offset, length);
+				if (len == -1) {
+					isEndOfStream = true;
+				}
+				return len;
+			}
+
+			@Override
+			public void close() {
+				Request.this.close();
+			}
+
+			/**
+			 * @return wrapped stream
+			 */
+			InputStream getRawInputStream() {
+				return in;
+			}
+		}
+	}
+
+	/**
+	 * Error response.
+	 */
+	public static class StatusCodeException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * HTTP status code.
+		 */
+		public final int statusCode;
+
+		/**
+		 * Create a StatusCodeException.
+		 *
+		 * @param url
+		 * @param statusCode
+		 */
+		public StatusCodeException(String url, int statusCode) {
+			super("Unexpected status code " + statusCode + " for " + url);
+			this.statusCode = statusCode;
+		}
+	}
+
+	/**
+	 * Request rejected because its host has failed too many times recently.
+	 */
+	public static class HostUnavailableException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Create a HostUnavailableException.
+		 *
+		 * @param host
+		 */
+		public HostUnavailableException(String host) {
+			super("The host " + host + " is temporarily unavailable.");
+		}
+	}
+}
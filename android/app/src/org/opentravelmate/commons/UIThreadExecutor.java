@@ -33,6 +33,16 @@ public class UIThreadExecutor {
 		handler.post(runnable);
 	}
 	
+	/**
+	 * Run the given runnable in the UI thread after the given delay.
+	 * 
+	 * @param runnable
+	 * @param delay Delay in milliseconds.
+	 */
+	public static void executeDelayed(Runnable runnable, long delay) {
+		handler.postDelayed(runnable, delay);
+	}
+	
 	/**
 	 * Execute the given Callable in the UI thread synchronously.
 	 * The function returns when the callable has been executed.
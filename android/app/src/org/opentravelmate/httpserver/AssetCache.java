@@ -0,0 +1,271 @@
+package org.opentravelmate.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * In-memory cache of the resources served to the web views (scripts, style sheets, html, ...).
+ * Each resource is stored once in its raw form and, when it is worth it, in its gzipped form.
+ * The cache is bounded by its size in bytes and evicts the least recently used resources first.
+ *
+ * @author Marc Plouhinec
+ */
+public class AssetCache {
+
+	private static final String[] COMPRESSIBLE_EXTENSIONS = new String[] { ".js", ".css", ".html", ".htm", ".json", ".svg", ".txt", ".xml" };
+
+	private final long maxSize;
+	private final int maxEntrySize;
+	private final Map<String, CachedAsset> assetByKey = new LinkedHashMap<String, CachedAsset>(64, 0.75f, true);
+	private long size = 0;
+	private long nbHits = 0;
+	private long nbMisses = 0;
+
+	/**
+	 * Create an asset cache.
+	 *
+	 * @param maxSize
+	 *   Maximum number of bytes kept in memory (raw and gzipped contents).
+	 * @param maxEntrySize
+	 *   Resources larger than this size in bytes are not cached.
+	 */
+	public AssetCache(long maxSize, int maxEntrySize) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	/**
+	 * Find a resource in the cache.
+	 *
+	 * @param key
+	 * @return cached resource or null if not found
+	 */
+	public synchronized CachedAsset get(String key) {
+		CachedAsset cachedAsset = assetByKey.get(key);
+		if (cachedAsset == null) {
+			nbMisses++;
+		} else {
+			nbHits++;
+		}
+		return cachedAsset;
+	}
+
+	/**
+	 * Find a resource in the cache or load it if it is not present.
+	 *
+	 * @param key
+	 * @param loader
+	 *   Function called to load the resource if it is not in the cache.
+	 * @return cached resource or null if the loader returned null
+	 * @throws IOException
+	 */
+	public CachedAsset get(String key, Loader loader) throws IOException {
+		CachedAsset cachedAsset = get(key);
+		if (cachedAsset != null) {
+			return cachedAsset;
+		}
+
+		byte[] content = loader.load();
+		if (content == null) {
+			return null;
+		}
+		return put(key, content);
+	}
+
+	/**
+	 * Put a resource in the cache.
+	 * Note: the content is not cached if it is larger than the maximum entry size.
+	 *
+	 * @param key
+	 *   Resource key, its file extension is used to decide if the content must be compressed.
+	 * @param content
+	 * @return cached resource
+	 */
+	public CachedAsset put(String key, byte[] content) {
+		if (content.length > maxEntrySize) {
+			return new CachedAsset(content, null);
+		}
+		CachedAsset cachedAsset = new CachedAsset(content, isCompressible(key) ? gzip(content) : null);
+
+		synchronized (this) {
+			CachedAsset previousAsset = assetByKey.put(key, cachedAsset);
+			if (previousAsset != null) {
+				size -= previousAsset.getSize();
+			}
+			size += cachedAsset.getSize();
+
+			// Evict the least recently used resources
+			Iterator<CachedAsset> iterator = assetByKey.values().iterator();
+			while (size > maxSize && iterator.hasNext()) {
+				size -= iterator.next().getSize();
+				iterator.remove();
+			}
+		}
+		return cachedAsset;
+	}
+
+	/**
+	 * Check if a resource can be stored in this cache.
+	 *
+	 * @param contentLength
+	 *   Resource size in bytes.
+	 * @return true if the resource is not too large
+	 */
+	public boolean accepts(long contentLength) {
+		return contentLength >= 0 && contentLength <= maxEntrySize;
+	}
+
+	/**
+	 * @return number of bytes in the cache.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return number of requests that found their resource in the cache.
+	 */
+	public synchronized long getHitCount() {
+		return nbHits;
+	}
+
+	/**
+	 * @return number of requests that didn't find their resource in the cache.
+	 */
+	public synchronized long getMissCount() {
+		return nbMisses;
+	}
+
+	/**
+	 * Check if a resource is worth compressing.
+	 *
+	 * @param key
+	 * @return true if the resource is text
+	 */
+	static boolean isCompressible(String key) {
+		String lowerCaseKey = key.toLowerCase();
+		for (String extension : COMPRESSIBLE_EXTENSIONS) {
+			if (lowerCaseKey.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compress the given content.
+	 *
+	 * @param content
+	 * @return gzipped content or null if the compression doesn't reduce the size
+	 */
+	private static byte[] gzip(byte[] content) {
+		try {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream(content.length / 2);
+			GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+			gzipOutputStream.write(content);
+			gzipOutputStream.close();
+			byte[] gzippedContent = outputStream.toByteArray();
+			return gzippedContent.length < content.length ? gzippedContent : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Check if the client accepts gzipped responses.
+	 *
+	 * @param request
+	 * @return true if the "Accept-Encoding" header contains "gzip"
+	 */
+	private static boolean acceptsGzip(HttpRequest request) {
+		for (Header header : request.getHeaders("Accept-Encoding")) {
+			String value = header.getValue().toLowerCase();
+			if (value.contains("gzip") && !value.contains("gzip;q=0")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Load a resource that is not in the cache.
+	 */
+	public static interface Loader {
+		/**
+		 * @return resource content or null if it must not be cached
+		 * @throws IOException
+		 */
+		byte[] load() throws IOException;
+	}
+
+	/**
+	 * Resource stored in the cache.
+	 */
+	public static class CachedAsset {
+
+		/**
+		 * Raw content.
+		 */
+		public final byte[] content;
+
+		/**
+		 * Gzipped content or null if the resource is not compressed.
+		 */
+		public final byte[] gzippedContent;
+
+		/**
+		 * Hash of the raw content.
+		 */
+		public final String hash;
+
+		/**
+		 * Create a CachedAsset.
+		 *
+		 * @param content
+		 * @param gzippedContent
+		 */
+		public CachedAsset(byte[] content, byte[] gzippedContent) {
+			this.content = content;
+			this.gzippedContent = gzippedContent;
+			this.hash = ContentHashManifest.hash(content);
+		}
+
+		/**
+		 * @return number of bytes used by this resource
+		 */
+		public long getSize() {
+			return content.length + (gzippedContent == null ? 0 : gzippedContent.length);
+		}
+
+		/**
+		 * Send the variant of this resource that the client accepts.
+		 *
+		 * @param request
+		 * @param response
+		 */
+		public void send(HttpRequest request, HttpResponse response) {
+			if (gzippedContent == null) {
+				response.setEntity(new ByteArrayEntity(content));
+				return;
+			}
+
+			response.setHeader("Vary", "Accept-Encoding");
+			if (acceptsGzip(request)) {
+				ByteArrayEntity entity = new ByteArrayEntity(gzippedContent);
+				entity.setContentEncoding("gzip");
+				response.setEntity(entity);
+			} else {
+				response.setEntity(new ByteArrayEntity(content));
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.opentravelmate.httpserver;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.opentravelmate.commons.IOUtils;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+/**
+ * Stream an asset without loading it in memory.
+ * Assets stored uncompressed in the APK are sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * compressed ones are copied through a pooled buffer.
+ * In both cases the Content-Length is known before the content is sent.
+ *
+ * @author Marc Plouhinec
+ */
+class AssetEntity extends AbstractHttpEntity {
+
+	private final AssetFileDescriptor assetFileDescriptor;
+	private final InputStream inputStream;
+	private final long contentLength;
+
+	/**
+	 * Create an entity for an uncompressed asset.
+	 *
+	 * @param assetFileDescriptor
+	 */
+	private AssetEntity(AssetFileDescriptor assetFileDescriptor) {
+		this.assetFileDescriptor = assetFileDescriptor;
+		this.inputStream = null;
+		this.contentLength = assetFileDescriptor.getLength();
+	}
+
+	/**
+	 * Create an entity for a compressed asset.
+	 *
+	 * @param inputStream
+	 *   Asset input stream.
+	 * @throws IOException
+	 */
+	private AssetEntity(InputStream inputStream) throws IOException {
+		this.assetFileDescriptor = null;
+		this.inputStream = inputStream;
+		// Note: the AssetInputStream returns the remaining length of the asset
+		this.contentLength = inputStream.available();
+	}
+
+	/**
+	 * Open the given asset.
+	 *
+	 * @param assetManager
+	 * @param path
+	 *   Asset path.
+	 * @return entity
+	 * @throws IOException
+	 *   If the asset doesn't exist.
+	 */
+	public static AssetEntity open(AssetManager assetManager, String path) throws IOException {
+		try {
+			AssetFileDescriptor assetFileDescriptor = assetManager.openFd(path);
+			if (assetFileDescriptor.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+				return new AssetEntity(assetFileDescriptor);
+			}
+			closeQuietly(assetFileDescriptor);
+		} catch (FileNotFoundException e) {
+			// The asset is compressed, it cannot be opened as a file descriptor
+		}
+		return new AssetEntity(assetManager.open(path, AssetManager.ACCESS_STREAMING));
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public long getContentLength() {
+		return this.contentLength;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		if (this.assetFileDescriptor != null) {
+			return this.assetFileDescriptor.createInputStream();
+		}
+		return this.inputStream;
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (this.assetFileDescriptor != null) {
+			transferTo(outstream);
+		} else {
+			copyTo(outstream);
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return true;
+	}
+
+	@Override
+	public void consumeContent() throws IOException {
+		if (this.assetFileDescriptor != null) {
+			closeQuietly(this.assetFileDescriptor);
+		} else {
+			IOUtils.closeQuietly(this.inputStream);
+		}
+	}
+
+	/**
+	 * Send the uncompressed asset directly from the APK file.
+	 *
+	 * @param outstream
+	 * @throws IOException
+	 */
+	private void transferTo(OutputStream outstream) throws IOException {
+		try {
+			FileChannel fileChannel = this.assetFileDescriptor.createInputStream().getChannel();
+			WritableByteChannel targetChannel = Channels.newChannel(outstream);
+			long position = this.assetFileDescriptor.getStartOffset();
+			long remaining = this.contentLength;
+			while (remaining > 0) {
+				long nbTransferredBytes = fileChannel.transferTo(position, remaining, targetChannel);
+				if (nbTransferredBytes <= 0) {
+					throw new IOException("Unexpected end of asset.");
+				}
+				position += nbTransferredBytes;
+				remaining -= nbTransferredBytes;
+			}
+			outstream.flush();
+		} finally {
+			closeQuietly(this.assetFileDescriptor);
+		}
+	}
+
+	/**
+	 * Copy the compressed asset with a pooled buffer.
+	 *
+	 * @param outstream
+	 * @throws IOException
+	 */
+	private void copyTo(OutputStream outstream) throws IOException {
+		byte[] buffer = BufferPool.DEFAULT.acquire();
+		try {
+			int len;
+			while ((len = this.inputStream.read(buffer)) != -1) {
+				outstream.write(buffer, 0, len);
+			}
+			outstream.flush();
+		} finally {
+			BufferPool.DEFAULT.release(buffer);
+			IOUtils.closeQuietly(this.inputStream);
+		}
+	}
+
+	/**
+	 * Close an asset file descriptor without throwing an exception.
+	 * Note: {@link AssetFileDescriptor} only implements {@link java.io.Closeable} since API level 19.
+	 *
+	 * @param assetFileDescriptor
+	 */
+	private static void closeQuietly(AssetFileDescriptor assetFileDescriptor) {
+		try {
+			assetFileDescriptor.close();
+		} catch (IOException e) {
+			// Do nothing
+		}
+	}
+}
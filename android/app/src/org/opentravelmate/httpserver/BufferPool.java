@@ -0,0 +1,67 @@
+package org.opentravelmate.httpserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size byte arrays used to copy streams without allocating a new buffer for each request.
+ *
+ * @author Marc Plouhinec
+ */
+class BufferPool {
+
+	/**
+	 * Pool shared by the request handlers.
+	 */
+	public static final BufferPool DEFAULT = new BufferPool(8 * 1024, 32);
+
+	private final int bufferSize;
+	private final int maxPooledBuffers;
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger nbPooledBuffers = new AtomicInteger();
+
+	/**
+	 * Create a buffer pool.
+	 *
+	 * @param bufferSize
+	 *   Size of each buffer in bytes.
+	 * @param maxPooledBuffers
+	 *   Maximum number of buffers kept in the pool when they are released.
+	 */
+	public BufferPool(int bufferSize, int maxPooledBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxPooledBuffers = maxPooledBuffers;
+	}
+
+	/**
+	 * Take a buffer from the pool or create a new one if the pool is empty.
+	 *
+	 * @return buffer
+	 */
+	public byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		if (buffer == null) {
+			return new byte[bufferSize];
+		}
+		nbPooledBuffers.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool.
+	 *
+	 * @param buffer
+	 *   Buffer obtained with {@link #acquire()}.
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) {
+			return;
+		}
+		if (nbPooledBuffers.incrementAndGet() <= maxPooledBuffers) {
+			buffers.offer(buffer);
+		} else {
+			nbPooledBuffers.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package org.opentravelmate.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+
+import android.util.Log;
+
+/**
+ * Serve a RequireJS module and all its dependencies in one response.
+ * A request to "/bundle/extensions/org/opentravelmate/Main.js" returns the module "extensions/org/opentravelmate/Main"
+ * and its transitive dependencies as named modules, so that RequireJS doesn't have to request them one by one.
+ *
+ * The module sources are read from the other request handlers. Modules that cannot be bundled
+ * (plugins, non-AMD scripts, files with several definitions) are left out and RequireJS loads them itself.
+ *
+ * @author Marc Plouhinec
+ */
+public class BundleRequestHandler implements HttpRequestHandler {
+
+	/**
+	 * Prefix of the bundle URLs.
+	 */
+	public static final String URL_PREFIX = "/bundle/";
+
+	private static final String LOG_TAG = "BundleRequestHandler";
+	private static final String CACHE_KEY_PREFIX = "bundle:";
+	private static final Pattern DEFINE_PATTERN = Pattern.compile("\\bdefine\\s*\\(");
+	private static final Pattern ANONYMOUS_DEFINE_WITH_DEPENDENCIES_PATTERN = Pattern.compile("\\bdefine\\s*\\(\\s*\\[([^\\]]*)\\]");
+	private static final Pattern REQUIRE_WITH_DEPENDENCIES_PATTERN = Pattern.compile("\\brequire(?:js)?\\s*\\(\\s*\\[([^\\]]*)\\]");
+	private static final Pattern NAMED_DEFINE_PATTERN = Pattern.compile("\\bdefine\\s*\\(\\s*['\"]([^'\"]+)['\"]");
+	private static final Pattern QUOTED_STRING_PATTERN = Pattern.compile("['\"]([^'\"]+)['\"]");
+	private static final Set<String> SPECIAL_DEPENDENCIES = new HashSet<String>();
+	static {
+		SPECIAL_DEPENDENCIES.add("require");
+		SPECIAL_DEPENDENCIES.add("exports");
+		SPECIAL_DEPENDENCIES.add("module");
+	}
+
+	private final HttpRequestHandlerRegistry moduleHandlerRegistry = new HttpRequestHandlerRegistry();
+	private final AssetCache assetCache;
+	private final ContentHashManifest contentHashManifest;
+
+	/**
+	 * Create the request handler.
+	 *
+	 * @param moduleHandlerByPattern
+	 *   Request handlers that provide the module sources (for example "/extensions/*" and "/native/*").
+	 * @param assetCache
+	 *   Cache where the bundles are kept.
+	 * @param contentHashManifest
+	 *   Manifest where the hash of the bundles are registered.
+	 */
+	public BundleRequestHandler(Map<String, HttpRequestHandler> moduleHandlerByPattern, AssetCache assetCache, ContentHashManifest contentHashManifest) {
+		this.moduleHandlerRegistry.setHandlers(new LinkedHashMap<String, HttpRequestHandler>(moduleHandlerByPattern));
+		this.assetCache = assetCache;
+		this.contentHashManifest = contentHashManifest;
+	}
+
+	@Override
+	public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+		String target = request.getRequestLine().getUri();
+		String url = URLDecoder.decode(target, "UTF-8");
+		if (!url.startsWith(URL_PREFIX) || !url.endsWith(".js")) {
+			throw new IOException("Invalid bundle: " + url);
+		}
+		final String entrypointModuleId = url.substring(URL_PREFIX.length(), url.length() - ".js".length());
+
+		AssetCache.CachedAsset bundle = assetCache.get(CACHE_KEY_PREFIX + entrypointModuleId + ".js", new AssetCache.Loader() {
+			@Override public byte[] load() throws IOException {
+				return buildBundle(entrypointModuleId);
+			}
+		});
+		contentHashManifest.put(target, bundle.hash);
+		bundle.send(request, response);
+	}
+
+	/**
+	 * Concatenate the given module and its dependencies, the dependencies are written first.
+	 *
+	 * @param entrypointModuleId
+	 * @return bundle content
+	 * @throws IOException
+	 *   If the entry point cannot be loaded.
+	 */
+	private byte[] buildBundle(String entrypointModuleId) throws IOException {
+		StringBuilder bundle = new StringBuilder();
+		Set<String> visitedModuleIds = new HashSet<String>();
+		visitedModuleIds.add(entrypointModuleId);
+		String source = loadModuleSource(entrypointModuleId);
+		if (source == null) {
+			throw new IOException("Unknown module: " + entrypointModuleId);
+		}
+
+		if (!appendModuleSource(entrypointModuleId, source, bundle, visitedModuleIds)) {
+			// The entry point is not a module (for example a script that calls require()), only bundle its dependencies
+			Matcher requireMatcher = REQUIRE_WITH_DEPENDENCIES_PATTERN.matcher(source);
+			if (requireMatcher.find()) {
+				appendDependencies(entrypointModuleId, requireMatcher.group(1), bundle, visitedModuleIds);
+			}
+		}
+		Log.d(LOG_TAG, "Bundle " + entrypointModuleId + " built with " + visitedModuleIds.size() + " modules.");
+		return bundle.toString().getBytes("UTF-8");
+	}
+
+	/**
+	 * Append the given module after its dependencies.
+	 *
+	 * @param moduleId
+	 * @param bundle
+	 * @param visitedModuleIds
+	 */
+	private void appendModule(String moduleId, StringBuilder bundle, Set<String> visitedModuleIds) {
+		if (!visitedModuleIds.add(moduleId)) {
+			return;
+		}
+
+		String source = loadModuleSource(moduleId);
+		if (source != null) {
+			appendModuleSource(moduleId, source, bundle, visitedModuleIds);
+		}
+	}
+
+	/**
+	 * Append the dependencies of a module.
+	 *
+	 * @param moduleId
+	 * @param dependencyArray
+	 *   Content of the dependency array of the module.
+	 * @param bundle
+	 * @param visitedModuleIds
+	 */
+	private void appendDependencies(String moduleId, String dependencyArray, StringBuilder bundle, Set<String> visitedModuleIds) {
+		for (String dependency : parseDependencies(dependencyArray)) {
+			String dependencyModuleId = resolveModuleId(moduleId, dependency);
+			if (dependencyModuleId != null) {
+				appendModule(dependencyModuleId, bundle, visitedModuleIds);
+			}
+		}
+	}
+
+	/**
+	 * Append the given module source code after its dependencies, with a named definition.
+	 *
+	 * @param moduleId
+	 * @param source
+	 * @param bundle
+	 * @param visitedModuleIds
+	 * @return true if the module has been bundled, false if it has not exactly one definition
+	 */
+	private boolean appendModuleSource(String moduleId, String source, StringBuilder bundle, Set<String> visitedModuleIds) {
+		Matcher defineMatcher = DEFINE_PATTERN.matcher(source);
+		if (!defineMatcher.find() || defineMatcher.find()) {
+			return false;
+		}
+
+		Matcher namedDefineMatcher = NAMED_DEFINE_PATTERN.matcher(source);
+		Matcher anonymousDefineMatcher = ANONYMOUS_DEFINE_WITH_DEPENDENCIES_PATTERN.matcher(source);
+		String namedSource;
+		if (namedDefineMatcher.find()) {
+			// The module already has a name, its dependencies are not analyzed
+			namedSource = source;
+		} else if (anonymousDefineMatcher.find()) {
+			appendDependencies(moduleId, anonymousDefineMatcher.group(1), bundle, visitedModuleIds);
+			namedSource = source.substring(0, anonymousDefineMatcher.start()) +
+					"define('" + moduleId + "', [" + anonymousDefineMatcher.group(1) + "]" +
+					source.substring(anonymousDefineMatcher.end());
+		} else {
+			// Module defined without dependency array (for example "define(function() {...})")
+			Matcher matcher = DEFINE_PATTERN.matcher(source);
+			matcher.find();
+			namedSource = source.substring(0, matcher.end()) + "'" + moduleId + "', " + source.substring(matcher.end());
+		}
+		bundle.append(namedSource).append('\n');
+		return true;
+	}
+
+	/**
+	 * Read a module with the request handlers.
+	 *
+	 * @param moduleId
+	 * @return module source code or null if not available
+	 */
+	private String loadModuleSource(String moduleId) {
+		String uri = "/" + moduleId + ".js";
+		HttpRequestHandler requestHandler = moduleHandlerRegistry.lookup(uri);
+		if (requestHandler == null) {
+			return null;
+		}
+
+		try {
+			BasicHttpRequest request = new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+			BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+			requestHandler.handle(request, response, new BasicHttpContext());
+			HttpEntity entity = response.getEntity();
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+				return null;
+			}
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			entity.writeTo(outputStream);
+			return outputStream.toString("UTF-8");
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Module " + moduleId + " not bundled: " + e.getMessage());
+			return null;
+		} catch (HttpException e) {
+			Log.w(LOG_TAG, "Module " + moduleId + " not bundled: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Extract the dependencies from the content of a "define" dependency array.
+	 *
+	 * @param dependencyArray
+	 * @return dependencies
+	 */
+	private static List<String> parseDependencies(String dependencyArray) {
+		List<String> dependencies = new ArrayList<String>();
+		Matcher matcher = QUOTED_STRING_PATTERN.matcher(dependencyArray);
+		while (matcher.find()) {
+			dependencies.add(matcher.group(1));
+		}
+		return dependencies;
+	}
+
+	/**
+	 * Find the ID of a dependency.
+	 *
+	 * @param moduleId
+	 *   ID of the module that has the dependency.
+	 * @param dependency
+	 * @return dependency module ID or null if it cannot be bundled (plugin, URL, ...)
+	 */
+	private static String resolveModuleId(String moduleId, String dependency) {
+		if (SPECIAL_DEPENDENCIES.contains(dependency) || dependency.indexOf('!') != -1 ||
+				dependency.indexOf(':') != -1 || dependency.startsWith("/") || dependency.endsWith(".js")) {
+			return null;
+		}
+		if (!dependency.startsWith("./") && !dependency.startsWith("../")) {
+			return dependency;
+		}
+
+		// Relative dependency
+		List<String> segments = new ArrayList<String>();
+		String[] moduleSegments = moduleId.split("/");
+		for (int i = 0; i < moduleSegments.length - 1; i++) {
+			segments.add(moduleSegments[i]);
+		}
+		for (String segment : dependency.split("/")) {
+			if ("..".equals(segment)) {
+				if (segments.isEmpty()) {
+					return null;
+				}
+				segments.remove(segments.size() - 1);
+			} else if (!".".equals(segment)) {
+				segments.add(segment);
+			}
+		}
+		StringBuilder resolvedModuleId = new StringBuilder();
+		for (String segment : segments) {
+			if (resolvedModuleId.length() > 0) {
+				resolvedModuleId.append('/');
+			}
+			resolvedModuleId.append(segment);
+		}
+		return resolvedModuleId.toString();
+	}
+}
@@ -0,0 +1,160 @@
+package org.opentravelmate.httpserver;
+
+import java.net.URLConnection;
+
+/**
+ * Validators and expiration time of a downloaded image, stored next to the image in the disk cache.
+ * An expired image can still be served while it is revalidated with a conditional request.
+ *
+ * @author Marc Plouhinec
+ */
+class CachedImageMetadata {
+
+	/**
+	 * Time during which an image is fresh when its server doesn't tell it.
+	 */
+	public static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * Time after which the image must be revalidated (in milliseconds since January 1, 1970 GMT).
+	 */
+	public final long expirationTime;
+
+	/**
+	 * Value of the ETag header or null if unknown.
+	 */
+	public final String etag;
+
+	/**
+	 * Value of the Last-Modified header or null if unknown.
+	 */
+	public final String lastModified;
+
+	/**
+	 * Create a CachedImageMetadata.
+	 *
+	 * @param expirationTime
+	 * @param etag
+	 * @param lastModified
+	 */
+	public CachedImageMetadata(long expirationTime, String etag, String lastModified) {
+		this.expirationTime = expirationTime;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Read the metadata from the headers of a response.
+	 *
+	 * @param connection
+	 *   Connected URL connection.
+	 * @param now
+	 *   Time when the response has been received.
+	 * @return metadata
+	 */
+	public static CachedImageMetadata fromResponse(URLConnection connection, long now) {
+		return new CachedImageMetadata(
+				findExpirationTime(connection, now),
+				connection.getHeaderField("ETag"),
+				connection.getHeaderField("Last-Modified"));
+	}
+
+	/**
+	 * Update the metadata with the headers of a "304 Not Modified" response.
+	 * The validators that are not in the response are kept.
+	 *
+	 * @param connection
+	 * @param now
+	 * @return updated metadata
+	 */
+	public CachedImageMetadata refresh(URLConnection connection, long now) {
+		String newEtag = connection.getHeaderField("ETag");
+		String newLastModified = connection.getHeaderField("Last-Modified");
+		return new CachedImageMetadata(
+				findExpirationTime(connection, now),
+				newEtag == null ? etag : newEtag,
+				newLastModified == null ? lastModified : newLastModified);
+	}
+
+	/**
+	 * Add the If-None-Match and If-Modified-Since headers to a request.
+	 *
+	 * @param connection
+	 *   Not yet connected URL connection.
+	 */
+	public void addConditionalHeaders(URLConnection connection) {
+		if (etag != null) {
+			connection.setRequestProperty("If-None-Match", etag);
+		}
+		if (lastModified != null) {
+			connection.setRequestProperty("If-Modified-Since", lastModified);
+		}
+	}
+
+	/**
+	 * @param now
+	 * @return true if the image must be revalidated
+	 */
+	public boolean isStale(long now) {
+		return now >= expirationTime;
+	}
+
+	/**
+	 * @return metadata in the format read by {@link #parse(String)}
+	 */
+	public String serialize() {
+		return expirationTime + "\n" + (etag == null ? "" : etag) + "\n" + (lastModified == null ? "" : lastModified);
+	}
+
+	/**
+	 * Parse the metadata written by {@link #serialize()}.
+	 *
+	 * @param value
+	 * @return metadata or null if the value is invalid
+	 */
+	public static CachedImageMetadata parse(String value) {
+		String[] fields = value.split("\n", -1);
+		if (fields.length != 3) {
+			return null;
+		}
+		try {
+			return new CachedImageMetadata(
+					Long.parseLong(fields[0]),
+					fields[1].length() == 0 ? null : fields[1],
+					fields[2].length() == 0 ? null : fields[2]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Find the expiration time from the Cache-Control and Expires headers.
+	 *
+	 * @param connection
+	 * @param now
+	 * @return expiration time
+	 */
+	private static long findExpirationTime(URLConnection connection, long now) {
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase().split(",")) {
+				directive = directive.trim();
+				if ("no-cache".equals(directive) || "no-store".equals(directive)) {
+					return now;
+				}
+				if (directive.startsWith("max-age=")) {
+					try {
+						return now + Long.parseLong(directive.substring("max-age=".length()).trim()) * 1000;
+					} catch (NumberFormatException e) {
+						// Ignore the invalid directive
+					}
+				}
+			}
+		}
+		long expiration = connection.getExpiration();
+		if (expiration > 0) {
+			return expiration;
+		}
+		return now + DEFAULT_MAX_AGE;
+	}
+}
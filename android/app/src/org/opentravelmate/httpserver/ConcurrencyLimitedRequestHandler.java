@@ -0,0 +1,63 @@
+package org.opentravelmate.httpserver;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+/**
+ * Limit the number of requests a {@link HttpRequestHandler} processes at the same time.
+ * Requests above the limit immediately receive a "503 Service Unavailable" response, so that a slow
+ * route (for example the image downloads) cannot use all the worker threads.
+ *
+ * @author Marc Plouhinec
+ */
+class ConcurrencyLimitedRequestHandler implements HttpRequestHandler {
+
+	static final String RETRY_AFTER_SECONDS = "1";
+
+	private final HttpRequestHandler requestHandler;
+	private final Semaphore semaphore;
+	private final AtomicLong nbRejectedRequests = new AtomicLong();
+
+	/**
+	 * Wrap the given request handler.
+	 *
+	 * @param requestHandler
+	 * @param concurrencyLimit
+	 *   Maximum number of requests processed at the same time.
+	 */
+	public ConcurrencyLimitedRequestHandler(HttpRequestHandler requestHandler, int concurrencyLimit) {
+		this.requestHandler = requestHandler;
+		this.semaphore = new Semaphore(concurrencyLimit);
+	}
+
+	@Override
+	public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+		if (!semaphore.tryAcquire()) {
+			nbRejectedRequests.incrementAndGet();
+			response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+			response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+			return;
+		}
+
+		try {
+			requestHandler.handle(request, response, context);
+		} finally {
+			semaphore.release();
+		}
+	}
+
+	/**
+	 * @return number of requests rejected because the limit was reached.
+	 */
+	public long getRejectedCount() {
+		return nbRejectedRequests.get();
+	}
+}
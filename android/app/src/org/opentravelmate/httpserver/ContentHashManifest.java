@@ -0,0 +1,67 @@
+package org.opentravelmate.httpserver;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hash of the content served at each URI.
+ * The request handlers fill this manifest and {@link ResponseCacheControl} uses it to build the ETag headers.
+ * The manifest only keeps the most recently used URIs (there is one URI per image tile): the handlers register
+ * the hash of a URI each time they serve it, so a forgotten URI only means one response without ETag.
+ *
+ * @author Marc Plouhinec
+ */
+public class ContentHashManifest {
+
+	private static final int MAX_URIS = 1024;
+
+	private final Map<String, String> hashByUri = new LinkedHashMap<String, String>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_URIS;
+		}
+	};
+
+	/**
+	 * Register the content hash of the given URI.
+	 *
+	 * @param uri
+	 *   Request URI (path and query, not decoded).
+	 * @param hash
+	 *   Content hash, see {@link #hash(byte[])}.
+	 */
+	public synchronized void put(String uri, String hash) {
+		hashByUri.put(uri, hash);
+	}
+
+	/**
+	 * Get the content hash of the given URI.
+	 *
+	 * @param uri
+	 * @return content hash or null if unknown
+	 */
+	public synchronized String get(String uri) {
+		return hashByUri.get(uri);
+	}
+
+	/**
+	 * Compute the hash of the given content.
+	 *
+	 * @param content
+	 * @return hexadecimal MD5 hash
+	 */
+	public static String hash(byte[] content) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] messageDigest = md.digest(content);
+			BigInteger number = new BigInteger(1, messageDigest);
+			return number.toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(Arrays.hashCode(content)) + "-" + content.length;
+		}
+	}
+}
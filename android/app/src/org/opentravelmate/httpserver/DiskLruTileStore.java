@@ -0,0 +1,139 @@
+package org.opentravelmate.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.opentravelmate.commons.IOUtils;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+import com.jakewharton.disklrucache.DiskLruCache.Snapshot;
+
+/**
+ * {@link TileStore} that saves each entry in its own files with a {@link DiskLruCache}.
+ * The least recently used entries are evicted first, the zoom levels of the tiles are ignored.
+ *
+ * @author Marc Plouhinec
+ */
+public class DiskLruTileStore implements TileStore {
+
+	private static final int DATA_INDEX = 0;
+	private static final int METADATA_INDEX = 1;
+
+	private final DiskLruCache diskLruCache;
+
+	/**
+	 * Create a DiskLruTileStore.
+	 *
+	 * @param diskLruCache
+	 */
+	private DiskLruTileStore(DiskLruCache diskLruCache) {
+		this.diskLruCache = diskLruCache;
+	}
+
+	/**
+	 * Open the store.
+	 *
+	 * @param directory
+	 * @param version
+	 *   Format version, the entries of the other versions are removed.
+	 * @param maxSize
+	 *   Maximum size in bytes.
+	 * @return store
+	 * @throws IOException
+	 */
+	public static DiskLruTileStore open(File directory, int version, long maxSize) throws IOException {
+		if (!directory.exists()) {
+			directory.mkdirs();
+		}
+		return new DiskLruTileStore(DiskLruCache.open(directory, version, 2, maxSize));
+	}
+
+	@Override
+	public Entry get(String key) throws IOException {
+		Snapshot snapshot = this.diskLruCache.get(key);
+		if (snapshot == null) {
+			return null;
+		}
+		try {
+			String metadata = snapshot.getString(METADATA_INDEX);
+			return new Entry(IOUtils.toByteArray(snapshot.getInputStream(DATA_INDEX)), metadata);
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	@Override
+	public String getMetadata(String key) throws IOException {
+		Snapshot snapshot = this.diskLruCache.get(key);
+		if (snapshot == null) {
+			return null;
+		}
+		try {
+			return snapshot.getString(METADATA_INDEX);
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	@Override
+	public Editor edit(String key) throws IOException {
+		final DiskLruCache.Editor editor = this.diskLruCache.edit(key);
+		if (editor == null) {
+			return null;
+		}
+		return new Editor() {
+			@Override public OutputStream newOutputStream() throws IOException {
+				return editor.newOutputStream(DATA_INDEX);
+			}
+			@Override public void setMetadata(String metadata) throws IOException {
+				editor.set(METADATA_INDEX, metadata);
+			}
+			@Override public void setZoom(int zoom) {
+				// Note: the DiskLruCache eviction is only based on the access order
+			}
+			@Override public void commit() throws IOException {
+				editor.commit();
+			}
+			@Override public void abort() throws IOException {
+				editor.abort();
+			}
+		};
+	}
+
+	@Override
+	public boolean updateMetadata(String key, String metadata) throws IOException {
+		Snapshot snapshot = this.diskLruCache.get(key);
+		if (snapshot == null) {
+			return false;
+		}
+		// Note: the editor of a snapshot only modifies the given values
+		DiskLruCache.Editor editor = snapshot.edit();
+		snapshot.close();
+		if (editor == null) {
+			return false;
+		}
+		try {
+			editor.set(METADATA_INDEX, metadata);
+			editor.commit();
+			return true;
+		} finally {
+			editor.abortUnlessCommitted();
+		}
+	}
+
+	@Override
+	public void remove(String key) throws IOException {
+		this.diskLruCache.remove(key);
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.diskLruCache.close();
+	}
+
+	@Override
+	public String toString() {
+		return "DiskLruTileStore [size=" + this.diskLruCache.size() + "]";
+	}
+}
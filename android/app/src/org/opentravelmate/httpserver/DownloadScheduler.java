@@ -0,0 +1,253 @@
+package org.opentravelmate.httpserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit the number of concurrent downloads and start the waiting ones by priority class:
+ * the tiles of the viewport first, then the adjacent tiles and finally the prefetched images.
+ * The downloads of the same class start in their arrival order.
+ * A waiting download can be moved to a higher class when a more urgent request needs the same image,
+ * or cancelled when its image is not needed anymore (for example when its tile is released by the map).
+ *
+ * @author Marc Plouhinec
+ */
+public class DownloadScheduler {
+
+	/**
+	 * Priority of the images currently displayed.
+	 */
+	public static final int VISIBLE = 0;
+
+	/**
+	 * Priority of the tiles around the viewport.
+	 */
+	public static final int ADJACENT = 1;
+
+	/**
+	 * Priority of the images loaded in advance or in background.
+	 */
+	public static final int PREFETCH = 2;
+
+	/**
+	 * Request header that contains the priority class ("visible", "adjacent" or "prefetch") of an image request.
+	 * The requests without this header are visible.
+	 */
+	public static final String PRIORITY_HEADER = "X-Download-Priority";
+
+	private static final String[] PRIORITY_NAMES = { "visible", "adjacent", "prefetch" };
+
+	private final int maxConcurrentDownloads;
+	private final PriorityQueue<PendingDownload> pendingDownloads = new PriorityQueue<PendingDownload>();
+	private int nbRunningDownloads = 0;
+	private long nbArrivals = 0;
+	private final AtomicLong[] nbStartedDownloads = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+	private final AtomicLong[] waitingDurations = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+	private final AtomicLong nbRaisedPriorities = new AtomicLong();
+	private final AtomicLong nbCancelledDownloads = new AtomicLong();
+
+	/**
+	 * Create a DownloadScheduler.
+	 *
+	 * @param maxConcurrentDownloads
+	 *   Maximum number of downloads running at the same time.
+	 */
+	public DownloadScheduler(int maxConcurrentDownloads) {
+		this.maxConcurrentDownloads = maxConcurrentDownloads;
+	}
+
+	/**
+	 * Wait until the download of the given image can start.
+	 * The caller must call {@link #release()} when the download is over.
+	 *
+	 * @param key
+	 *   Image identifier (the source URL).
+	 * @param priority
+	 *   {@link #VISIBLE}, {@link #ADJACENT} or {@link #PREFETCH}.
+	 * @throws CancelledDownloadException
+	 *   If the download has been cancelled with {@link #cancel(String)} while it was waiting.
+	 * @throws InterruptedIOException
+	 *   If the thread has been interrupted while waiting.
+	 */
+	public void acquire(String key, int priority) throws IOException {
+		long startTime = System.currentTimeMillis();
+		synchronized (this) {
+			PendingDownload pendingDownload = new PendingDownload(key, priority, nbArrivals++);
+			pendingDownloads.add(pendingDownload);
+			try {
+				while (!pendingDownload.isCancelled &&
+						(nbRunningDownloads >= maxConcurrentDownloads || pendingDownloads.peek() != pendingDownload)) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				pendingDownloads.remove(pendingDownload);
+				notifyAll();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the download of " + key);
+			}
+			if (pendingDownload.isCancelled) {
+				throw new CancelledDownloadException(key);
+			}
+			pendingDownloads.poll();
+			nbRunningDownloads++;
+			priority = pendingDownload.priority;
+		}
+		nbStartedDownloads[priority].incrementAndGet();
+		waitingDurations[priority].addAndGet(System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Let the next waiting download start.
+	 */
+	public synchronized void release() {
+		nbRunningDownloads--;
+		notifyAll();
+	}
+
+	/**
+	 * Move the waiting downloads of the given image to a higher priority class.
+	 *
+	 * @param key
+	 * @param priority
+	 *   New priority class, the downloads that have already a higher priority are not changed.
+	 */
+	public synchronized void raisePriority(String key, int priority) {
+		List<PendingDownload> raisedDownloads = new ArrayList<PendingDownload>();
+		for (PendingDownload pendingDownload : pendingDownloads) {
+			if (pendingDownload.priority > priority && pendingDownload.key.equals(key)) {
+				raisedDownloads.add(pendingDownload);
+			}
+		}
+		if (raisedDownloads.isEmpty()) {
+			return;
+		}
+
+		// Note: the queue must be updated in order to keep its order
+		for (PendingDownload pendingDownload : raisedDownloads) {
+			pendingDownloads.remove(pendingDownload);
+			pendingDownload.priority = priority;
+			pendingDownloads.add(pendingDownload);
+		}
+		nbRaisedPriorities.addAndGet(raisedDownloads.size());
+		notifyAll();
+	}
+
+	/**
+	 * Cancel the waiting downloads of the given image, the running ones are not interrupted.
+	 *
+	 * @param key
+	 */
+	public synchronized void cancel(String key) {
+		boolean hasCancelledDownloads = false;
+		for (PendingDownload pendingDownload : pendingDownloads) {
+			if (pendingDownload.key.equals(key)) {
+				pendingDownload.isCancelled = true;
+				hasCancelledDownloads = true;
+			}
+		}
+		if (!hasCancelledDownloads) {
+			return;
+		}
+
+		List<PendingDownload> remainingDownloads = new ArrayList<PendingDownload>(pendingDownloads);
+		pendingDownloads.clear();
+		for (PendingDownload pendingDownload : remainingDownloads) {
+			if (pendingDownload.isCancelled) {
+				nbCancelledDownloads.incrementAndGet();
+			} else {
+				pendingDownloads.add(pendingDownload);
+			}
+		}
+		notifyAll();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder stringBuilder = new StringBuilder("DownloadScheduler [");
+		for (int priority = VISIBLE; priority <= PREFETCH; priority++) {
+			long nbDownloads = nbStartedDownloads[priority].get();
+			stringBuilder.append(PRIORITY_NAMES[priority]).append("Downloads=").append(nbDownloads)
+				.append(", ").append(PRIORITY_NAMES[priority]).append("AverageWaitingTime=")
+				.append(nbDownloads == 0 ? 0 : waitingDurations[priority].get() / nbDownloads).append("ms, ");
+		}
+		return stringBuilder.append("raisedPriorities=").append(nbRaisedPriorities.get())
+			.append(", cancelledDownloads=").append(nbCancelledDownloads.get()).append("]").toString();
+	}
+
+	/**
+	 * Parse the value of the {@link #PRIORITY_HEADER}.
+	 *
+	 * @param value
+	 *   Header value or null.
+	 * @return priority class, {@link #VISIBLE} if the value is null or unknown
+	 */
+	public static int parsePriority(String value) {
+		for (int priority = VISIBLE; value != null && priority <= PREFETCH; priority++) {
+			if (PRIORITY_NAMES[priority].equalsIgnoreCase(value)) {
+				return priority;
+			}
+		}
+		return VISIBLE;
+	}
+
+	/**
+	 * @param priority
+	 * @return value of the {@link #PRIORITY_HEADER} for the given priority class
+	 */
+	public static String formatPriority(int priority) {
+		return PRIORITY_NAMES[priority];
+	}
+
+	/**
+	 * Thrown when a waiting download is cancelled.
+	 */
+	public static class CancelledDownloadException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Create a CancelledDownloadException.
+		 *
+		 * @param key
+		 */
+		public CancelledDownloadException(String key) {
+			super("The download of " + key + " has been cancelled.");
+		}
+	}
+
+	/**
+	 * Download waiting for its turn.
+	 */
+	private static class PendingDownload implements Comparable<PendingDownload> {
+
+		private final String key;
+		private final long arrivalIndex;
+		private int priority;
+		private boolean isCancelled = false;
+
+		/**
+		 * Create a PendingDownload.
+		 *
+		 * @param key
+		 * @param priority
+		 * @param arrivalIndex
+		 */
+		public PendingDownload(String key, int priority, long arrivalIndex) {
+			this.key = key;
+			this.priority = priority;
+			this.arrivalIndex = arrivalIndex;
+		}
+
+		@Override
+		public int compareTo(PendingDownload other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return arrivalIndex < other.arrivalIndex ? -1 : (arrivalIndex == other.arrivalIndex ? 0 : 1);
+		}
+	}
+}
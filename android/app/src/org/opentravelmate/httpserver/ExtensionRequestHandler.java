@@ -1,17 +1,17 @@
 package org.opentravelmate.httpserver;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.entity.EntityTemplate;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
-import org.opentravelmate.commons.IOUtils;
 
 import android.content.res.AssetManager;
+import android.util.Log;
 
 /**
  * Handle requests to extension resources.
@@ -20,15 +20,25 @@ import android.content.res.AssetManager;
  */
 public class ExtensionRequestHandler implements HttpRequestHandler {
 	
+	private static final String LOG_TAG = "ExtensionRequestHandler";
+	
 	private final AssetManager assetManager;
+	private final AssetCache assetCache;
+	private final ContentHashManifest contentHashManifest;
 	
 	/**
 	 * Create the request handler that provides the root document.
 	 * 
 	 * @param assetManager
+	 * @param assetCache
+	 *   Cache shared with the other request handlers.
+	 * @param contentHashManifest
+	 *   Manifest where the hash of the cached resources are registered.
 	 */
-	public ExtensionRequestHandler(AssetManager assetManager) {
+	public ExtensionRequestHandler(AssetManager assetManager, AssetCache assetCache, ContentHashManifest contentHashManifest) {
 		this.assetManager = assetManager;
+		this.assetCache = assetCache;
+		this.contentHashManifest = contentHashManifest;
 	}
 	
 	@Override
@@ -38,9 +48,78 @@ public class ExtensionRequestHandler implements HttpRequestHandler {
 		if (url != null && url.startsWith("/")) {
 			url = url.substring(1);
 		}
-		byte[] content = IOUtils.toByteArray(assetManager.open(url));
 		
-		EntityTemplate entity = new EntityTemplate(new SimpleContentProducer(content));
-		response.setEntity(entity);
+		// Send the resource from the cache if possible
+		AssetCache.CachedAsset cachedAsset = assetCache.get(url);
+		if (cachedAsset != null) {
+			contentHashManifest.put(target, cachedAsset.hash);
+			cachedAsset.send(request, response);
+			return;
+		}
+		
+		// Stream the resource when it is too large to be cached
+		AssetEntity assetEntity = AssetEntity.open(assetManager, url);
+		if (!assetCache.accepts(assetEntity.getContentLength())) {
+			response.setEntity(assetEntity);
+			return;
+		}
+		
+		cachedAsset = assetCache.put(url, toByteArray(assetEntity));
+		contentHashManifest.put(target, cachedAsset.hash);
+		cachedAsset.send(request, response);
+	}
+	
+	/**
+	 * Load the given assets in the cache.
+	 * This function can be called in a background thread before the web views request the assets.
+	 * 
+	 * @param assetPaths
+	 *   Paths of the assets or of folders that contain assets (only the scripts, style sheets and
+	 *   documents of a folder are loaded).
+	 */
+	public void warmUp(String... assetPaths) {
+		for (String assetPath : assetPaths) {
+			warmUp(assetPath, false);
+		}
+	}
+	
+	/**
+	 * Load the given asset or folder in the cache.
+	 * 
+	 * @param assetPath
+	 * @param textOnly
+	 *   If true, the asset is ignored if it doesn't contain text.
+	 */
+	private void warmUp(String assetPath, boolean textOnly) {
+		try {
+			String[] children = assetManager.list(assetPath);
+			if (children != null && children.length > 0) {
+				for (String child : children) {
+					warmUp(assetPath + "/" + child, true);
+				}
+			} else if ((!textOnly || AssetCache.isCompressible(assetPath)) && assetCache.get(assetPath) == null) {
+				AssetEntity assetEntity = AssetEntity.open(assetManager, assetPath);
+				if (assetCache.accepts(assetEntity.getContentLength())) {
+					assetCache.put(assetPath, toByteArray(assetEntity));
+				} else {
+					assetEntity.getContent().close();
+				}
+			}
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Unable to warm up the asset: " + assetPath, e);
+		}
+	}
+	
+	/**
+	 * Read the given asset.
+	 * 
+	 * @param assetEntity
+	 * @return asset content
+	 * @throws IOException
+	 */
+	private static byte[] toByteArray(AssetEntity assetEntity) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) assetEntity.getContentLength());
+		assetEntity.writeTo(outputStream);
+		return outputStream.toByteArray();
 	}
 }
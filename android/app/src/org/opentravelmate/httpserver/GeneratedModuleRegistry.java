@@ -0,0 +1,97 @@
+package org.opentravelmate.httpserver;
+
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RequireJS modules generated by the application instead of being read from the assets.
+ * The modules are rendered once when they are registered, then served as they are.
+ *
+ * Each injected Java object has its own module that returns 'window.objectName'. A bootstrap module
+ * defines all of them in one response, so that the web views don't have to request them one by one.
+ *
+ * @author Marc Plouhinec
+ */
+class GeneratedModuleRegistry {
+
+	private final String bootstrapModuleUrl;
+	private final Map<String, String> objectNameByUrl = new LinkedHashMap<String, String>();
+	private final Map<String, AssetCache.CachedAsset> moduleByUrl = new ConcurrentHashMap<String, AssetCache.CachedAsset>();
+
+	/**
+	 * Create a GeneratedModuleRegistry.
+	 *
+	 * @param bootstrapModuleUrl
+	 *   URL of the module that defines every injected Java object.
+	 */
+	public GeneratedModuleRegistry(String bootstrapModuleUrl) {
+		this.bootstrapModuleUrl = bootstrapModuleUrl;
+		this.moduleByUrl.put(bootstrapModuleUrl, render(""));
+	}
+
+	/**
+	 * Register an injected Java object and render its module.
+	 *
+	 * @param url
+	 *   URL of the module (for example "/native/widget/map/nativeMap.js").
+	 * @param objectName
+	 *   Name of the Java object in the window.
+	 */
+	public synchronized void registerInjectedJavaObject(String url, String objectName) {
+		objectNameByUrl.put(url, objectName);
+		moduleByUrl.put(url, render(
+				"define([], function() {\n" +
+				"  return window." + objectName + ";\n" +
+				"});"));
+
+		// Render the bootstrap module again with the named definition of each object
+		StringBuilder stringBuilder = new StringBuilder();
+		for (Map.Entry<String, String> entry : objectNameByUrl.entrySet()) {
+			stringBuilder
+				.append("define('").append(toModuleId(entry.getKey())).append("', [], function() {\n")
+				.append("  return window.").append(entry.getValue()).append(";\n")
+				.append("});\n");
+		}
+		moduleByUrl.put(bootstrapModuleUrl, render(stringBuilder.toString()));
+	}
+
+	/**
+	 * Find a generated module.
+	 *
+	 * @param url
+	 *   Decoded request URL.
+	 * @return module or null if not found
+	 */
+	public AssetCache.CachedAsset get(String url) {
+		return moduleByUrl.get(url);
+	}
+
+	/**
+	 * Convert a module URL into a RequireJS module ID.
+	 *
+	 * @param url
+	 *   For example "/native/widget/map/nativeMap.js".
+	 * @return module ID (for example "native/widget/map/nativeMap")
+	 */
+	private static String toModuleId(String url) {
+		String moduleId = url.startsWith("/") ? url.substring(1) : url;
+		return moduleId.endsWith(".js") ? moduleId.substring(0, moduleId.length() - ".js".length()) : moduleId;
+	}
+
+	/**
+	 * Convert a module source code into a servable resource.
+	 *
+	 * @param sourceCode
+	 * @return resource
+	 */
+	private static AssetCache.CachedAsset render(String sourceCode) {
+		try {
+			return new AssetCache.CachedAsset(sourceCode.getBytes("UTF-8"), null);
+		} catch (UnsupportedEncodingException e) {
+			// Never happens: UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -2,26 +2,36 @@ package org.opentravelmate.httpserver;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.http.ConnectionClosedException;
 import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpServerConnection;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.DefaultHttpResponseFactory;
 import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.protocol.HttpRequestHandlerRegistry;
@@ -33,6 +43,7 @@ import org.apache.http.protocol.ResponseServer;
 import org.opentravelmate.R;
 import org.opentravelmate.commons.ExceptionListener;
 import org.opentravelmate.commons.I18nException;
+import org.opentravelmate.commons.IOUtils;
 
 import android.util.Log;
 
@@ -46,13 +57,39 @@ import android.util.Log;
  */
 public class HttpServer {
 	
+	private static final int SO_TIMEOUT = 5000;
+	private static final long STOP_TIMEOUT = 1000;
+	private static final String LOOPBACK_ADDRESS = "127.0.0.1";
+	
+	/**
+	 * Way the connections are handled.
+	 */
+	public static enum Engine {
+		/**
+		 * One thread per connection, blocked until the connection is closed.
+		 */
+		BLOCKING,
+		
+		/**
+		 * One selector thread for all the connections, a worker thread is only used while a request is processed.
+		 */
+		NIO
+	}
+	
 	private final Map<String, HttpRequestHandler> requestHandlerByPattern;
 	private final ExceptionListener exceptionListener;
-	private final ExecutorService executorService = new ThreadPoolExecutor(4, 50, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	private final Engine engine;
+	private final WorkerPoolOptions workerPoolOptions;
+	private final WorkerPool workerPool;
+	private final Map<String, ConcurrencyLimitedRequestHandler> limitedRequestHandlerByPattern =
+			new HashMap<String, ConcurrencyLimitedRequestHandler>();
+	private final List<HttpResponseInterceptor> responseInterceptors = new ArrayList<HttpResponseInterceptor>();
 	private ServerSocket serverSocket;
+	private Thread listenerThread;
+	private LocalHttpDispatcher localHttpDispatcher;
 	
 	/**
-	 * Build a HTTP server.
+	 * Build a HTTP server with the {@link Engine#BLOCKING} engine.
 	 * 
 	 * @param requestHandlerByPattern
 	 *   Map<pattern, HTTP request handler>
@@ -60,19 +97,71 @@ public class HttpServer {
 	 *   Listener called when a server exception is thrown (can be used to display an error message to the user).
 	 */
 	public HttpServer(Map<String, HttpRequestHandler> requestHandlerByPattern, ExceptionListener exceptionListener) {
+		this(requestHandlerByPattern, exceptionListener, Engine.BLOCKING);
+	}
+	
+	/**
+	 * Build a HTTP server.
+	 * 
+	 * @param requestHandlerByPattern
+	 *   Map<pattern, HTTP request handler>
+	 * @param exceptionListener
+	 *   Listener called when a server exception is thrown (can be used to display an error message to the user).
+	 * @param engine
+	 *   Way the connections are handled.
+	 */
+	public HttpServer(Map<String, HttpRequestHandler> requestHandlerByPattern, ExceptionListener exceptionListener, Engine engine) {
+		this(requestHandlerByPattern, exceptionListener, engine, WorkerPoolOptions.DEFAULT);
+	}
+	
+	/**
+	 * Build a HTTP server.
+	 * 
+	 * @param requestHandlerByPattern
+	 *   Map<pattern, HTTP request handler>
+	 * @param exceptionListener
+	 *   Listener called when a server exception is thrown (can be used to display an error message to the user).
+	 * @param engine
+	 *   Way the connections are handled.
+	 * @param workerPoolOptions
+	 *   Size of the worker pool and concurrency limit of each request handler pattern.
+	 */
+	public HttpServer(Map<String, HttpRequestHandler> requestHandlerByPattern, ExceptionListener exceptionListener,
+			Engine engine, WorkerPoolOptions workerPoolOptions) {
 		this.requestHandlerByPattern = requestHandlerByPattern;
 		this.exceptionListener = exceptionListener;
+		this.engine = engine;
+		this.workerPoolOptions = workerPoolOptions;
+		this.workerPool = new WorkerPool(workerPoolOptions);
+	}
+	
+	/**
+	 * Add an interceptor that is called on each response before its Content-Length is computed.
+	 * Note: this function must be called before {@link #start()}.
+	 * 
+	 * @param responseInterceptor
+	 */
+	public void addResponseInterceptor(HttpResponseInterceptor responseInterceptor) {
+		responseInterceptors.add(responseInterceptor);
 	}
 	
 	/**
 	 * Create a server socket on an available port and process the requests.
 	 */
 	public void start() throws IOException {
+		start(null);
+	}
+	
+	/**
+	 * Create a server socket on the first available port of the given reservation and process the requests.
+	 * 
+	 * @param portReservation
+	 *   Ports to try, or null to use any available port.
+	 */
+	public void start(PortReservation portReservation) throws IOException {
 		// Prepare the HTTP server
-		this.serverSocket = new ServerSocket(0);
-		
 		HttpParams httpParams = new BasicHttpParams()
-			.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 5000)
+			.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, SO_TIMEOUT)
 			.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
 			.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false)
 			.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
@@ -81,27 +170,126 @@ public class HttpServer {
 		BasicHttpProcessor httpProcessor = new BasicHttpProcessor();
 		httpProcessor.addInterceptor(new ResponseDate());
 		httpProcessor.addInterceptor(new ResponseServer());
+		for (HttpResponseInterceptor responseInterceptor : responseInterceptors) {
+			httpProcessor.addInterceptor(responseInterceptor);
+		}
 		httpProcessor.addInterceptor(new ResponseContent());
 		httpProcessor.addInterceptor(new ResponseConnControl());
 		
 		HttpRequestHandlerRegistry registry = new HttpRequestHandlerRegistry();
 		for (Map.Entry<String, HttpRequestHandler> entry : requestHandlerByPattern.entrySet()) {
-			registry.register(entry.getKey(), entry.getValue());
+			HttpRequestHandler requestHandler = entry.getValue();
+			Integer concurrencyLimit = workerPoolOptions.concurrencyLimitByPattern.get(entry.getKey());
+			if (concurrencyLimit != null) {
+				ConcurrencyLimitedRequestHandler limitedRequestHandler = new ConcurrencyLimitedRequestHandler(requestHandler, concurrencyLimit);
+				limitedRequestHandlerByPattern.put(entry.getKey(), limitedRequestHandler);
+				requestHandler = limitedRequestHandler;
+			}
+			registry.register(entry.getKey(), requestHandler);
 		}
 		
-		HttpService httpService = new HttpService(httpProcessor, new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory());
-		httpService.setParams(httpParams);
-		httpService.setHandlerResolver(registry);
+		RequestDispatcher requestDispatcher = new RequestDispatcher(httpProcessor, registry, httpParams);
+		this.localHttpDispatcher = new LocalHttpDispatcher(requestDispatcher);
 		
 		// Handle incoming connections
-		executorService.execute(new RequestListener(this.serverSocket, httpParams, httpService, executorService, exceptionListener));
+		if (engine == Engine.NIO) {
+			ServerSocketChannel serverSocketChannel = bindServerSocketChannel(portReservation);
+			this.serverSocket = serverSocketChannel.socket();
+			
+			listenerThread = new Thread(new NioRequestListener(
+					serverSocketChannel, requestDispatcher, workerPool, exceptionListener, SO_TIMEOUT), "NioRequestListener");
+		} else {
+			this.serverSocket = bindServerSocket(portReservation);
+			
+			HttpService httpService = new HttpService(httpProcessor, new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory());
+			httpService.setParams(httpParams);
+			httpService.setHandlerResolver(registry);
+			
+			listenerThread = new Thread(new RequestListener(
+					this.serverSocket, httpParams, httpService, workerPool, exceptionListener), "RequestListener");
+		}
+		if (portReservation != null) {
+			portReservation.onBound(serverSocket.getLocalPort());
+		}
+		listenerThread.start();
  	}
 	
 	/**
-	 * Stop the server.
+	 * Bind a server socket channel on the loopback interface.
+	 * 
+	 * @param portReservation
+	 *   Ports to try, or null to use any available port.
+	 * @return bound channel
+	 * @throws IOException
+	 */
+	private static ServerSocketChannel bindServerSocketChannel(PortReservation portReservation) throws IOException {
+		int[] candidatePorts = portReservation == null ? new int[] { 0 } : portReservation.getCandidatePorts();
+		BindException lastException = null;
+		for (int port : candidatePorts) {
+			ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+			try {
+				serverSocketChannel.socket().setReuseAddress(true);
+				serverSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(LOOPBACK_ADDRESS), port));
+				return serverSocketChannel;
+			} catch (BindException e) {
+				IOUtils.closeQuietly(serverSocketChannel);
+				lastException = e;
+			}
+		}
+		throw lastException;
+	}
+	
+	/**
+	 * Bind a server socket on the loopback interface.
+	 * 
+	 * @param portReservation
+	 *   Ports to try, or null to use any available port.
+	 * @return bound socket
+	 * @throws IOException
+	 */
+	private static ServerSocket bindServerSocket(PortReservation portReservation) throws IOException {
+		int[] candidatePorts = portReservation == null ? new int[] { 0 } : portReservation.getCandidatePorts();
+		BindException lastException = null;
+		for (int port : candidatePorts) {
+			ServerSocket serverSocket = new ServerSocket();
+			try {
+				serverSocket.setReuseAddress(true);
+				serverSocket.bind(new InetSocketAddress(InetAddress.getByName(LOOPBACK_ADDRESS), port));
+				return serverSocket;
+			} catch (BindException e) {
+				try {
+					serverSocket.close();
+				} catch (IOException closeException) {
+					// Do nothing
+				}
+				lastException = e;
+			}
+		}
+		throw lastException;
+	}
+	
+	/**
+	 * Stop the server and release its port, so that a new server started in the same process can bind it again
+	 * (see {@link PortReservation}).
 	 */
 	public void stop() {
-		executorService.shutdownNow();
+		if (listenerThread != null) {
+			listenerThread.interrupt();
+			if (engine == Engine.BLOCKING) {
+				// Note: the blocking listener is waiting in accept(), only the closing of the socket can wake it up
+				try {
+					serverSocket.close();
+				} catch (IOException e) {
+					// Do nothing
+				}
+			}
+			try {
+				listenerThread.join(STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		workerPool.shutdownNow();
 	}
 	
 	/**
@@ -112,7 +300,62 @@ public class HttpServer {
 	}
 	
 	/**
-	 * Listen to an incoming request and process it in a new thread.
+	 * Get the dispatcher that sends requests to the same handlers without going through a socket.
+	 * Note: this function must be called after {@link #start()}.
+	 * 
+	 * @return in-process dispatcher
+	 */
+	public LocalHttpDispatcher getLocalHttpDispatcher() {
+		return this.localHttpDispatcher;
+	}
+	
+	/**
+	 * @return threads that process the requests, with their statistics.
+	 */
+	public WorkerPool getWorkerPool() {
+		return this.workerPool;
+	}
+	
+	/**
+	 * Get the number of requests that have been rejected because the concurrency limit of
+	 * the given pattern was reached.
+	 * 
+	 * @param pattern
+	 *   Request handler pattern.
+	 * @return number of rejected requests
+	 */
+	public long getRejectedCount(String pattern) {
+		ConcurrencyLimitedRequestHandler limitedRequestHandler = limitedRequestHandlerByPattern.get(pattern);
+		return limitedRequestHandler == null ? 0 : limitedRequestHandler.getRejectedCount();
+	}
+	
+	/**
+	 * Create the response sent when the server is saturated.
+	 * 
+	 * @return "503 Service Unavailable" response
+	 */
+	static HttpResponse createServiceUnavailableResponse() {
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+		response.setHeader("Retry-After", ConcurrencyLimitedRequestHandler.RETRY_AFTER_SECONDS);
+		response.setHeader(HTTP.CONTENT_LEN, "0");
+		response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+		return response;
+	}
+	
+	/**
+	 * Create the response sent when a request handler has failed unexpectedly.
+	 * 
+	 * @return "500 Internal Server Error" response
+	 */
+	static HttpResponse createInternalServerErrorResponse() {
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal Server Error");
+		response.setHeader(HTTP.CONTENT_LEN, "0");
+		response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+		return response;
+	}
+	
+	/**
+	 * Listen to an incoming request and process it in a worker thread.
 	 */
 	private static class RequestListener implements Runnable {
 		
@@ -120,7 +363,7 @@ public class HttpServer {
 		private final ServerSocket serverSocket;
 		private final HttpParams httpParams;
 		private final HttpService httpService;
-		private final ExecutorService executorService;
+		private final WorkerPool workerPool;
 		private final ExceptionListener exceptionListener;
 		
 		/**
@@ -129,19 +372,19 @@ public class HttpServer {
 		 * @param serverSocket
 		 * @param httpParams
 		 * @param httpService
-		 * @param executorService
+		 * @param workerPool
 		 * @param exceptionListener
 		 */
 		public RequestListener(
 				ServerSocket serverSocket,
 				HttpParams httpParams,
 				HttpService httpService,
-				ExecutorService executorService,
+				WorkerPool workerPool,
 				ExceptionListener exceptionListener) {
 			this.serverSocket = serverSocket;
 			this.httpParams = httpParams;
 			this.httpService = httpService;
-			this.executorService = executorService;
+			this.workerPool = workerPool;
 			this.exceptionListener = exceptionListener;
 		}
 		
@@ -154,19 +397,47 @@ public class HttpServer {
 					Socket socket = this.serverSocket.accept();
 					DefaultHttpServerConnection connection = new DefaultHttpServerConnection();
 					connection.bind(socket, this.httpParams);
-					executorService.execute(new RequestHandler(httpService, connection, exceptionListener));
+					try {
+						workerPool.execute(new RequestHandler(httpService, connection, exceptionListener));
+					} catch (RejectedExecutionException e) {
+						rejectConnection(connection);
+					}
 					
 				} catch (InterruptedIOException e) {
 					exceptionListener.onException(true, new I18nException(
 							R.string.httpserver_error_unable_to_initialize_connection, e, localPort));
 					break;
 				} catch (IOException e) {
-					exceptionListener.onException(true, new I18nException(
-							R.string.httpserver_error_unable_to_initialize_connection, e, localPort));
+					if (!this.serverSocket.isClosed()) {
+						exceptionListener.onException(true, new I18nException(
+								R.string.httpserver_error_unable_to_initialize_connection, e, localPort));
+					}
 					break;
 				}
 			}
 		}
+		
+		/**
+		 * Answer "503 Service Unavailable" and close the connection.
+		 * 
+		 * @param connection
+		 */
+		private void rejectConnection(HttpServerConnection connection) {
+			try {
+				connection.sendResponseHeader(createServiceUnavailableResponse());
+				connection.flush();
+			} catch (IOException e) {
+				// Do nothing
+			} catch (HttpException e) {
+				// Do nothing
+			} finally {
+				try {
+					connection.shutdown();
+				} catch (IOException ignore) {
+					// Do nothing
+				}
+			}
+		}
 	};
 	
 	/**
@@ -0,0 +1,68 @@
+package org.opentravelmate.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Alpha-blend stacked images into a single one, for example the tiles of several map overlays.
+ * The images are drawn in order (the first one at the bottom) and scaled to the size of the first one.
+ *
+ * @author Marc Plouhinec
+ */
+class ImageCompositor {
+
+	/**
+	 * Blend the given images.
+	 *
+	 * @param layers
+	 *   Encoded images, the first one at the bottom.
+	 * @return encoded image (PNG in order to keep the transparency)
+	 * @throws IOException
+	 *   If an image cannot be decoded.
+	 */
+	public byte[] composite(List<byte[]> layers) throws IOException {
+		if (layers.size() == 1) {
+			return layers.get(0);
+		}
+
+		Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		Bitmap composite = null;
+		Canvas canvas = null;
+		Rect bounds = null;
+		int totalLength = 0;
+		try {
+			for (byte[] layer : layers) {
+				Bitmap bitmap = BitmapFactory.decodeByteArray(layer, 0, layer.length);
+				if (bitmap == null) {
+					throw new IOException("Unable to decode a layer of the image.");
+				}
+				try {
+					if (composite == null) {
+						composite = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+						canvas = new Canvas(composite);
+						bounds = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+					}
+					canvas.drawBitmap(bitmap, null, bounds, paint);
+					totalLength += layer.length;
+				} finally {
+					bitmap.recycle();
+				}
+			}
+
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream(totalLength);
+			composite.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+			return outputStream.toByteArray();
+		} finally {
+			if (composite != null) {
+				composite.recycle();
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package org.opentravelmate.httpserver;
+
+/**
+ * Filter applied on the pixels of an image.
+ * Implementations are pure Java: they don't depend on the Android graphics classes.
+ *
+ * @author Marc Plouhinec
+ */
+public interface ImageFilter {
+
+	/**
+	 * @return name that identifies this filter and its parameters, only made of [a-z0-9_-] characters
+	 */
+	String getName();
+
+	/**
+	 * Modify the given pixels.
+	 *
+	 * @param pixels
+	 *   ARGB pixels (0xAARRGGBB).
+	 * @param offset
+	 *   Index of the first pixel to modify.
+	 * @param length
+	 *   Number of pixels to modify.
+	 */
+	void apply(int[] pixels, int offset, int length);
+}
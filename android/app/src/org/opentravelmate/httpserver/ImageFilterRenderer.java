@@ -0,0 +1,84 @@
+package org.opentravelmate.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Decode an image, apply an {@link ImageFilter} on its pixels and encode it again.
+ * The pixels are copied into a buffer that is reused by each thread, and the decoded bitmap is
+ * modified in place instead of being drawn into a new one.
+ *
+ * @author Marc Plouhinec
+ */
+class ImageFilterRenderer {
+
+	private static final int JPEG_QUALITY = 70;
+
+	private final ThreadLocal<int[]> pixelBuffers = new ThreadLocal<int[]>();
+
+	/**
+	 * Apply the given filter on an encoded image.
+	 *
+	 * @param imageData
+	 *   Encoded image.
+	 * @param filter
+	 * @param compressFormat
+	 *   Format of the filtered image.
+	 * @return encoded filtered image
+	 * @throws IOException
+	 *   If the image cannot be decoded.
+	 */
+	public byte[] render(byte[] imageData, ImageFilter filter, Bitmap.CompressFormat compressFormat) throws IOException {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			options.inMutable = true;
+		}
+		Bitmap bitmap = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, options);
+		if (bitmap == null) {
+			throw new IOException("Unable to decode the image.");
+		}
+
+		try {
+			if (!bitmap.isMutable()) {
+				Bitmap mutableBitmap = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+				bitmap.recycle();
+				bitmap = mutableBitmap;
+			}
+
+			// Apply the filter on the pixels
+			int width = bitmap.getWidth();
+			int height = bitmap.getHeight();
+			int[] pixels = acquirePixelBuffer(width * height);
+			bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+			filter.apply(pixels, 0, width * height);
+			bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+
+			// Encode the filtered bitmap
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream(imageData.length);
+			bitmap.compress(compressFormat, JPEG_QUALITY, outputStream);
+			return outputStream.toByteArray();
+		} finally {
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Get the pixel buffer of the current thread.
+	 *
+	 * @param nbPixels
+	 * @return buffer that contains at least the given number of pixels
+	 */
+	private int[] acquirePixelBuffer(int nbPixels) {
+		int[] pixels = pixelBuffers.get();
+		if (pixels == null || pixels.length < nbPixels) {
+			pixels = new int[nbPixels];
+			pixelBuffers.set(pixels);
+		}
+		return pixels;
+	}
+}
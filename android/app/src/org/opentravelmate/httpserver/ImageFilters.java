@@ -0,0 +1,245 @@
+package org.opentravelmate.httpserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Built-in {@link ImageFilter}s.
+ *
+ * A filter chain is described by a comma-separated list of filters, each filter can have a parameter
+ * after a colon, for example: "grayscale", "brightness:40,tint:3366ff" or "night".
+ *
+ * @author Marc Plouhinec
+ */
+public final class ImageFilters {
+
+	private static final int DEFAULT_BRIGHTNESS = 70;
+
+	/**
+	 * Utility class.
+	 */
+	private ImageFilters() {
+	}
+
+	/**
+	 * Parse a filter chain.
+	 *
+	 * @param description
+	 *   For example "brightness:40,tint:3366ff".
+	 * @return filter that applies each filter of the chain in order
+	 * @throws IllegalArgumentException
+	 *   If a filter is unknown or if its parameter is invalid.
+	 */
+	public static ImageFilter parse(String description) {
+		List<ImageFilter> filters = new ArrayList<ImageFilter>();
+		for (String filterDescription : description.split(",")) {
+			String name = filterDescription.trim().toLowerCase();
+			String parameter = null;
+			int separatorIndex = name.indexOf(':');
+			if (separatorIndex != -1) {
+				parameter = name.substring(separatorIndex + 1);
+				name = name.substring(0, separatorIndex);
+			}
+			filters.add(create(name, parameter));
+		}
+		return filters.size() == 1 ? filters.get(0) : new Chain(filters);
+	}
+
+	/**
+	 * Create a built-in filter.
+	 *
+	 * @param name
+	 * @param parameter
+	 *   Filter parameter or null for the default value.
+	 * @return filter
+	 * @throws IllegalArgumentException
+	 *   If the filter is unknown or if its parameter is invalid.
+	 */
+	private static ImageFilter create(String name, String parameter) {
+		try {
+			if ("grayscale".equals(name)) {
+				List<ImageFilter> filters = new ArrayList<ImageFilter>();
+				filters.add(new Brightness(DEFAULT_BRIGHTNESS));
+				filters.add(new Desaturate());
+				return new Chain(filters) {
+					@Override public String getName() {
+						return "grayscale";
+					}
+				};
+			}
+			if ("desaturate".equals(name)) {
+				return new Desaturate();
+			}
+			if ("brightness".equals(name)) {
+				return new Brightness(parameter == null ? DEFAULT_BRIGHTNESS : Integer.parseInt(parameter));
+			}
+			if ("night".equals(name)) {
+				return new Night();
+			}
+			if ("tint".equals(name) && parameter != null) {
+				return new Tint(Integer.parseInt(parameter, 16));
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid parameter for the filter " + name + ": " + parameter);
+		}
+		throw new IllegalArgumentException("Unknown filter: " + name);
+	}
+
+	/**
+	 * Apply several filters in order.
+	 */
+	public static class Chain implements ImageFilter {
+
+		private final ImageFilter[] filters;
+
+		/**
+		 * Create a filter chain.
+		 *
+		 * @param filters
+		 */
+		public Chain(List<ImageFilter> filters) {
+			this.filters = filters.toArray(new ImageFilter[filters.size()]);
+		}
+
+		@Override
+		public String getName() {
+			StringBuilder name = new StringBuilder();
+			for (ImageFilter filter : filters) {
+				if (name.length() > 0) {
+					name.append('_');
+				}
+				name.append(filter.getName());
+			}
+			return name.toString();
+		}
+
+		@Override
+		public void apply(int[] pixels, int offset, int length) {
+			for (ImageFilter filter : filters) {
+				filter.apply(pixels, offset, length);
+			}
+		}
+	}
+
+	/**
+	 * Convert the colors into gray levels (same luminance coefficients as {@link android.graphics.ColorMatrix#setSaturation(float)}).
+	 */
+	public static class Desaturate implements ImageFilter {
+
+		@Override
+		public String getName() {
+			return "desaturate";
+		}
+
+		@Override
+		public void apply(int[] pixels, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				int pixel = pixels[i];
+				int gray = (((pixel >> 16) & 0xFF) * 54 + ((pixel >> 8) & 0xFF) * 183 + (pixel & 0xFF) * 19) >> 8;
+				pixels[i] = (pixel & 0xFF000000) | (gray << 16) | (gray << 8) | gray;
+			}
+		}
+	}
+
+	/**
+	 * Add a constant to each color component.
+	 */
+	public static class Brightness implements ImageFilter {
+
+		private final int delta;
+
+		/**
+		 * Create a Brightness filter.
+		 *
+		 * @param delta
+		 *   Value added to each color component (between -255 and 255).
+		 */
+		public Brightness(int delta) {
+			this.delta = delta;
+		}
+
+		@Override
+		public String getName() {
+			return "brightness" + delta;
+		}
+
+		@Override
+		public void apply(int[] pixels, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				int pixel = pixels[i];
+				pixels[i] = (pixel & 0xFF000000) |
+						(clamp(((pixel >> 16) & 0xFF) + delta) << 16) |
+						(clamp(((pixel >> 8) & 0xFF) + delta) << 8) |
+						clamp((pixel & 0xFF) + delta);
+			}
+		}
+	}
+
+	/**
+	 * Invert and darken the colors, so that a bright map becomes readable at night.
+	 */
+	public static class Night implements ImageFilter {
+
+		@Override
+		public String getName() {
+			return "night";
+		}
+
+		@Override
+		public void apply(int[] pixels, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				int pixel = pixels[i];
+				pixels[i] = (pixel & 0xFF000000) |
+						(((255 - ((pixel >> 16) & 0xFF)) * 205 >> 8) << 16) |
+						(((255 - ((pixel >> 8) & 0xFF)) * 205 >> 8) << 8) |
+						((255 - (pixel & 0xFF)) * 205 >> 8);
+			}
+		}
+	}
+
+	/**
+	 * Multiply the colors by a tint color.
+	 */
+	public static class Tint implements ImageFilter {
+
+		private final int red;
+		private final int green;
+		private final int blue;
+
+		/**
+		 * Create a Tint filter.
+		 *
+		 * @param rgb
+		 *   Tint color (0xRRGGBB).
+		 */
+		public Tint(int rgb) {
+			this.red = (rgb >> 16) & 0xFF;
+			this.green = (rgb >> 8) & 0xFF;
+			this.blue = rgb & 0xFF;
+		}
+
+		@Override
+		public String getName() {
+			return "tint" + Integer.toHexString(0x1000000 | (red << 16) | (green << 8) | blue).substring(1);
+		}
+
+		@Override
+		public void apply(int[] pixels, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				int pixel = pixels[i];
+				pixels[i] = (pixel & 0xFF000000) |
+						((((pixel >> 16) & 0xFF) * red / 255) << 16) |
+						((((pixel >> 8) & 0xFF) * green / 255) << 8) |
+						((pixel & 0xFF) * blue / 255);
+			}
+		}
+	}
+
+	/**
+	 * @param value
+	 * @return value between 0 and 255
+	 */
+	private static int clamp(int value) {
+		return value < 0 ? 0 : (value > 255 ? 255 : value);
+	}
+}
@@ -0,0 +1,209 @@
+package org.opentravelmate.httpserver;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * In-memory cache of encoded images, in front of the disk cache of the {@link ImageRequestHandler}.
+ * The cache is bounded by its size in bytes and evicts the least recently used images first.
+ *
+ * When the cache is full, a new image is only admitted if it has already been requested recently:
+ * the tiles that are displayed once while panning don't evict the tiles that are displayed again and again.
+ *
+ * The content hash of the cached images is kept with them, so that the ETag of an image is not computed again
+ * each time it is served, and changes as soon as the image is replaced.
+ *
+ * @author Marc Plouhinec
+ */
+public class ImageMemoryCache {
+
+	private static final int MAX_RECENT_KEYS = 1024;
+
+	private final long maxSize;
+	private long currentMaxSize;
+	private long size = 0;
+	private final Map<String, byte[]> imageDataByKey = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+	private final Map<String, String> contentHashByKey = new HashMap<String, String>();
+	private final Map<String, Boolean> recentKeys = new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_RECENT_KEYS;
+		}
+	};
+	private long nbHits = 0;
+	private long nbMisses = 0;
+	private long nbRejections = 0;
+
+	/**
+	 * Create an image cache.
+	 *
+	 * @param maxSize
+	 *   Maximum number of bytes kept in memory.
+	 */
+	public ImageMemoryCache(long maxSize) {
+		this.maxSize = maxSize;
+		this.currentMaxSize = maxSize;
+	}
+
+	/**
+	 * Find an image in the cache.
+	 *
+	 * @param key
+	 * @return image data or null if not found
+	 */
+	public synchronized byte[] get(String key) {
+		byte[] imageData = imageDataByKey.get(key);
+		if (imageData == null) {
+			nbMisses++;
+		} else {
+			nbHits++;
+		}
+		return imageData;
+	}
+
+	/**
+	 * Put an image in the cache.
+	 *
+	 * @param key
+	 * @param imageData
+	 *   Encoded image.
+	 */
+	public synchronized void put(String key, byte[] imageData) {
+		if (imageData.length > currentMaxSize) {
+			return;
+		}
+
+		// Only admit the images requested at least twice when the cache is full
+		boolean isRecentKey = recentKeys.remove(key) != null;
+		if (size + imageData.length > currentMaxSize && !isRecentKey && !imageDataByKey.containsKey(key)) {
+			recentKeys.put(key, Boolean.TRUE);
+			nbRejections++;
+			return;
+		}
+
+		byte[] previousImageData = imageDataByKey.put(key, imageData);
+		if (previousImageData != null) {
+			size -= previousImageData.length;
+			if (previousImageData != imageData) {
+				contentHashByKey.remove(key);
+			}
+		}
+		size += imageData.length;
+		trimToSize(currentMaxSize);
+	}
+
+	/**
+	 * Remove an image from the cache.
+	 *
+	 * @param key
+	 */
+	public synchronized void remove(String key) {
+		byte[] imageData = imageDataByKey.remove(key);
+		if (imageData != null) {
+			size -= imageData.length;
+		}
+		contentHashByKey.remove(key);
+	}
+
+	/**
+	 * Get the content hash of an image, see {@link ContentHashManifest#hash(byte[])}.
+	 * The hash is computed once for each image of the cache.
+	 *
+	 * @param key
+	 * @param imageData
+	 *   Image served for this key, cached or not.
+	 * @return content hash of the given image data
+	 */
+	public String getContentHash(String key, byte[] imageData) {
+		synchronized (this) {
+			String contentHash = contentHashByKey.get(key);
+			if (contentHash != null && imageDataByKey.get(key) == imageData) {
+				return contentHash;
+			}
+		}
+		String contentHash = ContentHashManifest.hash(imageData);
+		synchronized (this) {
+			// Note: the image may have been replaced or evicted while its hash was computed
+			if (imageDataByKey.get(key) == imageData) {
+				contentHashByKey.put(key, contentHash);
+			}
+		}
+		return contentHash;
+	}
+
+	/**
+	 * Release memory according to the level given by {@link ComponentCallbacks2#onTrimMemory(int)}.
+	 *
+	 * @param level
+	 */
+	public synchronized void onTrimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			clear();
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			currentMaxSize = maxSize / 2;
+			trimToSize(currentMaxSize);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			currentMaxSize = maxSize * 3 / 4;
+			trimToSize(currentMaxSize);
+		}
+	}
+
+	/**
+	 * Remove all the images and restore the maximum size.
+	 */
+	public synchronized void clear() {
+		imageDataByKey.clear();
+		contentHashByKey.clear();
+		recentKeys.clear();
+		size = 0;
+		currentMaxSize = maxSize;
+	}
+
+	/**
+	 * @return number of bytes in the cache.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return number of requests that found their image in the cache.
+	 */
+	public synchronized long getHitCount() {
+		return nbHits;
+	}
+
+	/**
+	 * @return number of requests that didn't find their image in the cache.
+	 */
+	public synchronized long getMissCount() {
+		return nbMisses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long nbRequests = nbHits + nbMisses;
+		return "ImageMemoryCache [size=" + size + ", maxSize=" + currentMaxSize +
+				", hits=" + nbHits + ", misses=" + nbMisses + ", rejections=" + nbRejections +
+				", hitRatio=" + (nbRequests == 0 ? 0 : nbHits * 100 / nbRequests) + "%]";
+	}
+
+	/**
+	 * Evict the least recently used images until the cache size is under the given limit.
+	 *
+	 * @param targetSize
+	 */
+	private void trimToSize(long targetSize) {
+		Iterator<Map.Entry<String, byte[]>> iterator = imageDataByKey.entrySet().iterator();
+		while (size > targetSize && iterator.hasNext()) {
+			Map.Entry<String, byte[]> entry = iterator.next();
+			size -= entry.getValue().length;
+			contentHashByKey.remove(entry.getKey());
+			iterator.remove();
+		}
+	}
+}
@@ -1,137 +1,1195 @@
 package org.opentravelmate.httpserver;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
-import java.net.URL;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
 import java.net.URLDecoder;
-import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolException;
 import org.apache.http.entity.EntityTemplate;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
+import org.opentravelmate.commons.BgThreadExecutor;
 import org.opentravelmate.commons.IOUtils;
+import org.opentravelmate.commons.OutboundHttpClient;
 
-import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Paint;
 import android.util.Log;
 
-import com.jakewharton.disklrucache.DiskLruCache;
-import com.jakewharton.disklrucache.DiskLruCache.Editor;
-import com.jakewharton.disklrucache.DiskLruCache.Snapshot;
-
 /**
  * Intercept the loading of images in order to read/write them from/into a disk cache and to apply some filters.
- * The URL must be in the format: /image/source/<source URL>?filter=grayscale
- * The query part after the ? (included) is optional.
+ * The URL must be in the format: /image/source/<source URL>?filter=grayscale&zoom=12
+ * The query part after the ? (included) is optional, the filter parameter is described in {@link ImageFilters}.
+ * The zoom parameter is the zoom level of a map tile, it is given to the {@link TileStore} for its eviction policy.
+ * The filtered images are cached separately from their source, so a filter is applied only once per image.
+ * The source images are stored with their ETag, Last-Modified and expiration time: an expired image is served
+ * immediately while it is revalidated in background with a conditional request.
+ * The images that are in a {@link TilePack} are served from it without being cached or revalidated.
+ * Stacked images (for example the tiles of several map overlays) can be blended into a single image with the URL:
+ * /image/composite/<layer 1>,<layer 2>?zoom=12
+ * where each layer is an URL-encoded source URL, optionally followed by ';' and an URL-encoded filter.
+ * The layers are loaded in parallel and blended in order (the first one at the bottom), a missing layer is transparent.
+ * The composite image is cached and expires with its first expired layer, it is removed from the caches when
+ * one of its layers is replaced by a revalidation.
+ * The requests with the "Cache-Control: only-if-cached" header are answered with "504 Gateway Timeout"
+ * when the image is not stored, instead of downloading it.
+ * The images that cannot be downloaded are answered with an error status without being requested again
+ * during a while (one hour for the missing images, 30 seconds for the other errors).
+ * The downloads are started by the {@link DownloadScheduler} according to the priority class given in the
+ * {@link DownloadScheduler#PRIORITY_HEADER} request header, the background downloads have the prefetch priority.
  * 
  * @author Marc Plouhinec
  */
 public class ImageRequestHandler implements HttpRequestHandler {
 	
-	private static final int MAX_CACHE_SIZE = 20 * 1024 * 1024 * 8;
 	private static final String LOG_TAG = "ImageRequestHandler";
+	private static final int MAX_FILTER_KEY_LENGTH = 31;
+	private static final int MAX_KNOWN_EXPIRATION_TIMES = 4096;
+	private static final int MAX_KNOWN_ZOOMS = 4096;
+	private static final int MAX_KNOWN_COMPOSITE_LAYERS = 4096;
+	private static final int UNKNOWN_ZOOM = -1;
+	private static final long REVALIDATION_RETRY_DELAY = 5 * 60 * 1000L;
+	private static final int MAX_KNOWN_FAILURES = 4096;
+	private static final long NOT_FOUND_FAILURE_TTL = 60 * 60 * 1000L;
+	private static final long FAILURE_TTL = 30 * 1000L;
+	private static final String ONLY_IF_CACHED_DIRECTIVE = "only-if-cached";
+	private static final String SOURCE_URL_PREFIX = "/image/source/";
+	private static final String COMPOSITE_URL_PREFIX = "/image/composite/";
+	private static final int NB_LAYER_LOADING_THREADS = 4;
 	
-	private final DiskLruCache diskLruCache;
+	private final TileStore tileStore;
+	private final OutboundHttpClient httpClient;
+	private final DownloadScheduler downloadScheduler;
+	private final ImageMemoryCache imageMemoryCache;
+	private final ContentHashManifest contentHashManifest;
+	private final AtomicLong nbDiskHits = new AtomicLong();
+	private final AtomicLong nbDownloads = new AtomicLong();
+	private final AtomicLong nbFilterExecutions = new AtomicLong();
+	private final SingleFlight<byte[]> imageLoadings = new SingleFlight<byte[]>();
+	private final Map<String, ImageFilter> requestedFilterByName = new ConcurrentHashMap<String, ImageFilter>();
+	private final ImageFilterRenderer imageFilterRenderer = new ImageFilterRenderer();
+	private final ImageCompositor imageCompositor = new ImageCompositor();
+	private final ExecutorService layerLoadingExecutor = Executors.newFixedThreadPool(NB_LAYER_LOADING_THREADS);
+	private final AtomicLong nbCompositions = new AtomicLong();
+	private final AtomicLong compositionDuration = new AtomicLong();
+	private final Map<String, Long> expirationTimeByCacheKey = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Integer> zoomByCacheKey = new ConcurrentHashMap<String, Integer>();
+	private final Map<String, Set<String>> compositeKeysByLayerKey = new HashMap<String, Set<String>>();
+	private final Map<String, KnownFailure> knownFailureByCacheKey = new ConcurrentHashMap<String, KnownFailure>();
+	private final AtomicLong nbKnownFailureHits = new AtomicLong();
+	private final Map<String, Boolean> revalidatingCacheKeys = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicLong nbRevalidations = new AtomicLong();
+	private final AtomicLong nbNotModified = new AtomicLong();
+	private final AtomicLong notModifiedDuration = new AtomicLong();
+	private final List<TilePack> tilePacks = new CopyOnWriteArrayList<TilePack>();
+	private final AtomicLong nbTilePackHits = new AtomicLong();
+	private final AtomicLong nbStoreReads = new AtomicLong();
+	private final AtomicLong storeReadDuration = new AtomicLong();
+	private final AtomicLong nbStoreWrites = new AtomicLong();
+	private final AtomicLong storeWriteDuration = new AtomicLong();
 	
-	public ImageRequestHandler(Context context) {
-		try {
-			File cacheDir = new File(context.getCacheDir().getPath() + File.separator + "ImageRequestHandlerCache");
-			if (!cacheDir.exists()) {
-				cacheDir.mkdirs();
-			}
-			this.diskLruCache = DiskLruCache.open(cacheDir, 1, 1, MAX_CACHE_SIZE);
-		} catch (IOException e) {
-			throw new IllegalStateException("Unable to initialize the image cache.");
-		}
+	/**
+	 * Create the request handler.
+	 * 
+	 * @param tileStore
+	 *   Disk cache of the source images and of their variants.
+	 * @param httpClient
+	 *   Client used to download the source images.
+	 * @param downloadScheduler
+	 *   Scheduler that orders the downloads by priority.
+	 * @param imageMemoryCache
+	 *   Cache of the served images, checked before the disk cache.
+	 * @param contentHashManifest
+	 *   Manifest where the hash of the served images are registered.
+	 */
+	public ImageRequestHandler(TileStore tileStore, OutboundHttpClient httpClient, DownloadScheduler downloadScheduler,
+			ImageMemoryCache imageMemoryCache, ContentHashManifest contentHashManifest) {
+		this.tileStore = tileStore;
+		this.httpClient = httpClient;
+		this.downloadScheduler = downloadScheduler;
+		this.imageMemoryCache = imageMemoryCache;
+		this.contentHashManifest = contentHashManifest;
 	}
 	
 	/**
 	 * Quietly close the {@link ImageRequestHandler}.
 	 */
 	public void close() {
+		layerLoadingExecutor.shutdown();
 		try {
-			this.diskLruCache.close();
+			this.tileStore.close();
 		} catch (IOException e) {
-			Log.e(LOG_TAG, "Unable to close the disk LRU cache.", e);
+			Log.e(LOG_TAG, "Unable to close the tile store.", e);
 		}
 	}
 
+	/**
+	 * Serve the images of the given archive before looking for them in the cache or on Internet.
+	 * 
+	 * @param tilePack
+	 */
+	public void addTilePack(TilePack tilePack) {
+		tilePacks.add(tilePack);
+		knownFailureByCacheKey.clear();
+	}
+	
+	/**
+	 * Stop serving the images of the given archive.
+	 * 
+	 * @param tilePack
+	 */
+	public void removeTilePack(TilePack tilePack) {
+		tilePacks.remove(tilePack);
+	}
+
+	@Override
+	public String toString() {
+		long nbDiskRequests = nbDiskHits.get() + nbDownloads.get();
+		return "ImageRequestHandler [" + imageMemoryCache + ", tilePackHits=" + nbTilePackHits.get() +
+				", diskHits=" + nbDiskHits.get() + ", downloads=" + nbDownloads.get() +
+				", coalescedLoadings=" + imageLoadings.getCoalescedCount() +
+				", filterExecutions=" + nbFilterExecutions.get() +
+				", compositions=" + nbCompositions.get() +
+				", compositionAverageTime=" + (nbCompositions.get() == 0 ? 0 : compositionDuration.get() / nbCompositions.get()) + "ms" +
+				", knownFailureHits=" + nbKnownFailureHits.get() +
+				", revalidations=" + nbRevalidations.get() + ", notModified=" + nbNotModified.get() +
+				", notModifiedAverageTime=" + (nbNotModified.get() == 0 ? 0 : notModifiedDuration.get() / nbNotModified.get()) + "ms" +
+				", diskHitRatio=" + (nbDiskRequests == 0 ? 0 : nbDiskHits.get() * 100 / nbDiskRequests) + "%" +
+				", " + tileStore + ", " + httpClient + ", " + downloadScheduler +
+				", storeReadAverageTime=" + (nbStoreReads.get() == 0 ? 0 : storeReadDuration.get() / nbStoreReads.get() / 1000) + "us" +
+				", storeWriteAverageTime=" + (nbStoreWrites.get() == 0 ? 0 : storeWriteDuration.get() / nbStoreWrites.get() / 1000) + "us]";
+	}
+
 	@Override
 	public void handle(HttpRequest request, final HttpResponse response, HttpContext context) throws HttpException, IOException {
 		String urlAsString = request.getRequestLine().getUri();
+		if (urlAsString.startsWith(COMPOSITE_URL_PREFIX)) {
+			handleComposite(request, response, urlAsString);
+			return;
+		}
 		
 		// Extract the image source and parse the filter parameter
-		if (!urlAsString.startsWith("/image/source/")) {
+		if (!urlAsString.startsWith(SOURCE_URL_PREFIX)) {
 			throw new HttpException("Unknown request");
 		}
-		String query = urlAsString.substring("/image/source/".length());
-		boolean applyGrayscaleFilter = false;
+		String query = urlAsString.substring(SOURCE_URL_PREFIX.length());
+		ImageFilter filter = null;
+		int zoom = UNKNOWN_ZOOM;
 		int optionsIndex = query.lastIndexOf('?');
 		if (optionsIndex != -1) {
 			String urlOptionalParameters = query.substring(optionsIndex + 1);
 			query = query.substring(0, optionsIndex);
-			String filter = this.parseFilterParameter(urlOptionalParameters);
-			applyGrayscaleFilter = "grayscale".equals(filter);
+			zoom = parseZoom(urlOptionalParameters);
+			String filterDescription = this.parseParameter(urlOptionalParameters, "filter");
+			if (filterDescription != null) {
+				filter = parseFilter(filterDescription);
+			}
 		}
-		String imageSource = URLDecoder.decode(urlAsString.substring("/image/source/".length()), "UTF-8");
+		String imageSource = URLDecoder.decode(query, "UTF-8");
+		int priority = parsePriority(request);
 		
-		// Load the image data and apply the grayscale filter if necessary
-		byte[] imageData = loadImageData(imageSource);
-		if (applyGrayscaleFilter) {
-			imageData = this.applyGrayscaleFilter(imageData);
+		// Load the image data from the memory cache or from the disk cache or from Internet
+		String cacheKey = generateCacheKey(imageSource);
+		String variantKey = generateVariantKey(cacheKey, filter);
+		if (zoom != UNKNOWN_ZOOM) {
+			putZoom(cacheKey, zoom);
+			putZoom(variantKey, zoom);
+		}
+		byte[] imageData = imageMemoryCache.get(variantKey);
+		if (imageData == null) {
+			// Don't download anything if the client only wants the stored images
+			if (isOnlyIfCached(request) && !isStored(imageSource, cacheKey, variantKey)) {
+				response.setStatusCode(HttpStatus.SC_GATEWAY_TIMEOUT);
+				return;
+			}
+			
+			// Don't download again the images that have failed recently
+			KnownFailure knownFailure = findKnownFailure(cacheKey);
+			if (knownFailure != null) {
+				nbKnownFailureHits.incrementAndGet();
+				response.setStatusCode(knownFailure.statusCode);
+				return;
+			}
+			
+			// A download started for a less urgent request must not delay this one
+			downloadScheduler.raisePriority(imageSource, priority);
+			
+			try {
+				if (filter == null) {
+					imageData = readStoredImageData(imageSource, cacheKey);
+					if (imageData == null) {
+						// Send the image while it is downloaded if no other request is downloading it
+						HttpEntity downloadEntity = "GET".equalsIgnoreCase(request.getRequestLine().getMethod()) ?
+								startImageDownload(imageSource, cacheKey, priority) : null;
+						if (downloadEntity != null) {
+							// Note: no ETag for a streamed download, a "304 Not Modified" would drop it before its end
+							response.setEntity(downloadEntity);
+							return;
+						}
+						imageData = loadImageData(imageSource, priority);
+					}
+				} else {
+					requestedFilterByName.put(filter.getName(), filter);
+					imageData = loadFilteredImageData(imageSource, filter, priority);
+				}
+			} catch (IOException e) {
+				response.setStatusCode(rememberFailure(imageSource, cacheKey, e));
+				return;
+			}
+			imageMemoryCache.put(variantKey, imageData);
 		}
 		
+		// Note: the ETag changes when the image is replaced by a revalidation, so the client copies are refreshed
+		// after the max-age set by the ResponseCacheControl
+		contentHashManifest.put(urlAsString, imageMemoryCache.getContentHash(variantKey, imageData));
+		revalidateIfStale(imageSource, cacheKey);
+		
 		// Send the image
-		response.setEntity(new EntityTemplate(new SimpleContentProducer(imageData)));
+		EntityTemplate entity = new EntityTemplate(new SimpleContentProducer(imageData));
+		entity.setContentType(findMimeType(imageData));
+		response.setEntity(entity);
+	}
+	
+	/**
+	 * Serve the composite of several images.
+	 * 
+	 * @param request
+	 * @param response
+	 * @param urlAsString
+	 * @throws HttpException
+	 * @throws IOException
+	 */
+	private void handleComposite(HttpRequest request, HttpResponse response, String urlAsString) throws HttpException, IOException {
+		// Parse the layers
+		String query = urlAsString.substring(COMPOSITE_URL_PREFIX.length());
+		int zoom = UNKNOWN_ZOOM;
+		int optionsIndex = query.lastIndexOf('?');
+		if (optionsIndex != -1) {
+			zoom = parseZoom(query.substring(optionsIndex + 1));
+			query = query.substring(0, optionsIndex);
+		}
+		final List<CompositeLayer> layers = new ArrayList<CompositeLayer>();
+		for (String layerDescription : query.split(",")) {
+			int filterIndex = layerDescription.indexOf(';');
+			String imageSource = URLDecoder.decode(filterIndex == -1 ? layerDescription : layerDescription.substring(0, filterIndex), "UTF-8");
+			ImageFilter filter = filterIndex == -1 ? null : parseFilter(layerDescription.substring(filterIndex + 1));
+			String cacheKey = generateCacheKey(imageSource);
+			layers.add(new CompositeLayer(imageSource, cacheKey, generateVariantKey(cacheKey, filter), filter));
+			if (zoom != UNKNOWN_ZOOM) {
+				putZoom(cacheKey, zoom);
+			}
+		}
+		final int priority = parsePriority(request);
+		
+		// Load the composite from the memory cache or from the disk cache or blend its layers
+		final String compositeKey = generateCacheKey(query);
+		if (zoom != UNKNOWN_ZOOM) {
+			putZoom(compositeKey, zoom);
+		}
+		byte[] imageData = imageMemoryCache.get(compositeKey);
+		if (imageData == null) {
+			if (isOnlyIfCached(request) && !isStored(null, compositeKey, compositeKey) && !areLayersStored(layers)) {
+				response.setStatusCode(HttpStatus.SC_GATEWAY_TIMEOUT);
+				return;
+			}
+			
+			try {
+				imageData = imageLoadings.execute(compositeKey, new Callable<byte[]>() {
+					@Override public byte[] call() throws IOException {
+						byte[] compositeData = readFromDiskCache(compositeKey);
+						if (compositeData != null) {
+							nbDiskHits.incrementAndGet();
+							return compositeData;
+						}
+						return composeLayers(compositeKey, layers, priority);
+					}
+				});
+			} catch (IOException e) {
+				response.setStatusCode(findStatusCode(e));
+				return;
+			}
+			if (imageData == null) {
+				// None of the layers exists
+				response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+				return;
+			}
+			imageMemoryCache.put(compositeKey, imageData);
+		}
+		putCompositeKey(layers, compositeKey);
+		contentHashManifest.put(urlAsString, imageMemoryCache.getContentHash(compositeKey, imageData));
+		recomposeIfStale(compositeKey, layers);
+		
+		// Send the image
+		EntityTemplate entity = new EntityTemplate(new SimpleContentProducer(imageData));
+		entity.setContentType(findMimeType(imageData));
+		response.setEntity(entity);
+	}
+	
+	/**
+	 * Load the layers of a composite image in parallel, blend them and cache the result.
+	 * 
+	 * @param compositeKey
+	 * @param layers
+	 * @param priority
+	 *   Priority class of the layer downloads.
+	 * @return composite image data or null if none of the layers exists
+	 * @throws IOException
+	 */
+	private byte[] composeLayers(String compositeKey, List<CompositeLayer> layers, final int priority) throws IOException {
+		// Note: the first layer is loaded by the current thread
+		List<Future<byte[]>> layerLoadings = new ArrayList<Future<byte[]>>();
+		for (final CompositeLayer layer : layers.subList(1, layers.size())) {
+			layerLoadings.add(layerLoadingExecutor.submit(new Callable<byte[]>() {
+				@Override public byte[] call() throws IOException {
+					return loadLayer(layer, priority);
+				}
+			}));
+		}
+		List<byte[]> layerDataList = new ArrayList<byte[]>();
+		IOException failure = null;
+		try {
+			layerDataList.add(loadLayer(layers.get(0), priority));
+		} catch (IOException e) {
+			failure = e;
+		}
+		for (Future<byte[]> layerLoading : layerLoadings) {
+			try {
+				layerDataList.add(layerLoading.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while loading the layers of " + compositeKey);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof IOException ?
+							(IOException) e.getCause() : new IOException("Unable to load a layer of " + compositeKey + ": " + e.getCause());
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		
+		// Blend the existing layers
+		long startTime = System.currentTimeMillis();
+		long expirationTime = Long.MAX_VALUE;
+		List<byte[]> existingLayerDataList = new ArrayList<byte[]>();
+		for (int i = 0; i < layers.size(); i++) {
+			if (layerDataList.get(i) != null) {
+				existingLayerDataList.add(layerDataList.get(i));
+				expirationTime = Math.min(expirationTime, findLayerExpirationTime(layers.get(i).cacheKey, startTime));
+			}
+		}
+		if (existingLayerDataList.isEmpty()) {
+			return null;
+		}
+		byte[] compositeData = imageCompositor.composite(existingLayerDataList);
+		nbCompositions.incrementAndGet();
+		compositionDuration.addAndGet(System.currentTimeMillis() - startTime);
+		
+		writeToDiskCache(compositeKey, compositeData, new CachedImageMetadata(expirationTime, null, null));
+		return compositeData;
+	}
+	
+	/**
+	 * Find when a layer of a composite image expires.
+	 * Note: the expiration time of a layer may have been forgotten (restart, {@link #MAX_KNOWN_EXPIRATION_TIMES}),
+	 * it is then read from the disk cache.
+	 * 
+	 * @param cacheKey
+	 *   Cache key of the layer source image.
+	 * @param now
+	 * @return expiration time of the layer, or after {@link CachedImageMetadata#DEFAULT_MAX_AGE} if unknown
+	 *   (e.g. for the images of the tile packs)
+	 */
+	private long findLayerExpirationTime(String cacheKey, long now) {
+		Long expirationTime = expirationTimeByCacheKey.get(cacheKey);
+		if (expirationTime != null) {
+			return expirationTime;
+		}
+		try {
+			CachedImageMetadata metadata = readMetadataFromDiskCache(cacheKey);
+			if (metadata != null) {
+				putExpirationTime(cacheKey, metadata.expirationTime);
+				return metadata.expirationTime;
+			}
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Unable to read the cache entry " + cacheKey, e);
+		}
+		return now + CachedImageMetadata.DEFAULT_MAX_AGE;
+	}
+	
+	/**
+	 * Load a layer of a composite image.
+	 * 
+	 * @param layer
+	 * @param priority
+	 *   Priority class of the download.
+	 * @return image data or null if the image doesn't exist
+	 * @throws IOException
+	 */
+	private byte[] loadLayer(CompositeLayer layer, int priority) throws IOException {
+		byte[] imageData = imageMemoryCache.get(layer.variantKey);
+		if (imageData != null) {
+			return imageData;
+		}
+		KnownFailure knownFailure = findKnownFailure(layer.cacheKey);
+		if (knownFailure != null) {
+			nbKnownFailureHits.incrementAndGet();
+			if (knownFailure.statusCode == HttpStatus.SC_NOT_FOUND) {
+				return null;
+			}
+			throw new IOException("The image " + layer.imageSource + " has failed recently.");
+		}
+		
+		try {
+			imageData = layer.filter == null ?
+					loadImageData(layer.imageSource, priority) : loadFilteredImageData(layer.imageSource, layer.filter, priority);
+		} catch (IOException e) {
+			if (rememberFailure(layer.imageSource, layer.cacheKey, e) == HttpStatus.SC_NOT_FOUND) {
+				return null;
+			}
+			throw e;
+		}
+		revalidateIfStale(layer.imageSource, layer.cacheKey);
+		return imageData;
+	}
+	
+	/**
+	 * @param layers
+	 * @return true if all the layers can be loaded without being downloaded
+	 */
+	private boolean areLayersStored(List<CompositeLayer> layers) {
+		for (CompositeLayer layer : layers) {
+			if (imageMemoryCache.get(layer.variantKey) == null && !isStored(layer.imageSource, layer.cacheKey, layer.variantKey)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Blend again a composite image in a background thread if it has expired.
+	 * Its expired layers are revalidated first.
+	 * 
+	 * @param compositeKey
+	 * @param layers
+	 */
+	private void recomposeIfStale(final String compositeKey, final List<CompositeLayer> layers) {
+		Long expirationTime = expirationTimeByCacheKey.get(compositeKey);
+		if (expirationTime == null || System.currentTimeMillis() < expirationTime
+				|| revalidatingCacheKeys.put(compositeKey, Boolean.TRUE) != null) {
+			return;
+		}
+		
+		BgThreadExecutor.execute(new Runnable() {
+			@Override public void run() {
+				try {
+					for (CompositeLayer layer : layers) {
+						Long layerExpirationTime = expirationTimeByCacheKey.get(layer.cacheKey);
+						if (layerExpirationTime != null && System.currentTimeMillis() >= layerExpirationTime
+								&& revalidatingCacheKeys.put(layer.cacheKey, Boolean.TRUE) == null) {
+							try {
+								revalidate(layer.imageSource, layer.cacheKey);
+							} catch (IOException e) {
+								Log.w(LOG_TAG, "Unable to revalidate " + layer.imageSource, e);
+								putExpirationTime(layer.cacheKey, System.currentTimeMillis() + REVALIDATION_RETRY_DELAY);
+							} finally {
+								revalidatingCacheKeys.remove(layer.cacheKey);
+							}
+						}
+					}
+					byte[] compositeData = composeLayers(compositeKey, layers, DownloadScheduler.PREFETCH);
+					if (compositeData != null) {
+						imageMemoryCache.put(compositeKey, compositeData);
+					}
+				} catch (IOException e) {
+					Log.w(LOG_TAG, "Unable to blend again the composite image " + compositeKey, e);
+					putExpirationTime(compositeKey, System.currentTimeMillis() + REVALIDATION_RETRY_DELAY);
+				} finally {
+					revalidatingCacheKeys.remove(compositeKey);
+				}
+			}
+		});
 	}
 	
 	/**
 	 * Load the given image from Internet or a cache and cache it if necessary.
+	 * Concurrent calls for the same image share the same loading.
 	 * 
 	 * @param imageSource
+	 * @param priority
+	 *   Priority class of the download.
 	 * @return image data
 	 * @throws IOException
 	 */
-	private byte[] loadImageData(String imageSource) throws IOException {
-		// Load the image from the cache if possible
-		String cacheKey = this.generateCacheKey(imageSource);
-		Snapshot snapshot = this.diskLruCache.get(cacheKey);
-		if (snapshot != null) {
-			byte[] imageData = IOUtils.toByteArray(snapshot.getInputStream(0));
-			snapshot.close();
+	private byte[] loadImageData(final String imageSource, final int priority) throws IOException {
+		final String cacheKey = this.generateCacheKey(imageSource);
+		return imageLoadings.execute(cacheKey, new Callable<byte[]>() {
+			@Override public byte[] call() throws IOException {
+				return loadImageData(imageSource, cacheKey, priority);
+			}
+		});
+	}
+	
+	/**
+	 * Load the given image from Internet or the disk cache and cache it if necessary.
+	 * 
+	 * @param imageSource
+	 * @param cacheKey
+	 * @param priority
+	 *   Priority class of the download.
+	 * @return image data
+	 * @throws IOException
+	 */
+	private byte[] loadImageData(String imageSource, String cacheKey, int priority) throws IOException {
+		// Load the image from an archive or the cache if possible
+		byte[] imageData = readStoredImageData(imageSource, cacheKey);
+		if (imageData != null) {
 			return imageData;
 		}
 		
 		// Download the image
-		URL imageUrl = new URL(imageSource);
-		byte[] imageData = IOUtils.toByteArray(imageUrl.openStream());
+		OutboundHttpClient.Request download;
+		downloadScheduler.acquire(imageSource, priority);
+		try {
+			download = httpClient.open(imageSource);
+			try {
+				imageData = IOUtils.toByteArray(download.getInputStream());
+			} finally {
+				download.close();
+			}
+		} finally {
+			downloadScheduler.release();
+		}
+		nbDownloads.incrementAndGet();
 		
-		// Put the image in the cache
-		Editor editor = this.diskLruCache.edit(cacheKey);
-		OutputStream outputStream = editor.newOutputStream(0);
-		outputStream.write(imageData);
-		outputStream.close();
-		editor.commit();
+		// Put the image in the cache and prepare its filtered variants
+		writeToDiskCache(cacheKey, imageData, CachedImageMetadata.fromResponse(download.getConnection(), System.currentTimeMillis()));
+		for (ImageFilter filter : requestedFilterByName.values()) {
+			computeVariantInBackground(imageSource, filter);
+		}
+		
+		return imageData;
+	}
+	
+	/**
+	 * Start the download of the given image and return an entity that sends it to the client while it is
+	 * written into the disk cache. The requests that wait for the same image receive it when the download is complete.
+	 * 
+	 * The download keeps its {@link DownloadScheduler} slot until the image is fully sent.
+	 * 
+	 * @param imageSource
+	 * @param cacheKey
+	 * @param priority
+	 *   Priority class of the download.
+	 * @return entity that streams the download or null if the image is already being loaded
+	 * @throws IOException
+	 */
+	private HttpEntity startImageDownload(final String imageSource, final String cacheKey, int priority) throws IOException {
+		final SingleFlight.Completion<byte[]> download = imageLoadings.begin(cacheKey);
+		if (download == null) {
+			return null;
+		}
+		
+		try {
+			downloadScheduler.acquire(imageSource, priority);
+		} catch (IOException e) {
+			download.fail(e);
+			throw e;
+		}
+		OutboundHttpClient.Request request;
+		InputStream upstream;
+		try {
+			request = httpClient.open(imageSource);
+			upstream = request.getInputStream();
+		} catch (IOException e) {
+			downloadScheduler.release();
+			download.fail(e);
+			throw e;
+		} catch (RuntimeException e) {
+			downloadScheduler.release();
+			download.fail(e);
+			throw e;
+		}
+		
+		// Note: the entry is not written if it is already being written by another thread
+		CachedImageMetadata metadata = CachedImageMetadata.fromResponse(request.getConnection(), System.currentTimeMillis());
+		TileStore.Editor editor = null;
+		try {
+			editor = this.tileStore.edit(cacheKey);
+			if (editor != null) {
+				editor.setMetadata(metadata.serialize());
+				editor.setZoom(findZoom(cacheKey));
+			}
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Unable to write the cache entry " + cacheKey, e);
+			abortQuietly(editor);
+			editor = null;
+		}
+		putExpirationTime(cacheKey, metadata.expirationTime);
 		
+		TeeEntity entity = new TeeEntity(upstream, request.getContentLength(), editor, new TeeEntity.Listener() {
+			@Override public void onComplete(byte[] imageData) {
+				downloadScheduler.release();
+				nbDownloads.incrementAndGet();
+				imageMemoryCache.put(cacheKey, imageData);
+				download.complete(imageData);
+				for (ImageFilter filter : requestedFilterByName.values()) {
+					computeVariantInBackground(imageSource, filter);
+				}
+			}
+			@Override public void onError(IOException e) {
+				downloadScheduler.release();
+				download.fail(e);
+			}
+		});
+		String contentType = request.getContentType();
+		if (contentType != null && contentType.startsWith("image/")) {
+			entity.setContentType(contentType);
+		}
+		return entity;
+	}
+	
+	/**
+	 * Load the given image with the given filter applied, from the disk cache or by applying the filter
+	 * on the source image. The filtered image is cached.
+	 * 
+	 * @param imageSource
+	 * @param filter
+	 * @param priority
+	 *   Priority class of the source image download.
+	 * @return filtered image data
+	 * @throws IOException
+	 */
+	private byte[] loadFilteredImageData(final String imageSource, final ImageFilter filter, final int priority) throws IOException {
+		final String sourceKey = generateCacheKey(imageSource);
+		final String variantKey = generateVariantKey(sourceKey, filter);
+		return imageLoadings.execute(variantKey, new Callable<byte[]>() {
+			@Override public byte[] call() throws IOException {
+				byte[] filteredImageData = readFromDiskCache(variantKey);
+				if (filteredImageData != null) {
+					nbDiskHits.incrementAndGet();
+					
+					// Note: a variant expires with its source image
+					if (!expirationTimeByCacheKey.containsKey(sourceKey)) {
+						CachedImageMetadata metadata = readMetadataFromDiskCache(sourceKey);
+						if (metadata != null) {
+							putExpirationTime(sourceKey, metadata.expirationTime);
+						}
+					}
+					return filteredImageData;
+				}
+				
+				byte[] imageData = loadImageData(imageSource, priority);
+				Bitmap.CompressFormat compressFormat = findCompressFormat(imageData);
+				filteredImageData = imageFilterRenderer.render(
+						imageData, filter, compressFormat == null ? Bitmap.CompressFormat.PNG : compressFormat);
+				nbFilterExecutions.incrementAndGet();
+				writeToDiskCache(variantKey, filteredImageData, null);
+				return filteredImageData;
+			}
+		});
+	}
+	
+	/**
+	 * Compute and cache the given variant of an image in a background thread.
+	 * 
+	 * @param imageSource
+	 * @param filter
+	 */
+	private void computeVariantInBackground(final String imageSource, final ImageFilter filter) {
+		BgThreadExecutor.execute(new Runnable() {
+			@Override public void run() {
+				try {
+					loadFilteredImageData(imageSource, filter, DownloadScheduler.PREFETCH);
+				} catch (IOException e) {
+					Log.w(LOG_TAG, "Unable to compute the " + filter.getName() + " variant of " + imageSource, e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Revalidate the given source image in a background thread if it has expired.
+	 * 
+	 * @param imageSource
+	 * @param cacheKey
+	 */
+	private void revalidateIfStale(final String imageSource, final String cacheKey) {
+		Long expirationTime = expirationTimeByCacheKey.get(cacheKey);
+		if (expirationTime == null || System.currentTimeMillis() < expirationTime
+				|| revalidatingCacheKeys.put(cacheKey, Boolean.TRUE) != null) {
+			return;
+		}
+		
+		BgThreadExecutor.execute(new Runnable() {
+			@Override public void run() {
+				try {
+					revalidate(imageSource, cacheKey);
+				} catch (IOException e) {
+					Log.w(LOG_TAG, "Unable to revalidate " + imageSource, e);
+					putExpirationTime(cacheKey, System.currentTimeMillis() + REVALIDATION_RETRY_DELAY);
+				} finally {
+					revalidatingCacheKeys.remove(cacheKey);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Send a conditional request for the given source image and update the cache with the response.
+	 * The request has the prefetch priority: it doesn't delay the downloads of the displayed images.
+	 * 
+	 * @param imageSource
+	 * @param cacheKey
+	 * @throws IOException
+	 */
+	private void revalidate(String imageSource, String cacheKey) throws IOException {
+		CachedImageMetadata metadata = readMetadataFromDiskCache(cacheKey);
+		if (metadata == null) {
+			// The image has been evicted from the disk cache
+			expirationTimeByCacheKey.remove(cacheKey);
+			return;
+		}
+		
+		downloadScheduler.acquire(imageSource, DownloadScheduler.PREFETCH);
+		try {
+			sendConditionalRequest(imageSource, cacheKey, metadata);
+		} finally {
+			downloadScheduler.release();
+		}
+	}
+	
+	/**
+	 * Send a conditional request for the given source image and update the cache with the response.
+	 * 
+	 * @param imageSource
+	 * @param cacheKey
+	 * @param metadata
+	 *   Metadata of the cached image.
+	 * @throws IOException
+	 */
+	private void sendConditionalRequest(String imageSource, String cacheKey, CachedImageMetadata metadata) throws IOException {
+		nbRevalidations.incrementAndGet();
+		long startTime = System.currentTimeMillis();
+		OutboundHttpClient.Request request = httpClient.open(imageSource);
+		URLConnection connection = request.getConnection();
+		metadata.addConditionalHeaders(connection);
+		try {
+			int statusCode = request.getResponseCode();
+			long now = System.currentTimeMillis();
+			if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				nbNotModified.incrementAndGet();
+				notModifiedDuration.addAndGet(now - startTime);
+				writeMetadataToDiskCache(cacheKey, metadata.refresh(connection, now));
+			} else if (statusCode == HttpURLConnection.HTTP_OK) {
+				byte[] imageData = IOUtils.toByteArray(request.getInputStream());
+				nbDownloads.incrementAndGet();
+				writeToDiskCache(cacheKey, imageData, CachedImageMetadata.fromResponse(connection, now));
+				
+				// Replace the cached image and its variants, the composite images are blended again when requested
+				imageMemoryCache.put(cacheKey, imageData);
+				for (ImageFilter filter : requestedFilterByName.values()) {
+					String variantKey = generateVariantKey(cacheKey, filter);
+					imageMemoryCache.remove(variantKey);
+					this.tileStore.remove(variantKey);
+					computeVariantInBackground(imageSource, filter);
+				}
+				removeComposites(cacheKey);
+			} else {
+				throw new IOException("Unexpected status code " + statusCode + " for " + imageSource);
+			}
+		} finally {
+			request.close();
+		}
+	}
+	
+	/**
+	 * @param request
+	 * @return true if the request has the "Cache-Control: only-if-cached" header
+	 */
+	private boolean isOnlyIfCached(HttpRequest request) {
+		for (Header header : request.getHeaders("Cache-Control")) {
+			if (header.getValue().toLowerCase().contains(ONLY_IF_CACHED_DIRECTIVE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Check if an image can be served without being downloaded.
+	 * 
+	 * @param imageSource
+	 *   Source URL or null if the image cannot be in the tile packs.
+	 * @param cacheKey
+	 * @param variantKey
+	 *   Cache key of the filtered image, a variant can be computed from a stored source image.
+	 * @return true if the image is in the tile packs or in the disk cache
+	 */
+	private boolean isStored(String imageSource, String cacheKey, String variantKey) {
+		for (TilePack tilePack : tilePacks) {
+			if (imageSource != null && tilePack.contains(imageSource)) {
+				return true;
+			}
+		}
+		try {
+			return this.tileStore.getMetadata(cacheKey) != null ||
+					(!variantKey.equals(cacheKey) && this.tileStore.getMetadata(variantKey) != null);
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Unable to read the cache entry " + cacheKey, e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Read a source image from the tile packs or from the disk cache.
+	 * 
+	 * @param imageSource
+	 * @param cacheKey
+	 * @return image data or null if not found
+	 * @throws IOException
+	 */
+	private byte[] readStoredImageData(String imageSource, String cacheKey) throws IOException {
+		byte[] imageData = readFromTilePacks(imageSource);
+		if (imageData == null) {
+			imageData = readFromDiskCache(cacheKey);
+			if (imageData != null) {
+				nbDiskHits.incrementAndGet();
+			}
+		}
 		return imageData;
 	}
+	
+	/**
+	 * Read an image from the tile packs.
+	 * 
+	 * @param imageSource
+	 * @return image data or null if not found
+	 * @throws OutboundHttpClient.StatusCodeException
+	 *   With the 404 status code if the image doesn't exist on the tile server.
+	 */
+	private byte[] readFromTilePacks(String imageSource) throws OutboundHttpClient.StatusCodeException {
+		for (TilePack tilePack : tilePacks) {
+			byte[] imageData = null;
+			try {
+				imageData = tilePack.get(imageSource);
+			} catch (IOException e) {
+				Log.w(LOG_TAG, "Unable to read " + imageSource + " from " + tilePack, e);
+			}
+			if (imageData != null) {
+				nbTilePackHits.incrementAndGet();
+				if (imageData.length == 0) {
+					// Note: handled like a 404 from the tile server, so that the image is not downloaded
+					throw new OutboundHttpClient.StatusCodeException(imageSource, HttpStatus.SC_NOT_FOUND);
+				}
+				return imageData;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Read the data of an entry of the disk cache.
+	 * The expiration time of the source images is remembered for {@link #revalidateIfStale(String, String)}.
+	 * 
+	 * @param key
+	 * @return entry data or null if not found
+	 * @throws IOException
+	 */
+	private byte[] readFromDiskCache(String key) throws IOException {
+		long startTime = System.nanoTime();
+		TileStore.Entry entry = this.tileStore.get(key);
+		nbStoreReads.incrementAndGet();
+		storeReadDuration.addAndGet(System.nanoTime() - startTime);
+		if (entry == null) {
+			return null;
+		}
+		CachedImageMetadata metadata = CachedImageMetadata.parse(entry.metadata);
+		if (metadata != null) {
+			putExpirationTime(key, metadata.expirationTime);
+		}
+		return entry.data;
+	}
+	
+	/**
+	 * Read the metadata of an entry of the disk cache.
+	 * 
+	 * @param key
+	 * @return metadata or null if not found
+	 * @throws IOException
+	 */
+	private CachedImageMetadata readMetadataFromDiskCache(String key) throws IOException {
+		String metadata = this.tileStore.getMetadata(key);
+		return metadata == null ? null : CachedImageMetadata.parse(metadata);
+	}
+	
+	/**
+	 * Write an entry in the disk cache.
+	 * Note: the entry is not written if it is already being written by another thread.
+	 * 
+	 * @param key
+	 * @param data
+	 * @param metadata
+	 *   Metadata of a source image or null for a variant.
+	 */
+	private void writeToDiskCache(String key, byte[] data, CachedImageMetadata metadata) {
+		if (metadata != null) {
+			putExpirationTime(key, metadata.expirationTime);
+		}
+		try {
+			long startTime = System.nanoTime();
+			TileStore.Editor editor = this.tileStore.edit(key);
+			if (editor == null) {
+				return;
+			}
+			editor.setZoom(findZoom(key));
+			try {
+				OutputStream outputStream = editor.newOutputStream();
+				outputStream.write(data);
+				outputStream.close();
+				editor.setMetadata(metadata == null ? "" : metadata.serialize());
+				editor.commit();
+			} catch (IOException e) {
+				abortQuietly(editor);
+				throw e;
+			}
+			nbStoreWrites.incrementAndGet();
+			storeWriteDuration.addAndGet(System.nanoTime() - startTime);
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Unable to write the cache entry " + key, e);
+		}
+	}
+	
+	/**
+	 * Replace the metadata of an entry of the disk cache, its data is kept.
+	 * 
+	 * @param key
+	 * @param metadata
+	 */
+	private void writeMetadataToDiskCache(String key, CachedImageMetadata metadata) {
+		putExpirationTime(key, metadata.expirationTime);
+		try {
+			this.tileStore.updateMetadata(key, metadata.serialize());
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Unable to write the metadata of the cache entry " + key, e);
+		}
+	}
+	
+	/**
+	 * Remember the expiration time of a source image.
+	 * 
+	 * @param cacheKey
+	 * @param expirationTime
+	 */
+	private void putExpirationTime(String cacheKey, long expirationTime) {
+		if (expirationTimeByCacheKey.size() >= MAX_KNOWN_EXPIRATION_TIMES) {
+			expirationTimeByCacheKey.clear();
+		}
+		expirationTimeByCacheKey.put(cacheKey, expirationTime);
+	}
+	
+	/**
+	 * Remember that an image cannot be loaded, so that it is not requested again before a while.
+	 * Note: the images of an unavailable host are not remembered, the {@link OutboundHttpClient} already
+	 * rejects them until the host works again. The cancelled downloads are not failures either.
+	 * 
+	 * @param imageSource
+	 * @param cacheKey
+	 * @param e
+	 *   Loading error.
+	 * @return HTTP status code of the response
+	 */
+	private int rememberFailure(String imageSource, String cacheKey, IOException e) {
+		int statusCode = findStatusCode(e);
+		if (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+			return statusCode;
+		}
+		Log.w(LOG_TAG, "Unable to load the image " + imageSource, e);
+		
+		long ttl = statusCode == HttpStatus.SC_NOT_FOUND ? NOT_FOUND_FAILURE_TTL : FAILURE_TTL;
+		if (knownFailureByCacheKey.size() >= MAX_KNOWN_FAILURES) {
+			knownFailureByCacheKey.clear();
+		}
+		knownFailureByCacheKey.put(cacheKey, new KnownFailure(statusCode, System.currentTimeMillis() + ttl));
+		return statusCode;
+	}
+	
+	/**
+	 * @param e
+	 *   Loading error.
+	 * @return HTTP status code of the response: 404 for the missing images (404 or 410 from the source),
+	 *   503 for the unavailable hosts and the cancelled downloads, 502 for the other errors (including the
+	 *   transient client errors such as 408 or 429)
+	 */
+	private int findStatusCode(IOException e) {
+		if (e instanceof OutboundHttpClient.HostUnavailableException || e instanceof DownloadScheduler.CancelledDownloadException) {
+			return HttpStatus.SC_SERVICE_UNAVAILABLE;
+		}
+		if (e instanceof OutboundHttpClient.StatusCodeException) {
+			int sourceStatusCode = ((OutboundHttpClient.StatusCodeException) e).statusCode;
+			if (sourceStatusCode == HttpStatus.SC_NOT_FOUND || sourceStatusCode == HttpStatus.SC_GONE) {
+				return HttpStatus.SC_NOT_FOUND;
+			}
+		}
+		return HttpStatus.SC_BAD_GATEWAY;
+	}
+	
+	/**
+	 * @param cacheKey
+	 * @return failure of the given image or null if it has not failed recently
+	 */
+	private KnownFailure findKnownFailure(String cacheKey) {
+		KnownFailure knownFailure = knownFailureByCacheKey.get(cacheKey);
+		if (knownFailure != null && knownFailure.expirationTime < System.currentTimeMillis()) {
+			knownFailureByCacheKey.remove(cacheKey);
+			return null;
+		}
+		return knownFailure;
+	}
+	
+	/**
+	 * Remember the zoom level of a map tile.
+	 * 
+	 * @param key
+	 *   Cache key of the source image or of a variant.
+	 * @param zoom
+	 */
+	private void putZoom(String key, int zoom) {
+		if (zoomByCacheKey.size() >= MAX_KNOWN_ZOOMS) {
+			zoomByCacheKey.clear();
+		}
+		zoomByCacheKey.put(key, zoom);
+	}
+	
+	/**
+	 * Remember the composite images that contain the given layers, so that they can be removed when a layer
+	 * is replaced.
+	 * Note: the composite images built before a restart are not known, they still expire with their layers.
+	 * 
+	 * @param layers
+	 * @param compositeKey
+	 */
+	private void putCompositeKey(List<CompositeLayer> layers, String compositeKey) {
+		synchronized (compositeKeysByLayerKey) {
+			if (compositeKeysByLayerKey.size() >= MAX_KNOWN_COMPOSITE_LAYERS) {
+				compositeKeysByLayerKey.clear();
+			}
+			for (CompositeLayer layer : layers) {
+				Set<String> compositeKeys = compositeKeysByLayerKey.get(layer.cacheKey);
+				if (compositeKeys == null) {
+					compositeKeys = new HashSet<String>();
+					compositeKeysByLayerKey.put(layer.cacheKey, compositeKeys);
+				}
+				compositeKeys.add(compositeKey);
+			}
+		}
+	}
+	
+	/**
+	 * Remove from the caches the composite images that contain the given layer.
+	 * 
+	 * @param layerKey
+	 *   Cache key of the layer source image.
+	 * @throws IOException
+	 */
+	private void removeComposites(String layerKey) throws IOException {
+		Set<String> compositeKeys;
+		synchronized (compositeKeysByLayerKey) {
+			compositeKeys = compositeKeysByLayerKey.remove(layerKey);
+		}
+		if (compositeKeys == null) {
+			return;
+		}
+		for (String compositeKey : compositeKeys) {
+			imageMemoryCache.remove(compositeKey);
+			expirationTimeByCacheKey.remove(compositeKey);
+			this.tileStore.remove(compositeKey);
+		}
+	}
+	
+	/**
+	 * Find the zoom level of a map tile, the variants computed in background have the zoom of their source.
+	 * 
+	 * @param key
+	 *   Cache key of the source image or of a variant.
+	 * @return zoom level or -1 if unknown
+	 */
+	private int findZoom(String key) {
+		Integer zoom = zoomByCacheKey.get(key);
+		int separatorIndex = key.indexOf('-');
+		if (zoom == null && separatorIndex > 0) {
+			zoom = zoomByCacheKey.get(key.substring(0, separatorIndex));
+		}
+		return zoom == null ? UNKNOWN_ZOOM : zoom;
+	}
+	
+	/**
+	 * Abort the modification of a cache entry without throwing an exception.
+	 * 
+	 * @param editor
+	 */
+	private static void abortQuietly(TileStore.Editor editor) {
+		if (editor == null) {
+			return;
+		}
+		try {
+			editor.abort();
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Unable to abort the modification of a cache entry.", e);
+		}
+	}
+	
+	/**
+	 * Generate the cache key of an image variant.
+	 * 
+	 * @param cacheKey
+	 *   Cache key of the source image.
+	 * @param filter
+	 *   Applied filter or null for the source image.
+	 * @return cache key
+	 */
+	private String generateVariantKey(String cacheKey, ImageFilter filter) {
+		if (filter == null) {
+			return cacheKey;
+		}
+		
+		// Note: the TileStore keys are limited to 64 characters
+		String filterKey = filter.getName();
+		if (filterKey.length() > MAX_FILTER_KEY_LENGTH) {
+			filterKey = "h" + Integer.toHexString(filterKey.hashCode());
+		}
+		return cacheKey + "-" + filterKey;
+	}
 
 	/**
-	 * Generate a key that respects the {@link DiskLruCache} requirement: [a-z0-9_-]{1,64}.
+	 * Generate a key that respects the {@link TileStore} requirement: [a-z0-9_-]{1,64}.
 	 * 
 	 * @param imageSource
 	 * @return Cache key
@@ -147,47 +1205,6 @@ public class ImageRequestHandler implements HttpRequestHandler {
 		}
 	}
 	
-	/**
-	 * Convert the color image into a grayscale one.
-	 * Thanks to http://stackoverflow.com/a/3391061
-	 * 
-	 * @param imageData
-	 * @return converted image
-	 */
-	private byte[] applyGrayscaleFilter(byte[] imageData) {
-		// Apply the grayscale filter
-		Bitmap bmpOriginal = BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
-		Bitmap bmpGrayscale = Bitmap.createBitmap(bmpOriginal.getWidth(), bmpOriginal.getHeight(), Bitmap.Config.ARGB_8888);
-		Canvas canvas = new Canvas(bmpGrayscale);
-		Paint paint = new Paint();
-		ColorMatrix colorMatrix = new ColorMatrix();
-		colorMatrix.set(new float[] { // Brighter
-				1,0,0,0,70f,
-		        0,1,0,0,70f,
-		        0,0,1,0,70f,
-		        0,0,0,1,0,
-		        0,0,0,0,1
-		        });
-		ColorMatrix colorMatrixGray = new ColorMatrix();
-		colorMatrixGray.setSaturation(0); // Gray
-		colorMatrix.postConcat(colorMatrixGray);
-		ColorMatrixColorFilter filter = new ColorMatrixColorFilter(colorMatrix);
-		paint.setColorFilter(filter);
-		canvas.drawBitmap(bmpOriginal, 0, 0, paint);
-		
-		// Convert the new bitmap into a byte array
-		CompressFormat compressFormat = findCompressFormat(imageData);
-		if (compressFormat == null) {
-			ByteBuffer byteBuffer = ByteBuffer.allocate(bmpGrayscale.getRowBytes() * bmpGrayscale.getHeight());
-			bmpGrayscale.copyPixelsToBuffer(byteBuffer);
-			return byteBuffer.array();
-		} else {
-			ByteArrayOutputStream byteArrayBitmapStream = new ByteArrayOutputStream();
-			bmpGrayscale.compress(compressFormat, 70, byteArrayBitmapStream);
-			return byteArrayBitmapStream.toByteArray();
-		}
-	}
-	
 	/**
 	 * Find the compress format of the given image data.
 	 * 
@@ -205,26 +1222,140 @@ public class ImageRequestHandler implements HttpRequestHandler {
 		if (imageData.length > 4 && imageData[1] == 'P' && imageData[2] == 'N' && imageData[3] == 'G') {
 			return Bitmap.CompressFormat.PNG;
 		}
-		if (imageData.length > 2 && imageData[0] == 0xFF && imageData[1] == 0xD8) {
+		if (imageData.length > 2 && (imageData[0] & 0xFF) == 0xFF && (imageData[1] & 0xFF) == 0xD8) {
 			return Bitmap.CompressFormat.JPEG;
 		}
 		return null;
 	}
 	
 	/**
-	 * Parse the URL optional parameters and find the "filter" parameter.
+	 * Find the MIME type of the given image data.
+	 * 
+	 * @param imageData
+	 * @return MIME type or null if unknown
+	 */
+	private String findMimeType(byte[] imageData) {
+		Bitmap.CompressFormat compressFormat = findCompressFormat(imageData);
+		if (compressFormat == Bitmap.CompressFormat.PNG) {
+			return "image/png";
+		}
+		if (compressFormat == Bitmap.CompressFormat.JPEG) {
+			return "image/jpeg";
+		}
+		return null;
+	}
+	
+	/**
+	 * Parse the URL optional parameters and find the given parameter.
 	 * 
 	 * @param urlOptionalParameters
-	 * @return filter parameter value or null if not found
+	 * @param name
+	 *   Parameter name.
+	 * @return parameter value or null if not found
 	 */
-	private String parseFilterParameter(String urlOptionalParameters) {
+	private String parseParameter(String urlOptionalParameters, String name) {
 		String[] optionalParameters = urlOptionalParameters.split("[?&]{1}");
 		for (String parameter : optionalParameters) {
 			String[] keyValue = parameter.split("=");
-			if ("filter".equals(keyValue[0])) {
+			if (name.equals(keyValue[0]) && keyValue.length > 1) {
 				return keyValue[1];
 			}
 		}
 		return null;
 	}
+	
+	/**
+	 * @param urlOptionalParameters
+	 * @return value of the zoom parameter or -1 if not found
+	 * @throws ProtocolException
+	 */
+	private int parseZoom(String urlOptionalParameters) throws ProtocolException {
+		String zoomParameter = this.parseParameter(urlOptionalParameters, "zoom");
+		if (zoomParameter == null) {
+			return UNKNOWN_ZOOM;
+		}
+		try {
+			return Integer.parseInt(zoomParameter);
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("Invalid zoom: " + zoomParameter);
+		}
+	}
+	
+	/**
+	 * @param filterDescription
+	 *   URL-encoded filter description.
+	 * @return filter
+	 * @throws ProtocolException
+	 * @throws IOException
+	 */
+	private ImageFilter parseFilter(String filterDescription) throws ProtocolException, IOException {
+		try {
+			return ImageFilters.parse(URLDecoder.decode(filterDescription, "UTF-8"));
+		} catch (IllegalArgumentException e) {
+			throw new ProtocolException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * @param request
+	 * @return priority class of the downloads required by the request
+	 */
+	private int parsePriority(HttpRequest request) {
+		Header priorityHeader = request.getFirstHeader(DownloadScheduler.PRIORITY_HEADER);
+		return DownloadScheduler.parsePriority(priorityHeader == null ? null : priorityHeader.getValue());
+	}
+	
+	/**
+	 * Layer of a composite image.
+	 */
+	private static class CompositeLayer {
+		
+		final String imageSource;
+		final String cacheKey;
+		final String variantKey;
+		final ImageFilter filter;
+		
+		/**
+		 * Create a CompositeLayer.
+		 * 
+		 * @param imageSource
+		 * @param cacheKey
+		 * @param variantKey
+		 * @param filter
+		 *   Filter applied on the layer or null.
+		 */
+		public CompositeLayer(String imageSource, String cacheKey, String variantKey, ImageFilter filter) {
+			this.imageSource = imageSource;
+			this.cacheKey = cacheKey;
+			this.variantKey = variantKey;
+			this.filter = filter;
+		}
+	}
+	
+	/**
+	 * Image that cannot be loaded.
+	 */
+	private static class KnownFailure {
+		
+		/**
+		 * HTTP status code sent to the client.
+		 */
+		final int statusCode;
+		
+		/**
+		 * Time when the image can be requested again.
+		 */
+		final long expirationTime;
+		
+		/**
+		 * Create a KnownFailure.
+		 * 
+		 * @param statusCode
+		 * @param expirationTime
+		 */
+		public KnownFailure(int statusCode, long expirationTime) {
+			this.statusCode = statusCode;
+			this.expirationTime = expirationTime;
+		}
+	}
 }
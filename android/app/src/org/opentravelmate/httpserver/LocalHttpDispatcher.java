@@ -0,0 +1,205 @@
+package org.opentravelmate.httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+
+import android.util.Log;
+
+/**
+ * Send requests to the request handlers of the {@link HttpServer} without going through a socket.
+ * The request and the response are kept in memory: this is the fast path for the web views
+ * and the map tiles, the TCP server stays available for the other clients and for debugging.
+ *
+ * @author Marc Plouhinec
+ */
+public class LocalHttpDispatcher {
+
+	private static final String LOG_TAG = "LocalHttpDispatcher";
+
+	private final RequestDispatcher requestDispatcher;
+
+	/**
+	 * Create a LocalHttpDispatcher.
+	 *
+	 * @param requestDispatcher
+	 *   Dispatcher shared with the {@link HttpServer}.
+	 */
+	LocalHttpDispatcher(RequestDispatcher requestDispatcher) {
+		this.requestDispatcher = requestDispatcher;
+	}
+
+	/**
+	 * Process a GET request.
+	 *
+	 * @param uri
+	 *   Request path and query (for example "/extensions/main.js").
+	 * @param headers
+	 *   Request headers, can be null.
+	 * @return response ("500 Internal Server Error" if the request handler has failed unexpectedly)
+	 * @throws IOException
+	 */
+	public LocalResponse get(String uri, Map<String, String> headers) throws IOException {
+		BasicHttpRequest request = new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+		if (headers != null) {
+			for (Map.Entry<String, String> entry : headers.entrySet()) {
+				request.addHeader(entry.getKey(), entry.getValue());
+			}
+		}
+
+		HttpResponse response;
+		try {
+			response = requestDispatcher.dispatch(request, new BasicHttpContext(), false);
+		} catch (HttpException e) {
+			throw new IOException("Unable to process the request " + uri + ": " + e.getMessage());
+		} catch (RuntimeException e) {
+			// Note: a buggy handler must not crash the calling thread (web view or map tiles)
+			Log.e(LOG_TAG, "Unexpected error while processing the request " + uri, e);
+			response = HttpServer.createInternalServerErrorResponse();
+		}
+		return new LocalResponse(response);
+	}
+
+	/**
+	 * Process a GET request and read the whole response content.
+	 *
+	 * @param uri
+	 *   Request path and query.
+	 * @return response content or null if the response status is not "200 OK"
+	 * @throws IOException
+	 */
+	public byte[] getContent(String uri) throws IOException {
+		return getContent(uri, null);
+	}
+
+	/**
+	 * Process a GET request and read the whole response content.
+	 *
+	 * @param uri
+	 *   Request path and query.
+	 * @param headers
+	 *   Request headers, can be null.
+	 * @return response content or null if the response status is not "200 OK"
+	 * @throws IOException
+	 */
+	public byte[] getContent(String uri, Map<String, String> headers) throws IOException {
+		LocalResponse response = get(uri, headers);
+		if (response.statusCode != HttpStatus.SC_OK) {
+			response.close();
+			return null;
+		}
+		return response.toByteArray();
+	}
+
+	/**
+	 * Response of a request processed in memory.
+	 */
+	public static class LocalResponse {
+
+		/**
+		 * HTTP status code.
+		 */
+		public final int statusCode;
+
+		/**
+		 * MIME type without its parameters, or null if unknown.
+		 */
+		public final String mimeType;
+
+		/**
+		 * Character encoding of the content, or null if unknown.
+		 */
+		public final String charset;
+
+		private final HttpEntity entity;
+
+		/**
+		 * Create a LocalResponse.
+		 *
+		 * @param response
+		 */
+		private LocalResponse(HttpResponse response) {
+			this.statusCode = response.getStatusLine().getStatusCode();
+			this.entity = response.getEntity();
+
+			Header contentType = response.getFirstHeader(HTTP.CONTENT_TYPE);
+			if (contentType == null && entity != null) {
+				contentType = entity.getContentType();
+			}
+			String mimeType = null;
+			String charset = null;
+			if (contentType != null) {
+				String[] parts = contentType.getValue().split(";");
+				mimeType = parts[0].trim();
+				for (int i = 1; i < parts.length; i++) {
+					String parameter = parts[i].trim();
+					if (parameter.toLowerCase().startsWith("charset=")) {
+						charset = parameter.substring("charset=".length());
+					}
+				}
+			}
+			this.mimeType = mimeType;
+			this.charset = charset;
+		}
+
+		/**
+		 * Get the response content as a stream.
+		 * Streamed entities (assets) are not loaded in memory, the other ones are written in a buffer first.
+		 *
+		 * @return content or an empty stream if the response has no entity
+		 * @throws IOException
+		 */
+		public InputStream getContent() throws IOException {
+			if (entity == null) {
+				return new ByteArrayInputStream(new byte[0]);
+			}
+			if (entity instanceof ByteArrayEntity || entity.isStreaming()) {
+				return entity.getContent();
+			}
+			return new ByteArrayInputStream(toByteArray());
+		}
+
+		/**
+		 * Read the whole response content.
+		 *
+		 * @return content
+		 * @throws IOException
+		 */
+		public byte[] toByteArray() throws IOException {
+			if (entity == null) {
+				return new byte[0];
+			}
+			long contentLength = entity.getContentLength();
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+					contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : 8 * 1024);
+			entity.writeTo(outputStream);
+			return outputStream.toByteArray();
+		}
+
+		/**
+		 * Release the resources held by the response content when it is not read.
+		 */
+		public void close() {
+			if (entity != null && entity.isStreaming()) {
+				try {
+					entity.consumeContent();
+				} catch (IOException e) {
+					// Do nothing
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,808 @@
+package org.opentravelmate.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opentravelmate.commons.BgThreadExecutor;
+
+import android.util.Log;
+
+/**
+ * {@link TileStore} that appends all the entries into a single memory-mapped file.
+ *
+ * The file is divided into segments of {@link #SEGMENT_SIZE} bytes, each segment is mapped separately and contains
+ * a sequence of records [record length][64-bit key hash][key length][zoom][metadata length][data length]
+ * [key][metadata][data].
+ * A removed entry is marked by a record without data. The location of the last record of each key is kept in an
+ * open-addressing hash table that is rebuilt by scanning the file when the store is opened.
+ * When the file exceeds the maximum size, a background compaction copies the entries chosen by
+ * a {@link TileCachePolicy} into a new file.
+ *
+ * @author Marc Plouhinec
+ */
+public class MappedTileStore implements TileStore {
+
+	/**
+	 * Size of a mapped segment; larger entries are not stored.
+	 */
+	public static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private static final String LOG_TAG = "MappedTileStore";
+	private static final String DATA_FILE_NAME = "tiles-v2.data";
+	private static final String COMPACTION_FILE_NAME = "tiles-v2.compaction";
+	private static final String[] OLD_FILE_NAMES = new String[] {"tiles-v1.data", "tiles-v1.compaction"};
+	private static final int RECORD_HEADER_SIZE = 23;
+	private static final int UNKNOWN_ZOOM = -1;
+	private static final int REMOVED = -1;
+	private static final String UTF_8 = "UTF-8";
+
+	private final File directory;
+	private final long maxSize;
+	private final TileCachePolicy policy;
+	private final Map<String, Boolean> editedKeys = new ConcurrentHashMap<String, Boolean>();
+
+	// Guarded by this
+	private Segments segments;
+	private HashIndex index = new HashIndex(1024);
+	private long accessClock = 0;
+	private long liveSize = 0;
+	private boolean isCompacting = false;
+	private boolean isClosed = false;
+	private int nbCompactions = 0;
+	private long nbEvictedEntries = 0;
+
+	/**
+	 * Create a MappedTileStore.
+	 *
+	 * @param directory
+	 * @param maxSize
+	 * @param policy
+	 * @param segments
+	 */
+	private MappedTileStore(File directory, long maxSize, TileCachePolicy policy, Segments segments) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.policy = policy;
+		this.segments = segments;
+	}
+
+	/**
+	 * Open the store.
+	 *
+	 * @param directory
+	 * @param maxSize
+	 *   Size in bytes above which the store is compacted.
+	 * @param policy
+	 *   Policy that chooses the entries kept by the compaction.
+	 * @return store
+	 * @throws IOException
+	 */
+	public static MappedTileStore open(File directory, long maxSize, TileCachePolicy policy) throws IOException {
+		if (!directory.exists()) {
+			directory.mkdirs();
+		}
+		// Note: an interrupted compaction is restarted from the beginning
+		new File(directory, COMPACTION_FILE_NAME).delete();
+		for (String oldFileName : OLD_FILE_NAMES) {
+			new File(directory, oldFileName).delete();
+		}
+
+		MappedTileStore store = new MappedTileStore(directory, maxSize, policy, Segments.open(new File(directory, DATA_FILE_NAME)));
+		synchronized (store) {
+			store.load();
+		}
+		return store;
+	}
+
+	@Override
+	public synchronized Entry get(String key) throws IOException {
+		int slot = index.find(hash(key));
+		if (slot < 0) {
+			return null;
+		}
+		ByteBuffer record = readRecord(slot, key);
+		if (record == null) {
+			return null;
+		}
+		int metadataLength = record.getInt(RECORD_HEADER_SIZE - 8);
+		int dataLength = record.getInt(RECORD_HEADER_SIZE - 4);
+		byte[] metadataBytes = new byte[metadataLength];
+		record.get(metadataBytes);
+		byte[] data = new byte[dataLength];
+		record.get(data);
+		index.accessTimes[slot] = ++accessClock;
+		if (index.accessCounts[slot] < Integer.MAX_VALUE) {
+			index.accessCounts[slot]++;
+		}
+		return new Entry(data, new String(metadataBytes, UTF_8));
+	}
+
+	@Override
+	public synchronized String getMetadata(String key) throws IOException {
+		// Note: the data is not copied and the access statistics are not modified
+		int slot = index.find(hash(key));
+		if (slot < 0) {
+			return null;
+		}
+		ByteBuffer record = readRecord(slot, key);
+		if (record == null) {
+			return null;
+		}
+		byte[] metadataBytes = new byte[record.getInt(RECORD_HEADER_SIZE - 8)];
+		record.get(metadataBytes);
+		return new String(metadataBytes, UTF_8);
+	}
+
+	@Override
+	public Editor edit(final String key) {
+		if (editedKeys.put(key, Boolean.TRUE) != null) {
+			return null;
+		}
+		return new Editor() {
+			private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(16 * 1024);
+			private String metadata = "";
+			private int zoom = UNKNOWN_ZOOM;
+			private boolean isDone = false;
+
+			@Override public OutputStream newOutputStream() {
+				return outputStream;
+			}
+			@Override public void setMetadata(String metadata) {
+				this.metadata = metadata;
+			}
+			@Override public void setZoom(int zoom) {
+				this.zoom = zoom;
+			}
+			@Override public void commit() throws IOException {
+				if (isDone) {
+					return;
+				}
+				isDone = true;
+				try {
+					put(key, metadata, outputStream.toByteArray(), zoom);
+				} finally {
+					editedKeys.remove(key);
+				}
+			}
+			@Override public void abort() {
+				if (!isDone) {
+					isDone = true;
+					editedKeys.remove(key);
+				}
+			}
+		};
+	}
+
+	@Override
+	public synchronized boolean updateMetadata(String key, String metadata) throws IOException {
+		if (editedKeys.containsKey(key)) {
+			return false;
+		}
+		Entry entry = get(key);
+		if (entry == null) {
+			return false;
+		}
+		put(key, metadata, entry.data, index.zooms[index.find(hash(key))]);
+		return true;
+	}
+
+	@Override
+	public synchronized void remove(String key) throws IOException {
+		long hash = hash(key);
+		int slot = index.find(hash);
+		if (slot < 0) {
+			return;
+		}
+		liveSize -= index.lengths[slot];
+		index.remove(hash);
+		segments.append(encodeRecord(hash, key, "", null, UNKNOWN_ZOOM));
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		isClosed = true;
+		segments.close();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MappedTileStore [entries=" + index.size + ", liveSize=" + liveSize +
+				", fileSize=" + segments.end + ", compactions=" + nbCompactions +
+				", evictedEntries=" + nbEvictedEntries + ", " + policy + "]";
+	}
+
+	/**
+	 * Read the record of an index slot and check its key.
+	 *
+	 * @param slot
+	 * @param key
+	 * @return record positioned after its key or null in case of hash collision
+	 * @throws IOException
+	 */
+	private ByteBuffer readRecord(int slot, String key) throws IOException {
+		ByteBuffer record = segments.read(index.offsets[slot], index.lengths[slot]);
+		if (!key.equals(readKey(record))) {
+			// Hash collision
+			return null;
+		}
+		return record;
+	}
+
+	/**
+	 * Append an entry and schedule a compaction if the file is too large.
+	 *
+	 * @param key
+	 * @param metadata
+	 * @param data
+	 * @param zoom
+	 * @throws IOException
+	 */
+	private synchronized void put(String key, String metadata, byte[] data, int zoom) throws IOException {
+		if (isClosed) {
+			return;
+		}
+		long hash = hash(key);
+		byte[] record = encodeRecord(hash, key, metadata, data, zoom);
+		if (record.length > SEGMENT_SIZE) {
+			return;
+		}
+		long offset = segments.append(record);
+		int slot = index.find(hash);
+		int nbAccesses = 1;
+		if (slot >= 0) {
+			liveSize -= index.lengths[slot];
+			nbAccesses = index.accessCounts[slot] == Integer.MAX_VALUE ? Integer.MAX_VALUE : index.accessCounts[slot] + 1;
+		}
+		index.put(hash, offset, record.length, zoom, ++accessClock, nbAccesses);
+		liveSize += record.length;
+
+		if (segments.end > maxSize && !isCompacting) {
+			isCompacting = true;
+			BgThreadExecutor.execute(new Runnable() {
+				@Override public void run() {
+					compact();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Rebuild the index by reading all the records.
+	 *
+	 * @throws IOException
+	 */
+	private void load() throws IOException {
+		long end = 0;
+		for (int segmentIndex = 0; segmentIndex < segments.buffers.size(); segmentIndex++) {
+			ByteBuffer segment = segments.buffers.get(segmentIndex).duplicate();
+			int position = 0;
+			while (position + RECORD_HEADER_SIZE <= SEGMENT_SIZE) {
+				int length = segment.getInt(position);
+				if (length < RECORD_HEADER_SIZE || position + length > SEGMENT_SIZE) {
+					break;
+				}
+				long hash = segment.getLong(position + 4);
+				int zoom = segment.get(position + 14);
+				int dataLength = segment.getInt(position + 19);
+				int slot = index.find(hash);
+				if (slot >= 0) {
+					liveSize -= index.lengths[slot];
+				}
+				long offset = (long) segmentIndex * SEGMENT_SIZE + position;
+				if (dataLength == REMOVED) {
+					index.remove(hash);
+				} else {
+					index.put(hash, offset, length, zoom, ++accessClock, 1);
+					liveSize += length;
+				}
+				position += length;
+				end = offset + length;
+			}
+		}
+		segments.end = end;
+	}
+
+	/**
+	 * Copy the most recently used entries into a new file and replace the current file by the new one.
+	 */
+	private void compact() {
+		File compactionFile = new File(directory, COMPACTION_FILE_NAME);
+		Segments newSegments = null;
+		try {
+			// Take the entries that are in the file now, the next ones will be copied at the end
+			final HashIndex snapshot;
+			List<MappedByteBuffer> snapshotBuffers;
+			long snapshotEnd;
+			synchronized (this) {
+				if (isClosed) {
+					return;
+				}
+				snapshot = index.copy();
+				snapshotBuffers = new ArrayList<MappedByteBuffer>(segments.buffers);
+				snapshotEnd = segments.end;
+			}
+
+			// Keep the pinned tiles, then the entries with the highest priority
+			Integer[] slots = snapshot.getUsedSlots();
+			final long[] priorities = new long[snapshot.hashes.length];
+			for (Integer slot : slots) {
+				priorities[slot] = policy.getPriority(snapshot.zooms[slot], snapshot.accessCounts[slot], snapshot.accessTimes[slot]);
+			}
+			Arrays.sort(slots, new Comparator<Integer>() {
+				@Override public int compare(Integer slot1, Integer slot2) {
+					long priority1 = priorities[slot1];
+					long priority2 = priorities[slot2];
+					return priority1 > priority2 ? -1 : (priority1 < priority2 ? 1 : 0);
+				}
+			});
+			long targetSize = maxSize * 3 / 4;
+			long pinnedTargetSize = (long) (targetSize * policy.pinnedMaxRatio);
+			boolean[] isKeptBySlot = new boolean[snapshot.hashes.length];
+			long keptSize = 0;
+			int nbKeptSlots = 0;
+			for (Integer slot : slots) {
+				if (policy.isPinned(snapshot.zooms[slot]) && keptSize + snapshot.lengths[slot] <= pinnedTargetSize) {
+					isKeptBySlot[slot] = true;
+					keptSize += snapshot.lengths[slot];
+					nbKeptSlots++;
+				}
+			}
+			for (Integer slot : slots) {
+				if (!isKeptBySlot[slot] && keptSize + snapshot.lengths[slot] <= targetSize) {
+					isKeptBySlot[slot] = true;
+					keptSize += snapshot.lengths[slot];
+					nbKeptSlots++;
+				}
+			}
+			Integer[] keptSlots = new Integer[nbKeptSlots];
+			int keptSlotIndex = 0;
+			for (Integer slot : slots) {
+				if (isKeptBySlot[slot]) {
+					keptSlots[keptSlotIndex++] = slot;
+				}
+			}
+			Arrays.sort(keptSlots, new Comparator<Integer>() {
+				@Override public int compare(Integer slot1, Integer slot2) {
+					long offset1 = snapshot.offsets[slot1];
+					long offset2 = snapshot.offsets[slot2];
+					return offset1 < offset2 ? -1 : (offset1 > offset2 ? 1 : 0);
+				}
+			});
+
+			// Copy the entries without blocking the readers
+			compactionFile.delete();
+			newSegments = Segments.open(compactionFile);
+			Map<Long, Long> newOffsetByOldOffset = new HashMap<Long, Long>();
+			for (Integer slot : keptSlots) {
+				ByteBuffer record = Segments.read(snapshotBuffers, snapshot.offsets[slot], snapshot.lengths[slot]);
+				newOffsetByOldOffset.put(snapshot.offsets[slot], newSegments.append(toByteArray(record)));
+			}
+
+			synchronized (this) {
+				if (isClosed) {
+					newSegments.close();
+					compactionFile.delete();
+					return;
+				}
+
+				// Copy the entries written during the compaction and rebuild the index
+				HashIndex newIndex = new HashIndex(index.hashes.length);
+				long newLiveSize = 0;
+				for (int slot = 0; slot < index.hashes.length; slot++) {
+					if (index.hashes[slot] == 0) {
+						continue;
+					}
+					Long newOffset;
+					if (index.offsets[slot] >= snapshotEnd) {
+						newOffset = newSegments.append(toByteArray(segments.read(index.offsets[slot], index.lengths[slot])));
+					} else {
+						newOffset = newOffsetByOldOffset.get(index.offsets[slot]);
+					}
+					if (newOffset != null) {
+						newIndex.put(index.hashes[slot], newOffset, index.lengths[slot], index.zooms[slot],
+								index.accessTimes[slot], index.accessCounts[slot]);
+						newLiveSize += index.lengths[slot];
+					}
+				}
+
+				// Remove again the copied entries that have been removed during the compaction
+				for (Integer slot : keptSlots) {
+					long hash = snapshot.hashes[slot];
+					if (index.find(hash) < 0) {
+						ByteBuffer record = Segments.read(snapshotBuffers, snapshot.offsets[slot], snapshot.lengths[slot]);
+						newSegments.append(encodeRecord(hash, readKey(record), "", null, UNKNOWN_ZOOM));
+					}
+				}
+
+				// Replace the file
+				newSegments.force();
+				if (!compactionFile.renameTo(new File(directory, DATA_FILE_NAME))) {
+					throw new IOException("Unable to replace the data file.");
+				}
+				segments.close();
+				segments = newSegments;
+				nbEvictedEntries += index.size - newIndex.size;
+				index = newIndex;
+				liveSize = newLiveSize;
+				nbCompactions++;
+				newSegments = null;
+			}
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Unable to compact the tile store.", e);
+			if (newSegments != null) {
+				try {
+					newSegments.close();
+				} catch (IOException e2) {
+					// Do nothing
+				}
+				compactionFile.delete();
+			}
+		} finally {
+			synchronized (this) {
+				isCompacting = false;
+			}
+		}
+	}
+
+	/**
+	 * Build a record.
+	 *
+	 * @param hash
+	 * @param key
+	 * @param metadata
+	 * @param data
+	 *   Entry data or null for a removed entry.
+	 * @param zoom
+	 * @return record
+	 * @throws IOException
+	 */
+	private static byte[] encodeRecord(long hash, String key, String metadata, byte[] data, int zoom) throws IOException {
+		byte[] keyBytes = key.getBytes(UTF_8);
+		byte[] metadataBytes = metadata.getBytes(UTF_8);
+		int dataLength = data == null ? 0 : data.length;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length + metadataBytes.length + dataLength);
+		record.putInt(record.capacity());
+		record.putLong(hash);
+		record.putShort((short) keyBytes.length);
+		record.put((byte) zoom);
+		record.putInt(metadataBytes.length);
+		record.putInt(data == null ? REMOVED : data.length);
+		record.put(keyBytes);
+		record.put(metadataBytes);
+		if (data != null) {
+			record.put(data);
+		}
+		return record.array();
+	}
+
+	/**
+	 * @param record
+	 *   Record, its position is moved after the key.
+	 * @return key of the record
+	 * @throws IOException
+	 */
+	private static String readKey(ByteBuffer record) throws IOException {
+		byte[] keyBytes = new byte[record.getShort(RECORD_HEADER_SIZE - 11)];
+		record.position(RECORD_HEADER_SIZE);
+		record.get(keyBytes);
+		return new String(keyBytes, UTF_8);
+	}
+
+	/**
+	 * @param buffer
+	 * @return remaining bytes of the buffer
+	 */
+	private static byte[] toByteArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @param key
+	 * @return 64-bit hash of the key, never 0
+	 */
+	private static long hash(String key) {
+		long hash = TilePack.hash(key);
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Memory-mapped segments of a file.
+	 */
+	private static class Segments {
+
+		private final RandomAccessFile randomAccessFile;
+		private final List<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>();
+
+		/**
+		 * Offset after the last record.
+		 */
+		long end = 0;
+
+		/**
+		 * Create Segments.
+		 *
+		 * @param randomAccessFile
+		 */
+		private Segments(RandomAccessFile randomAccessFile) {
+			this.randomAccessFile = randomAccessFile;
+		}
+
+		/**
+		 * Open a file and map its segments.
+		 *
+		 * @param file
+		 * @return segments
+		 * @throws IOException
+		 */
+		public static Segments open(File file) throws IOException {
+			Segments segments = new Segments(new RandomAccessFile(file, "rw"));
+			long fileLength = segments.randomAccessFile.length();
+			while ((long) segments.buffers.size() * SEGMENT_SIZE < fileLength) {
+				segments.mapNextSegment();
+			}
+			return segments;
+		}
+
+		/**
+		 * Read a record.
+		 *
+		 * @param offset
+		 * @param length
+		 * @return buffer that contains the record
+		 */
+		public ByteBuffer read(long offset, int length) {
+			return read(buffers, offset, length);
+		}
+
+		/**
+		 * Read a record.
+		 *
+		 * @param buffers
+		 * @param offset
+		 * @param length
+		 * @return buffer that contains the record
+		 */
+		public static ByteBuffer read(List<MappedByteBuffer> buffers, long offset, int length) {
+			ByteBuffer buffer = buffers.get((int) (offset / SEGMENT_SIZE)).duplicate();
+			int position = (int) (offset % SEGMENT_SIZE);
+			buffer.limit(position + length);
+			buffer.position(position);
+			return buffer.slice();
+		}
+
+		/**
+		 * Write a record after the last one.
+		 * Note: the record length is written at the end, so that a partially written record is ignored when
+		 * the file is loaded again.
+		 *
+		 * @param record
+		 * @return record offset
+		 * @throws IOException
+		 */
+		public long append(byte[] record) throws IOException {
+			long offset = end;
+			if (offset % SEGMENT_SIZE + record.length > SEGMENT_SIZE) {
+				offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+			}
+			int segmentIndex = (int) (offset / SEGMENT_SIZE);
+			while (buffers.size() <= segmentIndex) {
+				mapNextSegment();
+			}
+
+			ByteBuffer buffer = buffers.get(segmentIndex).duplicate();
+			int position = (int) (offset % SEGMENT_SIZE);
+			buffer.position(position + 4);
+			buffer.put(record, 4, record.length - 4);
+			buffer.putInt(position, record.length);
+			end = offset + record.length;
+			return offset;
+		}
+
+		/**
+		 * Write the modified segments on the disk.
+		 */
+		public void force() {
+			for (MappedByteBuffer buffer : buffers) {
+				buffer.force();
+			}
+		}
+
+		/**
+		 * Close the file.
+		 *
+		 * @throws IOException
+		 */
+		public void close() throws IOException {
+			force();
+			randomAccessFile.close();
+		}
+
+		/**
+		 * Map the next segment, the file is extended if necessary.
+		 *
+		 * @throws IOException
+		 */
+		private void mapNextSegment() throws IOException {
+			long position = (long) buffers.size() * SEGMENT_SIZE;
+			buffers.add(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE));
+		}
+	}
+
+	/**
+	 * Open-addressing hash table (linear probing) from a key hash to the location of its record.
+	 */
+	private static class HashIndex {
+
+		long[] hashes;
+		long[] offsets;
+		int[] lengths;
+		byte[] zooms;
+		long[] accessTimes;
+		int[] accessCounts;
+		int size = 0;
+
+		/**
+		 * Create a HashIndex.
+		 *
+		 * @param capacity
+		 *   Power of 2.
+		 */
+		public HashIndex(int capacity) {
+			hashes = new long[capacity];
+			offsets = new long[capacity];
+			lengths = new int[capacity];
+			zooms = new byte[capacity];
+			accessTimes = new long[capacity];
+			accessCounts = new int[capacity];
+		}
+
+		/**
+		 * @param hash
+		 * @return slot of the given hash or -1 if not found
+		 */
+		public int find(long hash) {
+			int mask = hashes.length - 1;
+			for (int slot = firstSlot(hash, mask); hashes[slot] != 0; slot = (slot + 1) & mask) {
+				if (hashes[slot] == hash) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Add or replace an entry.
+		 *
+		 * @param hash
+		 * @param offset
+		 * @param length
+		 * @param zoom
+		 * @param accessTime
+		 * @param nbAccesses
+		 */
+		public void put(long hash, long offset, int length, int zoom, long accessTime, int nbAccesses) {
+			if ((size + 1) * 10 > hashes.length * 7) {
+				resize(hashes.length * 2);
+			}
+			int mask = hashes.length - 1;
+			int slot = firstSlot(hash, mask);
+			while (hashes[slot] != 0 && hashes[slot] != hash) {
+				slot = (slot + 1) & mask;
+			}
+			if (hashes[slot] == 0) {
+				size++;
+			}
+			hashes[slot] = hash;
+			offsets[slot] = offset;
+			lengths[slot] = length;
+			zooms[slot] = (byte) zoom;
+			accessTimes[slot] = accessTime;
+			accessCounts[slot] = nbAccesses;
+		}
+
+		/**
+		 * Remove an entry and move back the following entries of its cluster.
+		 *
+		 * @param hash
+		 */
+		public void remove(long hash) {
+			int slot = find(hash);
+			if (slot < 0) {
+				return;
+			}
+			int mask = hashes.length - 1;
+			int emptySlot = slot;
+			for (int next = (slot + 1) & mask; hashes[next] != 0; next = (next + 1) & mask) {
+				int idealSlot = firstSlot(hashes[next], mask);
+				// Move the entry if the empty slot is between its ideal slot and its current slot
+				boolean canMove = emptySlot <= next ?
+						(idealSlot <= emptySlot || idealSlot > next) :
+						(idealSlot <= emptySlot && idealSlot > next);
+				if (canMove) {
+					hashes[emptySlot] = hashes[next];
+					offsets[emptySlot] = offsets[next];
+					lengths[emptySlot] = lengths[next];
+					zooms[emptySlot] = zooms[next];
+					accessTimes[emptySlot] = accessTimes[next];
+					accessCounts[emptySlot] = accessCounts[next];
+					emptySlot = next;
+				}
+			}
+			hashes[emptySlot] = 0;
+			size--;
+		}
+
+		/**
+		 * @return independent copy of this index
+		 */
+		public HashIndex copy() {
+			HashIndex copy = new HashIndex(hashes.length);
+			copy.hashes = hashes.clone();
+			copy.offsets = offsets.clone();
+			copy.lengths = lengths.clone();
+			copy.zooms = zooms.clone();
+			copy.accessTimes = accessTimes.clone();
+			copy.accessCounts = accessCounts.clone();
+			copy.size = size;
+			return copy;
+		}
+
+		/**
+		 * @return slots that contain an entry
+		 */
+		public Integer[] getUsedSlots() {
+			Integer[] usedSlots = new Integer[size];
+			int i = 0;
+			for (int slot = 0; slot < hashes.length; slot++) {
+				if (hashes[slot] != 0) {
+					usedSlots[i++] = slot;
+				}
+			}
+			return usedSlots;
+		}
+
+		/**
+		 * Move the entries into larger arrays.
+		 *
+		 * @param capacity
+		 */
+		private void resize(int capacity) {
+			HashIndex resized = new HashIndex(capacity);
+			for (int slot = 0; slot < hashes.length; slot++) {
+				if (hashes[slot] != 0) {
+					resized.put(hashes[slot], offsets[slot], lengths[slot], zooms[slot], accessTimes[slot], accessCounts[slot]);
+				}
+			}
+			hashes = resized.hashes;
+			offsets = resized.offsets;
+			lengths = resized.lengths;
+			zooms = resized.zooms;
+			accessTimes = resized.accessTimes;
+			accessCounts = resized.accessCounts;
+		}
+
+		/**
+		 * @param hash
+		 * @param mask
+		 * @return ideal slot of the given hash
+		 */
+		private static int firstSlot(long hash, int mask) {
+			return (int) (hash ^ (hash >>> 32)) & mask;
+		}
+	}
+}
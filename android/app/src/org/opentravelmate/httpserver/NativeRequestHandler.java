@@ -5,11 +5,11 @@ import java.io.InputStream;
 import java.net.URLDecoder;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.entity.EntityTemplate;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.opentravelmate.commons.IOUtils;
@@ -21,12 +21,40 @@ import org.opentravelmate.commons.IOUtils;
  */
 public class NativeRequestHandler implements HttpRequestHandler {
 	
-	private Map<String, String> injectedJavaObjectNameByURL = new HashMap<String, String>();
-	private Map<String, String> classPathFolderByUrlPrefix = new HashMap<String, String>();
+	/**
+	 * URL of the script that defines every injected Java object as a RequireJS module.
+	 */
+	public static final String BOOTSTRAP_SCRIPT_URL = "/native/bootstrap.js";
+	
+	private static final String CLASS_PATH_KEY_PREFIX = "classpath:";
+	private static final int MAX_CACHED_MISSING_RESOURCES = 256;
+	private static final int MAX_CACHED_RESOURCE_PATHS = 1024;
+	
+	private final AssetCache assetCache;
+	private final ContentHashManifest contentHashManifest;
+	private final GeneratedModuleRegistry generatedModuleRegistry = new GeneratedModuleRegistry(BOOTSTRAP_SCRIPT_URL);
+	private final Map<String, String> classPathFolderByUrlPrefix = new HashMap<String, String>();
+	private volatile PrefixTrie<String> classPathFolderTrie = new PrefixTrie<String>(classPathFolderByUrlPrefix);
+	private final Map<String, String> resourcePathByUrl = new ConcurrentHashMap<String, String>();
+	private final Map<String, Boolean> missingResourcePaths = new ConcurrentHashMap<String, Boolean>();
+	
+	/**
+	 * Create the request handler.
+	 * 
+	 * @param assetCache
+	 *   Cache shared with the other request handlers.
+	 * @param contentHashManifest
+	 *   Manifest where the hash of the served resources are registered.
+	 */
+	public NativeRequestHandler(AssetCache assetCache, ContentHashManifest contentHashManifest) {
+		this.assetCache = assetCache;
+		this.contentHashManifest = contentHashManifest;
+	}
 	
 	/**
 	 * Register an injected Java Object. A Request to the given URL will trigger a
 	 * Require.JS-compatible script that returns 'window.objectName'.
+	 * The object is also defined in the script at {@link #BOOTSTRAP_SCRIPT_URL}.
 	 * 
 	 * @param url
 	 *   URL of the injected java object.
@@ -34,7 +62,7 @@ public class NativeRequestHandler implements HttpRequestHandler {
 	 *   Name of the JavaObject.
 	 */
 	public void registerInjectedJavaObject(String url, String objectName) {
-		injectedJavaObjectNameByURL.put(url, objectName);
+		generatedModuleRegistry.registerInjectedJavaObject(url, objectName);
 	}
 	
 	/**
@@ -46,52 +74,75 @@ public class NativeRequestHandler implements HttpRequestHandler {
 	 *   Prefix of each resource URL (for example if folderClassPath="js/map" and urlPrefix="org/opentravelmate/map",
 	 *   then the resource "js/map/Map.js" will be available at "org/opentravelmate/map/Map.js").
 	 */
-	public void registerResources(String folderClassPath, String urlPrefix) {
+	public synchronized void registerResources(String folderClassPath, String urlPrefix) {
 		classPathFolderByUrlPrefix.put(urlPrefix, folderClassPath);
+		
+		// Compile the routing table again, registrations are rare compared to the requests
+		classPathFolderTrie = new PrefixTrie<String>(classPathFolderByUrlPrefix);
+		resourcePathByUrl.clear();
+		missingResourcePaths.clear();
 	}
 
 	@Override
 	public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
 		String target = request.getRequestLine().getUri();
-		String url = URLDecoder.decode(target, "UTF-8");
+		String url = target.indexOf('%') == -1 && target.indexOf('+') == -1 ? target : URLDecoder.decode(target, "UTF-8");
 		
 		// Load the required resources
-		byte[] content;
-		if (injectedJavaObjectNameByURL.containsKey(url)) {
-			StringBuilder stringBuilder = new StringBuilder()
-				.append("define([], function() {\n")
-				.append("  return window.").append(injectedJavaObjectNameByURL.get(url)).append(";\n")
-				.append("});");
-			content = stringBuilder.toString().getBytes("UTF-8");
-		} else {
-			InputStream inputStream = findMatchingResource(url);
-			if (inputStream == null) {
-				throw new IOException("Unknown resource: " + url);
+		AssetCache.CachedAsset generatedModule = generatedModuleRegistry.get(url);
+		if (generatedModule != null) {
+			contentHashManifest.put(target, generatedModule.hash);
+			generatedModule.send(request, response);
+			return;
+		}
+		
+		final String resourcePath = findMatchingResource(url);
+		AssetCache.CachedAsset cachedAsset = null;
+		if (resourcePath != null && !missingResourcePaths.containsKey(resourcePath)) {
+			cachedAsset = assetCache.get(CLASS_PATH_KEY_PREFIX + resourcePath, new AssetCache.Loader() {
+				@Override public byte[] load() throws IOException {
+					InputStream inputStream = NativeRequestHandler.this.getClass().getResourceAsStream(resourcePath);
+					return inputStream == null ? null : IOUtils.toByteArray(inputStream);
+				}
+			});
+			if (cachedAsset == null) {
+				if (missingResourcePaths.size() >= MAX_CACHED_MISSING_RESOURCES) {
+					missingResourcePaths.clear();
+				}
+				missingResourcePaths.put(resourcePath, Boolean.TRUE);
 			}
-			content = IOUtils.toByteArray(inputStream);
+		}
+		if (cachedAsset == null) {
+			throw new IOException("Unknown resource: " + url);
 		}
 		
 		// Send the resource
-		EntityTemplate entity = new EntityTemplate(new SimpleContentProducer(content));
-		response.setEntity(entity);
+		contentHashManifest.put(target, cachedAsset.hash);
+		cachedAsset.send(request, response);
 	}
 	
 	/**
-	 * Find the resource that matches the given url.
+	 * Find the class path of the resource that matches the given url.
+	 * When several URL prefixes match, the longest one is used.
 	 * 
 	 * @param url
-	 * @return resource input stream or null if not found
+	 * @return resource class path or null if not found
 	 */
-	private InputStream findMatchingResource(String url) {
-		for (Map.Entry<String, String> entry : classPathFolderByUrlPrefix.entrySet()) {
-			String urlPrefix = entry.getKey();
-			if (url.startsWith(urlPrefix)) {
-				String urlSuffix = url.substring(urlPrefix.length());
-				String folderClassPath = entry.getValue();
-				return this.getClass().getResourceAsStream(folderClassPath + urlSuffix);
-			}
+	private String findMatchingResource(String url) {
+		String resourcePath = resourcePathByUrl.get(url);
+		if (resourcePath != null) {
+			return resourcePath;
+		}
+		
+		PrefixTrie.Match<String> match = classPathFolderTrie.findLongestPrefix(url);
+		if (match == null) {
+			return null;
+		}
+		resourcePath = match.value + url.substring(match.prefix.length());
+		if (resourcePathByUrl.size() < MAX_CACHED_RESOURCE_PATHS) {
+			resourcePathByUrl.put(url, resourcePath);
 		}
-		return null;
+		return resourcePath;
 	}
 
 }
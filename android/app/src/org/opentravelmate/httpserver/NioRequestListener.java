@@ -0,0 +1,642 @@
+package org.opentravelmate.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.opentravelmate.R;
+import org.opentravelmate.commons.ExceptionListener;
+import org.opentravelmate.commons.I18nException;
+import org.opentravelmate.commons.IOUtils;
+
+import android.util.Log;
+
+/**
+ * Listen to all the connections with one selector thread.
+ * A connection only uses a worker thread while one of its requests is processed, so idle keep-alive
+ * connections do not hold any worker.
+ * The streamed entities (assets, downloads) are not copied in memory: the worker reads them chunk by chunk
+ * and waits until the selector thread has written each chunk.
+ *
+ * @author Marc Plouhinec
+ */
+class NioRequestListener implements Runnable {
+
+	private final static String LOG_TAG = "NioRequestListener";
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_REQUEST_HEAD_SIZE = 64 * 1024;
+	private static final long SELECT_TIMEOUT = 1000;
+
+	private final ServerSocketChannel serverSocketChannel;
+	private final RequestDispatcher requestDispatcher;
+	private final WorkerPool workerPool;
+	private final ExceptionListener exceptionListener;
+	private final long idleTimeout;
+	private final Queue<Connection> connectionsWithPendingResponse = new ConcurrentLinkedQueue<Connection>();
+	private Selector selector;
+
+	/**
+	 * Create a NIO request listener.
+	 *
+	 * @param serverSocketChannel
+	 *   Bound server socket channel.
+	 * @param requestDispatcher
+	 * @param workerPool
+	 *   Threads where the requests are processed.
+	 * @param exceptionListener
+	 * @param idleTimeout
+	 *   Time in milliseconds after which an idle connection is closed.
+	 */
+	public NioRequestListener(
+			ServerSocketChannel serverSocketChannel,
+			RequestDispatcher requestDispatcher,
+			WorkerPool workerPool,
+			ExceptionListener exceptionListener,
+			long idleTimeout) {
+		this.serverSocketChannel = serverSocketChannel;
+		this.requestDispatcher = requestDispatcher;
+		this.workerPool = workerPool;
+		this.exceptionListener = exceptionListener;
+		this.idleTimeout = idleTimeout;
+	}
+
+	@Override public void run() {
+		int localPort = this.serverSocketChannel.socket().getLocalPort();
+		Log.i(LOG_TAG, "Listening on port " + localPort);
+
+		try {
+			this.selector = Selector.open();
+			this.serverSocketChannel.configureBlocking(false);
+			this.serverSocketChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+			while (!Thread.interrupted()) {
+				this.selector.select(SELECT_TIMEOUT);
+				this.registerPendingResponses();
+
+				Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isAcceptable()) {
+						this.accept();
+					} else {
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								connection.read();
+							} else if (key.isWritable()) {
+								connection.write();
+							}
+						} catch (IOException e) {
+							connection.close();
+						}
+					}
+				}
+
+				this.closeIdleConnections();
+			}
+		} catch (ClosedSelectorException e) {
+			// The server has been stopped
+		} catch (IOException e) {
+			exceptionListener.onException(true, new I18nException(
+					R.string.httpserver_error_unable_to_initialize_connection, e, localPort));
+		} finally {
+			this.closeAll();
+		}
+	}
+
+	/**
+	 * Accept the pending connections.
+	 * Note: the backlog is emptied at once, otherwise the new connections are dropped by the system when many
+	 * clients reconnect at the same time (e.g. after "503 Service Unavailable" responses).
+	 *
+	 * @throws IOException
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = this.serverSocketChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+			key.attach(new Connection(channel, key));
+		}
+	}
+
+	/**
+	 * Switch the connections with a processed request to the writing mode.
+	 */
+	private void registerPendingResponses() {
+		Connection connection;
+		while ((connection = this.connectionsWithPendingResponse.poll()) != null) {
+			try {
+				connection.write();
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Close the connections that have not been used for a while.
+	 */
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : this.selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				Connection connection = (Connection) key.attachment();
+				if (!connection.isProcessing && now - connection.lastActivityTime > this.idleTimeout) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close the selector and all the connections.
+	 */
+	private void closeAll() {
+		if (this.selector != null) {
+			try {
+				for (SelectionKey key : this.selector.keys()) {
+					if (key.attachment() instanceof Connection) {
+						((Connection) key.attachment()).close();
+					} else {
+						key.channel().close();
+					}
+				}
+				this.selector.close();
+			} catch (IOException ignore) {
+				// Do nothing
+			} catch (ClosedSelectorException ignore) {
+				// Do nothing
+			}
+		}
+		try {
+			this.serverSocketChannel.close();
+		} catch (IOException ignore) {
+			// Do nothing
+		}
+	}
+
+	/**
+	 * State of one client connection.
+	 */
+	private class Connection {
+
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private ByteBuffer inputBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private volatile ByteBuffer outputBuffer = null;
+		private volatile boolean closeAfterWrite = false;
+		private volatile boolean isProcessing = false;
+		private volatile boolean isStreaming = false;
+		private volatile long lastActivityTime = System.currentTimeMillis();
+
+		/**
+		 * Create a connection.
+		 *
+		 * @param channel
+		 * @param key
+		 */
+		public Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		/**
+		 * Read the available bytes and process the request if it has been fully received.
+		 *
+		 * @throws IOException
+		 */
+		public void read() throws IOException {
+			if (!this.inputBuffer.hasRemaining()) {
+				if (this.inputBuffer.capacity() >= MAX_REQUEST_HEAD_SIZE * 2) {
+					throw new IOException("Request too large.");
+				}
+				ByteBuffer largerBuffer = ByteBuffer.allocate(this.inputBuffer.capacity() * 2);
+				this.inputBuffer.flip();
+				largerBuffer.put(this.inputBuffer);
+				this.inputBuffer = largerBuffer;
+			}
+
+			int nbBytesRead = this.channel.read(this.inputBuffer);
+			if (nbBytesRead == -1) {
+				this.close();
+				return;
+			}
+			this.lastActivityTime = System.currentTimeMillis();
+			this.processInput();
+		}
+
+		/**
+		 * Write the pending response.
+		 *
+		 * @throws IOException
+		 */
+		public void write() throws IOException {
+			if (this.outputBuffer != null) {
+				this.channel.write(this.outputBuffer);
+				this.lastActivityTime = System.currentTimeMillis();
+				if (this.outputBuffer.hasRemaining()) {
+					this.key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				this.outputBuffer = null;
+			}
+
+			if (this.isStreaming) {
+				// Let the worker send the next chunk
+				this.key.interestOps(0);
+				synchronized (this) {
+					notifyAll();
+				}
+				return;
+			}
+
+			if (this.closeAfterWrite) {
+				this.close();
+				return;
+			}
+
+			// Process the next pipelined request or wait for a new one
+			this.isProcessing = false;
+			this.key.interestOps(SelectionKey.OP_READ);
+			this.processInput();
+		}
+
+		/**
+		 * Close the connection.
+		 */
+		public void close() {
+			this.key.cancel();
+			try {
+				this.channel.close();
+			} catch (IOException ignore) {
+				// Do nothing
+			}
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Parse the received data and submit the request to a worker when it is complete.
+		 *
+		 * @throws IOException
+		 */
+		private void processInput() throws IOException {
+			byte[] data = this.inputBuffer.array();
+			int length = this.inputBuffer.position();
+
+			int headLength = findHeadLength(data, length);
+			if (headLength == -1) {
+				if (length > MAX_REQUEST_HEAD_SIZE) {
+					throw new IOException("Request head too large.");
+				}
+				return;
+			}
+
+			final HttpRequest request = parseRequestHead(data, headLength);
+			int contentLength = 0;
+			Header contentLengthHeader = request.getFirstHeader(HTTP.CONTENT_LEN);
+			if (contentLengthHeader != null) {
+				try {
+					contentLength = Integer.parseInt(contentLengthHeader.getValue().trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid Content-Length.");
+				}
+			}
+			if (request.containsHeader(HTTP.TRANSFER_ENCODING) || contentLength < 0) {
+				throw new IOException("Unsupported request body.");
+			}
+			if (length < headLength + contentLength) {
+				return;
+			}
+
+			if (contentLength > 0 && request instanceof BasicHttpEntityEnclosingRequest) {
+				byte[] content = new byte[contentLength];
+				System.arraycopy(data, headLength, content, 0, contentLength);
+				((BasicHttpEntityEnclosingRequest) request).setEntity(new ByteArrayEntity(content));
+			}
+
+			// Keep the bytes of the next pipelined request
+			int consumedLength = headLength + contentLength;
+			System.arraycopy(data, consumedLength, data, 0, length - consumedLength);
+			this.inputBuffer.position(length - consumedLength);
+
+			// Stop reading until the response is sent
+			this.isProcessing = true;
+			this.key.interestOps(0);
+			try {
+				workerPool.execute(new Runnable() {
+					@Override public void run() {
+						processRequest(request);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The server is saturated: fail fast
+				this.closeAfterWrite = true;
+				this.outputBuffer = serializeResponse(request, HttpServer.createServiceUnavailableResponse());
+				this.write();
+			}
+		}
+
+		/**
+		 * Execute the request and schedule the writing of its response.
+		 * Note: this function is called in a worker thread.
+		 *
+		 * @param request
+		 */
+		private void processRequest(HttpRequest request) {
+			try {
+				HttpResponse response = requestDispatcher.dispatch(request, new BasicHttpContext(null), true);
+				this.closeAfterWrite = !isKeepAlive(request, response);
+				if (hasBody(request, response) && !(response.getEntity() instanceof ByteArrayEntity)) {
+					streamResponse(response);
+				} else {
+					this.outputBuffer = serializeResponse(request, response);
+				}
+			} catch (IOException e) {
+				exceptionListener.onException(false, new I18nException(R.string.httpserver_error_io_error, e));
+				this.closeAfterWrite = true;
+			} catch (HttpException e) {
+				exceptionListener.onException(false, new I18nException(R.string.httpserver_error_http_error, e));
+				this.closeAfterWrite = true;
+			} catch (RuntimeException e) {
+				// Note: the connection must leave the processing state even if a handler is buggy
+				exceptionListener.onException(false, new I18nException(R.string.httpserver_error_internal_error, e));
+				this.closeAfterWrite = true;
+				try {
+					if (!this.isStreaming) {
+						this.outputBuffer = serializeResponse(request, HttpServer.createInternalServerErrorResponse());
+					}
+				} catch (IOException ignore) {
+					// Do nothing: the connection is closed without response
+				}
+			}
+			this.isStreaming = false;
+
+			connectionsWithPendingResponse.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Send the response head, then its entity chunk by chunk.
+		 * Note: this function is called in a worker thread.
+		 *
+		 * @param response
+		 *   Response with an entity of known length.
+		 * @throws IOException
+		 */
+		private void streamResponse(HttpResponse response) throws IOException {
+			HttpEntity entity = response.getEntity();
+			byte[] chunk = BufferPool.DEFAULT.acquire();
+			InputStream inputStream = null;
+			this.isStreaming = true;
+			try {
+				if (!send(ByteBuffer.wrap(serializeResponseHead(response)))) {
+					return;
+				}
+				inputStream = entity.getContent();
+				long remainingLength = entity.getContentLength();
+				while (remainingLength > 0) {
+					int len = inputStream.read(chunk, 0, (int) Math.min(chunk.length, remainingLength));
+					if (len == -1) {
+						throw new IOException("The response entity is shorter than its Content-Length.");
+					}
+					remainingLength -= len;
+					if (!send(ByteBuffer.wrap(chunk, 0, len))) {
+						return;
+					}
+				}
+				// Note: some entities (downloads) are complete only when the end of their stream is read
+				if (inputStream.read(chunk) != -1) {
+					throw new IOException("The response entity is longer than its Content-Length.");
+				}
+			} finally {
+				IOUtils.closeQuietly(inputStream);
+				releaseEntity(entity);
+				BufferPool.DEFAULT.release(chunk);
+			}
+		}
+
+		/**
+		 * Let the selector thread write the given data and wait until it is done.
+		 * The connection is closed if the client doesn't read the data before the idle timeout.
+		 *
+		 * @param buffer
+		 *   Data to write in read mode.
+		 * @return true if the data has been written, false if the connection has been closed
+		 * @throws InterruptedIOException
+		 */
+		private synchronized boolean send(ByteBuffer buffer) throws InterruptedIOException {
+			this.outputBuffer = buffer;
+			this.lastActivityTime = System.currentTimeMillis();
+			connectionsWithPendingResponse.add(this);
+			selector.wakeup();
+			try {
+				while (this.outputBuffer != null && this.channel.isOpen()) {
+					wait(SELECT_TIMEOUT);
+					if (System.currentTimeMillis() - this.lastActivityTime > idleTimeout) {
+						this.close();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while sending a response.");
+			}
+			return this.channel.isOpen();
+		}
+	}
+
+	/**
+	 * Find the end of the request line and headers.
+	 *
+	 * @param data
+	 * @param length
+	 * @return length of the request head (including the empty line) or -1 if it is not complete
+	 */
+	private static int findHeadLength(byte[] data, int length) {
+		for (int i = 3; i < length; i++) {
+			if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse the request line and the headers.
+	 *
+	 * @param data
+	 * @param headLength
+	 * @return request without entity
+	 * @throws IOException
+	 */
+	private static HttpRequest parseRequestHead(byte[] data, int headLength) throws IOException {
+		String head = new String(data, 0, headLength, "ISO-8859-1");
+		String[] lines = head.split("\r\n");
+
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3) {
+			throw new IOException("Invalid request line: " + lines[0]);
+		}
+		String method = requestLine[0];
+		String uri = requestLine[1];
+		ProtocolVersion version = "HTTP/1.0".equals(requestLine[2]) ? HttpVersion.HTTP_1_0 : HttpVersion.HTTP_1_1;
+
+		HttpRequest request;
+		if ("POST".equals(method) || "PUT".equals(method)) {
+			request = new BasicHttpEntityEnclosingRequest(method, uri, version);
+		} else {
+			request = new BasicHttpRequest(method, uri, version);
+		}
+
+		for (int i = 1; i < lines.length; i++) {
+			int separatorIndex = lines[i].indexOf(':');
+			if (separatorIndex > 0) {
+				request.addHeader(lines[i].substring(0, separatorIndex).trim(), lines[i].substring(separatorIndex + 1).trim());
+			}
+		}
+		return request;
+	}
+
+	/**
+	 * Check if the connection can be used for another request.
+	 *
+	 * @param request
+	 * @param response
+	 * @return true if the connection can stay open
+	 */
+	private static boolean isKeepAlive(HttpRequest request, HttpResponse response) {
+		Header responseConnection = response.getFirstHeader(HTTP.CONN_DIRECTIVE);
+		if (responseConnection != null && HTTP.CONN_CLOSE.equalsIgnoreCase(responseConnection.getValue())) {
+			return false;
+		}
+		Header requestConnection = request.getFirstHeader(HTTP.CONN_DIRECTIVE);
+		if (requestConnection != null && HTTP.CONN_CLOSE.equalsIgnoreCase(requestConnection.getValue())) {
+			return false;
+		}
+		if (request.getRequestLine().getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+			return requestConnection != null && HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(requestConnection.getValue());
+		}
+		return true;
+	}
+
+	/**
+	 * Convert the response into bytes ready to be sent.
+	 *
+	 * @param request
+	 * @param response
+	 * @return buffer in read mode
+	 * @throws IOException
+	 */
+	private static ByteBuffer serializeResponse(HttpRequest request, HttpResponse response) throws IOException {
+		byte[] headBytes = serializeResponseHead(response);
+		HttpEntity entity = response.getEntity();
+		if (!hasBody(request, response)) {
+			releaseEntity(entity);
+			return ByteBuffer.wrap(headBytes);
+		}
+
+		long contentLength = entity.getContentLength();
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+				headBytes.length + (contentLength > 0 ? (int) contentLength : READ_BUFFER_SIZE));
+		outputStream.write(headBytes);
+		entity.writeTo(outputStream);
+		return ByteBuffer.wrap(outputStream.toByteArray());
+	}
+
+	/**
+	 * Convert the status line and the headers of the response into bytes.
+	 *
+	 * @param response
+	 * @return response head, including the empty line
+	 */
+	private static byte[] serializeResponseHead(HttpResponse response) {
+		StringBuilder head = new StringBuilder(256)
+			.append(response.getStatusLine().getProtocolVersion()).append(' ')
+			.append(response.getStatusLine().getStatusCode()).append(' ');
+		if (response.getStatusLine().getReasonPhrase() != null) {
+			head.append(response.getStatusLine().getReasonPhrase());
+		}
+		head.append("\r\n");
+		for (Header header : response.getAllHeaders()) {
+			head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		head.append("\r\n");
+		return toAsciiBytes(head.toString());
+	}
+
+	/**
+	 * @param request
+	 * @param response
+	 * @return true if the entity of the response must be sent
+	 */
+	private static boolean hasBody(HttpRequest request, HttpResponse response) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		return response.getEntity() != null
+				&& !"HEAD".equals(request.getRequestLine().getMethod())
+				&& statusCode >= HttpStatus.SC_OK
+				&& statusCode != HttpStatus.SC_NO_CONTENT
+				&& statusCode != HttpStatus.SC_NOT_MODIFIED;
+	}
+
+	/**
+	 * Release the resources held by an entity that is not sent or has been sent.
+	 *
+	 * @param entity
+	 *   Entity or null.
+	 */
+	private static void releaseEntity(HttpEntity entity) {
+		if (entity == null) {
+			return;
+		}
+		try {
+			entity.consumeContent();
+		} catch (IOException ignore) {
+			// Do nothing
+		}
+	}
+
+	/**
+	 * @param value
+	 * @return ISO-8859-1 bytes of the given value
+	 */
+	private static byte[] toAsciiBytes(String value) {
+		try {
+			return value.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			return value.getBytes();
+		}
+	}
+}
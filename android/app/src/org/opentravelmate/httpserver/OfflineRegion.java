@@ -0,0 +1,142 @@
+package org.opentravelmate.httpserver;
+
+import org.opentravelmate.widget.map.ProjectionUtils;
+
+/**
+ * Area of a tile layer to download for an offline use.
+ *
+ * @author Marc Plouhinec
+ */
+public class OfflineRegion {
+
+	/**
+	 * Maximum latitude of the Mercator projection.
+	 */
+	private static final double MAX_LATITUDE = 85.05112878;
+
+	/**
+	 * URL to a given tile with the ${zoom}, ${x} and ${y} place-holders.
+	 */
+	public final String tileUrlPattern;
+
+	/**
+	 * Latitude of the north border.
+	 */
+	public final double north;
+
+	/**
+	 * Longitude of the west border.
+	 */
+	public final double west;
+
+	/**
+	 * Latitude of the south border.
+	 */
+	public final double south;
+
+	/**
+	 * Longitude of the east border (greater than the west one).
+	 */
+	public final double east;
+
+	/**
+	 * Lowest downloaded zoom level.
+	 */
+	public final int minZoom;
+
+	/**
+	 * Highest downloaded zoom level.
+	 */
+	public final int maxZoom;
+
+	/**
+	 * Create an OfflineRegion.
+	 *
+	 * @param tileUrlPattern
+	 * @param north
+	 * @param west
+	 * @param south
+	 * @param east
+	 * @param minZoom
+	 * @param maxZoom
+	 */
+	public OfflineRegion(String tileUrlPattern, double north, double west, double south, double east, int minZoom, int maxZoom) {
+		this.tileUrlPattern = tileUrlPattern;
+		this.north = Math.min(north, MAX_LATITUDE);
+		this.west = west;
+		this.south = Math.max(south, -MAX_LATITUDE);
+		this.east = east;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+	}
+
+	/**
+	 * @param zoom
+	 * @return X coordinate of the west tiles
+	 */
+	public int getMinTileX(int zoom) {
+		return toTileIndex(ProjectionUtils.lngToTileX(zoom, west), zoom);
+	}
+
+	/**
+	 * @param zoom
+	 * @return X coordinate of the east tiles
+	 */
+	public int getMaxTileX(int zoom) {
+		return toTileIndex(ProjectionUtils.lngToTileX(zoom, east), zoom);
+	}
+
+	/**
+	 * @param zoom
+	 * @return Y coordinate of the north tiles
+	 */
+	public int getMinTileY(int zoom) {
+		return toTileIndex(ProjectionUtils.latToTileY(zoom, north), zoom);
+	}
+
+	/**
+	 * @param zoom
+	 * @return Y coordinate of the south tiles
+	 */
+	public int getMaxTileY(int zoom) {
+		return toTileIndex(ProjectionUtils.latToTileY(zoom, south), zoom);
+	}
+
+	/**
+	 * @return number of tiles in the region
+	 */
+	public long getTileCount() {
+		long nbTiles = 0;
+		for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+			nbTiles += (long) (getMaxTileX(zoom) - getMinTileX(zoom) + 1) * (getMaxTileY(zoom) - getMinTileY(zoom) + 1);
+		}
+		return nbTiles;
+	}
+
+	/**
+	 * Build the URL of a tile.
+	 *
+	 * @param zoom
+	 * @param x
+	 * @param y
+	 * @return tile URL
+	 */
+	public String buildTileUrl(int zoom, int x, int y) {
+		return tileUrlPattern
+				.replace("${zoom}", String.valueOf(zoom))
+				.replace("${x}", String.valueOf(x))
+				.replace("${y}", String.valueOf(y));
+	}
+
+	/**
+	 * @param coordinate
+	 *   Tile coordinate.
+	 * @param zoom
+	 * @return index of the tile that contains the coordinate, between 0 and 2^zoom - 1
+	 */
+	private static int toTileIndex(double coordinate, int zoom) {
+		int maxIndex = (1 << zoom) - 1;
+		int index = (int) Math.floor(coordinate);
+		return index < 0 ? 0 : (index > maxIndex ? maxIndex : index);
+	}
+}
@@ -0,0 +1,72 @@
+package org.opentravelmate.httpserver;
+
+import android.content.SharedPreferences;
+
+/**
+ * Choose the port of the HTTP server so that the origin of the web views stays the same across launches.
+ * The WebView HTTP cache is keyed by origin: with a random port, nothing cached is reused after a restart.
+ *
+ * The ports are tried in this order:
+ * - the port used during the previous launch,
+ * - a fixed range of fallback ports,
+ * - any available port.
+ *
+ * @author Marc Plouhinec
+ */
+public class PortReservation {
+
+	private static final String PREFERRED_PORT_KEY = "httpserver.preferredPort";
+
+	private final SharedPreferences preferences;
+	private final int firstFallbackPort;
+	private final int nbFallbackPorts;
+
+	/**
+	 * Create a PortReservation.
+	 *
+	 * @param preferences
+	 *   Preferences where the chosen port is persisted.
+	 * @param firstFallbackPort
+	 *   First port of the fallback range.
+	 * @param nbFallbackPorts
+	 *   Number of ports in the fallback range.
+	 */
+	public PortReservation(SharedPreferences preferences, int firstFallbackPort, int nbFallbackPorts) {
+		this.preferences = preferences;
+		this.firstFallbackPort = firstFallbackPort;
+		this.nbFallbackPorts = nbFallbackPorts;
+	}
+
+	/**
+	 * @return ports to try in order, the last one is 0 (any available port)
+	 */
+	public int[] getCandidatePorts() {
+		int preferredPort = preferences.getInt(PREFERRED_PORT_KEY, 0);
+		boolean isPreferredPortInRange = preferredPort >= firstFallbackPort && preferredPort < firstFallbackPort + nbFallbackPorts;
+
+		int[] candidatePorts = new int[nbFallbackPorts + (preferredPort > 0 && !isPreferredPortInRange ? 2 : 1)];
+		int index = 0;
+		if (preferredPort > 0) {
+			candidatePorts[index++] = preferredPort;
+		}
+		for (int i = 0; i < nbFallbackPorts; i++) {
+			int port = firstFallbackPort + i;
+			if (port != preferredPort) {
+				candidatePorts[index++] = port;
+			}
+		}
+		candidatePorts[index] = 0;
+		return candidatePorts;
+	}
+
+	/**
+	 * Persist the port the server is bound to, so that it is tried first on the next launch.
+	 *
+	 * @param port
+	 */
+	public void onBound(int port) {
+		if (preferences.getInt(PREFERRED_PORT_KEY, 0) != port) {
+			preferences.edit().putInt(PREFERRED_PORT_KEY, port).commit();
+		}
+	}
+}
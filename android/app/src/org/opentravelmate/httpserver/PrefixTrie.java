@@ -0,0 +1,133 @@
+package org.opentravelmate.httpserver;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Immutable prefix tree that finds the longest registered prefix of a string.
+ * The lookup cost depends on the length of the string, not on the number of registered prefixes.
+ *
+ * @author Marc Plouhinec
+ */
+class PrefixTrie<V> {
+
+	private final Node<V> root;
+
+	/**
+	 * Compile the given prefixes.
+	 *
+	 * @param valueByPrefix
+	 */
+	public PrefixTrie(Map<String, V> valueByPrefix) {
+		this.root = new Node<V>();
+		for (Map.Entry<String, V> entry : valueByPrefix.entrySet()) {
+			Node<V> node = root;
+			String prefix = entry.getKey();
+			for (int i = 0; i < prefix.length(); i++) {
+				node = node.getOrAddChild(prefix.charAt(i));
+			}
+			node.value = entry.getValue();
+			node.prefix = prefix;
+		}
+	}
+
+	/**
+	 * Find the longest registered prefix of the given key.
+	 *
+	 * @param key
+	 * @return matching entry or null if no prefix matches
+	 */
+	public Match<V> findLongestPrefix(String key) {
+		Node<V> node = root;
+		Node<V> lastMatchingNode = root.prefix != null ? root : null;
+		for (int i = 0; i < key.length() && node != null; i++) {
+			node = node.getChild(key.charAt(i));
+			if (node != null && node.prefix != null) {
+				lastMatchingNode = node;
+			}
+		}
+		return lastMatchingNode == null ? null : new Match<V>(lastMatchingNode.prefix, lastMatchingNode.value);
+	}
+
+	/**
+	 * Result of {@link PrefixTrie#findLongestPrefix(String)}.
+	 */
+	public static class Match<V> {
+
+		/**
+		 * Registered prefix.
+		 */
+		public final String prefix;
+
+		/**
+		 * Value associated with the prefix.
+		 */
+		public final V value;
+
+		/**
+		 * Create a Match.
+		 *
+		 * @param prefix
+		 * @param value
+		 */
+		public Match(String prefix, V value) {
+			this.prefix = prefix;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Node of the tree, its children are sorted by character.
+	 */
+	private static class Node<V> {
+
+		private char[] childKeys = new char[0];
+		private Node<V>[] children = newNodeArray(0);
+		private String prefix;
+		private V value;
+
+		/**
+		 * @param c
+		 * @return child node or null if not found
+		 */
+		Node<V> getChild(char c) {
+			int index = Arrays.binarySearch(childKeys, c);
+			return index < 0 ? null : children[index];
+		}
+
+		/**
+		 * @param c
+		 * @return existing or new child node
+		 */
+		Node<V> getOrAddChild(char c) {
+			int index = Arrays.binarySearch(childKeys, c);
+			if (index >= 0) {
+				return children[index];
+			}
+
+			int insertionIndex = -index - 1;
+			char[] newChildKeys = new char[childKeys.length + 1];
+			Node<V>[] newChildren = newNodeArray(children.length + 1);
+			System.arraycopy(childKeys, 0, newChildKeys, 0, insertionIndex);
+			System.arraycopy(children, 0, newChildren, 0, insertionIndex);
+			System.arraycopy(childKeys, insertionIndex, newChildKeys, insertionIndex + 1, childKeys.length - insertionIndex);
+			System.arraycopy(children, insertionIndex, newChildren, insertionIndex + 1, children.length - insertionIndex);
+
+			Node<V> child = new Node<V>();
+			newChildKeys[insertionIndex] = c;
+			newChildren[insertionIndex] = child;
+			childKeys = newChildKeys;
+			children = newChildren;
+			return child;
+		}
+
+		/**
+		 * @param length
+		 * @return new array of nodes (generic arrays cannot be created directly)
+		 */
+		@SuppressWarnings("unchecked")
+		private static <V> Node<V>[] newNodeArray(int length) {
+			return (Node<V>[]) new Node<?>[length];
+		}
+	}
+}
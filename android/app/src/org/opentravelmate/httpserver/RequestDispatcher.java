@@ -0,0 +1,147 @@
+package org.opentravelmate.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseFactory;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.ProtocolException;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.UnsupportedHttpVersionException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerResolver;
+
+/**
+ * Execute a parsed request against the registered {@link HttpRequestHandler}s.
+ * This class does the same job as {@link org.apache.http.protocol.HttpService} but without
+ * reading or writing anything on a connection.
+ *
+ * @author Marc Plouhinec
+ */
+class RequestDispatcher {
+
+	private final HttpProcessor httpProcessor;
+	private final HttpRequestHandlerResolver handlerResolver;
+	private final HttpParams httpParams;
+	private final HttpResponseFactory responseFactory = new DefaultHttpResponseFactory();
+
+	/**
+	 * Create a request dispatcher.
+	 *
+	 * @param httpProcessor
+	 *   Request and response interceptors.
+	 * @param handlerResolver
+	 *   Registry of the request handlers.
+	 * @param httpParams
+	 */
+	public RequestDispatcher(HttpProcessor httpProcessor, HttpRequestHandlerResolver handlerResolver, HttpParams httpParams) {
+		this.httpProcessor = httpProcessor;
+		this.handlerResolver = handlerResolver;
+		this.httpParams = httpParams;
+	}
+
+	/**
+	 * Process the given request and build its response.
+	 *
+	 * @param request
+	 * @param context
+	 * @param bufferEntity
+	 *   If true, a response entity of unknown length is fully read in memory before the response interceptors
+	 *   are called, so that its Content-Length is always known.
+	 * @return response
+	 * @throws IOException
+	 * @throws HttpException
+	 */
+	public HttpResponse dispatch(HttpRequest request, HttpContext context, boolean bufferEntity) throws IOException, HttpException {
+		request.setParams(new DefaultedHttpParams(request.getParams(), this.httpParams));
+
+		ProtocolVersion version = request.getRequestLine().getProtocolVersion();
+		if (!version.lessEquals(HttpVersion.HTTP_1_1)) {
+			version = HttpVersion.HTTP_1_1;
+		}
+
+		HttpResponse response = this.responseFactory.newHttpResponse(version, HttpStatus.SC_OK, context);
+		response.setParams(new DefaultedHttpParams(response.getParams(), this.httpParams));
+		context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+		context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+
+		try {
+			this.httpProcessor.process(request, context);
+
+			HttpRequestHandler handler = this.handlerResolver.lookup(request.getRequestLine().getUri());
+			if (handler != null) {
+				handler.handle(request, response, context);
+			} else {
+				response.setStatusCode(HttpStatus.SC_NOT_IMPLEMENTED);
+			}
+		} catch (HttpException e) {
+			ResponseCacheControl.releaseEntity(response);
+			response = this.responseFactory.newHttpResponse(HttpVersion.HTTP_1_0, HttpStatus.SC_INTERNAL_SERVER_ERROR, context);
+			response.setParams(new DefaultedHttpParams(response.getParams(), this.httpParams));
+			response.setStatusCode(findStatusCode(e));
+			context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+		}
+
+		if (bufferEntity) {
+			bufferEntity(response);
+		}
+
+		this.httpProcessor.process(response, context);
+		return response;
+	}
+
+	/**
+	 * Replace the response entity by an in-memory copy if its length is unknown.
+	 *
+	 * @param response
+	 * @throws IOException
+	 */
+	private void bufferEntity(HttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null || entity instanceof ByteArrayEntity || entity.getContentLength() >= 0) {
+			return;
+		}
+
+		long contentLength = entity.getContentLength();
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+				contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : 8 * 1024);
+		entity.writeTo(outputStream);
+
+		ByteArrayEntity bufferedEntity = new ByteArrayEntity(outputStream.toByteArray());
+		bufferedEntity.setContentType(entity.getContentType());
+		bufferedEntity.setContentEncoding(entity.getContentEncoding());
+		response.setEntity(bufferedEntity);
+	}
+
+	/**
+	 * Find the HTTP status code that corresponds to the given exception.
+	 *
+	 * @param e
+	 * @return HTTP status code
+	 */
+	private static int findStatusCode(HttpException e) {
+		if (e instanceof MethodNotSupportedException) {
+			return HttpStatus.SC_NOT_IMPLEMENTED;
+		}
+		if (e instanceof UnsupportedHttpVersionException) {
+			return HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED;
+		}
+		if (e instanceof ProtocolException) {
+			return HttpStatus.SC_BAD_REQUEST;
+		}
+		return HttpStatus.SC_INTERNAL_SERVER_ERROR;
+	}
+}
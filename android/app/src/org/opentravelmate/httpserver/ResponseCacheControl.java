@@ -0,0 +1,249 @@
+package org.opentravelmate.httpserver;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Add the Content-Type, ETag, Last-Modified and Cache-Control headers to the successful responses,
+ * and replace them by "304 Not Modified" when the client already has the same content.
+ * Note: this interceptor must be called before {@link org.apache.http.protocol.ResponseContent}.
+ *
+ * @author Marc Plouhinec
+ */
+public class ResponseCacheControl implements HttpResponseInterceptor {
+
+	private static final Map<String, String> MIME_TYPE_BY_EXTENSION = new HashMap<String, String>();
+	static {
+		MIME_TYPE_BY_EXTENSION.put("js", "application/javascript; charset=UTF-8");
+		MIME_TYPE_BY_EXTENSION.put("css", "text/css; charset=UTF-8");
+		MIME_TYPE_BY_EXTENSION.put("html", "text/html; charset=UTF-8");
+		MIME_TYPE_BY_EXTENSION.put("htm", "text/html; charset=UTF-8");
+		MIME_TYPE_BY_EXTENSION.put("json", "application/json; charset=UTF-8");
+		MIME_TYPE_BY_EXTENSION.put("txt", "text/plain; charset=UTF-8");
+		MIME_TYPE_BY_EXTENSION.put("xml", "application/xml; charset=UTF-8");
+		MIME_TYPE_BY_EXTENSION.put("svg", "image/svg+xml");
+		MIME_TYPE_BY_EXTENSION.put("png", "image/png");
+		MIME_TYPE_BY_EXTENSION.put("jpg", "image/jpeg");
+		MIME_TYPE_BY_EXTENSION.put("jpeg", "image/jpeg");
+		MIME_TYPE_BY_EXTENSION.put("gif", "image/gif");
+		MIME_TYPE_BY_EXTENSION.put("ttf", "application/x-font-ttf");
+		MIME_TYPE_BY_EXTENSION.put("woff", "application/font-woff");
+	}
+
+	/**
+	 * Prefix of the downloaded images: they don't come from the APK, so their modification date is unknown.
+	 */
+	private static final String IMAGE_URI_PREFIX = "/image/";
+
+	private final ContentHashManifest contentHashManifest;
+	private final String lastModified;
+	private final Map<String, Long> maxAgeByUriPrefix;
+	private final Map<String, AtomicLong> nbNotModifiedByRoute = new ConcurrentHashMap<String, AtomicLong>();
+	private final Map<String, AtomicLong> nbFullResponsesByRoute = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Create the interceptor.
+	 *
+	 * @param contentHashManifest
+	 *   Content hash of each URI.
+	 * @param lastModified
+	 *   Modification date of the resources of the APK (for example the APK installation date),
+	 *   it is not sent with the images.
+	 * @param maxAgeByUriPrefix
+	 *   Map<URI prefix, time in seconds during which the client can use the resource without revalidating it>.
+	 *   Resources that don't match any prefix must be revalidated each time.
+	 */
+	public ResponseCacheControl(ContentHashManifest contentHashManifest, Date lastModified, Map<String, Long> maxAgeByUriPrefix) {
+		this.contentHashManifest = contentHashManifest;
+		this.lastModified = DateUtils.formatDate(lastModified);
+		this.maxAgeByUriPrefix = new LinkedHashMap<String, Long>(maxAgeByUriPrefix);
+	}
+
+	@Override
+	public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+		HttpRequest request = (HttpRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+		if (request == null || response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			return;
+		}
+		String uri = request.getRequestLine().getUri();
+		String path = uri.indexOf('?') == -1 ? uri : uri.substring(0, uri.indexOf('?'));
+
+		// Content-Type
+		if (!response.containsHeader(HTTP.CONTENT_TYPE)
+				&& (response.getEntity() == null || response.getEntity().getContentType() == null)) {
+			String mimeType = findMimeType(path);
+			if (mimeType != null) {
+				response.setHeader(HTTP.CONTENT_TYPE, mimeType);
+			}
+		}
+
+		// Cache-Control
+		Long maxAge = findMaxAge(path);
+		response.setHeader("Cache-Control", maxAge == null ? "no-cache" : "max-age=" + maxAge);
+
+		// ETag and Last-Modified
+		String hash = contentHashManifest.get(uri);
+		if (hash == null) {
+			return;
+		}
+		String etag = "\"" + hash + "\"";
+		response.setHeader("ETag", etag);
+		if (!path.startsWith(IMAGE_URI_PREFIX)) {
+			response.setHeader("Last-Modified", lastModified);
+		}
+
+		// Tell the client to use its copy if it is the same
+		String route = findRoute(path);
+		if (matchesIfNoneMatch(request, etag)) {
+			response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+			releaseEntity(response);
+			response.setEntity(null);
+			response.removeHeaders(HTTP.CONTENT_TYPE);
+			response.removeHeaders(HTTP.CONTENT_ENCODING);
+			incrementCounter(nbNotModifiedByRoute, route);
+		} else {
+			incrementCounter(nbFullResponsesByRoute, route);
+		}
+	}
+
+	/**
+	 * Get the number of requests answered with "304 Not Modified".
+	 *
+	 * @param route
+	 *   First segment of the request path (for example "/extensions").
+	 * @return number of responses without content
+	 */
+	public long getNotModifiedCount(String route) {
+		AtomicLong counter = nbNotModifiedByRoute.get(route);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * Get the number of requests answered with the full content while an ETag was available.
+	 *
+	 * @param route
+	 *   First segment of the request path (for example "/extensions").
+	 * @return number of responses with content
+	 */
+	public long getFullResponseCount(String route) {
+		AtomicLong counter = nbFullResponsesByRoute.get(route);
+		return counter == null ? 0 : counter.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ResponseCacheControl [notModifiedByRoute=" + nbNotModifiedByRoute +
+				", fullResponsesByRoute=" + nbFullResponsesByRoute + "]";
+	}
+
+	/**
+	 * Check if the client already has the content with the given ETag.
+	 *
+	 * @param request
+	 * @param etag
+	 * @return true if the "If-None-Match" header contains the ETag
+	 */
+	private static boolean matchesIfNoneMatch(HttpRequest request, String etag) {
+		for (Header header : request.getHeaders("If-None-Match")) {
+			for (String value : header.getValue().split(",")) {
+				String trimmedValue = value.trim();
+				if (trimmedValue.startsWith("W/")) {
+					trimmedValue = trimmedValue.substring(2);
+				}
+				if ("*".equals(trimmedValue) || etag.equals(trimmedValue)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Release the resources held by the response entity before it is dropped
+	 * (for example a streamed download must notify the end of the download).
+	 *
+	 * @param response
+	 * @throws IOException
+	 */
+	static void releaseEntity(HttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			entity.consumeContent();
+		}
+	}
+
+	/**
+	 * Find the max-age of the given resource.
+	 *
+	 * @param path
+	 * @return max-age in seconds or null if the resource must be revalidated
+	 */
+	private Long findMaxAge(String path) {
+		for (Map.Entry<String, Long> entry : maxAgeByUriPrefix.entrySet()) {
+			if (path.startsWith(entry.getKey())) {
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the MIME type of the given resource from its file extension.
+	 *
+	 * @param path
+	 * @return MIME type or null if unknown
+	 */
+	private static String findMimeType(String path) {
+		int extensionIndex = path.lastIndexOf('.');
+		if (extensionIndex == -1 || extensionIndex < path.lastIndexOf('/')) {
+			return null;
+		}
+		return MIME_TYPE_BY_EXTENSION.get(path.substring(extensionIndex + 1).toLowerCase());
+	}
+
+	/**
+	 * @param path
+	 * @return first segment of the given path
+	 */
+	private static String findRoute(String path) {
+		int separatorIndex = path.indexOf('/', 1);
+		return separatorIndex == -1 ? path : path.substring(0, separatorIndex);
+	}
+
+	/**
+	 * Increment the counter of the given route.
+	 *
+	 * @param counterByRoute
+	 * @param route
+	 */
+	private static void incrementCounter(Map<String, AtomicLong> counterByRoute, String route) {
+		AtomicLong counter = counterByRoute.get(route);
+		if (counter == null) {
+			synchronized (counterByRoute) {
+				counter = counterByRoute.get(route);
+				if (counter == null) {
+					counter = new AtomicLong();
+					counterByRoute.put(route, counter);
+				}
+			}
+		}
+		counter.incrementAndGet();
+	}
+}
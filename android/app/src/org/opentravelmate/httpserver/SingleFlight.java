@@ -0,0 +1,152 @@
+package org.opentravelmate.httpserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesce the concurrent loadings of the same resource: the first caller loads it,
+ * the other callers with the same key wait for the result instead of loading it again.
+ *
+ * @author Marc Plouhinec
+ */
+class SingleFlight<V> {
+
+	private final ConcurrentMap<String, FutureTask<V>> taskByKey = new ConcurrentHashMap<String, FutureTask<V>>();
+	private final AtomicLong nbExecutions = new AtomicLong();
+	private final AtomicLong nbCoalescedCalls = new AtomicLong();
+
+	/**
+	 * Load the resource with the given key, or wait for the result if it is already being loaded.
+	 *
+	 * @param key
+	 * @param loader
+	 *   Function called if no other thread is loading the resource.
+	 * @return loaded resource
+	 * @throws IOException
+	 */
+	public V execute(String key, Callable<V> loader) throws IOException {
+		FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> runningTask = taskByKey.putIfAbsent(key, task);
+		if (runningTask == null) {
+			nbExecutions.incrementAndGet();
+			try {
+				task.run();
+			} finally {
+				taskByKey.remove(key, task);
+			}
+			runningTask = task;
+		} else {
+			nbCoalescedCalls.incrementAndGet();
+		}
+
+		try {
+			return runningTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading " + key);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException("Unable to load " + key + ": " + cause);
+		}
+	}
+
+	/**
+	 * Start a loading that is completed later by the caller, for example when a streamed resource is fully read.
+	 * The other callers with the same key wait for its result in {@link #execute(String, Callable)}.
+	 *
+	 * @param key
+	 * @return loading to complete, or null if the resource is already being loaded
+	 */
+	public Completion<V> begin(final String key) {
+		final ManualTask<V> task = new ManualTask<V>();
+		if (taskByKey.putIfAbsent(key, task) != null) {
+			return null;
+		}
+		nbExecutions.incrementAndGet();
+		return new Completion<V>() {
+			@Override public void complete(V value) {
+				taskByKey.remove(key, task);
+				task.set(value);
+			}
+			@Override public void fail(Throwable throwable) {
+				taskByKey.remove(key, task);
+				task.setException(throwable);
+			}
+		};
+	}
+
+	/**
+	 * @return number of loadings that have been executed.
+	 */
+	public long getExecutionCount() {
+		return nbExecutions.get();
+	}
+
+	/**
+	 * @return number of calls that waited for the result of another call instead of loading the resource.
+	 */
+	public long getCoalescedCount() {
+		return nbCoalescedCalls.get();
+	}
+
+	/**
+	 * Loading started with {@link SingleFlight#begin(String)}.
+	 */
+	public static interface Completion<V> {
+		/**
+		 * Give the loaded resource to the waiting callers.
+		 *
+		 * @param value
+		 */
+		void complete(V value);
+
+		/**
+		 * Give the loading error to the waiting callers.
+		 *
+		 * @param throwable
+		 */
+		void fail(Throwable throwable);
+	}
+
+	/**
+	 * Task completed by a {@link Completion} instead of being run.
+	 */
+	private static class ManualTask<V> extends FutureTask<V> {
+
+		/**
+		 * Create a ManualTask.
+		 */
+		public ManualTask() {
+			super(new Callable<V>() {
+				@Override public V call() throws Exception {
+					throw new IllegalStateException("This task must not be run.");
+				}
+			});
+		}
+
+		@Override
+		public void set(V value) {
+			super.set(value);
+		}
+
+		@Override
+		public void setException(Throwable throwable) {
+			super.setException(throwable);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package org.opentravelmate.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.opentravelmate.commons.IOUtils;
+
+import android.util.Log;
+
+/**
+ * Stream a download to the client and copy it at the same time into a {@link TileStore} entry.
+ * The cache entry is committed only when the download is complete, it is aborted if the download fails.
+ * A failure of the store doesn't interrupt the download.
+ *
+ * @author Marc Plouhinec
+ */
+class TeeEntity extends AbstractHttpEntity {
+
+	private static final String LOG_TAG = "TeeEntity";
+
+	private final TeeInputStream inputStream;
+	private final long contentLength;
+
+	/**
+	 * Create a TeeEntity.
+	 *
+	 * @param upstream
+	 *   Downloaded content.
+	 * @param contentLength
+	 *   Length of the downloaded content or -1 if unknown.
+	 * @param editor
+	 *   Cache entry where the content is written, or null if it cannot be cached.
+	 * @param listener
+	 *   Notified once when the download is complete or has failed.
+	 */
+	public TeeEntity(InputStream upstream, long contentLength, TileStore.Editor editor, Listener listener) {
+		this.inputStream = new TeeInputStream(upstream, contentLength, editor, listener);
+		this.contentLength = contentLength;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public long getContentLength() {
+		return this.contentLength;
+	}
+
+	@Override
+	public InputStream getContent() {
+		return this.inputStream;
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		byte[] buffer = BufferPool.DEFAULT.acquire();
+		try {
+			int len;
+			while ((len = this.inputStream.read(buffer)) != -1) {
+				outstream.write(buffer, 0, len);
+			}
+			outstream.flush();
+		} finally {
+			BufferPool.DEFAULT.release(buffer);
+			this.inputStream.close();
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return true;
+	}
+
+	@Override
+	public void consumeContent() {
+		this.inputStream.close();
+	}
+
+	/**
+	 * Notified when the download is over.
+	 */
+	public static interface Listener {
+
+		/**
+		 * The download is complete and the cache entry has been committed.
+		 *
+		 * @param data
+		 *   Downloaded content.
+		 */
+		void onComplete(byte[] data);
+
+		/**
+		 * The download has failed or has been interrupted, the cache entry has been aborted.
+		 *
+		 * @param e
+		 */
+		void onError(IOException e);
+	}
+
+	/**
+	 * Copy the read bytes into the cache entry and into memory.
+	 */
+	private static class TeeInputStream extends InputStream {
+
+		private final InputStream upstream;
+		private final ByteArrayOutputStream content;
+		private final Listener listener;
+		private TileStore.Editor editor;
+		private OutputStream cacheOutputStream;
+		private boolean isOver = false;
+
+		/**
+		 * Create a TeeInputStream.
+		 *
+		 * @param upstream
+		 * @param contentLength
+		 * @param editor
+		 * @param listener
+		 */
+		public TeeInputStream(InputStream upstream, long contentLength, TileStore.Editor editor, Listener listener) {
+			this.upstream = upstream;
+			this.content = new ByteArrayOutputStream(contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : 8 * 1024);
+			this.listener = listener;
+			this.editor = editor;
+			if (editor != null) {
+				try {
+					this.cacheOutputStream = editor.newOutputStream();
+				} catch (IOException e) {
+					abortCacheEntry(e);
+				}
+			}
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			byte[] singleByte = new byte[1];
+			int len = read(singleByte, 0, 1);
+			return len == -1 ? -1 : singleByte[0] & 0xFF;
+		}
+
+		@Override
+		public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+			if (isOver) {
+				return -1;
+			}
+
+			int len;
+			try {
+				len = upstream.read(buffer, offset, length);
+			} catch (IOException e) {
+				fail(e);
+				throw e;
+			}
+
+			if (len == -1) {
+				complete();
+				return -1;
+			}
+			content.write(buffer, offset, len);
+			if (cacheOutputStream != null) {
+				try {
+					cacheOutputStream.write(buffer, offset, len);
+				} catch (IOException e) {
+					abortCacheEntry(e);
+				}
+			}
+			return len;
+		}
+
+		/**
+		 * Stop the download if it is not complete.
+		 */
+		@Override
+		public synchronized void close() {
+			if (!isOver) {
+				fail(new IOException("The download has been interrupted."));
+			}
+		}
+
+		/**
+		 * Commit the cache entry and notify the listener.
+		 */
+		private void complete() {
+			isOver = true;
+			IOUtils.closeQuietly(upstream);
+			if (editor != null) {
+				try {
+					cacheOutputStream.close();
+					editor.commit();
+				} catch (IOException e) {
+					abortCacheEntry(e);
+				}
+			}
+			listener.onComplete(content.toByteArray());
+		}
+
+		/**
+		 * Abort the cache entry and notify the listener.
+		 *
+		 * @param e
+		 */
+		private void fail(IOException e) {
+			isOver = true;
+			IOUtils.closeQuietly(upstream);
+			if (editor != null) {
+				abortCacheEntry(e);
+			}
+			listener.onError(e);
+		}
+
+		/**
+		 * Abort the cache entry without interrupting the download.
+		 *
+		 * @param cause
+		 */
+		private void abortCacheEntry(IOException cause) {
+			Log.w(LOG_TAG, "The cache entry has been aborted.", cause);
+			IOUtils.closeQuietly(cacheOutputStream);
+			try {
+				editor.abort();
+			} catch (IOException e) {
+				Log.w(LOG_TAG, "Unable to abort the cache entry.", e);
+			}
+			cacheOutputStream = null;
+			editor = null;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package org.opentravelmate.httpserver;
+
+import java.io.File;
+
+import android.os.StatFs;
+import android.util.Log;
+
+/**
+ * Choose the tiles that are kept when a {@link TileStore} must free some space.
+ *
+ * The tiles at low zoom levels cover large areas and are needed each time the user zooms out, so they are
+ * pinned: they are kept first, within a fraction of the budget. The other entries are ranked by a priority
+ * expressed in access ticks (the store counts one tick per read or write): the tick of the last access,
+ * plus a bonus for each previous access and a bonus for each zoom level below {@link #REFERENCE_ZOOM}.
+ * With no pinned zoom level and no bonus, the policy is a pure LRU.
+ *
+ * @author Marc Plouhinec
+ */
+public class TileCachePolicy {
+
+	/**
+	 * Least recently used entries evicted first, whatever their zoom level.
+	 */
+	public static final TileCachePolicy LRU = new TileCachePolicy(-1, 0, 0, 0);
+
+	/**
+	 * Policy used by the application.
+	 */
+	public static final TileCachePolicy DEFAULT = new TileCachePolicy(8, 0.25, 64, 128);
+
+	/**
+	 * Zoom level used as reference for the zoom bonus (the deepest zoom of the usual tile servers).
+	 */
+	public static final int REFERENCE_ZOOM = 20;
+
+	private static final String LOG_TAG = "TileCachePolicy";
+	private static final int MAX_COUNTED_ACCESSES = 8;
+
+	/**
+	 * The tiles at this zoom level or below are pinned (-1 for none).
+	 */
+	public final int pinnedMaxZoom;
+
+	/**
+	 * Maximum fraction of the budget used by the pinned tiles; the others are ranked with the unpinned entries.
+	 */
+	public final double pinnedMaxRatio;
+
+	/**
+	 * Priority bonus (in access ticks) for each previous access, up to 8 accesses.
+	 */
+	public final long accessBonus;
+
+	/**
+	 * Priority bonus (in access ticks) for each zoom level below {@link #REFERENCE_ZOOM}.
+	 */
+	public final long zoomBonus;
+
+	/**
+	 * Create a TileCachePolicy.
+	 *
+	 * @param pinnedMaxZoom
+	 * @param pinnedMaxRatio
+	 * @param accessBonus
+	 * @param zoomBonus
+	 */
+	public TileCachePolicy(int pinnedMaxZoom, double pinnedMaxRatio, long accessBonus, long zoomBonus) {
+		this.pinnedMaxZoom = pinnedMaxZoom;
+		this.pinnedMaxRatio = pinnedMaxRatio;
+		this.accessBonus = accessBonus;
+		this.zoomBonus = zoomBonus;
+	}
+
+	/**
+	 * @param zoom
+	 *   Zoom level of a tile or -1 if unknown.
+	 * @return true if the tile must be kept before the other entries
+	 */
+	public boolean isPinned(int zoom) {
+		return zoom >= 0 && zoom <= pinnedMaxZoom;
+	}
+
+	/**
+	 * Compute the priority of an entry, the entries with the lowest priority are evicted first.
+	 *
+	 * @param zoom
+	 *   Zoom level of a tile or -1 if unknown.
+	 * @param nbAccesses
+	 *   Number of reads and writes of the entry since the store has been opened.
+	 * @param lastAccessTime
+	 *   Access tick of the last read or write.
+	 * @return priority
+	 */
+	public long getPriority(int zoom, int nbAccesses, long lastAccessTime) {
+		long priority = lastAccessTime + accessBonus * Math.max(0, Math.min(nbAccesses, MAX_COUNTED_ACCESSES) - 1);
+		if (zoom >= 0 && zoom < REFERENCE_ZOOM) {
+			priority += zoomBonus * (REFERENCE_ZOOM - zoom);
+		}
+		return priority;
+	}
+
+	@Override
+	public String toString() {
+		return "TileCachePolicy [pinnedMaxZoom=" + pinnedMaxZoom + ", pinnedMaxRatio=" + pinnedMaxRatio +
+				", accessBonus=" + accessBonus + ", zoomBonus=" + zoomBonus + "]";
+	}
+
+	/**
+	 * Compute the size of a cache from the free space of its file system: the cache can use a fraction
+	 * of the free space, in addition to the space it already uses.
+	 *
+	 * @param directory
+	 *   Cache directory.
+	 * @param freeSpaceRatio
+	 *   Fraction of the free space that can be used.
+	 * @param minSize
+	 * @param maxSize
+	 * @return cache size in bytes, between minSize and maxSize
+	 */
+	public static long computeBudget(File directory, double freeSpaceRatio, long minSize, long maxSize) {
+		long usedSpace = 0;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				usedSpace += file.length();
+			}
+		}
+
+		long freeSpace;
+		try {
+			File existingDirectory = directory.exists() ? directory : directory.getParentFile();
+			StatFs statFs = new StatFs(existingDirectory.getPath());
+			freeSpace = (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+		} catch (IllegalArgumentException e) {
+			Log.w(LOG_TAG, "Unable to read the free space of " + directory, e);
+			return minSize;
+		}
+
+		long budget = usedSpace + (long) (freeSpace * freeSpaceRatio);
+		return Math.max(minSize, Math.min(maxSize, budget));
+	}
+}
@@ -0,0 +1,363 @@
+package org.opentravelmate.httpserver;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only archive of downloaded tiles, written by {@link TilePackDownloader}.
+ *
+ * The archive is a single file made of:
+ * - a sequence of records [64-bit hash of the tile URL][32-bit data length][tile data],
+ * - an index [hash][data offset][data length] for each record, sorted by hash,
+ * - a footer [index offset][number of index entries][magic number].
+ * The index and the footer are written when the download is complete; without them, the records are scanned
+ * when the archive is opened, so that an interrupted download can be read or resumed.
+ * A record without data is a tile that doesn't exist on the tile server.
+ *
+ * @author Marc Plouhinec
+ */
+public class TilePack {
+
+	static final int RECORD_HEADER_SIZE = 12;
+	static final int INDEX_ENTRY_SIZE = 20;
+	static final int FOOTER_SIZE = 16;
+	static final int FOOTER_MAGIC = 0x4F544D50;
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final Index index;
+
+	/**
+	 * Create a TilePack.
+	 *
+	 * @param file
+	 * @param randomAccessFile
+	 * @param index
+	 *   Sorted index.
+	 */
+	private TilePack(File file, RandomAccessFile randomAccessFile, Index index) {
+		this.file = file;
+		this.randomAccessFile = randomAccessFile;
+		this.index = index;
+	}
+
+	/**
+	 * Open an archive.
+	 *
+	 * @param file
+	 * @return archive
+	 * @throws IOException
+	 */
+	public static TilePack open(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			Index index = Index.read(randomAccessFile.getChannel());
+			index.sort();
+			return new TilePack(file, randomAccessFile, index);
+		} catch (IOException e) {
+			randomAccessFile.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read a tile.
+	 *
+	 * @param tileUrl
+	 *   URL where the tile has been downloaded.
+	 * @return tile data, empty if the tile doesn't exist on the tile server, or null if the archive doesn't
+	 *   contain this tile
+	 * @throws IOException
+	 */
+	public byte[] get(String tileUrl) throws IOException {
+		int position = index.find(hash(tileUrl));
+		if (position < 0) {
+			return null;
+		}
+		byte[] data = new byte[index.lengths[position]];
+		readFully(randomAccessFile.getChannel(), ByteBuffer.wrap(data), index.offsets[position]);
+		return data;
+	}
+
+	/**
+	 * @param tileUrl
+	 *   URL where the tile has been downloaded.
+	 * @return true if the archive contains this tile
+	 */
+	public boolean contains(String tileUrl) {
+		return index.find(hash(tileUrl)) >= 0;
+	}
+
+	/**
+	 * @return number of tiles in the archive
+	 */
+	public int getTileCount() {
+		return index.size;
+	}
+
+	/**
+	 * @return archive file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Close the archive.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		randomAccessFile.close();
+	}
+
+	@Override
+	public String toString() {
+		return "TilePack [file=" + file.getName() + ", tiles=" + index.size + "]";
+	}
+
+	/**
+	 * Compute the key of a tile (64-bit FNV-1a hash of its URL).
+	 *
+	 * @param tileUrl
+	 * @return hash
+	 */
+	public static long hash(String tileUrl) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < tileUrl.length(); i++) {
+			hash ^= tileUrl.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Read bytes at the given position of a file.
+	 * Note: the positional read is thread-safe, it doesn't change the channel position.
+	 *
+	 * @param channel
+	 * @param buffer
+	 * @param position
+	 * @throws IOException
+	 */
+	static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int len = channel.read(buffer, position);
+			if (len == -1) {
+				throw new EOFException("Unexpected end of the tile pack.");
+			}
+			position += len;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Location of the tiles in the archive.
+	 */
+	static class Index {
+
+		long[] hashes = new long[1024];
+		long[] offsets = new long[1024];
+		int[] lengths = new int[1024];
+		int size = 0;
+
+		/**
+		 * Offset of the end of the last complete record.
+		 */
+		long endOfRecords = 0;
+
+		/**
+		 * Read the index from the footer of an archive, or by scanning its records if it has no footer.
+		 *
+		 * @param channel
+		 * @return index (not sorted)
+		 * @throws IOException
+		 */
+		public static Index read(FileChannel channel) throws IOException {
+			Index index = new Index();
+			long fileSize = channel.size();
+
+			// Read the index written after the records
+			if (fileSize >= FOOTER_SIZE) {
+				ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+				readFully(channel, footer, fileSize - FOOTER_SIZE);
+				long indexOffset = footer.getLong();
+				int nbEntries = footer.getInt();
+				if (footer.getInt() == FOOTER_MAGIC && indexOffset >= 0 && nbEntries >= 0
+						&& indexOffset + (long) nbEntries * INDEX_ENTRY_SIZE + FOOTER_SIZE == fileSize) {
+					ByteBuffer entries = ByteBuffer.allocate(nbEntries * INDEX_ENTRY_SIZE);
+					readFully(channel, entries, indexOffset);
+					for (int i = 0; i < nbEntries; i++) {
+						index.add(entries.getLong(), entries.getLong(), entries.getInt());
+					}
+					index.endOfRecords = indexOffset;
+					return index;
+				}
+			}
+
+			// Scan the records, ignore the last one if it is incomplete
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			long position = 0;
+			while (position + RECORD_HEADER_SIZE <= fileSize) {
+				header.clear();
+				readFully(channel, header, position);
+				long hash = header.getLong();
+				int length = header.getInt();
+				if (length < 0 || position + RECORD_HEADER_SIZE + length > fileSize) {
+					break;
+				}
+				index.add(hash, position + RECORD_HEADER_SIZE, length);
+				position += RECORD_HEADER_SIZE + length;
+			}
+			index.endOfRecords = position;
+			return index;
+		}
+
+		/**
+		 * Add an entry.
+		 *
+		 * @param hash
+		 * @param offset
+		 *   Offset of the tile data.
+		 * @param length
+		 *   Length of the tile data.
+		 */
+		public void add(long hash, long offset, int length) {
+			if (size == hashes.length) {
+				int capacity = size * 2;
+				long[] newHashes = new long[capacity];
+				long[] newOffsets = new long[capacity];
+				int[] newLengths = new int[capacity];
+				System.arraycopy(hashes, 0, newHashes, 0, size);
+				System.arraycopy(offsets, 0, newOffsets, 0, size);
+				System.arraycopy(lengths, 0, newLengths, 0, size);
+				hashes = newHashes;
+				offsets = newOffsets;
+				lengths = newLengths;
+			}
+			hashes[size] = hash;
+			offsets[size] = offset;
+			lengths[size] = length;
+			size++;
+		}
+
+		/**
+		 * @return independent copy of this index
+		 */
+		public Index copy() {
+			Index copy = new Index();
+			copy.hashes = hashes.clone();
+			copy.offsets = offsets.clone();
+			copy.lengths = lengths.clone();
+			copy.size = size;
+			copy.endOfRecords = endOfRecords;
+			return copy;
+		}
+
+		/**
+		 * Sort the entries by hash, so that they can be found with {@link #find(long)}.
+		 */
+		public void sort() {
+			sort(0, size - 1);
+		}
+
+		/**
+		 * Find an entry in the sorted index.
+		 *
+		 * @param hash
+		 * @return entry position or a negative value if not found
+		 */
+		public int find(long hash) {
+			int low = 0;
+			int high = size - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (hashes[middle] < hash) {
+					low = middle + 1;
+				} else if (hashes[middle] > hash) {
+					high = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Write the index and the footer.
+		 *
+		 * @param channel
+		 * @param position
+		 *   Offset where the index must be written.
+		 * @throws IOException
+		 */
+		public void write(FileChannel channel, long position) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(size * INDEX_ENTRY_SIZE + FOOTER_SIZE);
+			for (int i = 0; i < size; i++) {
+				buffer.putLong(hashes[i]);
+				buffer.putLong(offsets[i]);
+				buffer.putInt(lengths[i]);
+			}
+			buffer.putLong(position);
+			buffer.putInt(size);
+			buffer.putInt(FOOTER_MAGIC);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+
+		/**
+		 * Quick sort of the entries between the given positions (included).
+		 *
+		 * @param low
+		 * @param high
+		 */
+		private void sort(int low, int high) {
+			while (low < high) {
+				long pivot = hashes[(low + high) >>> 1];
+				int i = low;
+				int j = high;
+				while (i <= j) {
+					while (hashes[i] < pivot) {
+						i++;
+					}
+					while (hashes[j] > pivot) {
+						j--;
+					}
+					if (i <= j) {
+						swap(i++, j--);
+					}
+				}
+				// Recurse on the smallest part to limit the stack depth
+				if (j - low < high - i) {
+					sort(low, j);
+					low = i;
+				} else {
+					sort(i, high);
+					high = j;
+				}
+			}
+		}
+
+		/**
+		 * @param i
+		 * @param j
+		 */
+		private void swap(int i, int j) {
+			long hash = hashes[i];
+			hashes[i] = hashes[j];
+			hashes[j] = hash;
+			long offset = offsets[i];
+			offsets[i] = offsets[j];
+			offsets[j] = offset;
+			int length = lengths[i];
+			lengths[i] = lengths[j];
+			lengths[j] = length;
+		}
+	}
+}
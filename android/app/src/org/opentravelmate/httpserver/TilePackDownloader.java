@@ -0,0 +1,258 @@
+package org.opentravelmate.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opentravelmate.commons.IOUtils;
+import org.opentravelmate.commons.OutboundHttpClient;
+
+import android.util.Log;
+
+/**
+ * Download all the tiles of an {@link OfflineRegion} into a {@link TilePack}.
+ * The tiles are downloaded by a fixed number of threads through {@link OutboundHttpClient#DEFAULT}, which also
+ * limits the number of requests sent at the same time to the tile server. If the download is interrupted,
+ * the tiles that are already in the archive are not downloaded again the next time.
+ * The tiles that don't exist on the tile server (404 or 410) are stored as empty records, so that they don't
+ * prevent the archive from being complete.
+ *
+ * @author Marc Plouhinec
+ */
+public class TilePackDownloader {
+
+	private static final String LOG_TAG = "TilePackDownloader";
+
+	private final OfflineRegion region;
+	private final File packFile;
+	private final int nbThreads;
+	private final ProgressListener progressListener;
+	private final AtomicLong nbDownloadedTiles = new AtomicLong();
+	private final AtomicLong nbSkippedTiles = new AtomicLong();
+	private final AtomicLong nbMissingTiles = new AtomicLong();
+	private final AtomicLong nbFailedTiles = new AtomicLong();
+	private volatile boolean isCancelled = false;
+
+	// Tile iteration and archive writing, guarded by this
+	private int currentZoom;
+	private int currentX;
+	private int currentY;
+	private FileChannel channel;
+	private TilePack.Index existingIndex;
+	private TilePack.Index index;
+
+	/**
+	 * Create a TilePackDownloader.
+	 *
+	 * @param region
+	 *   Downloaded region.
+	 * @param packFile
+	 *   Archive file, created if it doesn't exist.
+	 * @param nbThreads
+	 *   Number of tiles downloaded at the same time.
+	 * @param progressListener
+	 *   Listener notified after each tile or null.
+	 */
+	public TilePackDownloader(OfflineRegion region, File packFile, int nbThreads, ProgressListener progressListener) {
+		this.region = region;
+		this.packFile = packFile;
+		this.nbThreads = nbThreads;
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Download the missing tiles and wait until the download is complete.
+	 *
+	 * @return true if all the tiles are in the archive (including the missing ones as empty records), false if
+	 *   the download has been cancelled or if some tiles have not been downloaded (call this function again to
+	 *   resume the download)
+	 * @throws IOException
+	 *   If the archive cannot be written.
+	 */
+	public boolean run() throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(packFile, "rw");
+		try {
+			// Keep the complete records of the previous download and remove its index
+			channel = randomAccessFile.getChannel();
+			index = TilePack.Index.read(channel);
+			channel.truncate(index.endOfRecords);
+			existingIndex = index.copy();
+			existingIndex.sort();
+			currentZoom = region.minZoom;
+			currentX = region.getMinTileX(currentZoom);
+			currentY = region.getMinTileY(currentZoom);
+
+			// Download the tiles
+			Thread[] threads = new Thread[nbThreads];
+			for (int i = 0; i < nbThreads; i++) {
+				threads[i] = new Thread(new Runnable() {
+					@Override public void run() {
+						downloadTiles();
+					}
+				}, LOG_TAG + "-" + i);
+				threads[i].start();
+			}
+			try {
+				for (Thread thread : threads) {
+					thread.join();
+				}
+			} catch (InterruptedException e) {
+				isCancelled = true;
+				Thread.currentThread().interrupt();
+			}
+
+			// Write the index when the archive is complete
+			boolean isComplete = !isCancelled && nbFailedTiles.get() == 0;
+			if (isComplete) {
+				synchronized (this) {
+					index.sort();
+					index.write(channel, index.endOfRecords);
+				}
+			}
+			channel.force(true);
+			return isComplete;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Stop the download as soon as possible.
+	 */
+	public void cancel() {
+		isCancelled = true;
+	}
+
+	@Override
+	public String toString() {
+		return "TilePackDownloader [file=" + packFile.getName() + ", downloaded=" + nbDownloadedTiles.get() +
+				", skipped=" + nbSkippedTiles.get() + ", missing=" + nbMissingTiles.get() + ", failed=" + nbFailedTiles.get() + "]";
+	}
+
+	/**
+	 * Download tiles until there is no more tile to download.
+	 */
+	private void downloadTiles() {
+		String tileUrl;
+		while (!isCancelled && (tileUrl = nextTileUrl()) != null) {
+			long hash = TilePack.hash(tileUrl);
+			synchronized (this) {
+				if (existingIndex.find(hash) >= 0) {
+					nbSkippedTiles.incrementAndGet();
+					continue;
+				}
+			}
+
+			try {
+				byte[] tileData = downloadTile(tileUrl);
+				if (tileData == null) {
+					appendRecord(hash, new byte[0]);
+					nbMissingTiles.incrementAndGet();
+				} else {
+					appendRecord(hash, tileData);
+					nbDownloadedTiles.incrementAndGet();
+				}
+			} catch (IOException e) {
+				Log.w(LOG_TAG, "Unable to download the tile " + tileUrl, e);
+				nbFailedTiles.incrementAndGet();
+			} catch (RuntimeException e) {
+				Log.w(LOG_TAG, "Unable to download the tile " + tileUrl, e);
+				nbFailedTiles.incrementAndGet();
+			}
+
+			if (progressListener != null) {
+				progressListener.onProgress(nbDownloadedTiles.get() + nbSkippedTiles.get() + nbMissingTiles.get(), nbFailedTiles.get());
+			}
+		}
+	}
+
+	/**
+	 * @return URL of the next tile to download or null if all the tiles have been visited
+	 */
+	private synchronized String nextTileUrl() {
+		if (currentZoom > region.maxZoom) {
+			return null;
+		}
+		String tileUrl = region.buildTileUrl(currentZoom, currentX, currentY);
+
+		// Move to the next tile
+		currentX++;
+		if (currentX > region.getMaxTileX(currentZoom)) {
+			currentY++;
+			if (currentY > region.getMaxTileY(currentZoom)) {
+				currentZoom++;
+				if (currentZoom <= region.maxZoom) {
+					currentY = region.getMinTileY(currentZoom);
+				}
+			}
+			if (currentZoom <= region.maxZoom) {
+				currentX = region.getMinTileX(currentZoom);
+			}
+		}
+		return tileUrl;
+	}
+
+	/**
+	 * Download a tile.
+	 *
+	 * @param tileUrl
+	 * @return tile data or null if the tile doesn't exist on the tile server
+	 * @throws IOException
+	 */
+	private static byte[] downloadTile(String tileUrl) throws IOException {
+		OutboundHttpClient.Request request = OutboundHttpClient.DEFAULT.open(tileUrl);
+		try {
+			int statusCode = request.getResponseCode();
+			if (statusCode == HttpURLConnection.HTTP_NOT_FOUND || statusCode == HttpURLConnection.HTTP_GONE) {
+				// Note: usual for the tiles in the ocean or above the maximum zoom of the tile server
+				return null;
+			}
+			if (statusCode != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Unexpected status code " + statusCode);
+			}
+			return IOUtils.toByteArray(request.getInputStream());
+		} finally {
+			request.close();
+		}
+	}
+
+	/**
+	 * Append a tile at the end of the archive.
+	 *
+	 * @param hash
+	 * @param tileData
+	 * @throws IOException
+	 */
+	private synchronized void appendRecord(long hash, byte[] tileData) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(TilePack.RECORD_HEADER_SIZE + tileData.length);
+		buffer.putLong(hash);
+		buffer.putInt(tileData.length);
+		buffer.put(tileData);
+		buffer.flip();
+		long position = index.endOfRecords;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		index.add(hash, index.endOfRecords + TilePack.RECORD_HEADER_SIZE, tileData.length);
+		index.endOfRecords = position;
+	}
+
+	/**
+	 * Listener notified of the download progress.
+	 */
+	public static interface ProgressListener {
+		/**
+		 * Function called after each tile.
+		 *
+		 * @param nbAvailableTiles
+		 *   Number of tiles in the archive, including the tiles that don't exist on the tile server.
+		 * @param nbFailedTiles
+		 *   Number of tiles that cannot be downloaded.
+		 */
+		void onProgress(long nbAvailableTiles, long nbFailedTiles);
+	}
+}
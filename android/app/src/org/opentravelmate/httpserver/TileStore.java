@@ -0,0 +1,135 @@
+package org.opentravelmate.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Persistent store of the images served by the {@link ImageRequestHandler}.
+ * Each entry contains the image data and a metadata string.
+ * The keys must match [a-z0-9_-]{1,64}.
+ *
+ * @author Marc Plouhinec
+ */
+public interface TileStore {
+
+	/**
+	 * Read an entry.
+	 *
+	 * @param key
+	 * @return entry or null if not found
+	 * @throws IOException
+	 */
+	Entry get(String key) throws IOException;
+
+	/**
+	 * Read the metadata of an entry.
+	 *
+	 * @param key
+	 * @return metadata or null if not found
+	 * @throws IOException
+	 */
+	String getMetadata(String key) throws IOException;
+
+	/**
+	 * Create or replace an entry.
+	 *
+	 * @param key
+	 * @return editor or null if the entry is already being edited
+	 * @throws IOException
+	 */
+	Editor edit(String key) throws IOException;
+
+	/**
+	 * Replace the metadata of an entry and keep its data.
+	 *
+	 * @param key
+	 * @param metadata
+	 * @return false if the entry doesn't exist or is being edited
+	 * @throws IOException
+	 */
+	boolean updateMetadata(String key, String metadata) throws IOException;
+
+	/**
+	 * Remove an entry.
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	void remove(String key) throws IOException;
+
+	/**
+	 * Close the store.
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Content of an entry.
+	 */
+	public static class Entry {
+
+		/**
+		 * Image data.
+		 */
+		public final byte[] data;
+
+		/**
+		 * Metadata string (empty if not set).
+		 */
+		public final String metadata;
+
+		/**
+		 * Create an Entry.
+		 *
+		 * @param data
+		 * @param metadata
+		 */
+		public Entry(byte[] data, String metadata) {
+			this.data = data;
+			this.metadata = metadata;
+		}
+	}
+
+	/**
+	 * Write an entry. The entry is visible only after {@link #commit()}.
+	 */
+	public static interface Editor {
+
+		/**
+		 * @return stream where the data must be written
+		 * @throws IOException
+		 */
+		OutputStream newOutputStream() throws IOException;
+
+		/**
+		 * Set the metadata of the entry.
+		 *
+		 * @param metadata
+		 * @throws IOException
+		 */
+		void setMetadata(String metadata) throws IOException;
+
+		/**
+		 * Set the zoom level of a map tile, used by the stores that evict the entries according to
+		 * a {@link TileCachePolicy}. The zoom level is unknown by default.
+		 *
+		 * @param zoom
+		 */
+		void setZoom(int zoom);
+
+		/**
+		 * Publish the entry.
+		 *
+		 * @throws IOException
+		 */
+		void commit() throws IOException;
+
+		/**
+		 * Cancel the modification.
+		 *
+		 * @throws IOException
+		 */
+		void abort() throws IOException;
+	}
+}
@@ -0,0 +1,191 @@
+package org.opentravelmate.httpserver;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads that process the {@link HttpServer} connections and requests.
+ *
+ * Unlike a {@link ThreadPoolExecutor} with an unbounded queue, this pool creates new threads up to
+ * its maximum size before queuing tasks, and it rejects tasks when its bounded queue is full.
+ *
+ * @author Marc Plouhinec
+ */
+public class WorkerPool {
+
+	private final ThreadPoolExecutor threadPoolExecutor;
+	private final GrowingTaskQueue taskQueue;
+	private final AtomicLong nbExecutedTasks = new AtomicLong();
+	private final AtomicLong nbRejectedTasks = new AtomicLong();
+	private final AtomicLong totalWaitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	/**
+	 * Create a worker pool.
+	 *
+	 * @param options
+	 */
+	public WorkerPool(WorkerPoolOptions options) {
+		this.taskQueue = new GrowingTaskQueue(options.queueCapacity);
+		this.threadPoolExecutor = new ThreadPoolExecutor(
+				options.corePoolSize, options.maximumPoolSize, options.keepAliveTime, TimeUnit.SECONDS,
+				this.taskQueue, new QueueWhenPossiblePolicy());
+		this.taskQueue.setThreadPoolExecutor(this.threadPoolExecutor);
+	}
+
+	/**
+	 * Execute the given task in a worker thread.
+	 *
+	 * @param task
+	 * @throws RejectedExecutionException
+	 *   If the pool is saturated or stopped.
+	 */
+	public void execute(Runnable task) throws RejectedExecutionException {
+		try {
+			this.threadPoolExecutor.execute(new TimedTask(task));
+		} catch (RejectedExecutionException e) {
+			nbRejectedTasks.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop all the threads.
+	 */
+	public void shutdownNow() {
+		this.threadPoolExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return number of tasks waiting for a thread.
+	 */
+	public int getQueueDepth() {
+		return this.taskQueue.size();
+	}
+
+	/**
+	 * @return number of threads in the pool.
+	 */
+	public int getPoolSize() {
+		return this.threadPoolExecutor.getPoolSize();
+	}
+
+	/**
+	 * @return approximate number of threads that are executing a task.
+	 */
+	public int getActiveCount() {
+		return this.threadPoolExecutor.getActiveCount();
+	}
+
+	/**
+	 * @return number of tasks that have been rejected because the pool was saturated.
+	 */
+	public long getRejectedCount() {
+		return nbRejectedTasks.get();
+	}
+
+	/**
+	 * @return average time in milliseconds a task waited in the queue before being executed.
+	 */
+	public long getAverageWaitTime() {
+		long nbTasks = nbExecutedTasks.get();
+		return nbTasks == 0 ? 0 : totalWaitTime.get() / nbTasks;
+	}
+
+	/**
+	 * @return longest time in milliseconds a task waited in the queue before being executed.
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	@Override
+	public String toString() {
+		return "WorkerPool [poolSize=" + getPoolSize() + ", activeCount=" + getActiveCount() +
+				", queueDepth=" + getQueueDepth() + ", averageWaitTime=" + getAverageWaitTime() +
+				", maxWaitTime=" + getMaxWaitTime() + ", rejectedCount=" + getRejectedCount() + "]";
+	}
+
+	/**
+	 * Measure the time a task spends in the queue.
+	 */
+	private class TimedTask implements Runnable {
+
+		private final Runnable task;
+		private final long creationTime = System.currentTimeMillis();
+
+		public TimedTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			long waitTime = System.currentTimeMillis() - creationTime;
+			nbExecutedTasks.incrementAndGet();
+			totalWaitTime.addAndGet(waitTime);
+			long currentMaxWaitTime;
+			while (waitTime > (currentMaxWaitTime = maxWaitTime.get())) {
+				if (maxWaitTime.compareAndSet(currentMaxWaitTime, waitTime)) {
+					break;
+				}
+			}
+
+			task.run();
+		}
+	}
+
+	/**
+	 * Queue that refuses new tasks while the pool can still grow, in order to force the
+	 * {@link ThreadPoolExecutor} to create new threads.
+	 */
+	private static class GrowingTaskQueue extends LinkedBlockingQueue<Runnable> {
+
+		private static final long serialVersionUID = -3590379473834441380L;
+		private volatile ThreadPoolExecutor threadPoolExecutor;
+
+		public GrowingTaskQueue(int capacity) {
+			super(capacity);
+		}
+
+		public void setThreadPoolExecutor(ThreadPoolExecutor threadPoolExecutor) {
+			this.threadPoolExecutor = threadPoolExecutor;
+		}
+
+		@Override
+		public boolean offer(Runnable task) {
+			ThreadPoolExecutor executor = this.threadPoolExecutor;
+			if (executor != null
+					&& executor.getActiveCount() >= executor.getPoolSize()
+					&& executor.getPoolSize() < executor.getMaximumPoolSize()) {
+				return false;
+			}
+			return super.offer(task);
+		}
+
+		/**
+		 * Queue the task even if the pool can still grow.
+		 *
+		 * @param task
+		 * @return true if the task has been queued, false if the queue is full
+		 */
+		public boolean forceOffer(Runnable task) {
+			return super.offer(task);
+		}
+	}
+
+	/**
+	 * Queue the task when no thread can be created, reject it when the queue is full.
+	 */
+	private static class QueueWhenPossiblePolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (executor.isShutdown() || !((GrowingTaskQueue) executor.getQueue()).forceOffer(task)) {
+				throw new RejectedExecutionException("The worker pool is saturated.");
+			}
+		}
+	}
+}
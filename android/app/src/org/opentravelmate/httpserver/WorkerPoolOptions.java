@@ -0,0 +1,62 @@
+package org.opentravelmate.httpserver;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Define the size of the {@link HttpServer} worker pool and the concurrency limits of its routes.
+ *
+ * @author Marc Plouhinec
+ */
+public class WorkerPoolOptions {
+
+	/**
+	 * Options used when nothing is specified.
+	 */
+	public static final WorkerPoolOptions DEFAULT = new WorkerPoolOptions(4, 32, 60, 64, new HashMap<String, Integer>());
+
+	/**
+	 * Number of threads kept alive even when idle.
+	 */
+	public final int corePoolSize;
+
+	/**
+	 * Maximum number of threads.
+	 */
+	public final int maximumPoolSize;
+
+	/**
+	 * Time in seconds after which an idle thread above the core pool size is stopped.
+	 */
+	public final long keepAliveTime;
+
+	/**
+	 * Maximum number of tasks waiting for a thread. When all the threads are busy and the queue is full,
+	 * new tasks are rejected and the clients receive a "503 Service Unavailable" response.
+	 */
+	public final int queueCapacity;
+
+	/**
+	 * Map<request handler pattern, maximum number of requests processed at the same time>.
+	 */
+	public final Map<String, Integer> concurrencyLimitByPattern;
+
+	/**
+	 * Create WorkerPoolOptions.
+	 *
+	 * @param corePoolSize
+	 * @param maximumPoolSize
+	 * @param keepAliveTime
+	 * @param queueCapacity
+	 * @param concurrencyLimitByPattern
+	 */
+	public WorkerPoolOptions(int corePoolSize, int maximumPoolSize, long keepAliveTime, int queueCapacity,
+			Map<String, Integer> concurrencyLimitByPattern) {
+		this.corePoolSize = corePoolSize;
+		this.maximumPoolSize = maximumPoolSize;
+		this.keepAliveTime = keepAliveTime;
+		this.queueCapacity = queueCapacity;
+		this.concurrencyLimitByPattern = Collections.unmodifiableMap(new HashMap<String, Integer>(concurrencyLimitByPattern));
+	}
+}
@@ -1,9 +1,11 @@
 package org.opentravelmate.widget.map;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -13,7 +15,9 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.apache.http.HttpStatus;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -21,6 +25,8 @@ import org.opentravelmate.R;
 import org.opentravelmate.commons.ExceptionListener;
 import org.opentravelmate.commons.OnReadyExecutor;
 import org.opentravelmate.commons.UIThreadExecutor;
+import org.opentravelmate.httpserver.DownloadScheduler;
+import org.opentravelmate.httpserver.LocalHttpDispatcher;
 import org.opentravelmate.widget.HtmlLayout;
 import org.opentravelmate.widget.HtmlLayoutParams;
 
@@ -56,6 +62,7 @@ import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.PolygonOptions;
 import com.google.android.gms.maps.model.PolylineOptions;
+import com.google.android.gms.maps.model.Tile;
 import com.google.android.gms.maps.model.TileOverlayOptions;
 import com.google.android.gms.maps.model.TileProvider;
 import com.google.android.gms.maps.model.UrlTileProvider;
@@ -73,8 +80,12 @@ public class NativeMap {
 	private static final double DEFAULT_LATITUDE = 49.6;
 	private static final double DEFAULT_LONGITUDE = 6.135;
 	private static final int INFO_WINDOW_MARGIN_DIP = 10;
+	private static final long TILE_CACHE_REFRESH_DELAY = 500;
+	private static final boolean ENABLE_TILE_OVERLAY_COMPOSITING = true;
 	
 	private final String baseUrl;
+	private final LocalHttpDispatcher localHttpDispatcher;
+	private final DownloadScheduler downloadScheduler;
 	private final ExceptionListener exceptionListener;
 	private final HtmlLayout htmlLayout;
 	private final FragmentManager fragmentManager;
@@ -82,7 +93,14 @@ public class NativeMap {
 	private final SparseArray<com.google.android.gms.maps.model.Marker> gmarkerById =
 			new SparseArray<com.google.android.gms.maps.model.Marker>();
 	private final Map<String, TileObserver> tileObserverByPlaceHolderId = new HashMap<String, TileObserver>();
+	private final Set<String> observedTilesPlaceHolderIds = new HashSet<String>();
+	private final Map<String, TilePrefetcher> tilePrefetcherByPlaceHolderId = new HashMap<String, TilePrefetcher>();
+	private final Map<String, TileDownloadPrioritizer> tileDownloadPrioritizerByPlaceHolderId =
+			new HashMap<String, TileDownloadPrioritizer>();
 	private final UrlMarkerIconLoader markerIconLoader;
+	private final OverzoomTileSynthesizer overzoomTileSynthesizer;
+	private final Set<LocalTileProvider> refreshedTileProviders = new HashSet<LocalTileProvider>();
+	private final Map<String, LocalTileProvider> compositeTileProviderByPlaceHolderId = new HashMap<String, LocalTileProvider>();
 	private final Map<com.google.android.gms.maps.model.Marker, Marker> markerByGmarker =
 			new HashMap<com.google.android.gms.maps.model.Marker, Marker>();
 	private final Map<String, CustomInfoWindowAdapter> infoWindowAdapterByPlaceHolderId =
@@ -104,17 +122,37 @@ public class NativeMap {
 	
 	/**
 	 * Create a NativeMap object.
+	 * 
+	 * @param exceptionListener
+	 * @param htmlLayout
+	 * @param fragmentManager
+	 * @param baseUrl
+	 * @param localHttpDispatcher
+	 *     If not null, the tiles are loaded with this dispatcher instead of the HTTP server socket.
+	 * @param downloadScheduler
+	 *     Scheduler of the tile downloads, used with the localHttpDispatcher to prioritize the displayed tiles.
 	 */
-	public NativeMap(ExceptionListener exceptionListener, HtmlLayout htmlLayout, FragmentManager fragmentManager, String baseUrl) {
+	public NativeMap(ExceptionListener exceptionListener, HtmlLayout htmlLayout, FragmentManager fragmentManager,
+			String baseUrl, LocalHttpDispatcher localHttpDispatcher, DownloadScheduler downloadScheduler) {
 		this.exceptionListener = exceptionListener;
 		this.htmlLayout = htmlLayout;
 		this.fragmentManager = fragmentManager;
 		this.baseUrl = baseUrl;
+		this.localHttpDispatcher = localHttpDispatcher;
+		this.downloadScheduler = downloadScheduler;
 		this.markerIconLoader = new UrlMarkerIconLoader(exceptionListener);
+		this.overzoomTileSynthesizer = localHttpDispatcher == null ? null : new OverzoomTileSynthesizer(localHttpDispatcher);
 		
 		DisplayMetrics metrics = htmlLayout.getContext().getResources().getDisplayMetrics();
 		infoWindowMargin = Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, INFO_WINDOW_MARGIN_DIP, metrics));
 	}
+	
+	@Override
+	public String toString() {
+		return "NativeMap [tilePrefetcherByPlaceHolderId=" + tilePrefetcherByPlaceHolderId +
+				", tileDownloadPrioritizerByPlaceHolderId=" + tileDownloadPrioritizerByPlaceHolderId +
+				", " + overzoomTileSynthesizer + "]";
+	}
 
 	/**
 	 * Build the native view object for the current widget.
@@ -249,11 +287,38 @@ public class NativeMap {
 				try {
 					TileOverlay tileOverlay = TileOverlay.fromJsonTileOverlay(new JSONObject(jsonTileOverlay));
 					
-					TileProvider tileProvider = new UrlPatternTileProvider(tileOverlay.tileUrlPattern, tileOverlay.enableGrayscaleFilter);
+					if (localHttpDispatcher == null) {
+						com.google.android.gms.maps.model.TileOverlay gTileOverlay = map.addTileOverlay(new TileOverlayOptions()
+							.tileProvider(new UrlPatternTileProvider(tileOverlay.tileUrlPattern, tileOverlay.enableGrayscaleFilter))
+							.zIndex(tileOverlay.zIndex));
+						tileOverlayById.put(tileOverlay.id, gTileOverlay);
+						return;
+					}
+					
+					TilePrefetcher tilePrefetcher = getTilePrefetcher(id, map);
+					tilePrefetcher.addTileOverlay(tileOverlay);
+					TileDownloadPrioritizer tileDownloadPrioritizer = getTileDownloadPrioritizer(id, map);
+					tileDownloadPrioritizer.addTileOverlay(tileOverlay);
+					
+					// Note: in compositing mode, all the overlays of a map are blended into the tiles of a single overlay
+					LocalTileProvider tileProvider = ENABLE_TILE_OVERLAY_COMPOSITING ? compositeTileProviderByPlaceHolderId.get(id) : null;
+					if (tileProvider != null) {
+						tileProvider.addLayer(tileOverlay);
+						tileProvider.getGTileOverlay().setZIndex(tileProvider.getZIndex());
+						tileProvider.getGTileOverlay().clearTileCache();
+						return;
+					}
+					tileProvider = new LocalTileProvider(tilePrefetcher, tileDownloadPrioritizer);
+					tileProvider.addLayer(tileOverlay);
 					com.google.android.gms.maps.model.TileOverlay gTileOverlay = map.addTileOverlay(new TileOverlayOptions()
 						.tileProvider(tileProvider)
 						.zIndex(tileOverlay.zIndex));
-					tileOverlayById.put(tileOverlay.id, gTileOverlay);
+					tileProvider.setGTileOverlay(gTileOverlay);
+					if (ENABLE_TILE_OVERLAY_COMPOSITING) {
+						compositeTileProviderByPlaceHolderId.put(id, tileProvider);
+					} else {
+						tileOverlayById.put(tileOverlay.id, gTileOverlay);
+					}
 				} catch (JSONException e) {
 					exceptionListener.onException(false, e);
 				}
@@ -280,6 +345,24 @@ public class NativeMap {
 					if (gTileOverlay != null) {
 						gTileOverlay.remove();
 					}
+					LocalTileProvider compositeTileProvider = compositeTileProviderByPlaceHolderId.get(id);
+					if (compositeTileProvider != null && compositeTileProvider.removeLayer(tileOverlay.id)) {
+						if (compositeTileProvider.getLayers().isEmpty()) {
+							compositeTileProvider.getGTileOverlay().remove();
+							compositeTileProviderByPlaceHolderId.remove(id);
+						} else {
+							compositeTileProvider.getGTileOverlay().setZIndex(compositeTileProvider.getZIndex());
+							compositeTileProvider.getGTileOverlay().clearTileCache();
+						}
+					}
+					TilePrefetcher tilePrefetcher = tilePrefetcherByPlaceHolderId.get(id);
+					if (tilePrefetcher != null) {
+						tilePrefetcher.removeTileOverlay(tileOverlay.id);
+					}
+					TileDownloadPrioritizer tileDownloadPrioritizer = tileDownloadPrioritizerByPlaceHolderId.get(id);
+					if (tileDownloadPrioritizer != null) {
+						tileDownloadPrioritizer.removeTileOverlay(tileOverlay.id);
+					}
 				} catch (JSONException e) {
 					exceptionListener.onException(false, e);
 				}
@@ -637,11 +720,8 @@ public class NativeMap {
 		
 		UIThreadExecutor.execute(postponeWhenMapIsInvisible(id, new Runnable() {
 			@Override public void run() {
-				TileObserver tileObserver = tileObserverByPlaceHolderId.get(id);
-				
-				if (tileObserver == null) {
-					tileObserver = new TileObserver(map, htmlLayout.findViewByPlaceHolderId(id));
-					tileObserverByPlaceHolderId.put(id, tileObserver);
+				if (observedTilesPlaceHolderIds.add(id)) {
+					TileObserver tileObserver = getTileObserver(id, map);
 					
 					tileObserver.onTilesDisplayed(new TileObserver.TilesListener() {
 						@Override public void on(List<TileCoordinates> tileCoordinates) {
@@ -680,6 +760,88 @@ public class NativeMap {
 		}));
 	}
 	
+	/**
+	 * Get the TileObserver of the given map, create it if necessary.
+	 * Note: this function must be called from the UI thread.
+	 * 
+	 * @param id
+	 *     Map place holder ID.
+	 * @param map
+	 * @return TileObserver
+	 */
+	private TileObserver getTileObserver(String id, GoogleMap map) {
+		TileObserver tileObserver = tileObserverByPlaceHolderId.get(id);
+		if (tileObserver == null) {
+			tileObserver = new TileObserver(map, htmlLayout.findViewByPlaceHolderId(id));
+			tileObserverByPlaceHolderId.put(id, tileObserver);
+		}
+		return tileObserver;
+	}
+	
+	/**
+	 * Get the TilePrefetcher of the given map, create it if necessary.
+	 * Note: this function must be called from the UI thread.
+	 * 
+	 * @param id
+	 *     Map place holder ID.
+	 * @param map
+	 * @return TilePrefetcher
+	 */
+	private TilePrefetcher getTilePrefetcher(String id, GoogleMap map) {
+		TilePrefetcher tilePrefetcher = tilePrefetcherByPlaceHolderId.get(id);
+		if (tilePrefetcher == null) {
+			tilePrefetcher = new TilePrefetcher(localHttpDispatcher, TilePrefetcher.DEFAULT_MAX_TILES_PER_SECOND);
+			getTileObserver(id, map).onCameraChange(tilePrefetcher);
+			tilePrefetcherByPlaceHolderId.put(id, tilePrefetcher);
+		}
+		return tilePrefetcher;
+	}
+	
+	/**
+	 * Get the TileDownloadPrioritizer of the given map, create it if necessary.
+	 * Note: this function must be called from the UI thread.
+	 * 
+	 * @param id
+	 *     Map place holder ID.
+	 * @param map
+	 * @return TileDownloadPrioritizer
+	 */
+	private TileDownloadPrioritizer getTileDownloadPrioritizer(String id, GoogleMap map) {
+		TileDownloadPrioritizer tileDownloadPrioritizer = tileDownloadPrioritizerByPlaceHolderId.get(id);
+		if (tileDownloadPrioritizer == null) {
+			tileDownloadPrioritizer = new TileDownloadPrioritizer(downloadScheduler);
+			TileObserver tileObserver = getTileObserver(id, map);
+			tileObserver.onCameraChange(tileDownloadPrioritizer);
+			tileObserver.onTilesReleased(tileDownloadPrioritizer);
+			tileDownloadPrioritizerByPlaceHolderId.put(id, tileDownloadPrioritizer);
+		}
+		return tileDownloadPrioritizer;
+	}
+	
+	/**
+	 * Ask the map to load again the tiles of the given provider, in order to replace the synthesized tiles.
+	 * The calls received during a short delay are merged.
+	 * 
+	 * @param tileProvider
+	 */
+	private void refreshTileCache(final LocalTileProvider tileProvider) {
+		synchronized (refreshedTileProviders) {
+			if (!refreshedTileProviders.add(tileProvider)) {
+				return;
+			}
+		}
+		UIThreadExecutor.executeDelayed(new Runnable() {
+			@Override public void run() {
+				synchronized (refreshedTileProviders) {
+					refreshedTileProviders.remove(tileProvider);
+				}
+				if (!tileProvider.getLayers().isEmpty()) {
+					tileProvider.getGTileOverlay().clearTileCache();
+				}
+			}
+		}, TILE_CACHE_REFRESH_DELAY);
+	}
+	
 	/**
 	 * Get all the visible tile coordinates.
      * Note: the function observeTiles() must be called before executing this one.
@@ -1206,28 +1368,263 @@ public class NativeMap {
 
 		@Override
 		public URL getTileUrl(final int x, final int y, final int zoom) {
-			String originalUrl = tileUrlPattern
-					.replace("${zoom}", String.valueOf(zoom))
-					.replace("${x}", String.valueOf(x))
-					.replace("${y}", String.valueOf(y));
-			
-			// Use the image interceptor in order to cache the tile in the disk
-			String url;
+			String url = baseUrl + buildTileUri(tileUrlPattern, enableGrayscaleFilter, x, y, zoom).substring(1);
 			try {
-				url = baseUrl + "image/source/" + URLEncoder.encode(originalUrl, "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				url = originalUrl;
+				return new URL(url);
+			} catch (MalformedURLException e) {
+				exceptionListener.onException(false, e);
+				return null;
 			}
-			if (enableGrayscaleFilter) {
-				url += "?filter=grayscale";
+		}
+	}
+	
+	/**
+	 * TileProvider based on TileOverlay.tileUrlPattern that calls the image request handler
+	 * directly instead of going through the HTTP server socket.
+	 * A tile that is not in the image cache is replaced by an upscaled ancestor until it is downloaded.
+	 * When the provider has several layers (compositing mode), their tiles are blended by the image request handler.
+	 */
+	private class LocalTileProvider implements TileProvider {
+		
+		private static final int TILE_SIZE = 256;
+		private final List<TileOverlay> layers = new CopyOnWriteArrayList<TileOverlay>();
+		private final TilePrefetcher tilePrefetcher;
+		private final TileDownloadPrioritizer tileDownloadPrioritizer;
+		private volatile com.google.android.gms.maps.model.TileOverlay gTileOverlay;
+		
+		/**
+		 * Create a new LocalTileProvider.
+		 * 
+		 * @param tilePrefetcher Prefetcher notified of the requested tiles
+		 * @param tileDownloadPrioritizer Give the priority of the requested tiles
+		 */
+		public LocalTileProvider(TilePrefetcher tilePrefetcher, TileDownloadPrioritizer tileDownloadPrioritizer) {
+			this.tilePrefetcher = tilePrefetcher;
+			this.tileDownloadPrioritizer = tileDownloadPrioritizer;
+		}
+		
+		/**
+		 * Add a layer, the layers are sorted by z-index.
+		 * Note: this function must be called from the UI thread.
+		 * 
+		 * @param tileOverlay
+		 */
+		public void addLayer(TileOverlay tileOverlay) {
+			removeLayer(tileOverlay.id);
+			int index = 0;
+			while (index < layers.size() && layers.get(index).zIndex <= tileOverlay.zIndex) {
+				index++;
+			}
+			layers.add(index, tileOverlay);
+		}
+		
+		/**
+		 * Remove a layer.
+		 * Note: this function must be called from the UI thread.
+		 * 
+		 * @param tileOverlayId
+		 * @return true if the layer has been removed
+		 */
+		public boolean removeLayer(int tileOverlayId) {
+			for (TileOverlay tileOverlay : layers) {
+				if (tileOverlay.id == tileOverlayId) {
+					return layers.remove(tileOverlay);
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * @return layers, the bottom one first
+		 */
+		public List<TileOverlay> getLayers() {
+			return layers;
+		}
+		
+		/**
+		 * @return z-index of the bottom layer
+		 */
+		public float getZIndex() {
+			return layers.isEmpty() ? 0 : layers.get(0).zIndex;
+		}
+		
+		/**
+		 * @return map overlay that displays the tiles of this provider
+		 */
+		public com.google.android.gms.maps.model.TileOverlay getGTileOverlay() {
+			return gTileOverlay;
+		}
+		
+		/**
+		 * @param gTileOverlay Map overlay that displays the tiles of this provider
+		 */
+		public void setGTileOverlay(com.google.android.gms.maps.model.TileOverlay gTileOverlay) {
+			this.gTileOverlay = gTileOverlay;
+		}
+		
+		@Override
+		public Tile getTile(int x, int y, int zoom) {
+			final List<TileOverlay> currentLayers = new ArrayList<TileOverlay>(layers);
+			if (currentLayers.isEmpty()) {
+				return NO_TILE;
 			}
 			
 			try {
-				return new URL(url);
-			} catch (MalformedURLException e) {
+				String tileUri = buildLayeredTileUri(currentLayers, x, y, zoom);
+				List<String> layerTileUris = new ArrayList<String>();
+				for (TileOverlay layer : currentLayers) {
+					String layerTileUri = buildTileUri(layer.tileUrlPattern, layer.enableGrayscaleFilter, x, y, zoom);
+					layerTileUris.add(layerTileUri);
+					tilePrefetcher.onTileRequested(layerTileUri);
+					tileDownloadPrioritizer.onTileRequested(layerTileUri);
+				}
+				Map<String, String> headers = new HashMap<String, String>();
+				headers.put(DownloadScheduler.PRIORITY_HEADER,
+						DownloadScheduler.formatPriority(tileDownloadPrioritizer.getPriority(x, y, zoom)));
+				
+				// Serve an upscaled ancestor immediately if the tile must be downloaded
+				Map<String, String> onlyIfCachedHeaders = new HashMap<String, String>(headers);
+				onlyIfCachedHeaders.put("Cache-Control", OverzoomTileSynthesizer.ONLY_IF_CACHED);
+				LocalHttpDispatcher.LocalResponse response = localHttpDispatcher.get(tileUri, onlyIfCachedHeaders);
+				if (response.statusCode == HttpStatus.SC_GATEWAY_TIMEOUT) {
+					response.close();
+					byte[] ancestorTileData = overzoomTileSynthesizer.synthesize(new OverzoomTileSynthesizer.TileUriBuilder() {
+						@Override public String buildTileUri(int x, int y, int zoom) {
+							return buildLayeredTileUri(currentLayers, x, y, zoom);
+						}
+					}, new TileCoordinates(zoom, x, y));
+					if (ancestorTileData != null) {
+						overzoomTileSynthesizer.downloadInBackground(tileUri, headers, new Runnable() {
+							@Override public void run() {
+								refreshTileCache(LocalTileProvider.this);
+							}
+						});
+						return new Tile(TILE_SIZE, TILE_SIZE, ancestorTileData);
+					}
+					response = localHttpDispatcher.get(tileUri, headers);
+				}
+				if (response.statusCode == HttpStatus.SC_NOT_FOUND) {
+					// The tile doesn't exist (for example out of the tile server zoom range)
+					response.close();
+					onTilesServed(layerTileUris);
+					return NO_TILE;
+				}
+				if (response.statusCode != HttpStatus.SC_OK) {
+					// Note: null means that the tile is not available yet, the map will ask for it again later
+					response.close();
+					return null;
+				}
+				Tile tile = new Tile(TILE_SIZE, TILE_SIZE, response.toByteArray());
+				onTilesServed(layerTileUris);
+				return tile;
+			} catch (IOException e) {
 				exceptionListener.onException(false, e);
 				return null;
 			}
 		}
+		
+		/**
+		 * Notify the TileDownloadPrioritizer that the tiles of the layers have been served.
+		 * 
+		 * @param layerTileUris
+		 */
+		private void onTilesServed(List<String> layerTileUris) {
+			for (String layerTileUri : layerTileUris) {
+				tileDownloadPrioritizer.onTileServed(layerTileUri);
+			}
+		}
+	}
+	
+	/**
+	 * Build the URI of a tile of the given layers.
+	 * 
+	 * @param layers
+	 *     Layers sorted by z-index.
+	 * @param x
+	 * @param y
+	 * @param zoom
+	 * @return URI of a single tile or of a composite tile
+	 */
+	private static String buildLayeredTileUri(List<TileOverlay> layers, int x, int y, int zoom) {
+		if (layers.size() == 1) {
+			TileOverlay layer = layers.get(0);
+			return buildTileUri(layer.tileUrlPattern, layer.enableGrayscaleFilter, x, y, zoom);
+		}
+		return buildCompositeTileUri(layers, x, y, zoom);
+	}
+	
+	/**
+	 * Build the URI of a tile that blends the tiles of several overlays, in order to cache it in the disk.
+	 * 
+	 * @param layers
+	 *     Layers sorted by z-index.
+	 * @param x
+	 * @param y
+	 * @param zoom
+	 * @return request path and query (for example "/image/composite/http%3A%2F%2F...,http%3A%2F%2F...;grayscale?zoom=12")
+	 */
+	static String buildCompositeTileUri(List<TileOverlay> layers, int x, int y, int zoom) {
+		StringBuilder uri = new StringBuilder("/image/composite/");
+		try {
+			for (int i = 0; i < layers.size(); i++) {
+				TileOverlay layer = layers.get(i);
+				if (i > 0) {
+					uri.append(',');
+				}
+				uri.append(URLEncoder.encode(buildTileUrl(layer.tileUrlPattern, x, y, zoom), "UTF-8"));
+				if (layer.enableGrayscaleFilter) {
+					uri.append(";grayscale");
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			// Never happens: UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+		// Note: the zoom level is used by the eviction policy of the image cache
+		return uri.append("?zoom=").append(zoom).toString();
+	}
+	
+	/**
+	 * Build the URI of a tile served by the image request handler, in order to cache it in the disk.
+	 * 
+	 * @param tileUrlPattern
+	 * @param enableGrayscaleFilter
+	 * @param x
+	 * @param y
+	 * @param zoom
+	 * @return request path and query (for example "/image/source/http%3A%2F%2F...?zoom=12")
+	 */
+	static String buildTileUri(String tileUrlPattern, boolean enableGrayscaleFilter, int x, int y, int zoom) {
+		String originalUrl = buildTileUrl(tileUrlPattern, x, y, zoom);
+		
+		String uri;
+		try {
+			uri = "/image/source/" + URLEncoder.encode(originalUrl, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// Never happens: UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+		// Note: the zoom level is used by the eviction policy of the image cache
+		uri += "?zoom=" + zoom;
+		if (enableGrayscaleFilter) {
+			uri += "&filter=grayscale";
+		}
+		return uri;
+	}
+	
+	/**
+	 * Build the URL of a tile on its server.
+	 * 
+	 * @param tileUrlPattern
+	 * @param x
+	 * @param y
+	 * @param zoom
+	 * @return tile URL
+	 */
+	static String buildTileUrl(String tileUrlPattern, int x, int y, int zoom) {
+		return tileUrlPattern
+				.replace("${zoom}", String.valueOf(zoom))
+				.replace("${x}", String.valueOf(x))
+				.replace("${y}", String.valueOf(y));
 	}
 }
@@ -0,0 +1,173 @@
+package org.opentravelmate.widget.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opentravelmate.httpserver.LocalHttpDispatcher;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Replace the tiles that are not in the image cache by an upscaled part of their nearest cached ancestor,
+ * so that the map doesn't show a hole while the tiles are downloaded (or when the network is unavailable).
+ * The missing tiles are then downloaded in background threads.
+ *
+ * @author Marc Plouhinec
+ */
+class OverzoomTileSynthesizer {
+
+	private static final String LOG_TAG = "OverzoomTileSynthesizer";
+
+	/**
+	 * Maximum number of zoom levels between a tile and the ancestor used to synthesize it.
+	 */
+	public static final int MAX_OVERZOOM_LEVELS = 2;
+
+	/**
+	 * Request header value that prevents the image request handler from downloading the images.
+	 */
+	public static final String ONLY_IF_CACHED = "only-if-cached";
+
+	private static final int NB_DOWNLOAD_THREADS = 2;
+	private static final int MAX_PENDING_DOWNLOADS = 256;
+
+	private final LocalHttpDispatcher localHttpDispatcher;
+	private final Map<String, String> onlyIfCachedHeaders = new HashMap<String, String>();
+	private final ExecutorService downloadExecutor = Executors.newFixedThreadPool(NB_DOWNLOAD_THREADS);
+	private final Map<String, Boolean> pendingTileUris = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicLong nbSynthesizedTiles = new AtomicLong();
+	private final AtomicLong synthesisDuration = new AtomicLong();
+	private final AtomicLong nbReplacedTiles = new AtomicLong();
+
+	/**
+	 * Create an OverzoomTileSynthesizer.
+	 *
+	 * @param localHttpDispatcher
+	 *     Dispatcher used to load the tiles from the image cache.
+	 */
+	public OverzoomTileSynthesizer(LocalHttpDispatcher localHttpDispatcher) {
+		this.localHttpDispatcher = localHttpDispatcher;
+		this.onlyIfCachedHeaders.put("Cache-Control", ONLY_IF_CACHED);
+	}
+
+	/**
+	 * Build a tile from the nearest ancestor that is in the image cache.
+	 *
+	 * @param tileUriBuilder
+	 *     Build the URIs of the ancestors.
+	 * @param tileCoordinates
+	 * @return tile image (PNG) or null if no ancestor is cached
+	 * @throws IOException
+	 */
+	public byte[] synthesize(TileUriBuilder tileUriBuilder, TileCoordinates tileCoordinates) throws IOException {
+		for (int nbLevels = 1; nbLevels <= MAX_OVERZOOM_LEVELS && nbLevels <= tileCoordinates.zoom; nbLevels++) {
+			TileCoordinates ancestor = tileCoordinates.getAncestor(nbLevels);
+			byte[] ancestorData = localHttpDispatcher.getContent(
+					tileUriBuilder.buildTileUri(ancestor.x, ancestor.y, ancestor.zoom), onlyIfCachedHeaders);
+			if (ancestorData != null) {
+				long startTime = System.currentTimeMillis();
+				byte[] tileData = upscale(ancestorData, nbLevels, tileCoordinates);
+				if (tileData != null) {
+					nbSynthesizedTiles.incrementAndGet();
+					synthesisDuration.addAndGet(System.currentTimeMillis() - startTime);
+					return tileData;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Download a tile in a background thread, the concurrent calls for the same tile are ignored.
+	 *
+	 * @param tileUri
+	 * @param headers
+	 *     Request headers, can be null.
+	 * @param onReplaced
+	 *     Called when the tile is in the image cache.
+	 */
+	public void downloadInBackground(final String tileUri, final Map<String, String> headers, final Runnable onReplaced) {
+		if (pendingTileUris.size() >= MAX_PENDING_DOWNLOADS || pendingTileUris.put(tileUri, Boolean.TRUE) != null) {
+			return;
+		}
+
+		downloadExecutor.execute(new Runnable() {
+			@Override public void run() {
+				try {
+					if (localHttpDispatcher.getContent(tileUri, headers) != null) {
+						nbReplacedTiles.incrementAndGet();
+						onReplaced.run();
+					}
+				} catch (IOException e) {
+					Log.w(LOG_TAG, "Unable to download the tile " + tileUri, e);
+				} finally {
+					pendingTileUris.remove(tileUri);
+				}
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		long nbTiles = nbSynthesizedTiles.get();
+		return "OverzoomTileSynthesizer [synthesizedTiles=" + nbTiles +
+				", synthesisAverageTime=" + (nbTiles == 0 ? 0 : synthesisDuration.get() / nbTiles) + "ms" +
+				", replacedTiles=" + nbReplacedTiles.get() + "]";
+	}
+
+	/**
+	 * Build the URI of the tiles served by the image request handler.
+	 */
+	public static interface TileUriBuilder {
+		/**
+		 * @param x
+		 * @param y
+		 * @param zoom
+		 * @return request path and query
+		 */
+		public String buildTileUri(int x, int y, int zoom);
+	}
+
+	/**
+	 * Crop the part of an ancestor tile that covers the given tile and scale it to the ancestor size.
+	 *
+	 * @param ancestorData
+	 * @param nbLevels
+	 *     Number of zoom levels between the tile and its ancestor.
+	 * @param tileCoordinates
+	 * @return tile image (PNG) or null if the ancestor cannot be decoded
+	 */
+	private static byte[] upscale(byte[] ancestorData, int nbLevels, TileCoordinates tileCoordinates) {
+		Bitmap ancestorBitmap = BitmapFactory.decodeByteArray(ancestorData, 0, ancestorData.length);
+		if (ancestorBitmap == null) {
+			return null;
+		}
+		int tileSize = ancestorBitmap.getWidth();
+		int partSize = tileSize >> nbLevels;
+		if (partSize == 0 || ancestorBitmap.getHeight() != tileSize) {
+			ancestorBitmap.recycle();
+			return null;
+		}
+
+		// Note: the position of the tile in its ancestor is given by the lowest bits of its coordinates
+		int mask = (1 << nbLevels) - 1;
+		Bitmap part = Bitmap.createBitmap(ancestorBitmap, (tileCoordinates.x & mask) * partSize,
+				(tileCoordinates.y & mask) * partSize, partSize, partSize);
+		Bitmap tileBitmap = Bitmap.createScaledBitmap(part, tileSize, tileSize, true);
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		tileBitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+
+		ancestorBitmap.recycle();
+		part.recycle();
+		tileBitmap.recycle();
+		return outputStream.toByteArray();
+	}
+}
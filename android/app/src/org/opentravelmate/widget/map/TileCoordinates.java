@@ -23,6 +23,17 @@ public class TileCoordinates {
 		this.y = y;
 	}
 	
+	/**
+	 * Get the tile of a lower zoom level that contains this one.
+	 * 
+	 * @param nbLevels
+	 *   Number of zoom levels between this tile and its ancestor.
+	 * @return ancestor tile coordinates
+	 */
+	public TileCoordinates getAncestor(int nbLevels) {
+		return new TileCoordinates(zoom - nbLevels, x >> nbLevels, y >> nbLevels);
+	}
+	
 	@Override
 	public String toString() {
 		return "TileCoordinates [zoom=" + zoom + ", x=" + x + ", y=" + y + "]";
@@ -0,0 +1,349 @@
+package org.opentravelmate.widget.map;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.opentravelmate.httpserver.DownloadScheduler;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.CameraPosition;
+
+/**
+ * Give the priority class of the tiles requested by a map to the {@link DownloadScheduler}:
+ * the tiles of the viewport are visible, the ones around it are adjacent. The waiting downloads
+ * of the released tiles are cancelled.
+ * The time to complete a viewport is measured from the first request of its new tiles until all of them
+ * are served. Note: a viewport whose tiles are still in the map memory is never completed, it is counted
+ * as abandoned when the camera moves again.
+ *
+ * @author Marc Plouhinec
+ */
+class TileDownloadPrioritizer implements TileObserver.CameraListener, TileObserver.TilesListener {
+
+	private static final String LOG_TAG = "TileDownloadPrioritizer";
+	private static final int MAX_REMEMBERED_TILE_URIS = 512;
+	private static final long MAX_TILE_REQUEST_AGE = 10000;
+
+	private final DownloadScheduler downloadScheduler;
+	private final List<TileOverlay> tileOverlays = new CopyOnWriteArrayList<TileOverlay>();
+	private volatile Viewport viewport = null;
+
+	// Tile requests and viewport completion (synchronized on this)
+	private final Map<String, TileRequest> tileRequestByUri = new LinkedHashMap<String, TileRequest>(64, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+		@Override protected boolean removeEldestEntry(Map.Entry<String, TileRequest> eldest) {
+			return size() > MAX_REMEMBERED_TILE_URIS;
+		}
+	};
+	private Set<String> remainingViewportTileUris = new HashSet<String>();
+	private long viewportStartTime = 0;
+	private long nbCompletedViewports = 0;
+	private long nbAbandonedViewports = 0;
+	private long viewportCompletionDuration = 0;
+	private long lastViewportCompletionDuration = 0;
+
+	/**
+	 * Create a TileDownloadPrioritizer.
+	 *
+	 * @param downloadScheduler
+	 *     Scheduler of the tile downloads.
+	 */
+	public TileDownloadPrioritizer(DownloadScheduler downloadScheduler) {
+		this.downloadScheduler = downloadScheduler;
+	}
+
+	/**
+	 * Handle the tiles of the given overlay.
+	 *
+	 * @param tileOverlay
+	 */
+	public void addTileOverlay(TileOverlay tileOverlay) {
+		removeTileOverlay(tileOverlay.id);
+		tileOverlays.add(tileOverlay);
+	}
+
+	/**
+	 * Stop handling the tiles of the given overlay.
+	 *
+	 * @param tileOverlayId
+	 */
+	public void removeTileOverlay(int tileOverlayId) {
+		for (TileOverlay tileOverlay : tileOverlays) {
+			if (tileOverlay.id == tileOverlayId) {
+				tileOverlays.remove(tileOverlay);
+			}
+		}
+	}
+
+	/**
+	 * Find the priority class of a tile requested by the map.
+	 *
+	 * @param x
+	 * @param y
+	 * @param zoom
+	 * @return {@link DownloadScheduler#VISIBLE} or {@link DownloadScheduler#ADJACENT}
+	 */
+	public int getPriority(int x, int y, int zoom) {
+		Viewport currentViewport = viewport;
+		if (currentViewport != null && currentViewport.contains(x, y, zoom)) {
+			return DownloadScheduler.VISIBLE;
+		}
+		// Note: the map also asks for the tiles around the viewport and the ones of the zoom animations
+		return DownloadScheduler.ADJACENT;
+	}
+
+	/**
+	 * Function called when the map asks for a tile.
+	 *
+	 * @param tileUri
+	 */
+	public synchronized void onTileRequested(String tileUri) {
+		TileRequest tileRequest = tileRequestByUri.get(tileUri);
+		if (tileRequest == null || tileRequest.servedTime != 0) {
+			tileRequestByUri.put(tileUri, new TileRequest(SystemClock.uptimeMillis()));
+		}
+	}
+
+	/**
+	 * Function called when a tile has been sent to the map (or when it doesn't exist).
+	 *
+	 * @param tileUri
+	 */
+	public synchronized void onTileServed(String tileUri) {
+		long now = SystemClock.uptimeMillis();
+		TileRequest tileRequest = tileRequestByUri.get(tileUri);
+		if (tileRequest != null) {
+			tileRequest.servedTime = now;
+		}
+		if (remainingViewportTileUris.remove(tileUri) && remainingViewportTileUris.isEmpty()) {
+			completeViewport(now);
+		}
+	}
+
+	@Override
+	public void on(CameraPosition cameraPosition, List<TileCoordinates> displayedTileCoordinates) {
+		Viewport previousViewport = viewport;
+		Viewport newViewport = Viewport.fromDisplayedTileCoordinates(displayedTileCoordinates);
+		if (newViewport == null || newViewport.equals(previousViewport)) {
+			return;
+		}
+		viewport = newViewport;
+
+		// Wait for the new tiles of the viewport
+		Set<String> newTileUris = new HashSet<String>();
+		for (int y = newViewport.minY; y <= newViewport.maxY; y++) {
+			for (int x = newViewport.minX; x <= newViewport.maxX; x++) {
+				if (previousViewport == null || !previousViewport.contains(x, y, newViewport.zoom)) {
+					newTileUris.addAll(buildTileUris(x, y, newViewport.zoom));
+				}
+			}
+		}
+		startViewport(newTileUris);
+	}
+
+	/**
+	 * Cancel the waiting downloads of the released tiles.
+	 */
+	@Override
+	public void on(List<TileCoordinates> releasedTileCoordinates) {
+		for (TileCoordinates tileCoordinates : releasedTileCoordinates) {
+			int nbTiles = 1 << tileCoordinates.zoom;
+			if (tileCoordinates.zoom < 0 || tileCoordinates.y < 0 || tileCoordinates.y >= nbTiles) {
+				continue;
+			}
+			int x = ((tileCoordinates.x % nbTiles) + nbTiles) % nbTiles;
+			for (TileOverlay tileOverlay : tileOverlays) {
+				downloadScheduler.cancel(NativeMap.buildTileUrl(tileOverlay.tileUrlPattern, x, tileCoordinates.y, tileCoordinates.zoom));
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TileDownloadPrioritizer [completedViewports=" + nbCompletedViewports +
+				", abandonedViewports=" + nbAbandonedViewports +
+				", averageTimeToCompleteViewport=" + (nbCompletedViewports == 0 ? 0 : viewportCompletionDuration / nbCompletedViewports) + "ms" +
+				", lastTimeToCompleteViewport=" + lastViewportCompletionDuration + "ms]";
+	}
+
+	/**
+	 * Start to measure the time to complete a new viewport.
+	 * The tiles may have been requested (and even served) before the camera change notification,
+	 * during the last seconds.
+	 *
+	 * @param newTileUris
+	 */
+	private synchronized void startViewport(Set<String> newTileUris) {
+		if (!remainingViewportTileUris.isEmpty()) {
+			nbAbandonedViewports++;
+		}
+		remainingViewportTileUris = new HashSet<String>();
+		long now = SystemClock.uptimeMillis();
+		viewportStartTime = now;
+		if (newTileUris.isEmpty()) {
+			return;
+		}
+
+		long lastServedTime = 0;
+		for (String tileUri : newTileUris) {
+			TileRequest tileRequest = tileRequestByUri.get(tileUri);
+			if (tileRequest != null && tileRequest.requestTime < now - MAX_TILE_REQUEST_AGE) {
+				tileRequest = null;
+			}
+			if (tileRequest != null) {
+				viewportStartTime = Math.min(viewportStartTime, tileRequest.requestTime);
+			}
+			if (tileRequest != null && tileRequest.servedTime != 0) {
+				lastServedTime = Math.max(lastServedTime, tileRequest.servedTime);
+			} else {
+				remainingViewportTileUris.add(tileUri);
+			}
+		}
+		if (remainingViewportTileUris.isEmpty()) {
+			completeViewport(lastServedTime);
+		}
+	}
+
+	/**
+	 * Record the time to complete the current viewport.
+	 *
+	 * @param completionTime
+	 */
+	private void completeViewport(long completionTime) {
+		lastViewportCompletionDuration = completionTime - viewportStartTime;
+		viewportCompletionDuration += lastViewportCompletionDuration;
+		nbCompletedViewports++;
+		Log.d(LOG_TAG, "Viewport completed in " + lastViewportCompletionDuration + "ms");
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param zoom
+	 * @return URI of the given tile for each overlay
+	 */
+	private Set<String> buildTileUris(int x, int y, int zoom) {
+		Set<String> tileUris = new HashSet<String>();
+		int nbTiles = 1 << zoom;
+		if (zoom < 0 || y < 0 || y >= nbTiles) {
+			return tileUris;
+		}
+		x = ((x % nbTiles) + nbTiles) % nbTiles;
+		for (TileOverlay tileOverlay : tileOverlays) {
+			tileUris.add(NativeMap.buildTileUri(tileOverlay.tileUrlPattern, tileOverlay.enableGrayscaleFilter, x, y, zoom));
+		}
+		return tileUris;
+	}
+
+	/**
+	 * Request time of a tile.
+	 */
+	private static class TileRequest {
+
+		private final long requestTime;
+		private long servedTime = 0;
+
+		/**
+		 * Create a TileRequest.
+		 *
+		 * @param requestTime
+		 */
+		public TileRequest(long requestTime) {
+			this.requestTime = requestTime;
+		}
+	}
+
+	/**
+	 * Tiles of the viewport, without the adjacent ones.
+	 */
+	private static class Viewport {
+
+		private final int zoom;
+		private final int minX;
+		private final int minY;
+		private final int maxX;
+		private final int maxY;
+
+		/**
+		 * Create a Viewport.
+		 *
+		 * @param zoom
+		 * @param minX
+		 * @param minY
+		 * @param maxX
+		 * @param maxY
+		 */
+		public Viewport(int zoom, int minX, int minY, int maxX, int maxY) {
+			this.zoom = zoom;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+
+		/**
+		 * Remove the adjacent tiles that the {@link TileObserver} adds around the viewport.
+		 *
+		 * @param displayedTileCoordinates
+		 * @return viewport or null if no tile is displayed
+		 */
+		public static Viewport fromDisplayedTileCoordinates(List<TileCoordinates> displayedTileCoordinates) {
+			if (displayedTileCoordinates.isEmpty()) {
+				return null;
+			}
+			int zoom = displayedTileCoordinates.get(0).zoom;
+			int minX = Integer.MAX_VALUE;
+			int minY = Integer.MAX_VALUE;
+			int maxX = Integer.MIN_VALUE;
+			int maxY = Integer.MIN_VALUE;
+			for (TileCoordinates tileCoordinates : displayedTileCoordinates) {
+				minX = Math.min(minX, tileCoordinates.x);
+				minY = Math.min(minY, tileCoordinates.y);
+				maxX = Math.max(maxX, tileCoordinates.x);
+				maxY = Math.max(maxY, tileCoordinates.y);
+			}
+			return new Viewport(zoom, minX + 1, minY + 1, maxX - 1, maxY - 1);
+		}
+
+		/**
+		 * @param x
+		 * @param y
+		 * @param zoom
+		 * @return true if the given tile is in the viewport
+		 */
+		public boolean contains(int x, int y, int zoom) {
+			if (zoom != this.zoom || y < minY || y > maxY) {
+				return false;
+			}
+			// Note: the tiles requested by the map are between 0 and 2^zoom - 1
+			int nbTiles = 1 << zoom;
+			int normalizedX = ((x % nbTiles) + nbTiles) % nbTiles;
+			for (int viewportX = minX; viewportX <= maxX; viewportX++) {
+				if (((viewportX % nbTiles) + nbTiles) % nbTiles == normalizedX) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Viewport)) {
+				return false;
+			}
+			Viewport other = (Viewport) object;
+			return zoom == other.zoom && minX == other.minX && minY == other.minY && maxX == other.maxX && maxY == other.maxY;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((((zoom * 31) + minX) * 31 + minY) * 31 + maxX) * 31 + maxY;
+		}
+	}
+}
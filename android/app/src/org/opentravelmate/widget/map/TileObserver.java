@@ -13,7 +13,7 @@ import com.google.android.gms.maps.GoogleMap.OnCameraChangeListener;
 import com.google.android.gms.maps.model.CameraPosition;
 
 /**
- * Observe the tile life-cycles (displayed, released).
+ * Observe the tile life-cycles (displayed, released) and the camera moves.
  *
  * @author Marc Plouhinec
  */
@@ -25,6 +25,7 @@ public class TileObserver {
 	private Map<String, TileCoordinates> currentlyDisplayedTileCoordinateById;
 	private List<TilesListener> tileDisplayedListeners = new LinkedList<TilesListener>();
 	private List<TilesListener> tileReleasedListeners = new LinkedList<TilesListener>();
+	private List<CameraListener> cameraListeners = new LinkedList<CameraListener>();
 	
 	/**
 	 * Create a new TileObserver.
@@ -59,6 +60,15 @@ public class TileObserver {
 		this.tileReleasedListeners.add(listener);
 	}
 	
+	/**
+	 * Register a listener called each time the camera moves.
+	 * 
+	 * @param listener
+	 */
+	public void onCameraChange(CameraListener listener) {
+		this.cameraListeners.add(listener);
+	}
+	
 	/**
 	 * Get the displayed tiles coordinates.
 	 * 
@@ -155,6 +165,13 @@ public class TileObserver {
 					}
 				}
 			}
+			
+			if (!cameraListeners.isEmpty()) {
+				List<TileCoordinates> displayedTileCoordinates = getDisplayedTileCoordinates();
+				for (CameraListener listener : cameraListeners) {
+					listener.on(cameraPosition, displayedTileCoordinates);
+				}
+			}
 		}
 	}
 	
@@ -169,4 +186,17 @@ public class TileObserver {
 		 */
 		public void on(List<TileCoordinates> tileCoordinates);
 	}
+	
+	/**
+	 * Camera move listener.
+	 */
+	public static interface CameraListener {
+		/**
+		 * Function called when the camera has moved.
+		 * 
+		 * @param cameraPosition
+		 * @param displayedTileCoordinates
+		 */
+		public void on(CameraPosition cameraPosition, List<TileCoordinates> displayedTileCoordinates);
+	}
 }
@@ -0,0 +1,356 @@
+package org.opentravelmate.widget.map;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opentravelmate.httpserver.DownloadScheduler;
+import org.opentravelmate.httpserver.LocalHttpDispatcher;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.CameraPosition;
+
+/**
+ * Load in advance the tiles that will probably be displayed soon, so that they are in the image cache
+ * when the map asks for them.
+ * The next tiles are predicted from the last camera move: the tiles ahead of the pan direction,
+ * and the children or parent tiles when the user is zooming in or out.
+ * The tiles are loaded in a low priority thread, with a limited number of tiles per second,
+ * and their downloads have the lowest priority of the {@link DownloadScheduler}.
+ *
+ * @author Marc Plouhinec
+ */
+class TilePrefetcher implements TileObserver.CameraListener {
+
+	private static final String LOG_TAG = "TilePrefetcher";
+
+	/**
+	 * Default maximum number of tiles loaded per second.
+	 */
+	public static final int DEFAULT_MAX_TILES_PER_SECOND = 8;
+
+	private static final long MAX_MOVE_INTERVAL = 3000;
+	private static final int MAX_LOOKAHEAD_TILES = 4;
+	private static final int MAX_REMEMBERED_PREFETCHED_URIS = 512;
+
+	private final LocalHttpDispatcher localHttpDispatcher;
+	private final Map<String, String> requestHeaders = new HashMap<String, String>();
+	private final int maxTilesPerSecond;
+	private final List<TileOverlay> tileOverlays = new CopyOnWriteArrayList<TileOverlay>();
+	private final BlockingQueue<String> pendingTileUris = new LinkedBlockingQueue<String>();
+	private final Map<String, Boolean> prefetchedTileUris = new LinkedHashMap<String, Boolean>(64, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+		@Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_REMEMBERED_PREFETCHED_URIS;
+		}
+	};
+	private final AtomicLong nbPrefetchedTiles = new AtomicLong();
+	private final AtomicLong nbHits = new AtomicLong();
+	private Thread prefetchThread = null;
+
+	// Last camera position (only accessed from the UI thread)
+	private float previousZoom;
+	private double previousCenterX;
+	private double previousCenterY;
+	private long previousMoveTime = 0;
+
+	/**
+	 * Create a TilePrefetcher.
+	 *
+	 * @param localHttpDispatcher
+	 *     Dispatcher used to load the tiles into the image cache.
+	 * @param maxTilesPerSecond
+	 *     Maximum number of tiles loaded per second.
+	 */
+	public TilePrefetcher(LocalHttpDispatcher localHttpDispatcher, int maxTilesPerSecond) {
+		this.localHttpDispatcher = localHttpDispatcher;
+		this.maxTilesPerSecond = maxTilesPerSecond;
+		this.requestHeaders.put(DownloadScheduler.PRIORITY_HEADER, DownloadScheduler.formatPriority(DownloadScheduler.PREFETCH));
+	}
+
+	/**
+	 * Prefetch the tiles of the given overlay.
+	 *
+	 * @param tileOverlay
+	 */
+	public void addTileOverlay(TileOverlay tileOverlay) {
+		removeTileOverlay(tileOverlay.id);
+		tileOverlays.add(tileOverlay);
+	}
+
+	/**
+	 * Stop prefetching the tiles of the given overlay.
+	 *
+	 * @param tileOverlayId
+	 */
+	public void removeTileOverlay(int tileOverlayId) {
+		for (TileOverlay tileOverlay : tileOverlays) {
+			if (tileOverlay.id == tileOverlayId) {
+				tileOverlays.remove(tileOverlay);
+			}
+		}
+	}
+
+	/**
+	 * Function called when the map asks for a tile, in order to measure the prefetching hit rate.
+	 *
+	 * @param tileUri
+	 */
+	public void onTileRequested(String tileUri) {
+		synchronized (prefetchedTileUris) {
+			if (prefetchedTileUris.remove(tileUri) != null) {
+				nbHits.incrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public void on(CameraPosition cameraPosition, List<TileCoordinates> displayedTileCoordinates) {
+		int zoom = Math.round(cameraPosition.zoom);
+		double centerX = ProjectionUtils.lngToTileX(zoom, cameraPosition.target.longitude);
+		double centerY = ProjectionUtils.latToTileY(zoom, cameraPosition.target.latitude);
+		long now = SystemClock.uptimeMillis();
+
+		if (previousMoveTime != 0 && now - previousMoveTime <= MAX_MOVE_INTERVAL && !tileOverlays.isEmpty()) {
+			List<TileCoordinates> predictedTileCoordinates = new ArrayList<TileCoordinates>();
+
+			// Tiles ahead of the pan direction
+			double scale = Math.pow(2, zoom - Math.round(previousZoom));
+			double dx = clamp(centerX - previousCenterX * scale, MAX_LOOKAHEAD_TILES);
+			double dy = clamp(centerY - previousCenterY * scale, MAX_LOOKAHEAD_TILES);
+			if (Math.abs(dx) >= 0.5 || Math.abs(dy) >= 0.5) {
+				predictedTileCoordinates.addAll(findTilesAhead(
+						displayedTileCoordinates, zoom, centerX + dx, centerY + dy, (int) Math.round(dx), (int) Math.round(dy)));
+			}
+
+			// Tiles of the next zoom level
+			if (cameraPosition.zoom > previousZoom) {
+				predictedTileCoordinates.addAll(findChildTiles(zoom + 1, centerX * 2, centerY * 2));
+			} else if (cameraPosition.zoom < previousZoom) {
+				predictedTileCoordinates.addAll(findParentTiles(displayedTileCoordinates, zoom - 1));
+			}
+
+			schedule(predictedTileCoordinates);
+		}
+
+		previousZoom = cameraPosition.zoom;
+		previousCenterX = centerX;
+		previousCenterY = centerY;
+		previousMoveTime = now;
+	}
+
+	@Override
+	public String toString() {
+		long nbPrefetches = nbPrefetchedTiles.get();
+		return "TilePrefetcher [prefetchedTiles=" + nbPrefetches + ", hits=" + nbHits.get() +
+				", hitRate=" + (nbPrefetches == 0 ? 0 : nbHits.get() * 100 / nbPrefetches) + "%]";
+	}
+
+	/**
+	 * Find the tiles that will be displayed if the map continues to move in the same direction.
+	 *
+	 * @param displayedTileCoordinates
+	 * @param zoom
+	 * @param predictedCenterX
+	 * @param predictedCenterY
+	 * @param dx
+	 *     Predicted move in tiles.
+	 * @param dy
+	 *     Predicted move in tiles.
+	 * @return tile coordinates, the closest to the predicted center first
+	 */
+	private static List<TileCoordinates> findTilesAhead(List<TileCoordinates> displayedTileCoordinates,
+			int zoom, final double predictedCenterX, final double predictedCenterY, int dx, int dy) {
+		Set<String> displayedTileIds = new HashSet<String>();
+		for (TileCoordinates tileCoordinates : displayedTileCoordinates) {
+			displayedTileIds.add(tileCoordinates.x + "_" + tileCoordinates.y);
+		}
+
+		List<TileCoordinates> tilesAhead = new ArrayList<TileCoordinates>();
+		for (TileCoordinates tileCoordinates : displayedTileCoordinates) {
+			if (tileCoordinates.zoom != zoom) {
+				continue;
+			}
+			int x = tileCoordinates.x + dx;
+			int y = tileCoordinates.y + dy;
+			if (displayedTileIds.add(x + "_" + y)) {
+				tilesAhead.add(new TileCoordinates(zoom, x, y));
+			}
+		}
+
+		Collections.sort(tilesAhead, new Comparator<TileCoordinates>() {
+			@Override public int compare(TileCoordinates tile1, TileCoordinates tile2) {
+				return Double.compare(distance(tile1, predictedCenterX, predictedCenterY), distance(tile2, predictedCenterX, predictedCenterY));
+			}
+		});
+		return tilesAhead;
+	}
+
+	/**
+	 * Find the tiles of the next zoom level around the center.
+	 *
+	 * @param childZoom
+	 * @param centerX
+	 *     Center in the tile coordinates of the next zoom level.
+	 * @param centerY
+	 *     Center in the tile coordinates of the next zoom level.
+	 * @return tile coordinates
+	 */
+	private static List<TileCoordinates> findChildTiles(int childZoom, double centerX, double centerY) {
+		List<TileCoordinates> childTiles = new ArrayList<TileCoordinates>();
+		int centerTileX = (int) Math.floor(centerX);
+		int centerTileY = (int) Math.floor(centerY);
+		childTiles.add(new TileCoordinates(childZoom, centerTileX, centerTileY));
+		for (int y = centerTileY - 1; y <= centerTileY + 1; y++) {
+			for (int x = centerTileX - 1; x <= centerTileX + 1; x++) {
+				if (x != centerTileX || y != centerTileY) {
+					childTiles.add(new TileCoordinates(childZoom, x, y));
+				}
+			}
+		}
+		return childTiles;
+	}
+
+	/**
+	 * Find the tiles of the previous zoom level that contain the displayed tiles.
+	 *
+	 * @param displayedTileCoordinates
+	 * @param parentZoom
+	 * @return tile coordinates
+	 */
+	private static List<TileCoordinates> findParentTiles(List<TileCoordinates> displayedTileCoordinates, int parentZoom) {
+		List<TileCoordinates> parentTiles = new ArrayList<TileCoordinates>();
+		Set<String> parentTileIds = new HashSet<String>();
+		for (TileCoordinates tileCoordinates : displayedTileCoordinates) {
+			int x = tileCoordinates.x >> 1;
+			int y = tileCoordinates.y >> 1;
+			if (tileCoordinates.zoom == parentZoom + 1 && parentTileIds.add(x + "_" + y)) {
+				parentTiles.add(new TileCoordinates(parentZoom, x, y));
+			}
+		}
+		return parentTiles;
+	}
+
+	/**
+	 * Replace the pending tiles by the given ones.
+	 *
+	 * @param tileCoordinatesList
+	 */
+	private void schedule(List<TileCoordinates> tileCoordinatesList) {
+		pendingTileUris.clear();
+		for (TileCoordinates tileCoordinates : tileCoordinatesList) {
+			int nbTiles = 1 << tileCoordinates.zoom;
+			if (tileCoordinates.zoom < 0 || tileCoordinates.y < 0 || tileCoordinates.y >= nbTiles) {
+				continue;
+			}
+			int x = ((tileCoordinates.x % nbTiles) + nbTiles) % nbTiles;
+			for (TileOverlay tileOverlay : tileOverlays) {
+				pendingTileUris.offer(NativeMap.buildTileUri(
+						tileOverlay.tileUrlPattern, tileOverlay.enableGrayscaleFilter, x, tileCoordinates.y, tileCoordinates.zoom));
+			}
+		}
+
+		if (prefetchThread == null && !pendingTileUris.isEmpty()) {
+			prefetchThread = new PrefetchThread();
+			prefetchThread.start();
+		}
+	}
+
+	/**
+	 * @param tileCoordinates
+	 * @param x
+	 * @param y
+	 * @return distance between the center of the given tile and the given point
+	 */
+	private static double distance(TileCoordinates tileCoordinates, double x, double y) {
+		double dx = tileCoordinates.x + 0.5 - x;
+		double dy = tileCoordinates.y + 0.5 - y;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * @param value
+	 * @param max
+	 * @return value between -max and max
+	 */
+	private static double clamp(double value, double max) {
+		return value < -max ? -max : (value > max ? max : value);
+	}
+
+	/**
+	 * Load the pending tiles, without exceeding the maximum number of tiles per second.
+	 */
+	private class PrefetchThread extends Thread {
+
+		private long budgetPeriodStartTime = 0;
+		private int nbTilesInBudgetPeriod = 0;
+
+		/**
+		 * Create a PrefetchThread.
+		 */
+		public PrefetchThread() {
+			super("TilePrefetcher");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					String tileUri = pendingTileUris.take();
+					synchronized (prefetchedTileUris) {
+						if (prefetchedTileUris.containsKey(tileUri)) {
+							continue;
+						}
+					}
+
+					waitForBudget();
+					try {
+						if (localHttpDispatcher.getContent(tileUri, requestHeaders) != null) {
+							nbPrefetchedTiles.incrementAndGet();
+							synchronized (prefetchedTileUris) {
+								prefetchedTileUris.put(tileUri, Boolean.TRUE);
+							}
+						}
+					} catch (IOException e) {
+						Log.w(LOG_TAG, "Unable to prefetch the tile " + tileUri, e);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Stop prefetching
+			}
+		}
+
+		/**
+		 * Wait until a tile can be loaded without exceeding the maximum number of tiles per second.
+		 *
+		 * @throws InterruptedException
+		 */
+		private void waitForBudget() throws InterruptedException {
+			long now = SystemClock.uptimeMillis();
+			if (now - budgetPeriodStartTime >= 1000) {
+				budgetPeriodStartTime = now;
+				nbTilesInBudgetPeriod = 0;
+			} else if (nbTilesInBudgetPeriod >= maxTilesPerSecond) {
+				Thread.sleep(budgetPeriodStartTime + 1000 - now);
+				budgetPeriodStartTime = SystemClock.uptimeMillis();
+				nbTilesInBudgetPeriod = 0;
+			}
+			nbTilesInBudgetPeriod++;
+		}
+	}
+}
@@ -1,14 +1,13 @@
 package org.opentravelmate.widget.map;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.opentravelmate.commons.BgThreadExecutor;
 import org.opentravelmate.commons.ExceptionListener;
+import org.opentravelmate.commons.IOUtils;
+import org.opentravelmate.commons.OutboundHttpClient;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -59,12 +58,9 @@ public class UrlMarkerIconLoader {
 		BgThreadExecutor.execute(new Runnable() {
 			@Override public void run() {
 				try {
-					URL url = new URL(urlMarkerIcon.url);
-					HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-					connection.setDoInput(true);
-					connection.connect();
-					InputStream input = connection.getInputStream();
-					Bitmap bitmap = BitmapFactory.decodeStream(input);
+					// Note: the response is read until the end so that the connection can be reused
+					byte[] iconData = IOUtils.toByteArray(OutboundHttpClient.DEFAULT.open(urlMarkerIcon.url).getInputStream());
+					Bitmap bitmap = BitmapFactory.decodeByteArray(iconData, 0, iconData.length);
 					Bitmap resizedBitmap = resizeBitmap(bitmap, iconWidth, iconHeight);
 					addToIconCache(cacheId, resizedBitmap);
 					listener.onIconLoad(resizedBitmap);
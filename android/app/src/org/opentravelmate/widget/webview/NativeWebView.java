@@ -1,5 +1,8 @@
 package org.opentravelmate.widget.webview;
 
+import java.io.IOException;
+
+import org.apache.http.HttpStatus;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.opentravelmate.R;
@@ -7,6 +10,10 @@ import org.opentravelmate.commons.ExceptionListener;
 import org.opentravelmate.commons.I18nException;
 import org.opentravelmate.commons.UIThreadExecutor;
 import org.opentravelmate.geolocation.NativeGeolocation;
+import org.opentravelmate.httpserver.BundleRequestHandler;
+import org.opentravelmate.httpserver.LocalHttpDispatcher;
+import org.opentravelmate.httpserver.LocalHttpDispatcher.LocalResponse;
+import org.opentravelmate.httpserver.NativeRequestHandler;
 import org.opentravelmate.widget.HtmlLayout;
 import org.opentravelmate.widget.HtmlLayoutParams;
 import org.opentravelmate.widget.map.NativeMap;
@@ -16,6 +23,7 @@ import android.view.View;
 import android.webkit.ConsoleMessage;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
@@ -28,24 +36,37 @@ public class NativeWebView {
 	
 	public static final String GLOBAL_OBJECT_NAME = "org_opentravelmate_native_widget_webview_nativeWebView";
 	public static final String SCRIPT_URL = "/native/widget/webview/nativeWebView.js";
+	private static final String STARTUP_SCRIPT_MODULE_ID = "extensions/org/opentravelmate/controller/widget/webview/startupScript";
 	private final ExceptionListener exceptionListener;
 	private final HtmlLayout htmlLayout;
 	private final String baseUrl;
+	private final LocalHttpDispatcher localHttpDispatcher;
 	private final NativeMap nativeMap;
 	private final NativeGeolocation nativeGeolocation;
 	
 	/**
 	 * Create a NativeWebView object.
+	 * 
+	 * @param exceptionListener
+	 * @param htmlLayout
+	 * @param baseUrl
+	 * @param localHttpDispatcher
+	 *     If not null, the requests to the base URL are intercepted and processed with this dispatcher
+	 *     instead of going through the HTTP server socket.
+	 * @param nativeMap
+	 * @param nativeGeolocation
 	 */
 	public NativeWebView(
 			ExceptionListener exceptionListener,
 			HtmlLayout htmlLayout,
 			String baseUrl,
+			LocalHttpDispatcher localHttpDispatcher,
 			NativeMap nativeMap,
 			NativeGeolocation nativeGeolocation) {
 		this.exceptionListener = exceptionListener;
 		this.htmlLayout = htmlLayout;
 		this.baseUrl = baseUrl;
+		this.localHttpDispatcher = localHttpDispatcher;
 		this.nativeMap = nativeMap;
 		this.nativeGeolocation = nativeGeolocation;
 	}
@@ -181,6 +202,9 @@ public class NativeWebView {
 					runStartupScript(view);
 				}
 			}
+			@Override public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+				return interceptLocalRequest(url);
+			}
 		});
 		webView.setWebChromeClient(new WebChromeClient() {
 			@Override public boolean onConsoleMessage(ConsoleMessage cm) {
@@ -199,6 +223,32 @@ public class NativeWebView {
 		webView.loadUrl(this.baseUrl + layoutParams.additionalParameters.get("url"));
 	}
 	
+	/**
+	 * Process a request to the base URL without going through the HTTP server socket.
+	 * Note: this function is called in a background thread.
+	 * 
+	 * @param url
+	 * @return response or null to let the web view send the request itself
+	 */
+	private WebResourceResponse interceptLocalRequest(String url) {
+		if (localHttpDispatcher == null || !url.startsWith(baseUrl)) {
+			return null;
+		}
+		
+		try {
+			LocalResponse response = localHttpDispatcher.get(url.substring(baseUrl.length() - 1), null);
+			if (response.statusCode != HttpStatus.SC_OK) {
+				// Let the HTTP server send the error with its status code
+				response.close();
+				return null;
+			}
+			return new WebResourceResponse(response.mimeType, response.charset, response.getContent());
+		} catch (IOException e) {
+			exceptionListener.onException(false, e);
+			return null;
+		}
+	}
+	
 	/**
 	 * Inject the startup script when the web view is loading its first page.
 	 * 
@@ -217,10 +267,21 @@ public class NativeWebView {
 				"  window.org_opentravelmate_widget_webview_webviewEntrypoint='" + layoutParams.additionalParameters.get("entrypoint") + "';" +
 				"  window.org_opentravelmate_widget_webview_webviewBaseUrl='" + this.baseUrl + "';" +
 				"  window.org_opentravelmate_widget_webview_additionalParameters=" + layoutParams.getAdditionalParametersAsJson() + ";" +
-				"  var script = document.createElement('script');" +
-				"  script.src = '" + this.baseUrl + "extensions/vendors/require.min.js';" +
-				"  script.setAttribute('data-main', '" + this.baseUrl + "extensions/org/opentravelmate/controller/widget/webview/startupScript');" +
-				"  document.body.appendChild(script);" +
+				"  function loadScript(src, onload) {" +
+				"    var script = document.createElement('script');" +
+				"    script.src = src;" +
+				"    script.onload = onload;" +
+				"    script.onerror = onload;" +
+				"    document.body.appendChild(script);" +
+				"  }" +
+				// Define all the injected java objects and the startup script modules before starting the application
+				"  loadScript('" + this.baseUrl + "extensions/vendors/require.min.js', function() {" +
+				"    loadScript('" + this.baseUrl + NativeRequestHandler.BOOTSTRAP_SCRIPT_URL.substring(1) + "', function() {" +
+				"      loadScript('" + this.baseUrl + BundleRequestHandler.URL_PREFIX.substring(1) + STARTUP_SCRIPT_MODULE_ID + ".js', function() {" +
+				"        requirejs({ baseUrl: '" + this.baseUrl + "', deps: ['" + STARTUP_SCRIPT_MODULE_ID + "'] });" +
+				"      });" +
+				"    });" +
+				"  });" +
 				"})();");
 	}
 	
@@ -0,0 +1,18 @@
+package android.content;
+
+/**
+ * Stub of the Android context that only provides the string resources used by the
+ * {@link org.opentravelmate.commons.I18nException}: the message is the resource identifier and its arguments.
+ *
+ * @author Marc Plouhinec
+ */
+public class Context {
+
+	public String getString(int resId, Object... formatArgs) {
+		StringBuilder message = new StringBuilder("String resource ").append(resId);
+		for (Object formatArg : formatArgs) {
+			message.append(' ').append(formatArg);
+		}
+		return message.toString();
+	}
+}
@@ -0,0 +1,49 @@
+package android.util;
+
+/**
+ * Stub of the Android logger that writes the warnings and the errors to the standard error.
+ *
+ * @author Marc Plouhinec
+ */
+public final class Log {
+
+	private Log() {
+	}
+
+	public static int v(String tag, String msg) {
+		return 0;
+	}
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int i(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return println("W", tag, msg, null);
+	}
+
+	public static int w(String tag, Throwable tr) {
+		return println("W", tag, null, tr);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return println("W", tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return println("E", tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println("E", tag, msg, tr);
+	}
+
+	private static int println(String level, String tag, String msg, Throwable tr) {
+		System.err.println(level + "/" + tag + ": " + (msg == null ? "" : msg) + (tr == null ? "" : " - " + tr));
+		return 0;
+	}
+}
@@ -0,0 +1,18 @@
+package org.opentravelmate;
+
+/**
+ * Stub of the resource identifiers generated by the Android build tools.
+ *
+ * @author Marc Plouhinec
+ */
+public final class R {
+
+	public static final class string {
+		public static final int httpserver_error_unable_to_create_httpserver = 1;
+		public static final int httpserver_error_unable_to_initialize_connection = 2;
+		public static final int httpserver_error_connection_closed = 3;
+		public static final int httpserver_error_io_error = 4;
+		public static final int httpserver_error_http_error = 5;
+		public static final int httpserver_error_internal_error = 6;
+	}
+}
@@ -0,0 +1,208 @@
+package org.opentravelmate.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentravelmate.commons.ExceptionListener;
+import org.opentravelmate.commons.I18nException;
+
+import android.content.Context;
+
+/**
+ * Compare the {@link HttpServer.Engine#BLOCKING} and {@link HttpServer.Engine#NIO} engines with 200 clients that
+ * keep their connection alive, like the web view and the map tiles loaded at the same time.
+ *
+ * Each client sends its requests one after the other on the same connection. When the server answers
+ * "503 Service Unavailable", closes the connection, or doesn't accept it or answer within {@link #READ_TIMEOUT} ms,
+ * the client opens a new connection. The "ok", "unavailable" and "timeouts" counters are reported with the throughput.
+ *
+ * @author Marc Plouhinec
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Threads(200)
+@Fork(1)
+public class HttpServerEngineBenchmark {
+
+	private static final int READ_TIMEOUT = 2000;
+	private static final int TILE_SIZE = 16 * 1024;
+	private static final byte[] REQUEST = ("GET /tile HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes();
+
+	/**
+	 * Server shared by all the clients.
+	 */
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		@Param({ "BLOCKING", "NIO" })
+		public String engine;
+
+		HttpServer httpServer;
+
+		@Setup(Level.Trial)
+		public void start() throws IOException {
+			I18nException.setContext(new Context());
+			final byte[] tile = new byte[TILE_SIZE];
+			Map<String, HttpRequestHandler> requestHandlerByPattern = new HashMap<String, HttpRequestHandler>();
+			requestHandlerByPattern.put("/tile", new HttpRequestHandler() {
+				@Override public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+					response.setEntity(new ByteArrayEntity(tile));
+				}
+			});
+			httpServer = new HttpServer(requestHandlerByPattern, new ExceptionListener() {
+				@Override public void onException(boolean isUnrecoverable, Exception e) {
+					// Note: the clients close their connections after a timeout
+				}
+			}, HttpServer.Engine.valueOf(engine));
+			httpServer.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			httpServer.stop();
+		}
+	}
+
+	/**
+	 * Keep-alive client.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Client {
+
+		public long ok;
+		public long unavailable;
+		public long timeouts;
+
+		private Socket socket;
+		private InputStream inputStream;
+		private OutputStream outputStream;
+
+		@Setup(Level.Iteration)
+		public void resetCounters() {
+			ok = 0;
+			unavailable = 0;
+			timeouts = 0;
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			closeSocket();
+		}
+
+		/**
+		 * Send a request and read its response.
+		 *
+		 * @param port
+		 * @throws IOException
+		 */
+		void get(int port) throws IOException {
+			try {
+				if (socket == null) {
+					socket = new Socket();
+					socket.setTcpNoDelay(true);
+					socket.setSoTimeout(READ_TIMEOUT);
+					socket.connect(new InetSocketAddress("127.0.0.1", port), READ_TIMEOUT);
+					inputStream = new BufferedInputStream(socket.getInputStream());
+					outputStream = socket.getOutputStream();
+				}
+				outputStream.write(REQUEST);
+				outputStream.flush();
+				String statusLine = readLine();
+				int contentLength = 0;
+				boolean isClosed = false;
+				for (String header = readLine(); header.length() > 0; header = readLine()) {
+					String lowerCaseHeader = header.toLowerCase();
+					if (lowerCaseHeader.startsWith("content-length:")) {
+						contentLength = Integer.parseInt(header.substring("content-length:".length()).trim());
+					} else if (lowerCaseHeader.startsWith("connection:") && lowerCaseHeader.contains("close")) {
+						isClosed = true;
+					}
+				}
+				for (int i = 0; i < contentLength; i++) {
+					if (inputStream.read() == -1) {
+						throw new IOException("Truncated response.");
+					}
+				}
+				if (statusLine.contains(" 200 ")) {
+					ok++;
+				} else {
+					unavailable++;
+				}
+				if (isClosed) {
+					closeSocket();
+				}
+			} catch (SocketTimeoutException e) {
+				// Note: also thrown when the connection is not accepted in time
+				timeouts++;
+				closeSocket();
+			} catch (IOException e) {
+				unavailable++;
+				closeSocket();
+			}
+		}
+
+		/**
+		 * @return line without its CRLF
+		 * @throws IOException
+		 */
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			for (int c = inputStream.read(); c != '\n'; c = inputStream.read()) {
+				if (c == -1) {
+					throw new IOException("Connection closed.");
+				}
+				if (c != '\r') {
+					line.append((char) c);
+				}
+			}
+			return line.toString();
+		}
+
+		private void closeSocket() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Do nothing
+				}
+				socket = null;
+			}
+		}
+	}
+
+	@Benchmark
+	public void keepAliveRequest(Server server, Client client) throws IOException {
+		client.get(server.httpServer.getPort());
+	}
+}
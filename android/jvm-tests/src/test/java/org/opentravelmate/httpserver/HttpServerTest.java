@@ -0,0 +1,46 @@
+package org.opentravelmate.httpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Test;
+import org.opentravelmate.commons.ExceptionListener;
+
+/**
+ * Test the {@link HttpServer} life cycle.
+ *
+ * @author Marc Plouhinec
+ */
+public class HttpServerTest {
+
+	@Test
+	public void testRestartOnReservedPort() throws IOException {
+		for (HttpServer.Engine engine : HttpServer.Engine.values()) {
+			final List<Exception> exceptions = Collections.synchronizedList(new ArrayList<Exception>());
+			ExceptionListener exceptionListener = new ExceptionListener() {
+				@Override public void onException(boolean isUnrecoverable, Exception e) {
+					exceptions.add(e);
+				}
+			};
+			InMemorySharedPreferences preferences = new InMemorySharedPreferences();
+
+			HttpServer firstServer = new HttpServer(Collections.<String, HttpRequestHandler>emptyMap(), exceptionListener, engine);
+			firstServer.start(new PortReservation(preferences, 47380, 16));
+			int port = firstServer.getPort();
+			firstServer.stop();
+
+			// Note: the second server is started immediately, like when the activity is recreated in the same process
+			HttpServer secondServer = new HttpServer(Collections.<String, HttpRequestHandler>emptyMap(), exceptionListener, engine);
+			secondServer.start(new PortReservation(preferences, 47380, 16));
+			assertEquals(engine.toString(), port, secondServer.getPort());
+			secondServer.stop();
+			assertTrue(engine + ": " + exceptions, exceptions.isEmpty());
+		}
+	}
+}
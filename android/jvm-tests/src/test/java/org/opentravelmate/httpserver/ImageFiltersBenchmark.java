@@ -0,0 +1,58 @@
+package org.opentravelmate.httpserver;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to filter the pixels of a 256x256 tile, as done by the {@link ImageFilterRenderer}
+ * once the tile is decoded into its reusable pixel buffer.
+ *
+ * @author Marc Plouhinec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageFiltersBenchmark {
+
+	private static final int TILE_SIZE = 256;
+
+	@Param({ "grayscale", "night", "brightness:40,tint:3366ff" })
+	public String filterDescription;
+
+	private ImageFilter filter;
+	private int[] tilePixels;
+	private int[] pixelBuffer;
+
+	@Setup
+	public void setUp() {
+		filter = ImageFilters.parse(filterDescription);
+		tilePixels = new int[TILE_SIZE * TILE_SIZE];
+		Random random = new Random(42);
+		for (int i = 0; i < tilePixels.length; i++) {
+			tilePixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+		}
+		pixelBuffer = new int[tilePixels.length];
+	}
+
+	@Benchmark
+	public int[] applyOnTile() {
+		System.arraycopy(tilePixels, 0, pixelBuffer, 0, tilePixels.length);
+		filter.apply(pixelBuffer, 0, pixelBuffer.length);
+		return pixelBuffer;
+	}
+}
@@ -0,0 +1,108 @@
+package org.opentravelmate.httpserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Test the pixel math of the {@link ImageFilters}.
+ *
+ * @author Marc Plouhinec
+ */
+public class ImageFiltersTest {
+
+	@Test
+	public void desaturateUsesTheLuminanceCoefficientsAndKeepsTheAlpha() {
+		assertEquals(0x80353535, apply(new ImageFilters.Desaturate(), 0x80FF0000));
+		assertEquals(0xFFB6B6B6, apply(new ImageFilters.Desaturate(), 0xFF00FF00));
+		assertEquals(0xFFFFFFFF, apply(new ImageFilters.Desaturate(), 0xFFFFFFFF));
+		assertEquals(0x00000000, apply(new ImageFilters.Desaturate(), 0x00000000));
+	}
+
+	@Test
+	public void brightnessClampsTheColorComponents() {
+		assertEquals(0xFF56FFFF, apply(new ImageFilters.Brightness(70), 0xFF10F0FF));
+		assertEquals(0x7F000000, apply(new ImageFilters.Brightness(-70), 0x7F102040));
+		assertEquals(0x7F000006, apply(new ImageFilters.Brightness(-58), 0x7F102040));
+	}
+
+	@Test
+	public void nightInvertsAndDarkensTheColors() {
+		assertEquals(0xFF000000, apply(new ImageFilters.Night(), 0xFFFFFFFF));
+		assertEquals(0xFFCCCCCC, apply(new ImageFilters.Night(), 0xFF000000));
+		assertEquals(0x40BFB2A5, apply(new ImageFilters.Night(), 0x40102030));
+	}
+
+	@Test
+	public void tintMultipliesTheColors() {
+		assertEquals(0xFF3366FF, apply(new ImageFilters.Tint(0x3366FF), 0xFFFFFFFF));
+		assertEquals(0xFF193380, apply(new ImageFilters.Tint(0x3366FF), 0xFF808080));
+		assertEquals(0x20000000, apply(new ImageFilters.Tint(0x3366FF), 0x20000000));
+	}
+
+	@Test
+	public void filtersOnlyModifyTheGivenRange() {
+		int[] pixels = { 0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000 };
+		new ImageFilters.Night().apply(pixels, 1, 2);
+		assertArrayEquals(new int[] { 0xFF000000, 0xFFCCCCCC, 0xFFCCCCCC, 0xFF000000 }, pixels);
+	}
+
+	@Test
+	public void chainAppliesTheFiltersInOrder() {
+		ImageFilter brightnessThenNight = ImageFilters.parse("brightness:40,night");
+		ImageFilter nightThenBrightness = ImageFilters.parse("night,brightness:40");
+
+		assertEquals("brightness40_night", brightnessThenNight.getName());
+		assertEquals("night_brightness40", nightThenBrightness.getName());
+		assertEquals(0xFFACACAC, apply(brightnessThenNight, 0xFF000000));
+		assertEquals(0xFFF4F4F4, apply(nightThenBrightness, 0xFF000000));
+	}
+
+	@Test
+	public void parseCreatesTheBuiltInFilters() {
+		assertEquals("grayscale", ImageFilters.parse("grayscale").getName());
+		assertEquals(apply(ImageFilters.parse("brightness:70,desaturate"), 0xFF336699),
+				apply(ImageFilters.parse("grayscale"), 0xFF336699));
+		assertEquals("brightness70", ImageFilters.parse("brightness").getName());
+		assertEquals("brightness-40", ImageFilters.parse(" Brightness:-40 ").getName());
+		assertEquals("tint3366ff", ImageFilters.parse("tint:3366FF").getName());
+		assertEquals("night", ImageFilters.parse("night").getName());
+	}
+
+	@Test
+	public void parseRejectsTheInvalidFilters() {
+		assertInvalid("unknown");
+		assertInvalid("grayscale,unknown");
+		assertInvalid("brightness:abc");
+		assertInvalid("tint");
+		assertInvalid("tint:zz");
+		assertInvalid("");
+	}
+
+	/**
+	 * @param filter
+	 * @param pixel
+	 * @return filtered pixel
+	 */
+	private static int apply(ImageFilter filter, int pixel) {
+		int[] pixels = { pixel };
+		filter.apply(pixels, 0, 1);
+		return pixels[0];
+	}
+
+	/**
+	 * Check that the given filter description is rejected.
+	 *
+	 * @param description
+	 */
+	private static void assertInvalid(String description) {
+		try {
+			ImageFilters.parse(description);
+			fail("The filter \"" + description + "\" should be invalid.");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.opentravelmate.httpserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentravelmate.commons.ExceptionListener;
+import org.opentravelmate.commons.IOUtils;
+import org.opentravelmate.commons.OutboundHttpClient;
+
+/**
+ * Test the {@link ImageRequestHandler} with a local tile server.
+ *
+ * @author Marc Plouhinec
+ */
+public class ImageRequestHandlerTest {
+
+	private static final long REFRESH_TIMEOUT = 5000;
+	private static final ExceptionListener EXCEPTION_LISTENER = new ExceptionListener() {
+		@Override public void onException(boolean isUnrecoverable, Exception e) {
+			// Do nothing
+		}
+	};
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private volatile byte[] tile = "old tile".getBytes();
+	private HttpServer tileServer;
+	private HttpServer imageServer;
+	private ImageRequestHandler imageRequestHandler;
+
+	@Before
+	public void startServers() throws IOException {
+		// Note: the tiles expire immediately, so they are revalidated each time they are served
+		Map<String, HttpRequestHandler> tileHandlerByPattern = new HashMap<String, HttpRequestHandler>();
+		tileHandlerByPattern.put("/tiles/*", new HttpRequestHandler() {
+			@Override public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+				response.setHeader("Cache-Control", "max-age=0");
+				response.setEntity(new ByteArrayEntity(tile));
+			}
+		});
+		tileServer = new HttpServer(tileHandlerByPattern, EXCEPTION_LISTENER, HttpServer.Engine.BLOCKING);
+		tileServer.start();
+
+		ContentHashManifest contentHashManifest = new ContentHashManifest();
+		imageRequestHandler = new ImageRequestHandler(
+				MappedTileStore.open(temporaryFolder.newFolder(), 1024 * 1024, TileCachePolicy.DEFAULT),
+				new OutboundHttpClient(6, 5000, 5000), new DownloadScheduler(4), new ImageMemoryCache(1024 * 1024),
+				contentHashManifest);
+		Map<String, HttpRequestHandler> imageHandlerByPattern = new HashMap<String, HttpRequestHandler>();
+		imageHandlerByPattern.put("/image/*", imageRequestHandler);
+		imageServer = new HttpServer(imageHandlerByPattern, EXCEPTION_LISTENER, HttpServer.Engine.BLOCKING);
+		Map<String, Long> maxAgeByUriPrefix = new HashMap<String, Long>();
+		maxAgeByUriPrefix.put("/image/", 60L);
+		imageServer.addResponseInterceptor(new ResponseCacheControl(contentHashManifest, new Date(), maxAgeByUriPrefix));
+		imageServer.start();
+	}
+
+	@After
+	public void stopServers() {
+		imageServer.stop();
+		imageRequestHandler.close();
+		tileServer.stop();
+	}
+
+	@Test
+	public void testClientCopyRefreshedAfterRevalidation() throws IOException, InterruptedException {
+		String imageUrl = "http://127.0.0.1:" + imageServer.getPort() + "/image/source/" +
+				URLEncoder.encode("http://127.0.0.1:" + tileServer.getPort() + "/tiles/0/0/0", "UTF-8");
+
+		// Note: the first response is streamed without ETag
+		HttpURLConnection connection = get(imageUrl, null);
+		assertEquals(HttpStatus.SC_OK, connection.getResponseCode());
+		assertArrayEquals("old tile".getBytes(), read(connection));
+		connection = get(imageUrl, null);
+		assertEquals(HttpStatus.SC_OK, connection.getResponseCode());
+		String oldEtag = connection.getHeaderField("ETag");
+		assertNotNull(oldEtag);
+		read(connection);
+
+		// The stale tile is served while the new one is downloaded in background
+		tile = "new tile".getBytes();
+		long timeout = System.currentTimeMillis() + REFRESH_TIMEOUT;
+		do {
+			Thread.sleep(50);
+			connection = get(imageUrl, oldEtag);
+		} while (connection.getResponseCode() == HttpStatus.SC_NOT_MODIFIED && System.currentTimeMillis() < timeout);
+		assertEquals(HttpStatus.SC_OK, connection.getResponseCode());
+		assertFalse(oldEtag.equals(connection.getHeaderField("ETag")));
+		assertArrayEquals("new tile".getBytes(), read(connection));
+	}
+
+	/**
+	 * Send a request to the image server.
+	 *
+	 * @param url
+	 * @param etag
+	 *   ETag of the client copy or null.
+	 * @return connection
+	 * @throws IOException
+	 */
+	private static HttpURLConnection get(String url, String etag) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setUseCaches(false);
+		if (etag != null) {
+			connection.setRequestProperty("If-None-Match", etag);
+		}
+		return connection;
+	}
+
+	/**
+	 * @param connection
+	 * @return response body
+	 * @throws IOException
+	 */
+	private static byte[] read(HttpURLConnection connection) throws IOException {
+		InputStream inputStream = connection.getInputStream();
+		try {
+			return IOUtils.toByteArray(inputStream);
+		} finally {
+			inputStream.close();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.opentravelmate.httpserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+
+/**
+ * {@link SharedPreferences} kept in memory, shared by the successive launches of a simulated application.
+ *
+ * @author Marc Plouhinec
+ */
+class InMemorySharedPreferences implements SharedPreferences {
+
+	private final Map<String, Object> valueByKey = new HashMap<String, Object>();
+
+	@Override
+	public synchronized Map<String, ?> getAll() {
+		return new HashMap<String, Object>(valueByKey);
+	}
+
+	@Override
+	public String getString(String key, String defValue) {
+		return (String) get(key, defValue);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Set<String> getStringSet(String key, Set<String> defValues) {
+		return (Set<String>) get(key, defValues);
+	}
+
+	@Override
+	public int getInt(String key, int defValue) {
+		return (Integer) get(key, defValue);
+	}
+
+	@Override
+	public long getLong(String key, long defValue) {
+		return (Long) get(key, defValue);
+	}
+
+	@Override
+	public float getFloat(String key, float defValue) {
+		return (Float) get(key, defValue);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue) {
+		return (Boolean) get(key, defValue);
+	}
+
+	@Override
+	public synchronized boolean contains(String key) {
+		return valueByKey.containsKey(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new Editor() {
+			private final Map<String, Object> modifiedValueByKey = new HashMap<String, Object>();
+			private boolean clear = false;
+
+			@Override public Editor putString(String key, String value) {
+				return put(key, value);
+			}
+			@Override public Editor putStringSet(String key, Set<String> values) {
+				return put(key, values);
+			}
+			@Override public Editor putInt(String key, int value) {
+				return put(key, value);
+			}
+			@Override public Editor putLong(String key, long value) {
+				return put(key, value);
+			}
+			@Override public Editor putFloat(String key, float value) {
+				return put(key, value);
+			}
+			@Override public Editor putBoolean(String key, boolean value) {
+				return put(key, value);
+			}
+			@Override public Editor remove(String key) {
+				return put(key, null);
+			}
+			@Override public Editor clear() {
+				clear = true;
+				return this;
+			}
+			@Override public boolean commit() {
+				synchronized (InMemorySharedPreferences.this) {
+					if (clear) {
+						valueByKey.clear();
+					}
+					for (Map.Entry<String, Object> entry : modifiedValueByKey.entrySet()) {
+						if (entry.getValue() == null) {
+							valueByKey.remove(entry.getKey());
+						} else {
+							valueByKey.put(entry.getKey(), entry.getValue());
+						}
+					}
+				}
+				return true;
+			}
+			@Override public void apply() {
+				commit();
+			}
+			private Editor put(String key, Object value) {
+				modifiedValueByKey.put(key, value);
+				return this;
+			}
+		};
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @param key
+	 * @param defValue
+	 * @return value of the key or defValue if not set
+	 */
+	private synchronized Object get(String key, Object defValue) {
+		Object value = valueByKey.get(key);
+		return value == null ? defValue : value;
+	}
+}
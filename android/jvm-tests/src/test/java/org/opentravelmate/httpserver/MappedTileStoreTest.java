@@ -0,0 +1,117 @@
+package org.opentravelmate.httpserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the {@link MappedTileStore}.
+ *
+ * @author Marc Plouhinec
+ */
+public class MappedTileStoreTest {
+
+	private static final long MAX_SIZE = 1024 * 1024;
+	private static final int TILE_SIZE = 16 * 1024;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void testPutGetAndReopen() throws IOException {
+		File directory = temporaryFolder.newFolder();
+		MappedTileStore store = MappedTileStore.open(directory, MAX_SIZE, TileCachePolicy.DEFAULT);
+		put(store, "tile-1", "metadata-1", newTile(1), 12);
+		put(store, "tile-2", "metadata-2", newTile(2), 12);
+		store.remove("tile-2");
+		assertEquals("metadata-1", store.getMetadata("tile-1"));
+		assertArrayEquals(newTile(1), store.get("tile-1").data);
+		assertNull(store.get("tile-2"));
+		assertNull(store.getMetadata("tile-2"));
+		store.close();
+
+		store = MappedTileStore.open(directory, MAX_SIZE, TileCachePolicy.DEFAULT);
+		assertEquals("metadata-1", store.get("tile-1").metadata);
+		assertNull(store.get("tile-2"));
+		store.close();
+	}
+
+	@Test
+	public void testUpdateMetadata() throws IOException {
+		MappedTileStore store = MappedTileStore.open(temporaryFolder.newFolder(), MAX_SIZE, TileCachePolicy.DEFAULT);
+		put(store, "tile", "old", newTile(3), 10);
+		assertEquals(true, store.updateMetadata("tile", "new"));
+		assertEquals("new", store.getMetadata("tile"));
+		assertArrayEquals(newTile(3), store.get("tile").data);
+		assertEquals(false, store.updateMetadata("unknown", "new"));
+		store.close();
+	}
+
+	@Test
+	public void testRemoveDuringCompaction() throws Exception {
+		// Pause the compaction after its snapshot of the index, when it ranks the entries
+		final CountDownLatch snapshotLatch = new CountDownLatch(1);
+		final CountDownLatch removeLatch = new CountDownLatch(1);
+		TileCachePolicy policy = new TileCachePolicy(8, 0.25, 64, 128) {
+			@Override public long getPriority(int zoom, int nbAccesses, long lastAccessTime) {
+				snapshotLatch.countDown();
+				try {
+					removeLatch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.getPriority(zoom, nbAccesses, lastAccessTime);
+			}
+		};
+		File directory = temporaryFolder.newFolder();
+		MappedTileStore store = MappedTileStore.open(directory, MAX_SIZE, policy);
+		int nbTiles = (int) (MAX_SIZE / TILE_SIZE) + 1;
+		for (int i = 0; i < nbTiles; i++) {
+			put(store, "tile-" + i, "", newTile(i), 14);
+		}
+		assertTrue(snapshotLatch.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < nbTiles; i++) {
+			store.remove("tile-" + i);
+		}
+		removeLatch.countDown();
+		for (int i = 0; i < 100 && !store.toString().contains("compactions=1"); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(store.toString().contains("compactions=1"));
+		for (int i = 0; i < nbTiles; i++) {
+			assertNull(store.get("tile-" + i));
+		}
+		store.close();
+
+		store = MappedTileStore.open(directory, MAX_SIZE, policy);
+		for (int i = 0; i < nbTiles; i++) {
+			assertNull("tile-" + i, store.get("tile-" + i));
+		}
+		store.close();
+	}
+
+	private static void put(TileStore store, String key, String metadata, byte[] data, int zoom) throws IOException {
+		TileStore.Editor editor = store.edit(key);
+		editor.setMetadata(metadata);
+		editor.setZoom(zoom);
+		editor.newOutputStream().write(data);
+		editor.commit();
+	}
+
+	private static byte[] newTile(int seed) {
+		byte[] tile = new byte[TILE_SIZE];
+		Arrays.fill(tile, (byte) seed);
+		return tile;
+	}
+}
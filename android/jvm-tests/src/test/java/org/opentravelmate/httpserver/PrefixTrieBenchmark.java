@@ -0,0 +1,88 @@
+package org.opentravelmate.httpserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare the {@link PrefixTrie} used by the {@link NativeRequestHandler} with the previous scan of all
+ * the registered URL prefixes, for hundreds of prefixes.
+ *
+ * @author Marc Plouhinec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrefixTrieBenchmark {
+
+	private static final int NB_URLS = 1024;
+
+	@Param({ "10", "100", "500" })
+	public int nbPrefixes;
+
+	private Map<String, String> classPathFolderByUrlPrefix;
+	private PrefixTrie<String> prefixTrie;
+	private String[] urls;
+	private int urlIndex = 0;
+
+	@Setup
+	public void setUp() {
+		// Prefixes like the ones of the native plugins: /native/<plugin>/ and /native/<plugin>/<sub folder>/
+		classPathFolderByUrlPrefix = new HashMap<String, String>();
+		for (int i = 0; classPathFolderByUrlPrefix.size() < nbPrefixes; i++) {
+			String plugin = "/native/plugin" + (i / 2) + "/";
+			String urlPrefix = i % 2 == 0 ? plugin : plugin + "resources/";
+			classPathFolderByUrlPrefix.put(urlPrefix, "org/opentravelmate/plugin" + i + "/");
+		}
+		prefixTrie = new PrefixTrie<String>(classPathFolderByUrlPrefix);
+
+		Random random = new Random(42);
+		urls = new String[NB_URLS];
+		for (int i = 0; i < NB_URLS; i++) {
+			int plugin = random.nextInt(nbPrefixes / 2);
+			urls[i] = "/native/plugin" + plugin + "/" + (random.nextBoolean() ? "resources/" : "") + "file" + i + ".js";
+		}
+	}
+
+	@Benchmark
+	public String trie() {
+		PrefixTrie.Match<String> match = prefixTrie.findLongestPrefix(nextUrl());
+		return match == null ? null : match.value;
+	}
+
+	@Benchmark
+	public String linearScan() {
+		String url = nextUrl();
+		String longestPrefix = null;
+		String value = null;
+		for (Map.Entry<String, String> entry : classPathFolderByUrlPrefix.entrySet()) {
+			String urlPrefix = entry.getKey();
+			if (url.startsWith(urlPrefix) && (longestPrefix == null || urlPrefix.length() > longestPrefix.length())) {
+				longestPrefix = urlPrefix;
+				value = entry.getValue();
+			}
+		}
+		return value;
+	}
+
+	private String nextUrl() {
+		urlIndex = (urlIndex + 1) & (NB_URLS - 1);
+		return urls[urlIndex];
+	}
+}
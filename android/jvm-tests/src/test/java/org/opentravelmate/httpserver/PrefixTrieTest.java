@@ -0,0 +1,46 @@
+package org.opentravelmate.httpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link PrefixTrie}.
+ *
+ * @author Marc Plouhinec
+ */
+public class PrefixTrieTest {
+
+	@Test
+	public void testFindLongestPrefix() {
+		Map<String, String> valueByPrefix = new HashMap<String, String>();
+		valueByPrefix.put("/native/", "native");
+		valueByPrefix.put("/native/map/", "map");
+		valueByPrefix.put("/native/map/markers/", "markers");
+		PrefixTrie<String> prefixTrie = new PrefixTrie<String>(valueByPrefix);
+
+		assertEquals("map", prefixTrie.findLongestPrefix("/native/map/map.js").value);
+		assertEquals("/native/map/", prefixTrie.findLongestPrefix("/native/map/map.js").prefix);
+		assertEquals("markers", prefixTrie.findLongestPrefix("/native/map/markers/icon.png").value);
+		assertEquals("native", prefixTrie.findLongestPrefix("/native/mapping.js").value);
+		assertEquals("native", prefixTrie.findLongestPrefix("/native/").value);
+		assertNull(prefixTrie.findLongestPrefix("/nat"));
+		assertNull(prefixTrie.findLongestPrefix("/image/a.png"));
+	}
+
+	@Test
+	public void testEmptyPrefix() {
+		Map<String, String> valueByPrefix = new HashMap<String, String>();
+		valueByPrefix.put("", "root");
+		valueByPrefix.put("/a/", "a");
+		PrefixTrie<String> prefixTrie = new PrefixTrie<String>(valueByPrefix);
+
+		assertEquals("root", prefixTrie.findLongestPrefix("/b").value);
+		assertEquals("a", prefixTrie.findLongestPrefix("/a/b").value);
+		assertNull(new PrefixTrie<String>(new HashMap<String, String>()).findLongestPrefix("/a"));
+	}
+}
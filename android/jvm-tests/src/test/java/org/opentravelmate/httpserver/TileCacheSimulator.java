@@ -0,0 +1,324 @@
+package org.opentravelmate.httpserver;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replay a trace of tile requests through the {@link TileCachePolicy#LRU} and {@link TileCachePolicy#DEFAULT}
+ * policies and print their hit ratios for several cache sizes.
+ *
+ * The cache is modelled like the {@link MappedTileStore}: each read or write is an access tick, and when the
+ * cache exceeds its maximum size, the pinned tiles then the entries with the highest priority are kept within
+ * 3/4 of the maximum size.
+ *
+ * A trace file contains one request per line: "zoom x y [size in bytes]", the lines that start with '#' are
+ * ignored. Without trace file, a synthetic trace of map sessions is generated: the user pans around a few
+ * favorite places at street level and zooms out to move from one place to another.
+ *
+ * @author Marc Plouhinec
+ */
+public class TileCacheSimulator {
+
+	/**
+	 * Maximum zoom level counted in the "low zoom" hit ratio.
+	 */
+	public static final int LOW_ZOOM_MAX = 10;
+
+	private static final int DEFAULT_TILE_SIZE = 20 * 1024;
+	private static final int[] CACHE_SIZES_IN_TILES = new int[] {250, 500, 1000, 2000};
+
+	/**
+	 * Run the simulation.
+	 *
+	 * @param args
+	 *   Optional path to a trace file.
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		List<Request> trace = args.length > 0 && args[0] != null && args[0].length() > 0 ?
+				readTrace(args[0]) : generateTrace(new Random(42), 200);
+		System.out.println("Requests: " + trace.size());
+		System.out.println(String.format("%-12s %-8s %10s %14s", "cache size", "policy", "hit ratio", "low zoom ratio"));
+		for (int cacheSizeInTiles : CACHE_SIZES_IN_TILES) {
+			long maxSize = (long) cacheSizeInTiles * DEFAULT_TILE_SIZE;
+			for (String policyName : new String[] {"LRU", "DEFAULT"}) {
+				TileCachePolicy policy = "LRU".equals(policyName) ? TileCachePolicy.LRU : TileCachePolicy.DEFAULT;
+				Result result = simulate(trace, maxSize, policy);
+				System.out.println(String.format("%-12s %-8s %9.1f%% %13.1f%%", (maxSize / 1024 / 1024) + "MB",
+						policyName, result.getHitRatio() * 100, result.getLowZoomHitRatio() * 100));
+			}
+		}
+	}
+
+	/**
+	 * Replay a trace through an empty cache.
+	 *
+	 * @param trace
+	 * @param maxSize
+	 *   Size in bytes above which the cache is compacted.
+	 * @param policy
+	 * @return hit counters
+	 */
+	public static Result simulate(List<Request> trace, long maxSize, TileCachePolicy policy) {
+		Map<String, CachedTile> tileByKey = new HashMap<String, CachedTile>();
+		Result result = new Result();
+		long accessClock = 0;
+		long size = 0;
+		for (Request request : trace) {
+			String key = request.getKey();
+			CachedTile cachedTile = tileByKey.get(key);
+			boolean isLowZoom = request.zoom <= LOW_ZOOM_MAX;
+			result.nbRequests++;
+			if (isLowZoom) {
+				result.nbLowZoomRequests++;
+			}
+			if (cachedTile != null) {
+				result.nbHits++;
+				if (isLowZoom) {
+					result.nbLowZoomHits++;
+				}
+				cachedTile.lastAccessTime = ++accessClock;
+				cachedTile.nbAccesses++;
+				continue;
+			}
+
+			// Download the tile and store it
+			tileByKey.put(key, new CachedTile(request.zoom, request.size, ++accessClock));
+			size += request.size;
+			if (size > maxSize) {
+				size = compact(tileByKey, maxSize, policy);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Evict entries like the {@link MappedTileStore} compaction.
+	 *
+	 * @param tileByKey
+	 * @param maxSize
+	 * @param policy
+	 * @return size of the kept entries
+	 */
+	private static long compact(Map<String, CachedTile> tileByKey, long maxSize, final TileCachePolicy policy) {
+		List<Map.Entry<String, CachedTile>> sortedEntries = new ArrayList<Map.Entry<String, CachedTile>>(tileByKey.entrySet());
+		Collections.sort(sortedEntries, new Comparator<Map.Entry<String, CachedTile>>() {
+			@Override public int compare(Map.Entry<String, CachedTile> entry1, Map.Entry<String, CachedTile> entry2) {
+				long priority1 = entry1.getValue().getPriority(policy);
+				long priority2 = entry2.getValue().getPriority(policy);
+				return priority1 > priority2 ? -1 : (priority1 < priority2 ? 1 : 0);
+			}
+		});
+
+		long targetSize = maxSize * 3 / 4;
+		long pinnedTargetSize = (long) (targetSize * policy.pinnedMaxRatio);
+		Map<String, CachedTile> keptTileByKey = new HashMap<String, CachedTile>();
+		long keptSize = 0;
+		for (Map.Entry<String, CachedTile> entry : sortedEntries) {
+			CachedTile cachedTile = entry.getValue();
+			if (policy.isPinned(cachedTile.zoom) && keptSize + cachedTile.size <= pinnedTargetSize) {
+				keptTileByKey.put(entry.getKey(), cachedTile);
+				keptSize += cachedTile.size;
+			}
+		}
+		for (Map.Entry<String, CachedTile> entry : sortedEntries) {
+			CachedTile cachedTile = entry.getValue();
+			if (!keptTileByKey.containsKey(entry.getKey()) && keptSize + cachedTile.size <= targetSize) {
+				keptTileByKey.put(entry.getKey(), cachedTile);
+				keptSize += cachedTile.size;
+			}
+		}
+		tileByKey.keySet().retainAll(keptTileByKey.keySet());
+		return keptSize;
+	}
+
+	/**
+	 * Read a trace file.
+	 *
+	 * @param path
+	 * @return requests
+	 * @throws IOException
+	 */
+	public static List<Request> readTrace(String path) throws IOException {
+		List<Request> trace = new ArrayList<Request>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if (fields.length < 3) {
+					throw new IOException("Invalid trace line: " + line);
+				}
+				int size = fields.length > 3 ? Integer.parseInt(fields[3]) : DEFAULT_TILE_SIZE;
+				trace.add(new Request(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), size));
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+
+	/**
+	 * Generate the requests of map sessions: the user goes to one of a few favorite places (or somewhere else),
+	 * zooming out to the region level, then zooming in to the street level and panning around.
+	 *
+	 * @param random
+	 * @param nbSessions
+	 * @return requests
+	 */
+	public static List<Request> generateTrace(Random random, int nbSessions) {
+		double[][] favoritePlaces = new double[5][];
+		for (int i = 0; i < favoritePlaces.length; i++) {
+			favoritePlaces[i] = new double[] {0.5 + random.nextDouble() * 0.02, 0.3 + random.nextDouble() * 0.02};
+		}
+
+		List<Request> trace = new ArrayList<Request>();
+		for (int session = 0; session < nbSessions; session++) {
+			double[] place = random.nextInt(4) == 0 ?
+					new double[] {random.nextDouble(), random.nextDouble()} :
+					favoritePlaces[random.nextInt(favoritePlaces.length)];
+			double x = place[0];
+			double y = place[1];
+			for (int zoom = 6; zoom <= 15; zoom += 3) {
+				addViewport(trace, zoom, x, y);
+			}
+			for (int i = 0; i < 10; i++) {
+				int zoom = 15 + random.nextInt(3);
+				double tileWidth = 1.0 / (1 << zoom);
+				x += (random.nextInt(3) - 1) * tileWidth;
+				y += (random.nextInt(3) - 1) * tileWidth;
+				addViewport(trace, zoom, x, y);
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * Add the requests of the 4x3 tiles around the given point.
+	 *
+	 * @param trace
+	 * @param zoom
+	 * @param x
+	 *   Horizontal position in the world, between 0 and 1.
+	 * @param y
+	 *   Vertical position in the world, between 0 and 1.
+	 */
+	private static void addViewport(List<Request> trace, int zoom, double x, double y) {
+		int nbTiles = 1 << zoom;
+		int centerX = (int) (x * nbTiles);
+		int centerY = (int) (y * nbTiles);
+		for (int tileY = centerY - 1; tileY <= centerY + 1; tileY++) {
+			for (int tileX = centerX - 2; tileX <= centerX + 1; tileX++) {
+				if (tileY >= 0 && tileY < nbTiles) {
+					trace.add(new Request(zoom, (tileX + nbTiles) % nbTiles, tileY, DEFAULT_TILE_SIZE));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tile request of a trace.
+	 */
+	public static class Request {
+
+		public final int zoom;
+		public final int x;
+		public final int y;
+
+		/**
+		 * Size of the tile in bytes.
+		 */
+		public final int size;
+
+		/**
+		 * Create a Request.
+		 *
+		 * @param zoom
+		 * @param x
+		 * @param y
+		 * @param size
+		 */
+		public Request(int zoom, int x, int y, int size) {
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+			this.size = size;
+		}
+
+		/**
+		 * @return cache key of the tile
+		 */
+		public String getKey() {
+			return zoom + "/" + x + "/" + y;
+		}
+	}
+
+	/**
+	 * Hit counters of a simulation.
+	 */
+	public static class Result {
+
+		public long nbRequests = 0;
+		public long nbHits = 0;
+		public long nbLowZoomRequests = 0;
+		public long nbLowZoomHits = 0;
+
+		/**
+		 * @return ratio of the requests served by the cache
+		 */
+		public double getHitRatio() {
+			return nbRequests == 0 ? 0 : (double) nbHits / nbRequests;
+		}
+
+		/**
+		 * @return ratio of the requests at zoom {@link TileCacheSimulator#LOW_ZOOM_MAX} or below served by the cache
+		 */
+		public double getLowZoomHitRatio() {
+			return nbLowZoomRequests == 0 ? 0 : (double) nbLowZoomHits / nbLowZoomRequests;
+		}
+	}
+
+	/**
+	 * Entry of the simulated cache.
+	 */
+	private static class CachedTile {
+
+		final int zoom;
+		final int size;
+		long lastAccessTime;
+		int nbAccesses = 1;
+
+		/**
+		 * Create a CachedTile.
+		 *
+		 * @param zoom
+		 * @param size
+		 * @param lastAccessTime
+		 */
+		CachedTile(int zoom, int size, long lastAccessTime) {
+			this.zoom = zoom;
+			this.size = size;
+			this.lastAccessTime = lastAccessTime;
+		}
+
+		/**
+		 * @param policy
+		 * @return priority of this entry
+		 */
+		long getPriority(TileCachePolicy policy) {
+			return policy.getPriority(zoom, nbAccesses, lastAccessTime);
+		}
+	}
+}
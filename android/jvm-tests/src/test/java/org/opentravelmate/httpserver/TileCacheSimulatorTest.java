@@ -0,0 +1,40 @@
+package org.opentravelmate.httpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link TileCachePolicy} with the {@link TileCacheSimulator}.
+ *
+ * @author Marc Plouhinec
+ */
+public class TileCacheSimulatorTest {
+
+	@Test
+	public void testLruEvictsLeastRecentlyUsed() {
+		// Cache of 4 tiles, compacted to 3 tiles
+		List<TileCacheSimulator.Request> trace = new ArrayList<TileCacheSimulator.Request>();
+		for (int x : new int[] {0, 1, 2, 3, 0, 4, 0, 1}) {
+			trace.add(new TileCacheSimulator.Request(15, x, 0, 1000));
+		}
+		TileCacheSimulator.Result result = TileCacheSimulator.simulate(trace, 4000, TileCachePolicy.LRU);
+		// Tile 0 is hit twice, tile 1 has been evicted when tile 4 has been added
+		assertEquals(2, result.nbHits);
+	}
+
+	@Test
+	public void testDefaultPolicyKeepsLowZoomTiles() {
+		List<TileCacheSimulator.Request> trace = TileCacheSimulator.generateTrace(new Random(42), 200);
+		long maxSize = 250 * 20 * 1024;
+		TileCacheSimulator.Result lruResult = TileCacheSimulator.simulate(trace, maxSize, TileCachePolicy.LRU);
+		TileCacheSimulator.Result defaultResult = TileCacheSimulator.simulate(trace, maxSize, TileCachePolicy.DEFAULT);
+		assertTrue(defaultResult.getLowZoomHitRatio() > lruResult.getLowZoomHitRatio() + 0.1);
+		assertTrue(defaultResult.getHitRatio() >= lruResult.getHitRatio());
+	}
+}
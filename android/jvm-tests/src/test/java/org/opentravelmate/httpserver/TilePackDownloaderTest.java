@@ -0,0 +1,111 @@
+package org.opentravelmate.httpserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentravelmate.commons.ExceptionListener;
+
+/**
+ * Test the {@link TilePackDownloader} with a local tile server.
+ *
+ * @author Marc Plouhinec
+ */
+public class TilePackDownloaderTest {
+
+	private static final int MIN_ZOOM = 0;
+	private static final int MAX_ZOOM = 2;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final AtomicInteger nbTileRequests = new AtomicInteger();
+	private HttpServer tileServer;
+
+	@Before
+	public void startTileServer() throws IOException {
+		Map<String, HttpRequestHandler> requestHandlerByPattern = new HashMap<String, HttpRequestHandler>();
+		requestHandlerByPattern.put("/tiles/*", new HttpRequestHandler() {
+			@Override public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+				nbTileRequests.incrementAndGet();
+				String target = request.getRequestLine().getUri();
+				if (isMissing(target)) {
+					response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+					return;
+				}
+				response.setEntity(new ByteArrayEntity(newTile(target)));
+			}
+		});
+		tileServer = new HttpServer(requestHandlerByPattern, new ExceptionListener() {
+			@Override public void onException(boolean isUnrecoverable, Exception e) {
+				// Do nothing
+			}
+		}, HttpServer.Engine.BLOCKING);
+		tileServer.start();
+	}
+
+	@After
+	public void stopTileServer() {
+		tileServer.stop();
+	}
+
+	@Test
+	public void testMissingTilesCompleteTheArchive() throws IOException {
+		OfflineRegion region = new OfflineRegion("http://127.0.0.1:" + tileServer.getPort() + "/tiles/${zoom}/${x}/${y}",
+				85, -180, -85, 180, MIN_ZOOM, MAX_ZOOM);
+		File packFile = new File(temporaryFolder.getRoot(), "world.pack");
+		TilePackDownloader downloader = new TilePackDownloader(region, packFile, 2, null);
+		assertTrue(downloader.toString(), downloader.run());
+		assertEquals(region.getTileCount(), nbTileRequests.get());
+
+		TilePack tilePack = TilePack.open(packFile);
+		assertEquals(region.getTileCount(), tilePack.getTileCount());
+		for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+			for (int x = region.getMinTileX(zoom); x <= region.getMaxTileX(zoom); x++) {
+				for (int y = region.getMinTileY(zoom); y <= region.getMaxTileY(zoom); y++) {
+					String tileUrl = region.buildTileUrl(zoom, x, y);
+					String target = tileUrl.substring(tileUrl.indexOf("/tiles/"));
+					assertArrayEquals(target, isMissing(target) ? new byte[0] : newTile(target), tilePack.get(tileUrl));
+				}
+			}
+		}
+		tilePack.close();
+
+		// Note: the missing tiles are not requested again when the download is resumed
+		assertTrue(new TilePackDownloader(region, packFile, 2, null).run());
+		assertEquals(region.getTileCount(), nbTileRequests.get());
+	}
+
+	/**
+	 * @param target
+	 * @return true if the tile server doesn't have this tile, like the tiles in the ocean
+	 */
+	private static boolean isMissing(String target) {
+		return target.startsWith("/tiles/" + MAX_ZOOM + "/0/");
+	}
+
+	/**
+	 * @param target
+	 * @return tile data
+	 */
+	private static byte[] newTile(String target) {
+		return target.getBytes();
+	}
+}
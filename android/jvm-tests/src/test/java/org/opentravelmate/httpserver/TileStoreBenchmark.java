@@ -0,0 +1,102 @@
+package org.opentravelmate.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare the {@link MappedTileStore} with the {@link DiskLruTileStore} when reading and writing tiles,
+ * reading their metadata only (cache revalidation) and when the stores evict entries.
+ *
+ * @author Marc Plouhinec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileStoreBenchmark {
+
+	private static final int NB_TILES = 1000;
+	private static final int TILE_SIZE = 16 * 1024;
+	private static final long MAX_SIZE = 32 * 1024 * 1024;
+	private static final String METADATA = "{\"expirationTime\":1700000000000,\"etag\":\"abcdef\"}";
+
+	@Param({ "mapped", "disklru" })
+	public String storeType;
+
+	private File directory;
+	private TileStore store;
+	private byte[] tile;
+	private Random random;
+	private int nbPuts;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = File.createTempFile("tile-store-benchmark", "");
+		directory.delete();
+		if ("mapped".equals(storeType)) {
+			store = MappedTileStore.open(directory, MAX_SIZE, TileCachePolicy.DEFAULT);
+		} else {
+			store = DiskLruTileStore.open(directory, 1, MAX_SIZE);
+		}
+		tile = new byte[TILE_SIZE];
+		random = new Random(42);
+		random.nextBytes(tile);
+		for (int i = 0; i < NB_TILES; i++) {
+			put("tile-" + i);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		store.close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public TileStore.Entry get() throws IOException {
+		return store.get("tile-" + random.nextInt(NB_TILES));
+	}
+
+	@Benchmark
+	public String getMetadata() throws IOException {
+		return store.getMetadata("tile-" + random.nextInt(NB_TILES));
+	}
+
+	@Benchmark
+	public void put() throws IOException {
+		// Note: new keys, so that the stores exceed their maximum size and evict entries
+		put("new-tile-" + nbPuts++);
+	}
+
+	private void put(String key) throws IOException {
+		TileStore.Editor editor = store.edit(key);
+		editor.setMetadata(METADATA);
+		editor.setZoom(12 + key.length() % 6);
+		editor.newOutputStream().write(tile);
+		editor.commit();
+	}
+}
@@ -0,0 +1,247 @@
+package org.opentravelmate.httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentravelmate.commons.ExceptionListener;
+
+import android.content.SharedPreferences;
+
+/**
+ * Time to load the web application assets after a restart of the application, when the HTTP server binds
+ * a random port (the origin changes) or uses a {@link PortReservation} (the origin is kept).
+ *
+ * The web view is simulated by an HTTP cache keyed by URL, like the WebView cache: the fresh entries are used
+ * without request, the other ones are revalidated with their ETag. Each invocation launches the server once
+ * to fill the cache, then measures the second launch. The "requests", "notModified", "kilobytes" and
+ * "originChanges" counters are reported for the second launch.
+ *
+ * @author Marc Plouhinec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WarmRestartBenchmark {
+
+	private static final int FIRST_FALLBACK_PORT = 47380;
+	private static final int NB_FALLBACK_PORTS = 16;
+	private static final String VENDOR_PREFIX = "/extensions/vendors/";
+	private static final long VENDOR_LIBRARY_MAX_AGE = 24 * 3600;
+	private static final int NB_MODULES = 40;
+	private static final int MODULE_SIZE = 8 * 1024;
+	private static final int NB_VENDOR_LIBRARIES = 8;
+	private static final int VENDOR_LIBRARY_SIZE = 96 * 1024;
+
+	@Param({ "random", "reserved" })
+	public String portMode;
+
+	private final Map<String, byte[]> assetByPath = new LinkedHashMap<String, byte[]>();
+	private SharedPreferences preferences;
+	private Map<String, CachedResponse> webViewCache;
+	private HttpServer httpServer;
+	private int firstPort;
+
+	/**
+	 * Counters of the second launch.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+
+		public long requests;
+		public long notModified;
+		public long kilobytes;
+		public long originChanges;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			requests = 0;
+			notModified = 0;
+			kilobytes = 0;
+			originChanges = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void createAssets() {
+		Random random = new Random(42);
+		for (int i = 0; i < NB_VENDOR_LIBRARIES; i++) {
+			byte[] library = new byte[VENDOR_LIBRARY_SIZE];
+			random.nextBytes(library);
+			assetByPath.put(VENDOR_PREFIX + "library" + i + ".js", library);
+		}
+		for (int i = 0; i < NB_MODULES; i++) {
+			byte[] module = new byte[MODULE_SIZE];
+			random.nextBytes(module);
+			assetByPath.put("/extensions/module" + i + ".js", module);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void firstLaunch() throws IOException {
+		preferences = new InMemorySharedPreferences();
+		webViewCache = new HashMap<String, CachedResponse>();
+		HttpServer firstServer = startServer();
+		loadAssets(firstServer, null);
+		firstPort = firstServer.getPort();
+		firstServer.stop();
+	}
+
+	@TearDown(Level.Invocation)
+	public void stopSecondLaunch() {
+		httpServer.stop();
+	}
+
+	@Benchmark
+	public int secondLaunch(Counters counters) throws IOException {
+		httpServer = startServer();
+		if (httpServer.getPort() != firstPort) {
+			counters.originChanges++;
+		}
+		return loadAssets(httpServer, counters);
+	}
+
+	/**
+	 * Start a server like the application does.
+	 *
+	 * @return started server
+	 * @throws IOException
+	 */
+	private HttpServer startServer() throws IOException {
+		final ContentHashManifest contentHashManifest = new ContentHashManifest();
+		Map<String, HttpRequestHandler> requestHandlerByPattern = new HashMap<String, HttpRequestHandler>();
+		requestHandlerByPattern.put("/extensions/*", new HttpRequestHandler() {
+			@Override public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+				String target = request.getRequestLine().getUri();
+				byte[] asset = assetByPath.get(target);
+				if (asset == null) {
+					response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+					return;
+				}
+				contentHashManifest.put(target, ContentHashManifest.hash(asset));
+				response.setEntity(new ByteArrayEntity(asset));
+			}
+		});
+		HttpServer server = new HttpServer(requestHandlerByPattern, new ExceptionListener() {
+			@Override public void onException(boolean isUnrecoverable, Exception e) {
+				// Do nothing
+			}
+		}, HttpServer.Engine.NIO);
+		Map<String, Long> maxAgeByUriPrefix = new HashMap<String, Long>();
+		maxAgeByUriPrefix.put(VENDOR_PREFIX, VENDOR_LIBRARY_MAX_AGE);
+		server.addResponseInterceptor(new ResponseCacheControl(contentHashManifest, new Date(), maxAgeByUriPrefix));
+		server.start("reserved".equals(portMode) ? new PortReservation(preferences, FIRST_FALLBACK_PORT, NB_FALLBACK_PORTS) : null);
+		return server;
+	}
+
+	/**
+	 * Load all the assets through the simulated web view cache.
+	 *
+	 * @param server
+	 * @param counters
+	 *   Counters to update or null.
+	 * @return number of loaded assets
+	 * @throws IOException
+	 */
+	private int loadAssets(HttpServer server, Counters counters) throws IOException {
+		String origin = "http://127.0.0.1:" + server.getPort();
+		int nbAssets = 0;
+		for (String path : assetByPath.keySet()) {
+			String url = origin + path;
+			CachedResponse cachedResponse = webViewCache.get(url);
+			nbAssets++;
+			if (cachedResponse != null && cachedResponse.isFresh()) {
+				continue;
+			}
+
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setUseCaches(false);
+			if (cachedResponse != null && cachedResponse.etag != null) {
+				connection.setRequestProperty("If-None-Match", cachedResponse.etag);
+			}
+			int statusCode = connection.getResponseCode();
+			int nbBytes = 0;
+			if (statusCode == HttpStatus.SC_OK) {
+				InputStream inputStream = connection.getInputStream();
+				byte[] buffer = new byte[8 * 1024];
+				for (int length = inputStream.read(buffer); length != -1; length = inputStream.read(buffer)) {
+					nbBytes += length;
+				}
+				inputStream.close();
+			} else if (statusCode != HttpStatus.SC_NOT_MODIFIED) {
+				throw new IOException("Unexpected status code " + statusCode + " for " + url);
+			}
+			webViewCache.put(url, new CachedResponse(connection.getHeaderField("ETag"), connection.getHeaderField("Cache-Control")));
+			if (counters != null) {
+				counters.requests++;
+				counters.kilobytes += nbBytes / 1024;
+				if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+					counters.notModified++;
+				}
+			}
+		}
+		return nbAssets;
+	}
+
+	/**
+	 * Entry of the simulated web view cache.
+	 */
+	private static class CachedResponse {
+
+		final String etag;
+		final long expirationTime;
+
+		/**
+		 * Create a CachedResponse.
+		 *
+		 * @param etag
+		 * @param cacheControl
+		 */
+		CachedResponse(String etag, String cacheControl) {
+			this.etag = etag;
+			long maxAge = 0;
+			if (cacheControl != null && cacheControl.startsWith("max-age=")) {
+				maxAge = Long.parseLong(cacheControl.substring("max-age=".length()));
+			}
+			this.expirationTime = System.currentTimeMillis() + maxAge * 1000;
+		}
+
+		/**
+		 * @return true if the entry can be used without revalidation
+		 */
+		boolean isFresh() {
+			return System.currentTimeMillis() < expirationTime;
+		}
+	}
+}